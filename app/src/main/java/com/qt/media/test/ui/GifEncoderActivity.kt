@@ -5,7 +5,7 @@ import android.os.Message
 import androidx.appcompat.app.AppCompatActivity
 import com.qt.camera.log.FULogger
 import com.qt.media.encode.entity.FrameFormat
-import com.qt.media.encode.entity.ImageFrame
+import com.qt.media.encode.entity.FramePool
 import com.qt.media.encode.gif.GifBufferEncoder
 import com.qt.media.encode.help.FileUtils
 import com.qt.media.encode.interfaces.IImageEncoder
@@ -76,15 +76,11 @@ class GifEncoderActivity : AppCompatActivity() {
                     }
                 }
                 if(encoderStartTime>0){
-                    BitmapBufferPool.getBitmapBuffer(1080,1920)?.let { buffer ->
-                        val imageFrame = ImageFrame(
-                            buffer,
-                            format = FrameFormat.FORMAT_RGBA,
-                            width = 1080,
-                            height = 1920
-                        )//这里示例代码就采用三原色进行录制验证
+                    val imageFrame = FramePool.acquire(1080, 1920, FrameFormat.FORMAT_RGBA)//帧内存从FramePool复用
+                    if (BitmapBufferPool.getBitmapBuffer(1080, 1920, imageFrame.buffer!!) != null) {//这里示例代码就采用三原色进行录制验证
                         gifEncoder?.encode(imageFrame)//encode
                     }
+                    imageFrame.release()
                     mBinding.root.post {
                         mBinding.txtStatus.text = "录制时间：$time ms"
                     }
@@ -6,7 +6,7 @@ import androidx.appcompat.app.AppCompatActivity
 import com.qt.camera.log.FULogger
 import com.qt.media.encode.entity.AudioTrackEntity
 import com.qt.media.encode.entity.FrameFormat
-import com.qt.media.encode.entity.ImageFrame
+import com.qt.media.encode.entity.FramePool
 import com.qt.media.encode.help.FileUtils.getExternalRootFileDir
 import com.qt.media.encode.interfaces.IVideoEncoder
 import com.qt.media.encode.interfaces.IVideoEncoderListener
@@ -87,14 +87,11 @@ class VideoEncoderActivity : AppCompatActivity() {
                     }
                 }
                 if(encoderStartTime>0){
-                    BitmapBufferPool.getBitmapBuffer(1080,1920)?.let { buffer ->
-                        val imageFrame = ImageFrame(
-                            buffer,
-                            format = FrameFormat.FORMAT_RGBA,
-                            width = 1080,
-                            height = 1920
-                        )//这里示例代码就采用三原色进行录制验证
-                        videoEncoder?.encoderBufferFrame2Video(imageFrame)//encode
+                    val imageFrame = FramePool.acquire(1080, 1920, FrameFormat.FORMAT_RGBA)//帧内存从FramePool复用
+                    val accepted = BitmapBufferPool.getBitmapBuffer(1080, 1920, imageFrame.buffer!!) != null//这里示例代码就采用三原色进行录制验证
+                            && videoEncoder?.encoderBufferFrame2Video(imageFrame)?.getOrNull() == true//encode
+                    if (!accepted) {
+                        imageFrame.release()//未被编码器接收的帧由调用方归还
                     }
                     mBinding.root.post {
                         mBinding.txtStatus.text = "录制时间：$time ms"
@@ -0,0 +1,93 @@
+package com.qt.media.benchmark
+
+import com.qt.media.encode.help.AudioHelp
+import com.qt.media.encode.help.PcmMixer
+import org.openjdk.jmh.annotations.Benchmark
+import org.openjdk.jmh.annotations.BenchmarkMode
+import org.openjdk.jmh.annotations.Mode
+import org.openjdk.jmh.annotations.OutputTimeUnit
+import org.openjdk.jmh.annotations.Param
+import org.openjdk.jmh.annotations.Scope
+import org.openjdk.jmh.annotations.Setup
+import org.openjdk.jmh.annotations.State
+import java.nio.ByteBuffer
+import java.nio.ByteOrder
+import java.nio.ShortBuffer
+import java.util.Random
+import java.util.concurrent.TimeUnit
+
+/**
+ * 多轨 16bit PCM 混音：AudioHelp.mixPcm 与 PcmMixer（direct buffer 输入输出）
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+open class AudioMixBenchmark {
+
+    @Param("1", "2", "4")
+    @JvmField
+    var trackCount = 0
+
+    /**
+     * 一次混音的字节数，4096 为 AudioRecord 常见的单次读取大小
+     */
+    @Param("4096")
+    @JvmField
+    var sampleSize = 0
+
+    private lateinit var samples: Array<ByteArray?>
+    private lateinit var vols: FloatArray
+
+    private lateinit var mixer: PcmMixer
+    private lateinit var inputs: Array<ShortBuffer?>
+    private lateinit var output: ShortBuffer
+
+    @Setup
+    fun setup() {
+        val random = Random(SEED)
+        samples = Array(trackCount) { ByteArray(sampleSize).also { random.nextBytes(it) } }
+        vols = FloatArray(trackCount) { 1f / trackCount }
+        mixer = PcmMixer(2, trackCount)
+        inputs = Array(trackCount) { track ->
+            directShorts(sampleSize).also { it.put(ByteBuffer.wrap(samples[track]!!).order(ByteOrder.LITTLE_ENDIAN).asShortBuffer()) }
+        }
+        for (track in 0 until trackCount) {
+            mixer.setGain(track, vols[track])
+        }
+        output = directShorts(sampleSize)
+    }
+
+    private fun directShorts(byteSize: Int): ShortBuffer {
+        return ByteBuffer.allocateDirect(byteSize).order(ByteOrder.LITTLE_ENDIAN).asShortBuffer()
+    }
+
+    @Benchmark
+    fun mixPcm(): ByteArray? {
+        return AudioHelp.mixPcm(samples, vols, trackCount, sampleSize)
+    }
+
+    @Benchmark
+    fun pcmMixer(): ShortBuffer {
+        for (input in inputs) {
+            input!!.clear()
+        }
+        output.clear()
+        mixer.mix(inputs, trackCount, output, sampleSize / 2)
+        return output
+    }
+
+    /**
+     * 每帧都处于增益渐变中的最坏情况
+     */
+    @Benchmark
+    fun pcmMixerRamp(): ShortBuffer {
+        for (track in 0 until trackCount) {
+            mixer.setGain(track, 0f)
+            mixer.rampGain(track, vols[track], sampleSize)
+            inputs[track]!!.clear()
+        }
+        output.clear()
+        mixer.mix(inputs, trackCount, output, sampleSize / 2)
+        return output
+    }
+}
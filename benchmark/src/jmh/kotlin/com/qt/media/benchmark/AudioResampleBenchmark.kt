@@ -0,0 +1,65 @@
+package com.qt.media.benchmark
+
+import com.qt.media.encode.help.PcmResampler
+import org.openjdk.jmh.annotations.Benchmark
+import org.openjdk.jmh.annotations.BenchmarkMode
+import org.openjdk.jmh.annotations.Mode
+import org.openjdk.jmh.annotations.OutputTimeUnit
+import org.openjdk.jmh.annotations.Param
+import org.openjdk.jmh.annotations.Scope
+import org.openjdk.jmh.annotations.Setup
+import org.openjdk.jmh.annotations.State
+import java.nio.ShortBuffer
+import java.util.Random
+import java.util.concurrent.TimeUnit
+
+/**
+ * PcmResampler 每次输出 1024 帧 44100Hz 双声道，输入为常见的非默认格式
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+open class AudioResampleBenchmark {
+
+    /**
+     * 输入格式：采样率/声道数
+     */
+    @Param("48000/2", "22050/1", "44100/1")
+    @JvmField
+    var inputFormat = ""
+
+    private lateinit var resampler: PcmResampler
+    private lateinit var input: ShortBuffer
+    private lateinit var output: ShortBuffer
+    private var inChannels = 0
+
+    @Setup
+    fun setup() {
+        val (rate, channels) = inputFormat.split("/").map { it.toInt() }
+        inChannels = channels
+        resampler = PcmResampler(rate, channels, OUT_RATE, OUT_CHANNELS)
+        val random = Random(SEED)
+        //足够任意一次调用使用的输入
+        input = ShortBuffer.allocate(OUT_FRAMES * 4 * channels)
+        while (input.hasRemaining()) {
+            input.put(random.nextInt().toShort())
+        }
+        output = ShortBuffer.allocate(OUT_FRAMES * OUT_CHANNELS)
+    }
+
+    @Benchmark
+    fun resample(): ShortBuffer {
+        val frames = resampler.requiredInputFrames(OUT_FRAMES)
+        input.limit(frames * inChannels)
+        input.position(0)
+        output.clear()
+        resampler.resample(input, output, OUT_FRAMES)
+        return output
+    }
+
+    companion object {
+        private const val OUT_RATE = 44100
+        private const val OUT_CHANNELS = 2
+        private const val OUT_FRAMES = 1024
+    }
+}
@@ -0,0 +1,112 @@
+package com.qt.media.benchmark
+
+import com.qt.media.encode.entity.AudioTrackEntity
+import org.openjdk.jmh.annotations.Benchmark
+import org.openjdk.jmh.annotations.BenchmarkMode
+import org.openjdk.jmh.annotations.Level
+import org.openjdk.jmh.annotations.Mode
+import org.openjdk.jmh.annotations.OutputTimeUnit
+import org.openjdk.jmh.annotations.Param
+import org.openjdk.jmh.annotations.Scope
+import org.openjdk.jmh.annotations.Setup
+import org.openjdk.jmh.annotations.State
+import org.openjdk.jmh.annotations.TearDown
+import java.io.File
+import java.nio.ByteBuffer
+import java.nio.ByteOrder
+import java.nio.ShortBuffer
+import java.util.Random
+import java.util.concurrent.TimeUnit
+
+/**
+ * AudioTrackEntity 从 wav 文件顺序读取 PCM，读到文件末尾后重新打开
+ * read 拷贝到字节数组，readSamples 直接返回映射内存
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+open class AudioTrackReadBenchmark {
+
+    @Param("4096", "16384")
+    @JvmField
+    var bufferSize = 0
+
+    private lateinit var wavFile: File
+    private var track: AudioTrackEntity? = null
+
+    @Setup(Level.Trial)
+    fun createFile() {
+        wavFile = File.createTempFile("benchmark", ".wav")
+        wavFile.deleteOnExit()
+        val pcm = ByteArray(PCM_SIZE)
+        Random(SEED).nextBytes(pcm)
+        wavFile.writeBytes(wavHeader(PCM_SIZE) + pcm)
+        openTrack()
+    }
+
+    @TearDown(Level.Trial)
+    fun deleteFile() {
+        track?.release()
+        wavFile.delete()
+    }
+
+    private fun openTrack() {
+        track?.release()
+        track = AudioTrackEntity(wavFile.absolutePath, 0f, DURATION_MS, DURATION_MS, 0f).apply { init() }
+    }
+
+    @Benchmark
+    fun read(): ByteArray? {
+        val buffer = track!!.read(0f, bufferSize)
+        if (buffer == null) {
+            openTrack()
+        }
+        return buffer
+    }
+
+    @Benchmark
+    fun readSamples(): ShortBuffer? {
+        val samples = track!!.readSamples(0f, bufferSize / 2)
+        if (samples == null) {
+            openTrack()
+        }
+        return samples
+    }
+
+    /**
+     * 44100Hz 双声道 16bit 的文件头，fmt 与 data 之间带一个 LIST chunk
+     */
+    private fun wavHeader(dataSize: Int): ByteArray {
+        val list = "INFOISFT\u0006\u0000\u0000\u0000media\u0000".toByteArray(Charsets.US_ASCII)
+        val header = ByteBuffer.allocate(WAV_HEAD_LENGTH + 8 + list.size).order(ByteOrder.LITTLE_ENDIAN)
+        header.put("RIFF".toByteArray(Charsets.US_ASCII))
+        header.putInt(header.capacity() - 8 + dataSize)
+        header.put("WAVE".toByteArray(Charsets.US_ASCII))
+        header.put("fmt ".toByteArray(Charsets.US_ASCII))
+        header.putInt(16)
+        header.putShort(1)
+        header.putShort(CHANNEL_COUNT.toShort())
+        header.putInt(SAMPLE_RATE)
+        header.putInt(SAMPLE_RATE * CHANNEL_COUNT * 2)
+        header.putShort((CHANNEL_COUNT * 2).toShort())
+        header.putShort(16)
+        header.put("LIST".toByteArray(Charsets.US_ASCII))
+        header.putInt(list.size)
+        header.put(list)
+        header.put("data".toByteArray(Charsets.US_ASCII))
+        header.putInt(dataSize)
+        return header.array()
+    }
+
+    companion object {
+        private const val WAV_HEAD_LENGTH = 44
+        private const val SAMPLE_RATE = 44100
+        private const val CHANNEL_COUNT = 2
+
+        /**
+         * 10s 44100Hz 双声道 16bit
+         */
+        private const val PCM_SIZE = SAMPLE_RATE * CHANNEL_COUNT * 2 * 10
+        private const val DURATION_MS = 10_000f
+    }
+}
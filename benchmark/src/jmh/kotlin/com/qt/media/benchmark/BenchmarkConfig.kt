@@ -0,0 +1,6 @@
+package com.qt.media.benchmark
+
+/**
+ * 所有测试数据使用固定种子，保证多次运行结果可比较
+ */
+internal const val SEED = 20240315L
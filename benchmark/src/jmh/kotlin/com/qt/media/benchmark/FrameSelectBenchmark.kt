@@ -0,0 +1,46 @@
+package com.qt.media.benchmark
+
+import com.qt.media.encode.help.FrameDropHelp
+import org.openjdk.jmh.annotations.Benchmark
+import org.openjdk.jmh.annotations.BenchmarkMode
+import org.openjdk.jmh.annotations.Mode
+import org.openjdk.jmh.annotations.OperationsPerInvocation
+import org.openjdk.jmh.annotations.OutputTimeUnit
+import org.openjdk.jmh.annotations.Scope
+import org.openjdk.jmh.annotations.State
+import java.util.concurrent.TimeUnit
+
+/**
+ * GIF/WEBP 录制的丢帧判断，每次调用判断 FRAME_COUNT 帧
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+open class FrameSelectBenchmark {
+
+    private val template = intArrayOf(1, 0, 1, 1, 0, 1, 0, 1, 1, 0, 1, 1)
+
+    @Benchmark
+    @OperationsPerInvocation(FRAME_COUNT)
+    fun byFraction(): Int {
+        var kept = 0
+        for (frame in 1..FRAME_COUNT) {
+            if (!FrameDropHelp.needAbandon(frame.toLong(), 3, null)) kept++
+        }
+        return kept
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(FRAME_COUNT)
+    fun byTemplate(): Int {
+        var kept = 0
+        for (frame in 1..FRAME_COUNT) {
+            if (!FrameDropHelp.needAbandon(frame.toLong(), -1, template)) kept++
+        }
+        return kept
+    }
+
+    companion object {
+        private const val FRAME_COUNT = 1024
+    }
+}
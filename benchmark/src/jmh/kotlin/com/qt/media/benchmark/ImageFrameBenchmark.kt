@@ -0,0 +1,73 @@
+package com.qt.media.benchmark
+
+import com.qt.media.encode.entity.FrameFormat
+import com.qt.media.encode.entity.FramePool
+import com.qt.media.encode.entity.ImageFrame
+import org.openjdk.jmh.annotations.Benchmark
+import org.openjdk.jmh.annotations.BenchmarkMode
+import org.openjdk.jmh.annotations.Mode
+import org.openjdk.jmh.annotations.OutputTimeUnit
+import org.openjdk.jmh.annotations.Param
+import org.openjdk.jmh.annotations.Scope
+import org.openjdk.jmh.annotations.Setup
+import org.openjdk.jmh.annotations.State
+import org.openjdk.jmh.annotations.TearDown
+import java.nio.ByteBuffer
+import java.util.concurrent.TimeUnit
+
+/**
+ * ImageFrame 的 buffer 获取与释放：每帧新分配 vs FramePool 复用
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+open class ImageFrameBenchmark {
+
+    @Param("FORMAT_RGBA", "FORMAT_NV21")
+    @JvmField
+    var format = ""
+
+    private lateinit var frameFormat: FrameFormat
+
+    @Setup
+    fun setup() {
+        frameFormat = FrameFormat.valueOf(format)
+    }
+
+    @TearDown
+    fun tearDown() {
+        FramePool.clear()
+    }
+
+    @Benchmark
+    fun allocate(): ImageFrame {
+        val frame = ImageFrame(ByteArray(FramePool.bufferSize(WIDTH, HEIGHT, frameFormat)), frameFormat, WIDTH, HEIGHT)
+        frame.release()
+        return frame
+    }
+
+    @Benchmark
+    fun pooled(): ImageFrame {
+        val frame = FramePool.acquire(WIDTH, HEIGHT, frameFormat)
+        frame.release()
+        return frame
+    }
+
+    /**
+     * 跨线程传递时的 retain/release 与获取上传用的 buffer
+     */
+    @Benchmark
+    fun retainAndWrap(): ByteBuffer? {
+        val frame = FramePool.acquire(WIDTH, HEIGHT, frameFormat)
+        frame.retain()
+        val buffer = frame.getPixelBuffer()
+        frame.release()
+        frame.release()
+        return buffer
+    }
+
+    companion object {
+        private const val WIDTH = 1280
+        private const val HEIGHT = 720
+    }
+}
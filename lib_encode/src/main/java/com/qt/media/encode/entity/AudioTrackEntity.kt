@@ -1,16 +1,21 @@
 package com.qt.media.encode.entity
 
+import com.qt.media.encode.help.AudioHelp
+import com.qt.media.encode.help.PcmResampler
+import com.qt.media.encode.help.WavReader
 import java.io.File
-import java.io.FileInputStream
 import java.io.IOException
+import java.nio.ShortBuffer
 
 /**
  * 音频数据类
+ * wav 文件通过内存映射读取，按帧精确定位；格式与输出格式一致时 readSamples 直接返回映射内存上的数据，
+ * 否则经 PcmResampler 流式转换采样率与声道数，支持任意采样率与声道数的 16bit PCM wav
  *
  * @property path String? 音频文件绝对路径
  * @property startTime Float 对应视频的位置 ms
  * @property audioDuration Float 音频的持续时长 ms
- * @property totalAudioDuration Float 音频总时长 ms
+ * @property totalAudioDuration Float 音频总时长 ms（文件头中已包含，保留参数兼容旧接口）
  * @property startAudioTime Float 音频的起始位置 ms
  */
 class AudioTrackEntity(
@@ -27,56 +32,151 @@ class AudioTrackEntity(
     val volume = 1f
 
     private var isError = false
-    private var tempPath: String? = null
-    private var mFileInputStream: FileInputStream? = null
-    private var index = wav_head_length
+    private var reader: WavReader? = null
+
+    /**
+     * 下一次读取的帧位置
+     */
+    private var framePosition = 0L
     private var buffer: ByteArray? = null
 
+    /**
+     * 文件末尾不足一次读取长度时用于补静音
+     */
+    private var tailBuffer: ShortBuffer? = null
+
+    /**
+     * 文件格式与输出格式不一致时的转换器及其输出 buffer
+     */
+    private var resampler: PcmResampler? = null
+    private var resampleBuffer: ShortBuffer? = null
+
+    /**
+     * 文件的采样率，init 之后有效
+     */
+    val sampleRate: Int
+        get() = reader?.sampleRate ?: 0
 
+    /**
+     * 文件的声道数，init 之后有效
+     */
+    val channelCount: Int
+        get() = reader?.channelCount ?: 0
+
+    /**
+     * 输出的采样率与声道数，readSamples 返回的数据按这个格式
+     */
+    var outputSampleRate = AudioHelp.DEFAULT_SAMPLE_RATE
+        private set
+    var outputChannelCount = AudioHelp.DEFAULT_CHANNEL_COUNT
+        private set
+
+    /**
+     * @param outSampleRate 输出采样率
+     * @param outChannelCount 输出声道数
+     */
+    @JvmOverloads
     @Throws(IOException::class)
-    fun init() {
-        tempPath = path
-        isError = tempPath == null || !File(tempPath).exists()
+    fun init(
+        outSampleRate: Int = AudioHelp.DEFAULT_SAMPLE_RATE,
+        outChannelCount: Int = AudioHelp.DEFAULT_CHANNEL_COUNT
+    ) {
+        release()
+        outputSampleRate = outSampleRate
+        outputChannelCount = outChannelCount
+        isError = path == null || !File(path).exists()
         if (isError) {
             return
         }
-        mFileInputStream = FileInputStream(tempPath).apply {
-            val size = channel.size()
-            val curIndex = (startAudioTime / totalAudioDuration * (size - wav_head_length) + wav_head_length).toInt()
-            index = if (curIndex <= 0) curIndex else curIndex / 10 * 10
-            //跳到文件中读取音频数据的所需位置
-            skip(index.toLong())
+        val wavReader = WavReader(File(path!!))
+        reader = wavReader
+        framePosition = wavReader.frameOf((startAudioTime * 1000).toLong())
+        if (wavReader.sampleRate != outSampleRate || wavReader.channelCount != outChannelCount) {
+            resampler = PcmResampler(wavReader.sampleRate, wavReader.channelCount, outSampleRate, outChannelCount)
         }
-
     }
 
-    @Throws(IOException::class)
-    fun read(cur: Float, buffer_size: Int): ByteArray? {
-        if (isError) {
+    /**
+     * 读取 cur 时刻之后的 sampleCount 个采样（short），不拷贝数据
+     * 返回的 ShortBuffer 在下一次读取前有效，文件末尾不足的部分补静音
+     *
+     * @param cur 当前导出的时间 ms，不在 [startTime, startTime + audioDuration] 内时返回 null
+     * @param sampleCount 采样个数，需要是输出声道数的整数倍
+     */
+    fun readSamples(cur: Float, sampleCount: Int): ShortBuffer? {
+        val wavReader = reader
+        if (isError || wavReader == null || cur < startTime || cur > startTime + audioDuration) {
             return null
         }
-        if (cur < startTime || cur > startTime + audioDuration || isError || mFileInputStream == null) {
+        val converter = resampler
+        if (converter != null) {
+            return readConverted(wavReader, converter, sampleCount)
+        }
+        val frames = sampleCount / wavReader.channelCount
+        val samples = wavReader.readFrames(framePosition, frames) ?: return null
+        framePosition += frames
+        if (samples.remaining() == sampleCount) {
+            return samples
+        }
+        var tail = tailBuffer
+        if (tail == null || tail.capacity() != sampleCount) {
+            tail = ShortBuffer.allocate(sampleCount)
+            tailBuffer = tail
+        }
+        tail!!.clear()
+        tail.put(samples)
+        while (tail.hasRemaining()) {
+            tail.put(0)
+        }
+        tail.flip()
+        return tail
+    }
+
+    private fun readConverted(wavReader: WavReader, converter: PcmResampler, sampleCount: Int): ShortBuffer? {
+        val outFrames = sampleCount / outputChannelCount
+        val inFrames = converter.requiredInputFrames(outFrames)
+        var input: ShortBuffer? = null
+        if (inFrames > 0) {
+            input = wavReader.readFrames(framePosition, inFrames) ?: return null
+            framePosition += inFrames
+        } else if (framePosition >= wavReader.frameCount) {
             return null
         }
+        var output = resampleBuffer
+        if (output == null || output.capacity() != sampleCount) {
+            output = ShortBuffer.allocate(sampleCount)
+            resampleBuffer = output
+        }
+        output!!.clear()
+        converter.resample(input, output, outFrames)
+        output.flip()
+        return output
+    }
+
+    /**
+     * 读取 cur 时刻之后的 buffer_size 字节 16bit 小端 PCM，数据拷贝到复用的数组中
+     * @see readSamples
+     */
+    @Throws(IOException::class)
+    fun read(cur: Float, buffer_size: Int): ByteArray? {
+        val samples = readSamples(cur, buffer_size / 2) ?: return null
         if (buffer == null || buffer!!.size != buffer_size) {
             buffer = ByteArray(buffer_size)
         }
-        return if (mFileInputStream!!.read(buffer) != -1) {
-            buffer
-        } else null
+        val bytes = buffer!!
+        var i = 0
+        while (samples.hasRemaining()) {
+            val sample = samples.get().toInt()
+            bytes[i++] = sample.toByte()
+            bytes[i++] = (sample shr 8).toByte()
+        }
+        return bytes
     }
 
     @Throws(IOException::class)
     fun release() {
-        mFileInputStream?.close()
-    }
-
-    companion object {
-        /**
-         * WAV 文件头部大小
-         * 在处理 WAV 文件时，通常会在文件的开头有一个音频头部（Header）部分，
-         * 它包含了文件的格式信息和其他元数据，占用了文件的前若干字节。
-         */
-        private const val wav_head_length = 44
+        reader?.close()
+        reader = null
+        resampler = null
     }
-}
\ No newline at end of file
+}
@@ -0,0 +1,218 @@
+package com.qt.media.encode.entity
+
+import android.graphics.Bitmap
+
+/**
+ * 创建时间：2024/3/12
+ * 创建人：singleCode
+ * 功能描述：帧内存池
+ * 按 宽/高/格式 分桶缓存帧数据（ByteArray）与转换用的 Bitmap，
+ * 配合 ImageFrame 的引用计数在 release 时归还，稳态录制时不再分配新的帧内存
+ **/
+object FramePool {
+
+    /**
+     * 每个桶默认最多缓存的个数
+     */
+    private const val DEFAULT_MAX_PER_BUCKET = 4
+
+    @Volatile
+    private var maxPerBucket = DEFAULT_MAX_PER_BUCKET
+
+    /**
+     * 数据桶，按 宽/高/格式 区分；桶的数量很少，使用写时复制的数组避免查找时的装箱和分配
+     */
+    @Volatile
+    private var bufferBuckets: Array<Bucket<ByteArray>> = emptyArray()
+
+    /**
+     * Bitmap 桶，统一为 ARGB_8888，按 宽/高 区分
+     */
+    @Volatile
+    private var bitmapBuckets: Array<Bucket<Bitmap>> = emptyArray()
+
+    /**
+     * 设置每个桶最多缓存的个数（需要大于等于渲染队列的长度才能做到零分配）
+     */
+    @JvmStatic
+    fun setMaxPerBucket(count: Int) {
+        maxPerBucket = if (count > 0) count else DEFAULT_MAX_PER_BUCKET
+    }
+
+    /**
+     * 获取一帧，buffer 来自内存池，引用计数为 1，使用完成后调用 ImageFrame.release 归还
+     *
+     * @param width 宽
+     * @param height 高
+     * @param format 帧格式，决定 buffer 的大小
+     * @param isKeyFrame 是否输出为关键帧
+     * @param uBrightness 亮度控制参数
+     */
+    @JvmStatic
+    @JvmOverloads
+    fun acquire(
+        width: Int,
+        height: Int,
+        format: FrameFormat,
+        isKeyFrame: Boolean = false,
+        uBrightness: Float? = null
+    ): ImageFrame {
+        val frame = ImageFrame(acquireBuffer(width, height, format), format, width, height, isKeyFrame, uBrightness)
+        frame.pooled = true
+        return frame
+    }
+
+    /**
+     * 从内存池获取一块满足 宽/高/格式 大小的 buffer
+     */
+    @JvmStatic
+    fun acquireBuffer(width: Int, height: Int, format: FrameFormat): ByteArray {
+        return bufferBucket(width, height, format).poll() ?: ByteArray(bufferSize(width, height, format))
+    }
+
+    /**
+     * 归还 buffer，大小与 宽/高/格式 不匹配的直接丢弃
+     */
+    @JvmStatic
+    fun recycleBuffer(buffer: ByteArray?, width: Int, height: Int, format: FrameFormat) {
+        if (buffer == null || buffer.size != bufferSize(width, height, format)) {
+            return
+        }
+        bufferBucket(width, height, format).offer(buffer, maxPerBucket)
+    }
+
+    /**
+     * 从内存池获取一张 ARGB_8888 的 Bitmap
+     */
+    @JvmStatic
+    fun acquireBitmap(width: Int, height: Int): Bitmap {
+        val bucket = bitmapBucket(width, height)
+        while (true) {
+            val bitmap = bucket.poll() ?: break
+            if (!bitmap.isRecycled) {
+                return bitmap
+            }
+        }
+        return Bitmap.createBitmap(width, height, Bitmap.Config.ARGB_8888)
+    }
+
+    /**
+     * 归还 Bitmap，池已满时直接 recycle
+     */
+    @JvmStatic
+    fun recycleBitmap(bitmap: Bitmap?) {
+        if (bitmap == null || bitmap.isRecycled) {
+            return
+        }
+        if (bitmap.config != Bitmap.Config.ARGB_8888 || !bitmap.isMutable ||
+            !bitmapBucket(bitmap.width, bitmap.height).offer(bitmap, maxPerBucket)
+        ) {
+            bitmap.recycle()
+        }
+    }
+
+    /**
+     * 清空内存池
+     */
+    @JvmStatic
+    fun clear() {
+        synchronized(this) {
+            val bitmaps = bitmapBuckets
+            bufferBuckets = emptyArray()
+            bitmapBuckets = emptyArray()
+            for (bucket in bitmaps) {
+                while (true) {
+                    bucket.poll()?.recycle() ?: break
+                }
+            }
+        }
+    }
+
+    /**
+     * 根据格式计算一帧数据的大小
+     */
+    @JvmStatic
+    fun bufferSize(width: Int, height: Int, format: FrameFormat): Int {
+        return when (format) {
+            FrameFormat.FORMAT_RGBA,
+            FrameFormat.FORMAT_BGRA -> width * height * 4
+            FrameFormat.FORMAT_YV12,
+            FrameFormat.FORMAT_YU12,
+            FrameFormat.FORMAT_NV12,
+            FrameFormat.FORMAT_NV21 -> width * height * 3 / 2
+            FrameFormat.FORMAT_OES -> 0
+        }
+    }
+
+    private fun bufferBucket(width: Int, height: Int, format: FrameFormat): Bucket<ByteArray> {
+        for (bucket in bufferBuckets) {
+            if (bucket.matches(width, height, format)) {
+                return bucket
+            }
+        }
+        synchronized(this) {
+            for (bucket in bufferBuckets) {
+                if (bucket.matches(width, height, format)) {
+                    return bucket
+                }
+            }
+            val bucket = Bucket<ByteArray>(width, height, format)
+            bufferBuckets = bufferBuckets.plusElement(bucket)
+            return bucket
+        }
+    }
+
+    private fun bitmapBucket(width: Int, height: Int): Bucket<Bitmap> {
+        for (bucket in bitmapBuckets) {
+            if (bucket.matches(width, height, FrameFormat.FORMAT_RGBA)) {
+                return bucket
+            }
+        }
+        synchronized(this) {
+            for (bucket in bitmapBuckets) {
+                if (bucket.matches(width, height, FrameFormat.FORMAT_RGBA)) {
+                    return bucket
+                }
+            }
+            val bucket = Bucket<Bitmap>(width, height, FrameFormat.FORMAT_RGBA)
+            bitmapBuckets = bitmapBuckets.plusElement(bucket)
+            return bucket
+        }
+    }
+
+    /**
+     * 单个尺寸的缓存桶，定长数组实现的栈，存取都不产生分配
+     */
+    private class Bucket<T : Any>(val width: Int, val height: Int, val format: FrameFormat) {
+        private var items = arrayOfNulls<Any>(DEFAULT_MAX_PER_BUCKET)
+        private var count = 0
+
+        fun matches(width: Int, height: Int, format: FrameFormat): Boolean {
+            return this.width == width && this.height == height && this.format == format
+        }
+
+        @Synchronized
+        @Suppress("UNCHECKED_CAST")
+        fun poll(): T? {
+            if (count == 0) {
+                return null
+            }
+            count--
+            val item = items[count] as T?
+            items[count] = null
+            return item
+        }
+
+        @Synchronized
+        fun offer(item: T, max: Int): Boolean {
+            if (count >= max) {
+                return false
+            }
+            if (count == items.size) {
+                items = items.copyOf(max)
+            }
+            items[count++] = item
+            return true
+        }
+    }
+}
@@ -1,8 +1,10 @@
 package com.qt.media.encode.entity
 
 import android.graphics.Bitmap
+import com.qt.camera.log.FULogger
 import com.qt.media.encode.help.BitmapHelp
 import java.nio.ByteBuffer
+import java.util.concurrent.atomic.AtomicInteger
 
 /**
  * 创建时间：2023/8/30
@@ -14,8 +16,13 @@ import java.nio.ByteBuffer
  * @param height 高
  * @param isKeyFrame 是否输出为关键帧
  * @param uBrightness  亮度控制参数 默认null（建议范围0.5-3.0）
+ *
+ * 帧带有引用计数，创建时为 1，retain 加一，release 减一，减到 0 时来自 FramePool 的 buffer 与 bitmap 归还到 FramePool，
+ * 调用方传入的 bitmap 直接 recycle
+ * buffer 可能来自内存池，帧只能共享引用（retain）不能复制，所以不是 data class（没有 copy）
+ * @see FramePool
  **/
-data class ImageFrame(
+class ImageFrame(
     var buffer: ByteArray?,
     val format: FrameFormat,
     val width: Int,
@@ -24,13 +31,31 @@ data class ImageFrame(
     val uBrightness:Float? = null,
     var bitmap: Bitmap? = null
 ) {
-    override fun equals(other: Any?): Boolean {
-        return super.equals(other)
-    }
+    /**
+     * 引用计数
+     */
+    private val refCount = AtomicInteger(1)
 
-    override fun hashCode(): Int {
-        return super.hashCode()
-    }
+    /**
+     * buffer 是否来自 FramePool
+     */
+    internal var pooled = false
+
+    /**
+     * getImageBitmap 从 FramePool 获取的 bitmap，只有它会归还到 FramePool
+     */
+    private var pooledBitmap: Bitmap? = null
+
+    /**
+     * 可选的 direct buffer 数据，设置后 buffer 上传模式优先使用它直接上传纹理（格式与宽高同 buffer）
+     */
+    var directBuffer: ByteBuffer? = null
+
+    /**
+     * 帧产生的系统时间（System.nanoTime），为 0 时由编码器在入队时记录
+     * 时钟为 CAPTURE_TIME/VARIABLE_RATE 模式时用于计算时间戳，固定帧率转换时用于决定重复/丢帧
+     */
+    var captureTimeNs = 0L
 
     override fun toString(): String {
         return "ImageFrame(buffer=$buffer, format=$format, width=$width, height=$height)"
@@ -39,16 +64,67 @@ data class ImageFrame(
     fun getImageBitmap():Bitmap?{
         if (bitmap== null || bitmap!!.isRecycled){
             bitmap = BitmapHelp.getBitmapFromImageFrame(this)
+            pooledBitmap = bitmap
         }
         return bitmap
     }
 
+    /**
+     * 获取用于直接上传纹理的像素数据，优先 directBuffer，否则包装 buffer
+     */
+    fun getPixelBuffer(): ByteBuffer? {
+        directBuffer?.let { return it }
+        return buffer?.let { ByteBuffer.wrap(it) }
+    }
+
+    /**
+     * 引用计数加一，跨线程持有帧时调用，使用完成后需要对应调用一次 release
+     * @throws IllegalStateException 帧已经释放，buffer 可能已被内存池复用
+     */
+    fun retain(): ImageFrame {
+        while (true) {
+            val count = refCount.get()
+            check(count > 0) { "retain released $this" }
+            if (refCount.compareAndSet(count, count + 1)) {
+                return this
+            }
+        }
+    }
+
+    /**
+     * 引用计数减一，减到 0 时释放 bitmap 与 buffer（来自内存池的归还到内存池，其它 bitmap 直接 recycle）
+     * 已经释放的帧再次 release 不做任何事，避免同一块 buffer 重复归还到内存池
+     */
     fun release(){
-        if (bitmap!= null && !bitmap!!.isRecycled){
-            bitmap?.recycle()
+        while (true) {
+            val count = refCount.get()
+            if (count <= 0) {
+                FULogger.w(TAG, "release called on released $this")
+                return
+            }
+            if (refCount.compareAndSet(count, count - 1)) {
+                if (count > 1) {
+                    return
+                }
+                break
+            }
+        }
+        val bitmap = bitmap
+        if (bitmap != null && bitmap === pooledBitmap) {
+            FramePool.recycleBitmap(bitmap)
+        } else if (bitmap != null && !bitmap.isRecycled) {
+            bitmap.recycle()
+        }
+        this.bitmap = null
+        pooledBitmap = null
+        if (pooled) {
+            FramePool.recycleBuffer(buffer, width, height, format)
         }
-        bitmap = null
         buffer = null
+        directBuffer = null
     }
 
+    companion object {
+        private const val TAG = "ImageFrame"
+    }
 }
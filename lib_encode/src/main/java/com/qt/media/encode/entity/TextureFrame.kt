@@ -19,6 +19,12 @@ data class TextureFrame(
     val width: Int,
     val height: Int
 ) {
+    /**
+     * 纹理帧产生的系统时间（System.nanoTime），为 0 时使用送入编码器的时间
+     * 渲染帧率不稳定时设置为实际渲染时间，可以按 IVideoEncoder.setFrameTiming 输出可变帧率或转换为固定帧率
+     */
+    var captureTimeNs = 0L
+
     override fun equals(other: Any?): Boolean {
         return super.equals(other)
     }
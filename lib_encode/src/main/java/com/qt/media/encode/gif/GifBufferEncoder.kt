@@ -49,10 +49,13 @@ class GifBufferEncoder(outputPath: String, private val outFps: Double = 20.0) :
 
     }
 
+    /**
+     * 编码帧，编码线程会持有该帧直到编码完成，调用方使用完后照常 release 即可，帧内存可复用 FramePool
+     */
     override fun encode(imageFrame: ImageFrame) {
         super.encode(imageFrame)
         initGifRecorder(imageFrame)
-        gifRecordWrapper?.encodeFrame(imageFrame.buffer, imageFrame.width, imageFrame.height)
+        gifRecordWrapper?.encodeFrame(imageFrame)
     }
 
     /**
@@ -1,16 +1,14 @@
 package com.qt.media.encode.gif;
 
-import android.os.Bundle;
-import android.os.Handler;
-import android.os.HandlerThread;
-import android.os.Looper;
-import android.os.Message;
 import android.util.Log;
 
 
 import com.faceunity.ImageCodec.ImageCodecAPI;
 import com.faceunity.ImageCodec.ImageEncoderGIF;
+import com.qt.media.encode.entity.ImageFrame;
 import com.qt.media.encode.help.FileUtils;
+import com.qt.media.encode.help.FrameDropHelp;
+import com.qt.media.encode.video.encoder.EncoderScheduler;
 
 import java.io.File;
 import java.util.concurrent.atomic.AtomicBoolean;
@@ -20,13 +18,11 @@ public class GifBufferEncoderWrapper {
 
     private static boolean DEBUG = false;
 
-    private static final int WHAT_GIF_ENCODER = 0;
-    private static final String data_key_img = "data_key_img";
-    private static final String data_key_img_w = "data_key_img_w";
-    private static final String data_key_img_h = "data_key_img_h";
     private ImageEncoderGIF encoderGIF;
-    private HandlerThread mThread;
-    private Handler mHandler;
+    /**
+     * 编码任务串行执行在 EncoderScheduler 的调度线程上，代替独占的 HandlerThread
+     */
+    private EncoderScheduler.SerialQueue mQueue;
     private String mGifPath;
     private String mGifRecordPath;
     private long lastEncodeTime;
@@ -50,6 +46,13 @@ public class GifBufferEncoderWrapper {
     private boolean fristFrame = true;
 
     public GifBufferEncoderWrapper(String path, int gifWidth, int gifHeight) {
+        this(path, gifWidth, gifHeight, EncoderScheduler.getDefault().newSession(TAG));
+    }
+
+    /**
+     * @param session 编码任务所在的调度会话，多个导出同时进行时在会话之间公平轮转
+     */
+    public GifBufferEncoderWrapper(String path, int gifWidth, int gifHeight, EncoderScheduler.Session session) {
         String sdkVersion = ImageCodecAPI.SDKVersion();
         String sdkCommitTime = ImageCodecAPI.SDKCommitTime();
         String sdkCommitHash = ImageCodecAPI.SDKCommitHash();
@@ -68,9 +71,7 @@ public class GifBufferEncoderWrapper {
         mGifPath = path;
         lastEncodeTime = 0;
         isCancel = new AtomicBoolean(false);
-        mThread = new HandlerThread(TAG);
-        mThread.start();
-        mHandler = new GifHardHandler(mThread.getLooper());
+        mQueue = session.newQueue(TAG);
     }
     private boolean checkError(String method,ImageCodecAPI.FuImageCodecErrorCode errorCode){
         if(errorCode.ec == ImageCodecAPI.EFuImageCodecErrorCode.FU_IMAGE_CODEC_ERROR_SUCCESS){
@@ -133,7 +134,7 @@ public class GifBufferEncoderWrapper {
         this.frameTemplate = frameTemplate;
     }
 
-    public void encodeFrame(byte[] rgbaData, int bufferWidth,int bufferHeight) {
+    public void encodeFrame(final byte[] rgbaData, final int bufferWidth, final int bufferHeight) {
         currentFrameNumber++;
         if (encoderGIF == null) return;
         if (needAbandon()) return;
@@ -141,27 +142,36 @@ public class GifBufferEncoderWrapper {
 //           //TODO 处理第一帧异常问题
 //            fristFrame = false;
 //        }
-        Message message = mHandler.obtainMessage(WHAT_GIF_ENCODER);
-        Bundle data = new Bundle();
-        data.putByteArray(data_key_img, rgbaData);
-        data.putInt(data_key_img_w,bufferWidth);
-        data.putInt(data_key_img_h,bufferHeight);
-        message.setData(data);
-        mHandler.sendMessage(message);
+        mQueue.execute(new Runnable() {
+            @Override
+            public void run() {
+                encodeImage(rgbaData, bufferWidth, bufferHeight);
+            }
+        });
     }
-    private boolean needAbandon() {
-        if (frameTemplate == null) {
-            if (discardAFraction != -1 && discardAFraction != 0) {
-                long remainder = currentFrameNumber % discardAFraction;
-                return remainder == (discardAFraction - 1);
+    /**
+     * 编码帧，内部会 retain 该帧，编码线程处理完成后 release，帧内存可以来自 FramePool 复用
+     *
+     * @param imageFrame rgba 帧
+     */
+    public void encodeFrame(ImageFrame imageFrame) {
+        currentFrameNumber++;
+        if (encoderGIF == null || imageFrame == null || imageFrame.getBuffer() == null) return;
+        if (needAbandon()) return;
+        final ImageFrame frame = imageFrame.retain();
+        boolean accepted = mQueue.execute(new Runnable() {
+            @Override
+            public void run() {
+                encodeImage(frame.getBuffer(), frame.getWidth(), frame.getHeight());
+                frame.release();
             }
-        } else {
-            // 求余数
-            int remainder = (int) (currentFrameNumber % frameTemplate.length);
-            // 判断当前帧是否需要丢弃
-            return frameTemplate[remainder] == 0;
+        });
+        if (!accepted) {
+            frame.release();
         }
-        return false;
+    }
+    private boolean needAbandon() {
+        return FrameDropHelp.needAbandon(currentFrameNumber, discardAFraction, frameTemplate);
     }
 
     public void cancel() {
@@ -171,7 +181,7 @@ public class GifBufferEncoderWrapper {
         frameTemplate = null;
         currentFrameNumber = 0;
         if (encoderGIF == null) return;
-        mHandler.post(new Runnable() {
+        mQueue.execute(new Runnable() {
             @Override
             public void run() {
                 if (encoderGIF == null) return;
@@ -182,8 +192,8 @@ public class GifBufferEncoderWrapper {
                 encoderGIF.Destroy(errorCode);
                 checkError("Destroy",errorCode);
                 encoderGIF = null;
-                mHandler.removeMessages(WHAT_GIF_ENCODER);
-                mThread.quitSafely();
+                //之后提交的编码任务不再执行，已排队的任务看到编码器为空后直接返回
+                mQueue.shutdown();
                 if (listener != null) {
                     Log.i(TAG, "cancel gifHardEncoder OnRecordEnd");
                     listener.onRecordEnd(isCancel.get());
@@ -203,7 +213,7 @@ public class GifBufferEncoderWrapper {
         frameTemplate = null;
         currentFrameNumber = 0;
         if (encoderGIF == null) return;
-        mHandler.post(new Runnable() {
+        mQueue.execute(new Runnable() {
             @Override
             public void run() {
                 Log.i(TAG, "release run listener = " + listener);
@@ -218,8 +228,7 @@ public class GifBufferEncoderWrapper {
                 checkError("Destroy",errorCode);
                 encoderGIF = null;
                 Log.i(TAG, "release time = "+(System.currentTimeMillis()-startTime));
-                mHandler.removeMessages(WHAT_GIF_ENCODER);
-                mThread.quitSafely();
+                mQueue.shutdown();
                 Log.i(TAG, "release gif record end");
                 if (isCancel.get()) {
                     File file = new File(mGifRecordPath);
@@ -249,41 +258,30 @@ public class GifBufferEncoderWrapper {
         });
     }
 
-    class GifHardHandler extends Handler {
-
-        public GifHardHandler(Looper looper) {
-            super(looper);
+    /**
+     * 在编码任务队列中执行
+     */
+    private void encodeImage(byte[] img, int width, int height) {
+        if (DEBUG) {
+            Log.i(TAG, "encodeImage " + width + "x" + height);
         }
-
-        @Override
-        public void handleMessage(Message msg) {
-            if (DEBUG) {
-                Log.i(TAG, "handleMessage what = " + msg.what);
+        if (encoderGIF == null) return;
+        ImageCodecAPI.FuImageCodecErrorCode errorCode = new ImageCodecAPI.FuImageCodecErrorCode();
+        if (fps > 0) {
+            int duration_time_ms =  (int) (1000.0 / fps);
+            int[] durations = encoderGIF.GetImageDurationsFromFps((float) fps, errorCode);
+            if(checkError("GetImageDurationsFromFps",errorCode) && durations!= null && durations.length>0){
+                duration_time_ms = durations[0];
             }
-            if (WHAT_GIF_ENCODER == msg.what && encoderGIF != null) {
-                Bundle data = msg.getData();
-                byte[] img = data.getByteArray(data_key_img);
-                int width = data.getInt(data_key_img_w);
-                int height = data.getInt(data_key_img_h);
-                if (encoderGIF == null) return;
-                ImageCodecAPI.FuImageCodecErrorCode errorCode = new ImageCodecAPI.FuImageCodecErrorCode();
-                if (fps > 0) {
-                    int duration_time_ms =  (int) (1000.0 / fps);
-                    int[] durations = encoderGIF.GetImageDurationsFromFps((float) fps, errorCode);
-                    if(checkError("GetImageDurationsFromFps",errorCode) && durations!= null && durations.length>0){
-                        duration_time_ms = durations[0];
-                    }
-                    encoderGIF.EncodeImage(img,width,height, duration_time_ms,errorCode);
-                    checkError("EncodeImage",errorCode);
-                } else {
-                    long encodeTime = System.nanoTime() / 1000000;
-                    if (lastEncodeTime > 0) {
-                        encoderGIF.EncodeImage(img,width,height,(int) (encodeTime - lastEncodeTime),errorCode);
-                        checkError("EncodeImage",errorCode);
-                    }
-                    lastEncodeTime = encodeTime;
-                }
+            encoderGIF.EncodeImage(img,width,height, duration_time_ms,errorCode);
+            checkError("EncodeImage",errorCode);
+        } else {
+            long encodeTime = System.nanoTime() / 1000000;
+            if (lastEncodeTime > 0) {
+                encoderGIF.EncodeImage(img,width,height,(int) (encodeTime - lastEncodeTime),errorCode);
+                checkError("EncodeImage",errorCode);
             }
+            lastEncodeTime = encodeTime;
         }
     }
     /**
@@ -34,8 +34,11 @@ object AudioHelp {
 
     /**
      * 编解码器一次接受的最大输入数据大小
+     * 延迟到第一次使用时计算，mixPcm 等纯计算方法不会触发 AudioRecord 的加载，可以在 JVM 上运行
      */
-    private var DEFAULT_MIN_BUFFER_SIZE = AudioRecord.getMinBufferSize(DEFAULT_SAMPLE_RATE, DEFAULT_CHANNEL_CONFIG, AudioFormat.ENCODING_PCM_16BIT)
+    private val DEFAULT_MIN_BUFFER_SIZE by lazy {
+        AudioRecord.getMinBufferSize(DEFAULT_SAMPLE_RATE, DEFAULT_CHANNEL_CONFIG, AudioFormat.ENCODING_PCM_16BIT)
+    }
 
 
     /**
@@ -57,6 +60,10 @@ object AudioHelp {
         return temp
     }
 
+    /**
+     * 每次调用都会分配输出数组，导出等热点路径请使用 PcmMixer 直接混音到编码器输入 buffer
+     * @see PcmMixer
+     */
     @JvmStatic
     fun mixPcm(sample: Array<ByteArray?>, vols: FloatArray, trackCount: Int, sample_size: Int): ByteArray? {
         val res = ByteArray(sample_size)
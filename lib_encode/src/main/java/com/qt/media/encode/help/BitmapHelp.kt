@@ -5,31 +5,41 @@ import com.qt.media.encode.image.NV21ToBitmapHelp
 import com.libyuv.util.YuvUtil
 import com.qt.camera.log.FULogger
 import com.qt.media.encode.entity.FrameFormat
+import com.qt.media.encode.entity.FramePool
 import com.qt.media.encode.entity.ImageFrame
 import java.nio.ByteBuffer
 
 object BitmapHelp {
+    /**
+     * nv21 转 bitmap 工具，RenderScript 创建开销很大，全局复用一个
+     */
+    private val nv21Tool by lazy { NV21ToBitmapHelp(ReflectApplication.application) }
+
+    /**
+     * 将帧数据转成 bitmap，bitmap 与中间 buffer 均来自 FramePool
+     */
     fun getBitmapFromImageFrame(imageFrame: ImageFrame):Bitmap?{
         var bitmap: Bitmap? = null
         when (imageFrame.format) {
             FrameFormat.FORMAT_RGBA -> {
                 if (imageFrame.buffer!= null){
-                    bitmap = Bitmap.createBitmap(imageFrame.width, imageFrame.height, Bitmap.Config.ARGB_8888)
-                    bitmap?.copyPixelsFromBuffer(ByteBuffer.wrap(imageFrame.buffer!!))
+                    bitmap = FramePool.acquireBitmap(imageFrame.width, imageFrame.height)
+                    bitmap.copyPixelsFromBuffer(ByteBuffer.wrap(imageFrame.buffer!!))
                 }
             }
 
             FrameFormat.FORMAT_NV21 -> {
-                val nv21Tool = NV21ToBitmapHelp(
-                    ReflectApplication.application
-                )
-                bitmap = nv21Tool.nv21ToBitmap(imageFrame.buffer, imageFrame.width, imageFrame.height)
+                bitmap = FramePool.acquireBitmap(imageFrame.width, imageFrame.height)
+                synchronized(nv21Tool) {
+                    nv21Tool.nv21ToBitmap(imageFrame.buffer, imageFrame.width, imageFrame.height, bitmap)
+                }
             }
             FrameFormat.FORMAT_NV12->{
-                val argb = ByteArray(imageFrame.width*imageFrame.height*4)
+                val argb = FramePool.acquireBuffer(imageFrame.width, imageFrame.height, FrameFormat.FORMAT_RGBA)
                 YuvUtil.NV21ToARGB(imageFrame.buffer,argb,imageFrame.width,imageFrame.height)//因为经过测试发现nv12使用nv21接口转换没问题，使用nv12接口转换会有问题
-                bitmap = Bitmap.createBitmap(imageFrame.width, imageFrame.height, Bitmap.Config.ARGB_8888)
+                bitmap = FramePool.acquireBitmap(imageFrame.width, imageFrame.height)
                 bitmap.copyPixelsFromBuffer(ByteBuffer.wrap(argb))
+                FramePool.recycleBuffer(argb, imageFrame.width, imageFrame.height, FrameFormat.FORMAT_RGBA)
             }
 
             else -> {
@@ -39,4 +49,4 @@ object BitmapHelp {
         }
         return bitmap
     }
-}
\ No newline at end of file
+}
@@ -0,0 +1,56 @@
+package com.qt.media.encode.help
+
+import android.os.Debug
+import java.lang.reflect.Method
+
+/**
+ * 创建时间：2024/3/14
+ * 创建人：singleCode
+ * 功能描述：线程 CPU 时间统计
+ * Android 上使用 Debug.threadCpuTimeNanos，JVM 单元测试（android.jar 为桩实现）时通过反射使用 ThreadMXBean
+ **/
+object CpuTimeHelp {
+
+    private var threadMXBean: Any? = null
+    private var currentThreadCpuTime: Method? = null
+
+    @Volatile
+    private var useDebug = true
+
+    /**
+     * 当前线程消耗的 CPU 时间，单位纳秒，不支持时返回 -1
+     */
+    @JvmStatic
+    fun currentThreadCpuTimeNs(): Long {
+        if (useDebug) {
+            try {
+                val time = Debug.threadCpuTimeNanos()
+                if (time >= 0) {
+                    return time
+                }
+            } catch (e: Throwable) {
+                //JVM 上 android.jar 的桩实现会抛出异常
+            }
+            useDebug = false
+        }
+        return mxBeanCpuTimeNs()
+    }
+
+    @Synchronized
+    private fun mxBeanCpuTimeNs(): Long {
+        return try {
+            if (currentThreadCpuTime == null) {
+                val bean = Class.forName("java.lang.management.ManagementFactory")
+                    .getMethod("getThreadMXBean")
+                    .invoke(null)
+                val method = Class.forName("java.lang.management.ThreadMXBean")
+                    .getMethod("getCurrentThreadCpuTime")
+                threadMXBean = bean
+                currentThreadCpuTime = method
+            }
+            currentThreadCpuTime?.invoke(threadMXBean) as? Long ?: -1
+        } catch (e: Throwable) {
+            -1
+        }
+    }
+}
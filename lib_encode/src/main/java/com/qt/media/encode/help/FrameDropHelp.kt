@@ -0,0 +1,32 @@
+package com.qt.media.encode.help
+
+/**
+ * 创建时间：2024/3/15
+ * 创建人：singleCode
+ * 功能描述：GIF/WEBP 录制时的丢帧判断，不依赖 Android，可在 JVM 上测试与性能测试
+ **/
+object FrameDropHelp {
+
+    /**
+     * 判断当前帧是否需要丢弃
+     *
+     * @param frameNumber 当前录制的帧数
+     * @param discardAFraction 需要丢弃的几分之一帧，-1 或 0 表示不按比例丢弃
+     * @param frameTemplate 录制跟丢弃帧的模板，1 表示录制、0 表示丢弃，不为 null 时优先使用
+     */
+    @JvmStatic
+    fun needAbandon(frameNumber: Long, discardAFraction: Int, frameTemplate: IntArray?): Boolean {
+        if (frameTemplate == null) {
+            if (discardAFraction != -1 && discardAFraction != 0) {
+                val remainder = frameNumber % discardAFraction
+                return remainder == (discardAFraction - 1).toLong()
+            }
+        } else {
+            // 求余数
+            val remainder = (frameNumber % frameTemplate.size).toInt()
+            // 判断当前帧是否需要丢弃
+            return frameTemplate[remainder] == 0
+        }
+        return false
+    }
+}
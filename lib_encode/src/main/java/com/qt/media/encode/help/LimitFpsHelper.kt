@@ -3,34 +3,38 @@ package com.qt.media.encode.help
 import android.os.SystemClock
 
 class LimitFpsHelper {
-    private val mDefaultFPS = 30
-    private var mFPS = 30
-    private var mFrameStartTimeMs: Long = 0
-    private var mExpectedFrameTimeMs = (1000 / mDefaultFPS).toLong()
+    private val mDefaultFPS = 30f
+    private var mFPS = mDefaultFPS
+    private var mFrameStartTimeNs: Long = 0
+    private var mExpectedFrameTimeNs = (1000_000_000 / mDefaultFPS).toLong()
 
     /**
-     * 设置帧率
+     * 设置帧率，支持 29.97 等非整数帧率
      *
      * @param fps
      */
-    fun setTargetFps(fps: Int) {
+    fun setTargetFps(fps: Float) {
         mFPS = fps
-        mExpectedFrameTimeMs = if (fps > 0) (1000 / fps).toLong() else 0.toLong()
-        mFrameStartTimeMs = 0
+        mExpectedFrameTimeNs = if (fps > 0) (1000_000_000 / fps).toLong() else 0.toLong()
+        mFrameStartTimeNs = 0
+    }
+
+    fun setTargetFps(fps: Int) {
+        setTargetFps(fps.toFloat())
     }
 
     /**
      * 根据帧率做延迟等待
      */
     fun limitFrameRate() {
-        val elapsedFrameTimeMs = SystemClock.elapsedRealtime() - mFrameStartTimeMs
-        val timeToSleepMs = mExpectedFrameTimeMs - elapsedFrameTimeMs
+        val elapsedFrameTimeNs = SystemClock.elapsedRealtimeNanos() - mFrameStartTimeNs
+        val timeToSleepMs = (mExpectedFrameTimeNs - elapsedFrameTimeNs) / 1000_000
         if (timeToSleepMs > 0) {
             SystemClock.sleep(timeToSleepMs)
         }
-        mFrameStartTimeMs = SystemClock.elapsedRealtime()
+        mFrameStartTimeNs = SystemClock.elapsedRealtimeNanos()
     }
-    fun getFps():Int{
+    fun getFps():Float{
         return mFPS
     }
-}
\ No newline at end of file
+}
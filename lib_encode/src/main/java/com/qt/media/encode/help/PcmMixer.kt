@@ -0,0 +1,204 @@
+package com.qt.media.encode.help
+
+import java.nio.ShortBuffer
+
+/**
+ * 创建时间：2024/3/16
+ * 创建人：singleCode
+ * 功能描述：16bit PCM 多轨混音
+ * 直接读写 ShortBuffer（可以是 direct buffer 或编码器输入 buffer 的视图），一次遍历完成所有轨道的叠加与饱和截断，
+ * 支持每轨独立增益与线性渐变，稳态下不产生任何分配
+ *
+ * @param channelCount 声道数，增益渐变按帧（每个声道一个采样）推进
+ * @param maxTracks 预分配的轨道数，超过时自动扩容
+ **/
+class PcmMixer @JvmOverloads constructor(
+    private val channelCount: Int = AudioHelp.DEFAULT_CHANNEL_COUNT,
+    maxTracks: Int = 4
+) {
+    private var gains = FloatArray(maxTracks) { 1f }
+    private var targetGains = FloatArray(maxTracks) { 1f }
+    private var gainSteps = FloatArray(maxTracks)
+    private var rampFrames = IntArray(maxTracks)
+
+    /**
+     * 累加缓存，按最大的 sampleCount 分配一次
+     */
+    private var mixBuffer = FloatArray(0)
+
+    /**
+     * 立即设置增益
+     */
+    fun setGain(track: Int, gain: Float) {
+        ensureTrack(track)
+        gains[track] = gain
+        targetGains[track] = gain
+        gainSteps[track] = 0f
+        rampFrames[track] = 0
+    }
+
+    /**
+     * 在接下来的 frames 帧内把增益线性过渡到 targetGain
+     */
+    fun rampGain(track: Int, targetGain: Float, frames: Int) {
+        if (frames <= 0) {
+            setGain(track, targetGain)
+            return
+        }
+        ensureTrack(track)
+        targetGains[track] = targetGain
+        gainSteps[track] = (targetGain - gains[track]) / frames
+        rampFrames[track] = frames
+    }
+
+    /**
+     * 当前增益（渐变中为当前帧的增益）
+     */
+    fun getGain(track: Int): Float {
+        return if (track < gains.size) gains[track] else 1f
+    }
+
+    /**
+     * 混音，输入与输出都从各自的 position 开始，完成后 position 各前进 sampleCount（为 null 的输入除外）
+     *
+     * @param inputs 每轨输入，下标与 setGain 的 track 对应，为 null 时该轨按静音处理（增益渐变照常推进）
+     * @param trackCount 轨道数
+     * @param output 输出，不能与输入共用同一块内存
+     * @param sampleCount 每轨读取与输出的 short 个数，需要是 channelCount 的整数倍
+     */
+    fun mix(inputs: Array<out ShortBuffer?>, trackCount: Int, output: ShortBuffer, sampleCount: Int) {
+        ensureTrack(trackCount - 1)
+        val outBase = output.position()
+        var activeTrack = -1
+        var activeCount = 0
+        for (t in 0 until trackCount) {
+            if (inputs[t] != null) {
+                activeTrack = t
+                activeCount++
+            }
+        }
+        if (activeCount == 0) {
+            for (i in 0 until sampleCount) {
+                output.put(outBase + i, 0)
+            }
+            for (t in 0 until trackCount) {
+                advanceGain(t, sampleCount / channelCount)
+            }
+        } else if (activeCount == 1 && gains[activeTrack] == 1f && rampFrames[activeTrack] == 0) {
+            //单轨且不需要调整音量时直接整块拷贝
+            val input = inputs[activeTrack]!!
+            val position = input.position()
+            val limit = input.limit()
+            input.limit(position + sampleCount)
+            output.put(input)
+            input.limit(limit)
+            input.position(position)
+            //其它轨都为 null，按静音处理，增益渐变照常推进
+            for (t in 0 until trackCount) {
+                if (t != activeTrack) {
+                    advanceGain(t, sampleCount / channelCount)
+                }
+            }
+        } else {
+            if (mixBuffer.size < sampleCount) {
+                mixBuffer = FloatArray(sampleCount)
+            }
+            val acc = mixBuffer
+            var first = true
+            for (t in 0 until trackCount) {
+                val input = inputs[t]
+                if (input == null) {
+                    advanceGain(t, sampleCount / channelCount)
+                    continue
+                }
+                accumulate(t, input, acc, sampleCount, first)
+                first = false
+            }
+            for (i in 0 until sampleCount) {
+                var value = acc[i].toInt()
+                if (value > Short.MAX_VALUE) {
+                    value = Short.MAX_VALUE.toInt()
+                } else if (value < Short.MIN_VALUE) {
+                    value = Short.MIN_VALUE.toInt()
+                }
+                output.put(outBase + i, value.toShort())
+            }
+        }
+        for (t in 0 until trackCount) {
+            val input = inputs[t] ?: continue
+            input.position(input.position() + sampleCount)
+        }
+        output.position(outBase + sampleCount)
+    }
+
+    /**
+     * 把一轨叠加到 acc，first 为 true 时直接覆盖，省去清零
+     */
+    private fun accumulate(track: Int, input: ShortBuffer, acc: FloatArray, sampleCount: Int, first: Boolean) {
+        val base = input.position()
+        var gain = gains[track]
+        if (rampFrames[track] == 0) {
+            if (first) {
+                for (i in 0 until sampleCount) {
+                    acc[i] = input.get(base + i) * gain
+                }
+            } else {
+                for (i in 0 until sampleCount) {
+                    acc[i] += input.get(base + i) * gain
+                }
+            }
+            return
+        }
+        val step = gainSteps[track]
+        var remain = rampFrames[track]
+        var i = 0
+        while (i < sampleCount) {
+            for (c in 0 until channelCount) {
+                val sample = input.get(base + i + c) * gain
+                if (first) acc[i + c] = sample else acc[i + c] += sample
+            }
+            i += channelCount
+            if (remain > 0) {
+                gain += step
+                if (--remain == 0) {
+                    gain = targetGains[track]
+                    gainSteps[track] = 0f
+                }
+            }
+        }
+        gains[track] = gain
+        rampFrames[track] = remain
+    }
+
+    private fun advanceGain(track: Int, frames: Int) {
+        val remain = rampFrames[track]
+        if (remain == 0) {
+            return
+        }
+        val advance = minOf(remain, frames)
+        gains[track] += gainSteps[track] * advance
+        rampFrames[track] = remain - advance
+        if (rampFrames[track] == 0) {
+            gains[track] = targetGains[track]
+            gainSteps[track] = 0f
+        }
+    }
+
+    private fun ensureTrack(track: Int) {
+        if (track < gains.size) {
+            return
+        }
+        val size = track + 1
+        val oldSize = gains.size
+        gains = gains.copyOf(size)
+        for (i in oldSize until size) {
+            gains[i] = 1f
+        }
+        targetGains = targetGains.copyOf(size)
+        for (i in oldSize until size) {
+            targetGains[i] = 1f
+        }
+        gainSteps = gainSteps.copyOf(size)
+        rampFrames = rampFrames.copyOf(size)
+    }
+}
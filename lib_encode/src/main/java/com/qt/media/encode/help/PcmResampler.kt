@@ -0,0 +1,339 @@
+package com.qt.media.encode.help
+
+import java.nio.ShortBuffer
+
+/**
+ * 创建时间：2024/3/18
+ * 创建人：singleCode
+ * 功能描述：16bit PCM 流式重采样与声道转换
+ * 采样率按 outRate/inRate 约分后的 L/M 做多相（polyphase）滤波，滤波器为 Kaiser 窗 sinc，
+ * 降采样时截止频率随比例降低以抗混叠；声道转换在进入滤波前完成：
+ * 声道减少时按 c % outChannels 取平均折叠，声道增加时按 c % inChannels 复制（单声道即复制到左右）
+ * 内部只保留滤波所需的历史帧，输入块大小不变时不产生任何分配
+ *
+ * @param inRate 输入采样率
+ * @param inChannels 输入声道数
+ * @param outRate 输出采样率
+ * @param outChannels 输出声道数
+ **/
+class PcmResampler(
+    private val inRate: Int,
+    private val inChannels: Int,
+    private val outRate: Int,
+    private val outChannels: Int
+) {
+    /**
+     * 上采样倍数 L
+     */
+    private val up: Int
+
+    /**
+     * 下采样倍数 M
+     */
+    private val down: Int
+
+    /**
+     * 实际使用的相位数，L 不超过 MAX_PHASES 时与 L 相等（精确），否则就近取相位
+     */
+    private val phaseCount: Int
+
+    /**
+     * 每个相位的系数个数（输入帧数），halfTaps = taps / 2
+     */
+    private val taps: Int
+    private val halfTaps: Int
+
+    /**
+     * 系数表，phaseCount * taps
+     */
+    private val coefficients: FloatArray
+
+    /**
+     * 采样率相同，只做声道转换
+     */
+    private val rateEqual: Boolean
+
+    /**
+     * 已转换声道的历史输入，outChannels 交错存放
+     */
+    private var history = FloatArray(0)
+    private var historyFrames = 0
+
+    /**
+     * 下一个输出帧在 history 中对应的整数帧位置与小数部分（分子，分母为 up）
+     */
+    private var inputIndex = 0
+    private var fraction = 0L
+
+    /**
+     * 声道折叠时每个输出声道的平均系数
+     */
+    private val foldScale = FloatArray(outChannels)
+
+    init {
+        require(inRate > 0 && outRate > 0 && inChannels > 0 && outChannels > 0) {
+            "invalid format in:$inRate/$inChannels out:$outRate/$outChannels"
+        }
+        val gcd = gcd(inRate, outRate)
+        up = outRate / gcd
+        down = inRate / gcd
+        rateEqual = up == down
+        for (c in 0 until outChannels) {
+            var count = 0
+            var i = c
+            while (i < inChannels) {
+                count++
+                i += outChannels
+            }
+            foldScale[c] = if (count == 0) 1f else 1f / count
+        }
+        if (rateEqual) {
+            phaseCount = 1
+            halfTaps = 0
+            taps = 0
+            coefficients = FloatArray(0)
+        } else {
+            phaseCount = minOf(up, MAX_PHASES)
+            val cutoff = minOf(1f, up.toFloat() / down) * ROLLOFF
+            halfTaps = Math.ceil(ZERO_CROSSINGS / cutoff.toDouble()).toInt()
+            taps = halfTaps * 2
+            coefficients = createFilter(phaseCount, halfTaps, cutoff)
+            reset()
+        }
+    }
+
+    /**
+     * 清空历史数据，从静音开始
+     */
+    fun reset() {
+        if (rateEqual) {
+            return
+        }
+        //滤波器以输出时刻为中心，先补 halfTaps - 1 帧静音使第一个输出对齐第一个输入帧
+        ensureHistory(taps)
+        historyFrames = halfTaps - 1
+        history.fill(0f, 0, historyFrames * outChannels)
+        inputIndex = halfTaps - 1
+        fraction = 0
+    }
+
+    /**
+     * 输出 outFrames 帧还需要输入的帧数
+     */
+    fun requiredInputFrames(outFrames: Int): Int {
+        if (rateEqual) {
+            return outFrames
+        }
+        if (outFrames <= 0) {
+            return 0
+        }
+        val last = inputIndex + (fraction + (outFrames - 1).toLong() * down) / up
+        return (last + halfTaps + 1 - historyFrames).coerceAtLeast(0).toInt()
+    }
+
+    /**
+     * 转换 outFrames 帧写入 output，output 的 position 前进 outFrames * outChannels
+     * input 从 position 开始全部消耗（需要不超过 requiredInputFrames），不足的部分按静音补齐，为 null 时全部按静音处理
+     */
+    fun resample(input: ShortBuffer?, output: ShortBuffer, outFrames: Int) {
+        val required = requiredInputFrames(outFrames)
+        val inFrames = if (input == null) 0 else minOf(input.remaining() / inChannels, required)
+        if (rateEqual) {
+            convertDirect(input, inFrames, output, outFrames)
+            return
+        }
+        ensureHistory(historyFrames + required)
+        appendInput(input, inFrames)
+        if (required > inFrames) {
+            val from = historyFrames * outChannels
+            val to = (historyFrames + required - inFrames) * outChannels
+            history.fill(0f, from, to)
+            historyFrames += required - inFrames
+        }
+        val hist = history
+        val coeffs = coefficients
+        val channels = outChannels
+        var index = inputIndex
+        var frac = fraction
+        var outPos = output.position()
+        for (n in 0 until outFrames) {
+            val phase = (frac * phaseCount / up).toInt()
+            val coeffBase = phase * taps
+            val histBase = (index - halfTaps + 1) * channels
+            for (c in 0 until channels) {
+                var sum = 0f
+                var h = histBase + c
+                for (k in 0 until taps) {
+                    sum += hist[h] * coeffs[coeffBase + k]
+                    h += channels
+                }
+                output.put(outPos++, saturate(sum))
+            }
+            frac += down
+            index += (frac / up).toInt()
+            frac %= up
+        }
+        output.position(outPos)
+        //丢掉后续不再需要的历史帧
+        val drop = index - (halfTaps - 1)
+        if (drop > 0) {
+            val keep = historyFrames - drop
+            System.arraycopy(hist, drop * channels, hist, 0, keep * channels)
+            historyFrames = keep
+            index -= drop
+        }
+        inputIndex = index
+        fraction = frac
+    }
+
+    private fun convertDirect(input: ShortBuffer?, inFrames: Int, output: ShortBuffer, outFrames: Int) {
+        var outPos = output.position()
+        if (input != null) {
+            var inPos = input.position()
+            for (n in 0 until inFrames) {
+                for (c in 0 until outChannels) {
+                    output.put(outPos++, saturate(mapChannel(input, inPos, c)))
+                }
+                inPos += inChannels
+            }
+            input.position(inPos)
+        }
+        for (n in inFrames * outChannels until outFrames * outChannels) {
+            output.put(outPos++, 0)
+        }
+        output.position(outPos)
+    }
+
+    private fun appendInput(input: ShortBuffer?, inFrames: Int) {
+        if (input == null || inFrames == 0) {
+            return
+        }
+        val hist = history
+        var inPos = input.position()
+        var h = historyFrames * outChannels
+        if (inChannels == outChannels) {
+            for (i in 0 until inFrames * inChannels) {
+                hist[h++] = input.get(inPos++).toFloat()
+            }
+        } else {
+            for (n in 0 until inFrames) {
+                for (c in 0 until outChannels) {
+                    hist[h++] = mapChannel(input, inPos, c)
+                }
+                inPos += inChannels
+            }
+        }
+        input.position(input.position() + inFrames * inChannels)
+        historyFrames += inFrames
+    }
+
+    /**
+     * 一帧输入中输出声道 c 的值
+     */
+    private fun mapChannel(input: ShortBuffer, framePos: Int, c: Int): Float {
+        if (inChannels == outChannels) {
+            return input.get(framePos + c).toFloat()
+        }
+        if (inChannels < outChannels) {
+            return input.get(framePos + c % inChannels).toFloat()
+        }
+        var sum = 0f
+        var i = c
+        while (i < inChannels) {
+            sum += input.get(framePos + i)
+            i += outChannels
+        }
+        return sum * foldScale[c]
+    }
+
+    private fun ensureHistory(frames: Int) {
+        if (history.size < frames * outChannels) {
+            history = history.copyOf(frames * outChannels)
+        }
+    }
+
+    companion object {
+        /**
+         * 相位数上限，常见采样率之间（如 48000 -> 44100 的 147/160）都在范围内
+         */
+        private const val MAX_PHASES = 1024
+
+        /**
+         * 单侧过零点个数，决定滤波器长度
+         */
+        private const val ZERO_CROSSINGS = 16
+
+        /**
+         * 截止频率相对奈奎斯特频率的比例，留出过渡带
+         */
+        private const val ROLLOFF = 0.95f
+        private const val KAISER_BETA = 8.0
+
+        private fun saturate(value: Float): Short {
+            val v = if (value >= 0) value + 0.5f else value - 0.5f
+            return when {
+                v >= Short.MAX_VALUE -> Short.MAX_VALUE
+                v <= Short.MIN_VALUE -> Short.MIN_VALUE
+                else -> v.toInt().toShort()
+            }
+        }
+
+        private fun gcd(a: Int, b: Int): Int {
+            var x = a
+            var y = b
+            while (y != 0) {
+                val t = x % y
+                x = y
+                y = t
+            }
+            return x
+        }
+
+        /**
+         * 第 p 个相位对应输入位置 index + p / phaseCount，系数 k 作用于输入帧 index - halfTaps + 1 + k，
+         * 每个相位归一化为直流增益 1
+         */
+        private fun createFilter(phaseCount: Int, halfTaps: Int, cutoff: Float): FloatArray {
+            val taps = halfTaps * 2
+            val result = FloatArray(phaseCount * taps)
+            val i0Beta = besselI0(KAISER_BETA)
+            for (p in 0 until phaseCount) {
+                val offset = p.toDouble() / phaseCount
+                var sum = 0.0
+                for (k in 0 until taps) {
+                    val x = k - halfTaps + 1 - offset
+                    val ratio = x / halfTaps
+                    val window = if (ratio <= -1.0 || ratio >= 1.0) 0.0 else besselI0(KAISER_BETA * Math.sqrt(1 - ratio * ratio)) / i0Beta
+                    val value = cutoff * sinc(cutoff * x) * window
+                    result[p * taps + k] = value.toFloat()
+                    sum += value
+                }
+                for (k in 0 until taps) {
+                    result[p * taps + k] = (result[p * taps + k] / sum).toFloat()
+                }
+            }
+            return result
+        }
+
+        private fun sinc(x: Double): Double {
+            if (x == 0.0) {
+                return 1.0
+            }
+            val px = Math.PI * x
+            return Math.sin(px) / px
+        }
+
+        private fun besselI0(x: Double): Double {
+            var sum = 1.0
+            var term = 1.0
+            val half = x / 2
+            var k = 1
+            while (term > sum * 1e-12) {
+                term *= (half / k) * (half / k)
+                sum += term
+                k++
+            }
+            return sum
+        }
+    }
+}
@@ -0,0 +1,178 @@
+package com.qt.media.encode.help
+
+import java.io.Closeable
+import java.io.File
+import java.io.IOException
+import java.io.RandomAccessFile
+import java.nio.ByteBuffer
+import java.nio.ByteOrder
+import java.nio.MappedByteBuffer
+import java.nio.ShortBuffer
+import java.nio.channels.FileChannel
+
+/**
+ * 创建时间：2024/3/17
+ * 创建人：singleCode
+ * 功能描述：基于内存映射的 16bit PCM wav 读取
+ * 按 RIFF chunk 解析文件头（跳过 LIST/fact 等非音频 chunk），只映射 data chunk，
+ * 按帧（每个声道一个采样）精确定位，读取时直接返回映射内存上的 ShortBuffer，不经过系统调用与拷贝
+ *
+ * @param file wav 文件
+ * @throws IOException 文件不是 16bit PCM wav 时抛出
+ **/
+class WavReader @Throws(IOException::class) constructor(file: File) : Closeable {
+
+    /**
+     * 采样率
+     */
+    val sampleRate: Int
+
+    /**
+     * 声道数
+     */
+    val channelCount: Int
+
+    /**
+     * 总帧数
+     */
+    val frameCount: Long
+
+    private val channel: FileChannel
+    private val data: MappedByteBuffer
+
+    /**
+     * 整个 data chunk 的 short 视图，readFrames 复用它返回结果
+     */
+    private val samples: ShortBuffer
+
+    init {
+        val raf = RandomAccessFile(file, "r")
+        channel = raf.channel
+        try {
+            val header = ByteBuffer.allocate(CHUNK_HEADER_SIZE + FMT_SIZE).order(ByteOrder.LITTLE_ENDIAN)
+            readFully(header, 0, RIFF_HEADER_SIZE)
+            if (header.getInt(0) != RIFF || header.getInt(8) != WAVE) {
+                throw IOException("not a wav file: $file")
+            }
+            val fileSize = channel.size()
+            var offset = RIFF_HEADER_SIZE.toLong()
+            var rate = 0
+            var channels = 0
+            var bits = 0
+            var dataOffset = -1L
+            var dataSize = 0L
+            while (offset + CHUNK_HEADER_SIZE <= fileSize) {
+                readFully(header, offset, CHUNK_HEADER_SIZE)
+                val id = header.getInt(0)
+                val size = header.getInt(4).toLong() and 0xffffffffL
+                val body = offset + CHUNK_HEADER_SIZE
+                if (id == FMT) {
+                    readFully(header, body, minOf(size, FMT_SIZE.toLong()).toInt())
+                    val audioFormat = header.getShort(0).toInt() and 0xffff
+                    channels = header.getShort(2).toInt() and 0xffff
+                    rate = header.getInt(4)
+                    bits = header.getShort(14).toInt() and 0xffff
+                    if (audioFormat != FORMAT_PCM && audioFormat != FORMAT_EXTENSIBLE) {
+                        throw IOException("not support wav format $audioFormat: $file")
+                    }
+                } else if (id == DATA) {
+                    dataOffset = body
+                    //录制中断的文件 data 大小可能为 0 或 0xFFFFFFFF，以实际文件长度为准
+                    dataSize = if (size == 0L || body + size > fileSize) fileSize - body else size
+                    break
+                }
+                //chunk 按 2 字节对齐
+                offset = body + size + (size and 1)
+            }
+            if (dataOffset < 0 || channels <= 0 || rate <= 0) {
+                throw IOException("missing fmt or data chunk: $file")
+            }
+            if (bits != 16) {
+                throw IOException("only support 16bit pcm, bitsPerSample:$bits $file")
+            }
+            val frameSize = channels * 2
+            //ShortBuffer 按 int 下标访问，最多映射 Int.MAX_VALUE 字节
+            val mapSize = minOf(dataSize, Int.MAX_VALUE.toLong()) / frameSize * frameSize
+            sampleRate = rate
+            channelCount = channels
+            frameCount = mapSize / frameSize
+            data = channel.map(FileChannel.MapMode.READ_ONLY, dataOffset, mapSize)
+            data.order(ByteOrder.LITTLE_ENDIAN)
+            samples = data.asShortBuffer()
+        } catch (e: IOException) {
+            channel.close()
+            throw e
+        }
+    }
+
+    /**
+     * 总时长，单位微秒
+     */
+    val durationUs: Long
+        get() = frameCount * 1000_000L / sampleRate
+
+    /**
+     * 时间对应的帧位置（向下取整到整帧）
+     */
+    fun frameOf(timeUs: Long): Long {
+        return timeUs * sampleRate / 1000_000L
+    }
+
+    /**
+     * 读取 [startFrame, startFrame + frames) 范围内的数据，超出文件的部分会被截掉
+     * 返回的 ShortBuffer 每次调用都会复用（position/limit 指向请求的范围），需要长期持有时使用 slice
+     *
+     * @return 没有数据时返回 null
+     */
+    fun readFrames(startFrame: Long, frames: Int): ShortBuffer? {
+        val start = startFrame.coerceAtLeast(0)
+        if (start >= frameCount || frames <= 0) {
+            return null
+        }
+        val end = minOf(start + frames, frameCount)
+        samples.limit((end * channelCount).toInt())
+        samples.position((start * channelCount).toInt())
+        return samples
+    }
+
+    /**
+     * 与 readFrames 相同，但返回独立的视图，可以跨线程或长期持有
+     */
+    fun slice(startFrame: Long, frames: Int): ShortBuffer? {
+        return readFrames(startFrame, frames)?.slice()
+    }
+
+    @Throws(IOException::class)
+    override fun close() {
+        channel.close()
+    }
+
+    private fun readFully(buffer: ByteBuffer, position: Long, length: Int) {
+        buffer.clear()
+        buffer.limit(length)
+        var pos = position
+        while (buffer.hasRemaining()) {
+            val read = channel.read(buffer, pos)
+            if (read < 0) {
+                throw IOException("unexpected end of wav header")
+            }
+            pos += read
+        }
+    }
+
+    companion object {
+        private const val RIFF = 0x46464952 // "RIFF" little endian
+        private const val WAVE = 0x45564157 // "WAVE"
+        private const val FMT = 0x20746d66 // "fmt "
+        private const val DATA = 0x61746164 // "data"
+        private const val FORMAT_PCM = 1
+        private const val FORMAT_EXTENSIBLE = 0xFFFE
+        private const val RIFF_HEADER_SIZE = 12
+        private const val CHUNK_HEADER_SIZE = 8
+
+        /**
+         * fmt chunk 中用到的部分（到 bitsPerSample 为止）
+         */
+        private const val FMT_SIZE = 16
+    }
+}
@@ -13,22 +13,44 @@ public class NV21ToBitmapHelp {
     private ScriptIntrinsicYuvToRGB yuvToRgbIntrinsic;
     private Type.Builder yuvType, rgbaType;
     private Allocation in, out;
+    private int mWidth, mHeight;
     public NV21ToBitmapHelp(Context context) {
         rs = RenderScript.create(context);
         yuvToRgbIntrinsic = ScriptIntrinsicYuvToRGB.create(rs, Element.U8_4(rs));
     }
     public Bitmap nv21ToBitmap(byte[] nv21, int width, int height){
-        if (yuvType == null){
+        Bitmap bmpout = Bitmap.createBitmap(width, height, Bitmap.Config.ARGB_8888);
+        nv21ToBitmap(nv21, width, height, bmpout);
+        return bmpout;
+    }
+
+    /**
+     * 转换到外部传入的 bitmap 中，避免每帧创建 bitmap
+     */
+    public void nv21ToBitmap(byte[] nv21, int width, int height, Bitmap bmpout){
+        if (yuvType == null || mWidth != width || mHeight != height){
+            releaseAllocation();
             yuvType = new Type.Builder(rs, Element.U8(rs)).setX(nv21.length);
             in = Allocation.createTyped(rs, yuvType.create(), Allocation.USAGE_SCRIPT);
             rgbaType = new Type.Builder(rs, Element.RGBA_8888(rs)).setX(width).setY(height);
             out = Allocation.createTyped(rs, rgbaType.create(), Allocation.USAGE_SCRIPT);
+            mWidth = width;
+            mHeight = height;
         }
         in.copyFrom(nv21);
         yuvToRgbIntrinsic.setInput(in);
         yuvToRgbIntrinsic.forEach(out);
-        Bitmap bmpout = Bitmap.createBitmap(width, height, Bitmap.Config.ARGB_8888);
         out.copyTo(bmpout);
-        return bmpout;
+    }
+
+    private void releaseAllocation(){
+        if (in != null) {
+            in.destroy();
+            in = null;
+        }
+        if (out != null) {
+            out.destroy();
+            out = null;
+        }
     }
 }
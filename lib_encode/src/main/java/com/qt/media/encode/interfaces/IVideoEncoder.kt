@@ -6,11 +6,16 @@ import com.qt.camera.log.FULogger
 import com.qt.media.encode.entity.AudioTrackEntity
 import com.qt.media.encode.entity.ImageFrame
 import com.qt.media.encode.entity.TextureFrame
+import com.qt.media.encode.video.encoder.BoundedFrameQueue
+import com.qt.media.encode.video.encoder.EncoderMetrics
+import com.qt.media.encode.video.encoder.MediaAudioExportEncoder
 import com.qt.media.encode.video.encoder.MediaVideoNV12Encoder
 import com.qt.media.encode.video.encoder.MediaBufferVideoEncoder
 import com.qt.media.encode.video.encoder.MediaEncoder
 import com.qt.media.encode.video.encoder.MediaMuxerWrapper
 import com.qt.media.encode.video.encoder.MediaVideoTextureEncoder
+import com.qt.media.encode.video.encoder.PresentationClock
+import com.qt.media.encode.video.encoder.WriteBehindChannel
 import java.io.File
 import java.util.concurrent.CountDownLatch
 
@@ -32,6 +37,159 @@ abstract class IVideoEncoder {
     fun setMediaFormatConfig(config: Map<String, Int>) {
         this.config = config
     }
+    protected var encoderEngine: MediaEncoder.Engine = MediaEncoder.Engine.DRAIN_LOOP
+        private set
+
+    /**
+     * 设置视频编码输出的驱动方式，需要在 startVideoEncoder 之前调用
+     *
+     * @param engine DRAIN_LOOP 编码线程轮询输出（默认）；ASYNC_CALLBACK MediaCodec 异步回调，输出就绪立即写入 muxer（API >= 23）
+     */
+    fun setEncoderEngine(engine: MediaEncoder.Engine) {
+        this.encoderEngine = engine
+    }
+
+    /**
+     * 视频帧送入编码器到写入 muxer 的平均延迟，单位微秒，用于对比不同 Engine
+     */
+    fun getAverageOutputLatencyUs(): Long {
+        return mVideoEncoder?.averageOutputLatencyUs ?: 0
+    }
+
+    /**
+     * 视频帧送入编码器到写入 muxer 的最大延迟，单位微秒
+     */
+    fun getMaxOutputLatencyUs(): Long {
+        return mVideoEncoder?.maxOutputLatencyUs ?: 0
+    }
+
+    /**
+     * muxer 交织队列出现过的最大排队样本数
+     */
+    fun getMuxerMaxQueueDepth(): Int {
+        return mMuxerWrapper?.maxQueueDepth ?: 0
+    }
+
+    /**
+     * 样本进入 muxer 交织队列到写入文件的平均延迟，单位微秒
+     */
+    fun getMuxerAverageWriteLatencyUs(): Long {
+        return mMuxerWrapper?.averageWriteLatencyUs ?: 0
+    }
+
+    /**
+     * 样本进入 muxer 交织队列到写入文件的最大延迟，单位微秒
+     */
+    fun getMuxerMaxWriteLatencyUs(): Long {
+        return mMuxerWrapper?.maxWriteLatencyUs ?: 0
+    }
+
+    protected var audioOfflineMode = false
+        private set
+
+    /**
+     * 音频离线批量导出，需要在 startVideoEncoder 之前调用
+     * 开启后音频轨不再逐块等待编码器，每次把编码器空闲的输入 buffer 全部写满，导出速度只受编码器限制
+     *
+     * @see MediaAudioExportEncoder.offlineMode
+     */
+    fun setAudioOfflineMode(offline: Boolean) {
+        this.audioOfflineMode = offline
+    }
+
+    protected var clockMode = PresentationClock.Mode.FIXED_RATE
+        private set
+    protected var constantFrameRate = false
+        private set
+
+    /**
+     * 设置视频时间戳的生成方式，需要在 startVideoEncoder 之前调用，对 buffer 帧与纹理帧编码生效
+     * 帧的时间为 ImageFrame/TextureFrame 的 captureTimeNs（System.nanoTime），未设置时为送入编码器的时间
+     *
+     * @param mode FIXED_RATE 按帧率等间隔（默认，渲染降帧时视频会变快）；CAPTURE_TIME/VARIABLE_RATE 使用帧的时间，输出可变帧率视频
+     * @param constantFrameRate 按帧的时间转换为固定帧率输出：帧间隔过长时重复输出补齐，过短时丢帧，此时 mode 只影响音频等其它轨道
+     */
+    @JvmOverloads
+    fun setFrameTiming(mode: PresentationClock.Mode, constantFrameRate: Boolean = false) {
+        this.clockMode = mode
+        this.constantFrameRate = constantFrameRate
+    }
+
+    protected var muxerOutputFormat = MediaMuxerWrapper.OutputFormat.MPEG_4
+        private set
+    protected var muxerWriteBufferSize = WriteBehindChannel.DEFAULT_BUFFER_SIZE
+        private set
+
+    /**
+     * 设置输出文件格式，需要在 startVideoEncoder 之前调用
+     * FRAGMENTED_MPEG_4 按片段写入，录制中崩溃时文件可以播放到最后一个片段；片段在关键帧处切分，
+     * 片段长度不小于关键帧间隔，需要更短时可以通过 setMediaFormatConfig 设置 KEY_I_FRAME_INTERVAL
+     *
+     * @param format 默认 MPEG_4（MediaMuxer）
+     * @param writeBufferSize FRAGMENTED_MPEG_4 的写缓冲字节数，后台线程合并写入文件，存储卡刷盘慢时不阻塞编码输出；0 为直接写入
+     */
+    @JvmOverloads
+    fun setMuxerOutputFormat(
+        format: MediaMuxerWrapper.OutputFormat,
+        writeBufferSize: Int = WriteBehindChannel.DEFAULT_BUFFER_SIZE
+    ) {
+        this.muxerOutputFormat = format
+        this.muxerWriteBufferSize = writeBufferSize
+    }
+
+    /**
+     * 写缓冲用完时累计等待存储的时间，单位微秒，不为 0 时可以加大 writeBufferSize
+     */
+    fun getMuxerWriteStallTimeUs(): Long {
+        return mMuxerWrapper?.writeStallTimeUs ?: 0
+    }
+
+    protected var frameQueueCapacity: Int = BoundedFrameQueue.DEFAULT_CAPACITY
+        private set
+    protected var frameDropPolicy: BoundedFrameQueue.DropPolicy = BoundedFrameQueue.DropPolicy.BLOCK
+        private set
+
+    /**
+     * 设置buffer帧渲染队列的容量与队列满时的处理策略，需要在 startVideoEncoder 之前调用
+     * 队列满时被拒绝的帧 encoderBufferFrame2Video 返回 Result.success(false)
+     *
+     * @param capacity 队列容量，默认 8
+     * @param policy 队列满时的处理策略，默认 BLOCK（阻塞送帧线程）
+     * @see BoundedFrameQueue.DropPolicy
+     */
+    fun setFrameQueueConfig(capacity: Int, policy: BoundedFrameQueue.DropPolicy) {
+        this.frameQueueCapacity = capacity
+        this.frameDropPolicy = policy
+    }
+
+    /**
+     * 因渲染队列满被丢弃的帧数
+     */
+    open fun getDroppedFrameCount(): Long {
+        return 0
+    }
+
+    protected var metricsListener: EncoderMetrics.Listener? = null
+        private set
+    protected var metricsIntervalMs = 1000L
+        private set
+
+    /**
+     * 设置编码指标的推送监听，需要在 startVideoEncoder 之前调用
+     * 回调运行在写出视频样本的编码线程，intervalMs 内最多一次，编码结束时再推送一次最终结果
+     */
+    @JvmOverloads
+    fun setMetricsListener(listener: EncoderMetrics.Listener?, intervalMs: Long = 1000) {
+        this.metricsListener = listener
+        this.metricsIntervalMs = intervalMs
+    }
+
+    /**
+     * 编码指标快照：各阶段的延迟直方图、帧率、码率、队列深度与丢帧数，未开始编码时为 null
+     */
+    fun getEncoderMetrics(): EncoderMetrics.Snapshot? {
+        return mMuxerWrapper?.metrics?.snapshot()
+    }
     /**
      * @property onPreparedUnit 用于切到opengl线程，做gl相关的初始化
      * @property onStoppedUnit 用于切到opengl线程，做gl相关的初始化
@@ -141,7 +299,8 @@ abstract class IVideoEncoder {
      * 将render渲染的cpu数据编码到MP4中去
      *
      * @param frame cpu数据
-     * @return Result<Boolean>
+     * @return Result<Boolean> success(true) 帧被编码器接收，编码完成后由编码器 release；
+     * success(false) 帧未被接收（如按队列策略丢弃），仍由调用方持有
      */
     open fun encoderBufferFrame2Video(frame: ImageFrame): Result<Boolean>{
         return Result.failure(Throwable("not support encoderBufferFrame2Video "))
@@ -39,6 +39,16 @@ object FULogger {
     }
 
 
+    /**
+     * 是否会输出该等级的日志，日志内容构造成本高时先判断
+     * @param level LogLevel
+     * @return Boolean
+     */
+    @JvmStatic
+    fun isLoggable(level: LogLevel): Boolean {
+        return level.level >= mLogLevel.level
+    }
+
     /**
      * VERBOSE 输出日志
      * @param tag String TAG标识
@@ -158,7 +168,7 @@ object FULogger {
 
     @JvmStatic
     private fun logMsg(level: LogLevel, tag: String, msg: String) {
-        if (level.level < mLogLevel.level) {
+        if (!isLoggable(level)) {
             return
         }
         when (level) {
@@ -173,16 +183,18 @@ object FULogger {
 
     @JvmStatic
     private fun logMsg(level: LogLevel, tag: String, unit: () -> Any?) {
-        if (level.level < mLogLevel.level) {
+        if (!isLoggable(level)) {
             return
         }
-        if (mFuLogInterceptor?.interceptor(level, PREFIX + tag, unit().toString()) == true) return
+        // 只构造一次日志内容
+        val msg = unit().toString()
+        if (mFuLogInterceptor?.interceptor(level, PREFIX + tag, msg) == true) return
         when (level) {
-            LogLevel.VERBOSE -> Log.v(PREFIX + tag, unit().toString())
-            LogLevel.DEBUG -> Log.d(PREFIX + tag, unit().toString())
-            LogLevel.INFO -> Log.i(PREFIX + tag, unit().toString())
-            LogLevel.WARN -> Log.w(PREFIX + tag, unit().toString())
-            LogLevel.ERROR -> Log.e(PREFIX + tag, unit().toString())
+            LogLevel.VERBOSE -> Log.v(PREFIX + tag, msg)
+            LogLevel.DEBUG -> Log.d(PREFIX + tag, msg)
+            LogLevel.INFO -> Log.i(PREFIX + tag, msg)
+            LogLevel.WARN -> Log.w(PREFIX + tag, msg)
+            LogLevel.ERROR -> Log.e(PREFIX + tag, msg)
             else -> {}
         }
     }
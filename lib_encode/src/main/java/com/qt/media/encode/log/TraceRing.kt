@@ -0,0 +1,140 @@
+package com.qt.camera.log
+
+import android.util.Log
+import java.util.concurrent.atomic.AtomicLong
+
+/**
+ * 热路径事件环形缓冲
+ *
+ * 每个事件只记录事件编号、一个 long 参数、线程 id 和时间戳，写入预先分配的基本类型数组，
+ * 记录时不构造字符串也不分配对象，release 包中同样开启。保留最近 capacity 个事件，
+ * 编码出错或崩溃时 dump 出来还原出错前的执行顺序。
+ * 多个线程可以同时记录，dump 时正在写入的槽位可能不完整，只用于诊断。
+ *
+ * @param capacity 保留的事件数，向上取整为 2 的幂
+ */
+class TraceRing(capacity: Int) {
+
+    private val mMask: Int
+    private val mTimes: LongArray
+    private val mArgs: LongArray
+    private val mThreads: LongArray
+    private val mEvents: IntArray
+
+    /**
+     * 下一个事件的序号，槽位为 序号 & mMask
+     */
+    private val mCursor = AtomicLong()
+
+    init {
+        var size = 1
+        while (size < capacity) {
+            size = size shl 1
+        }
+        mMask = size - 1
+        mTimes = LongArray(size)
+        mArgs = LongArray(size)
+        mThreads = LongArray(size)
+        mEvents = IntArray(size)
+    }
+
+    /**
+     * 记录一个事件
+     * @param event Int 事件编号，见 EVENT_*
+     * @param arg Long 事件参数，如时间戳、帧序号、状态码
+     */
+    fun record(event: Int, arg: Long) {
+        val slot = (mCursor.getAndIncrement() and mMask.toLong()).toInt()
+        mTimes[slot] = System.nanoTime()
+        mArgs[slot] = arg
+        mThreads[slot] = Thread.currentThread().id
+        mEvents[slot] = event
+    }
+
+    /**
+     * 记录过的事件总数，包括已被覆盖的
+     * @return Long
+     */
+    fun getRecordCount(): Long {
+        return mCursor.get()
+    }
+
+    /**
+     * 按时间顺序输出保留的事件，时间为相对最后一个事件的毫秒数
+     * @return String
+     */
+    fun dump(): String {
+        val end = mCursor.get()
+        val start = maxOf(0L, end - mMask - 1)
+        val builder = StringBuilder()
+        builder.append("trace ").append(end - start).append('/').append(end).append(" events")
+        if (end == 0L) {
+            return builder.toString()
+        }
+        val lastTime = mTimes[((end - 1) and mMask.toLong()).toInt()]
+        for (seq in start until end) {
+            val slot = (seq and mMask.toLong()).toInt()
+            builder.append('\n')
+                .append(String.format("%9.3f", (mTimes[slot] - lastTime) / 1_000_000.0))
+                .append("ms tid:").append(mThreads[slot])
+                .append(' ').append(eventName(mEvents[slot]))
+                .append(' ').append(mArgs[slot])
+        }
+        return builder.toString()
+    }
+
+    /**
+     * dump 到 logcat，不受 FULogger 日志等级限制
+     * @param tag String
+     */
+    fun dumpToLog(tag: String) {
+        // logcat 单条长度有限制，逐行输出
+        for (line in dump().split('\n')) {
+            Log.e(tag, line)
+        }
+    }
+
+    companion object {
+        const val DEFAULT_CAPACITY = 512
+
+        const val EVENT_FRAME_AVAILABLE = 1
+        const val EVENT_INPUT_QUEUED = 2
+        const val EVENT_EOS_SIGNALED = 3
+        const val EVENT_OUTPUT_DEQUEUED = 4
+        const val EVENT_FORMAT_CHANGED = 5
+        const val EVENT_SAMPLE_WRITTEN = 6
+        const val EVENT_EOS_RECEIVED = 7
+        const val EVENT_ENCODER_ERROR = 8
+        const val EVENT_ENCODER_RELEASED = 9
+        const val EVENT_FRAME_OFFERED = 10
+        const val EVENT_FRAME_DRAWN = 11
+        const val EVENT_RENDER_RELEASED = 12
+
+        private val EVENT_NAMES = arrayOf(
+            "UNKNOWN",
+            "FRAME_AVAILABLE",
+            "INPUT_QUEUED",
+            "EOS_SIGNALED",
+            "OUTPUT_DEQUEUED",
+            "FORMAT_CHANGED",
+            "SAMPLE_WRITTEN",
+            "EOS_RECEIVED",
+            "ENCODER_ERROR",
+            "ENCODER_RELEASED",
+            "FRAME_OFFERED",
+            "FRAME_DRAWN",
+            "RENDER_RELEASED"
+        )
+
+        /**
+         * 编码器、渲染器共用的事件缓冲
+         */
+        @JvmStatic
+        val default = TraceRing(DEFAULT_CAPACITY)
+
+        @JvmStatic
+        fun eventName(event: Int): String {
+            return if (event in EVENT_NAMES.indices) EVENT_NAMES[event] else "EVENT_$event"
+        }
+    }
+}
@@ -0,0 +1,201 @@
+package com.qt.media.encode.program;
+
+import android.opengl.GLES20;
+
+import com.qt.media.encode.program.core.FUDrawable2d;
+import com.qt.media.encode.program.core.FUProgram;
+import com.qt.media.encode.program.utils.FUGLUtils;
+
+import java.nio.Buffer;
+
+/**
+ * 直接上传 RGBA/BGRA buffer 的绘制程序
+ * 纹理只在尺寸变化时用 glTexImage2D 分配一次，之后每帧用 glTexSubImage2D 更新，不经过 Bitmap，也不生成 mipmap
+ */
+public class FUProgramBufferRGBA extends FUProgram {
+    // Simple vertex shader, used for all programs.
+    private static final String VERTEX_SHADER =
+            "uniform mat4 uMVPMatrix;\n" +
+                    "uniform mat4 uTexMatrix;\n" +
+                    "attribute vec4 aPosition;\n" +
+                    "attribute vec4 aTextureCoord;\n" +
+                    "varying vec2 vTextureCoord;\n" +
+                    "void main() {\n" +
+                    "    gl_Position = uMVPMatrix * aPosition;\n" +
+                    "    vTextureCoord = (uTexMatrix * aTextureCoord).xy;\n" +
+                    "}\n";
+
+    // uSwapRB 为 1 时交换 r/b 通道（BGRA），uBrightness 为 1 时不做亮度调整
+    private static final String FRAGMENT_SHADER_2D =
+            "precision mediump float;\n" +
+                    "varying vec2 vTextureCoord;\n" +
+                    "uniform sampler2D sTexture;\n" +
+                    "uniform float uSwapRB;\n" +
+                    "uniform float uBrightness;\n" +
+                    "void main() {\n" +
+                    "    vec4 color = texture2D(sTexture, vTextureCoord);\n" +
+                    "    color.rgb = mix(color.rgb, color.bgr, uSwapRB);\n" +
+                    "    if (uBrightness != 1.0) {\n" +
+                    "        vec3 gammaColor = pow(color.rgb, vec3(2.2));\n" +
+                    "        color.rgb = pow(gammaColor * uBrightness, vec3(1.0/2.2));\n" +
+                    "    }\n" +
+                    "    gl_FragColor = color;\n" +
+                    "}\n";
+
+    private int muMVPMatrixLoc;
+    private int muTexMatrixLoc;
+    private int maPositionLoc;
+    private int maTextureCoordLoc;
+    private int muSwapRBLoc;
+    private int muBrightnessLoc;
+
+    private int mTextureId = -1;
+    private int mTextureWidth;
+    private int mTextureHeight;
+
+    public FUProgramBufferRGBA() {
+        super(VERTEX_SHADER, FRAGMENT_SHADER_2D);
+    }
+
+    @Override
+    protected FUDrawable2d getDrawable2d() {
+        return new FUDrawable2dFull();
+    }
+
+    @Override
+    protected void getLocations() {
+        maPositionLoc = GLES20.glGetAttribLocation(mProgramHandle, "aPosition");
+        FUGLUtils.checkLocation(maPositionLoc, "aPosition");
+        maTextureCoordLoc = GLES20.glGetAttribLocation(mProgramHandle, "aTextureCoord");
+        FUGLUtils.checkLocation(maTextureCoordLoc, "aTextureCoord");
+        muMVPMatrixLoc = GLES20.glGetUniformLocation(mProgramHandle, "uMVPMatrix");
+        FUGLUtils.checkLocation(muMVPMatrixLoc, "uMVPMatrix");
+        muTexMatrixLoc = GLES20.glGetUniformLocation(mProgramHandle, "uTexMatrix");
+        FUGLUtils.checkLocation(muTexMatrixLoc, "uTexMatrix");
+        muSwapRBLoc = GLES20.glGetUniformLocation(mProgramHandle, "uSwapRB");
+        FUGLUtils.checkLocation(muSwapRBLoc, "uSwapRB");
+        muBrightnessLoc = GLES20.glGetUniformLocation(mProgramHandle, "uBrightness");
+        FUGLUtils.checkLocation(muBrightnessLoc, "uBrightness");
+    }
+
+    /**
+     * 上传 buffer 到纹理，尺寸变化时重新分配纹理存储
+     *
+     * @param pixels 一帧 RGBA/BGRA 数据，从 position 0 开始读取
+     */
+    private void uploadPixels(Buffer pixels, int width, int height) {
+        if (mTextureId == -1) {
+            mTextureId = FUGLUtils.createTextureObject(GLES20.GL_TEXTURE_2D);
+        }
+        GLES20.glBindTexture(GLES20.GL_TEXTURE_2D, mTextureId);
+        GLES20.glPixelStorei(GLES20.GL_UNPACK_ALIGNMENT, 1);
+        if (mTextureWidth != width || mTextureHeight != height) {
+            GLES20.glTexImage2D(GLES20.GL_TEXTURE_2D, 0, GLES20.GL_RGBA, width, height, 0,
+                    GLES20.GL_RGBA, GLES20.GL_UNSIGNED_BYTE, null);
+            FUGLUtils.checkGlError("glTexImage2D");
+            mTextureWidth = width;
+            mTextureHeight = height;
+        }
+        pixels.position(0);
+        GLES20.glTexSubImage2D(GLES20.GL_TEXTURE_2D, 0, 0, 0, width, height,
+                GLES20.GL_RGBA, GLES20.GL_UNSIGNED_BYTE, pixels);
+        FUGLUtils.checkGlError("glTexSubImage2D");
+    }
+
+    /**
+     * 直接绘制 RGBA/BGRA buffer
+     *
+     * @param pixels      帧数据，推荐使用 direct ByteBuffer
+     * @param width       宽
+     * @param height      高
+     * @param swapRB      是否为 BGRA 数据
+     * @param texMatrix
+     * @param mvpMatrix
+     * @param uBrightness 亮度控制参数 1.0 为不调整（建议范围0.5-3.0）
+     */
+    public void drawFrame(Buffer pixels, int width, int height, boolean swapRB,
+                          float[] texMatrix, float[] mvpMatrix, float uBrightness) {
+        FUGLUtils.checkGlError("draw start");
+        //开启混合
+        GLES20.glEnable(GLES20.GL_BLEND);
+        GLES20.glEnable(GLES20.GL_DEPTH_TEST);
+        GLES20.glBlendFunc(GLES20.GL_SRC_ALPHA, GLES20.GL_ONE_MINUS_SRC_ALPHA);
+        // Select the program.
+        GLES20.glUseProgram(mProgramHandle);
+        FUGLUtils.checkGlError("glUseProgram");
+
+        // Set the texture.
+        GLES20.glActiveTexture(GLES20.GL_TEXTURE0);
+        uploadPixels(pixels, width, height);
+
+        GLES20.glUniform1f(muSwapRBLoc, swapRB ? 1f : 0f);
+        GLES20.glUniform1f(muBrightnessLoc, uBrightness);
+        drawQuad(texMatrix, mvpMatrix);
+        GLES20.glDisable(GLES20.GL_BLEND);//关闭混合
+    }
+
+    @Override
+    public void drawFrame(int textureId, float[] texMatrix, float[] mvpMatrix) {
+        FUGLUtils.checkGlError("draw start");
+
+        // Select the program.
+        GLES20.glUseProgram(mProgramHandle);
+        FUGLUtils.checkGlError("glUseProgram");
+
+        // Set the texture.
+        GLES20.glActiveTexture(GLES20.GL_TEXTURE0);
+        GLES20.glBindTexture(GLES20.GL_TEXTURE_2D, textureId);
+
+        GLES20.glUniform1f(muSwapRBLoc, 0f);
+        GLES20.glUniform1f(muBrightnessLoc, 1f);
+        drawQuad(texMatrix, mvpMatrix);
+    }
+
+    private void drawQuad(float[] texMatrix, float[] mvpMatrix) {
+        // Copy the model / view / projection matrix over.
+        GLES20.glUniformMatrix4fv(muMVPMatrixLoc, 1, false, mvpMatrix, 0);
+        FUGLUtils.checkGlError("glUniformMatrix4fv");
+
+        // Copy the texture transformation matrix over.
+        GLES20.glUniformMatrix4fv(muTexMatrixLoc, 1, false, texMatrix, 0);
+        FUGLUtils.checkGlError("glUniformMatrix4fv");
+
+        // Enable the "aPosition" vertex attribute.
+        GLES20.glEnableVertexAttribArray(maPositionLoc);
+        FUGLUtils.checkGlError("glEnableVertexAttribArray");
+
+        // Connect vertexBuffer to "aPosition".
+        GLES20.glVertexAttribPointer(maPositionLoc, FUDrawable2d.COORDS_PER_VERTEX,
+                GLES20.GL_FLOAT, false, FUDrawable2d.VERTEXTURE_STRIDE, mDrawable2d.vertexArray());
+        FUGLUtils.checkGlError("glVertexAttribPointer");
+
+        // Enable the "aTextureCoord" vertex attribute.
+        GLES20.glEnableVertexAttribArray(maTextureCoordLoc);
+        FUGLUtils.checkGlError("glEnableVertexAttribArray");
+
+        // Connect texBuffer to "aTextureCoord".
+        GLES20.glVertexAttribPointer(maTextureCoordLoc, 2,
+                GLES20.GL_FLOAT, false, FUDrawable2d.TEXTURE_COORD_STRIDE, mDrawable2d.texCoordArray());
+        FUGLUtils.checkGlError("glVertexAttribPointer");
+
+        // Draw the rect.
+        GLES20.glDrawArrays(GLES20.GL_TRIANGLE_STRIP, 0, mDrawable2d.vertexCount());
+        FUGLUtils.checkGlError("glDrawArrays");
+
+        // Done -- disable vertex array, texture, and program.
+        GLES20.glDisableVertexAttribArray(maPositionLoc);
+        GLES20.glDisableVertexAttribArray(maTextureCoordLoc);
+        GLES20.glBindTexture(GLES20.GL_TEXTURE_2D, 0);
+        GLES20.glUseProgram(0);
+    }
+
+    @Override
+    public void release() {
+        super.release();
+        if (mTextureId != -1) {
+            FUGLUtils.deleteTextures(new int[]{mTextureId});
+            mTextureId = -1;
+        }
+        mTextureWidth = mTextureHeight = 0;
+    }
+}
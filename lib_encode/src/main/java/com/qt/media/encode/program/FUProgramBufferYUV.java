@@ -0,0 +1,223 @@
+package com.qt.media.encode.program;
+
+import android.opengl.GLES20;
+
+import com.qt.media.encode.program.core.FUDrawable2d;
+import com.qt.media.encode.program.core.FUProgram;
+import com.qt.media.encode.program.utils.FUGLUtils;
+
+import java.nio.Buffer;
+
+/**
+ * 直接上传 NV12/NV21 buffer 的绘制程序
+ * Y 平面上传为 LUMINANCE 纹理，交错的 UV 平面上传为半尺寸的 LUMINANCE_ALPHA 纹理，在 shader 中完成 YUV 转 RGB（BT.601）
+ * 纹理只在尺寸变化时分配一次，之后每帧用 glTexSubImage2D 更新，不经过 Bitmap，也不生成 mipmap
+ */
+public class FUProgramBufferYUV extends FUProgram {
+    // Simple vertex shader, used for all programs.
+    private static final String VERTEX_SHADER =
+            "uniform mat4 uMVPMatrix;\n" +
+                    "uniform mat4 uTexMatrix;\n" +
+                    "attribute vec4 aPosition;\n" +
+                    "attribute vec4 aTextureCoord;\n" +
+                    "varying vec2 vTextureCoord;\n" +
+                    "void main() {\n" +
+                    "    gl_Position = uMVPMatrix * aPosition;\n" +
+                    "    vTextureCoord = (uTexMatrix * aTextureCoord).xy;\n" +
+                    "}\n";
+
+    // LUMINANCE_ALPHA 纹理的 r 为第一个字节、a 为第二个字节，NV12 为 UV，NV21 为 VU，uSwapUV 为 1 时交换
+    private static final String FRAGMENT_SHADER_YUV =
+            "precision mediump float;\n" +
+                    "varying vec2 vTextureCoord;\n" +
+                    "uniform sampler2D sTextureY;\n" +
+                    "uniform sampler2D sTextureUV;\n" +
+                    "uniform float uSwapUV;\n" +
+                    "uniform float uBrightness;\n" +
+                    "void main() {\n" +
+                    "    float y = texture2D(sTextureY, vTextureCoord).r - 0.0625;\n" +
+                    "    vec4 uvColor = texture2D(sTextureUV, vTextureCoord);\n" +
+                    "    vec2 uv = mix(uvColor.ra, uvColor.ar, uSwapUV) - 0.5;\n" +
+                    "    vec3 rgb = vec3(1.164 * y + 1.596 * uv.y,\n" +
+                    "                    1.164 * y - 0.392 * uv.x - 0.813 * uv.y,\n" +
+                    "                    1.164 * y + 2.017 * uv.x);\n" +
+                    "    rgb = clamp(rgb, 0.0, 1.0);\n" +
+                    "    if (uBrightness != 1.0) {\n" +
+                    "        vec3 gammaColor = pow(rgb, vec3(2.2));\n" +
+                    "        rgb = pow(gammaColor * uBrightness, vec3(1.0/2.2));\n" +
+                    "    }\n" +
+                    "    gl_FragColor = vec4(rgb, 1.0);\n" +
+                    "}\n";
+
+    private int muMVPMatrixLoc;
+    private int muTexMatrixLoc;
+    private int maPositionLoc;
+    private int maTextureCoordLoc;
+    private int msTextureYLoc;
+    private int msTextureUVLoc;
+    private int muSwapUVLoc;
+    private int muBrightnessLoc;
+
+    private int mTextureYId = -1;
+    private int mTextureUVId = -1;
+    private int mTextureWidth;
+    private int mTextureHeight;
+
+    public FUProgramBufferYUV() {
+        super(VERTEX_SHADER, FRAGMENT_SHADER_YUV);
+    }
+
+    @Override
+    protected FUDrawable2d getDrawable2d() {
+        return new FUDrawable2dFull();
+    }
+
+    @Override
+    protected void getLocations() {
+        maPositionLoc = GLES20.glGetAttribLocation(mProgramHandle, "aPosition");
+        FUGLUtils.checkLocation(maPositionLoc, "aPosition");
+        maTextureCoordLoc = GLES20.glGetAttribLocation(mProgramHandle, "aTextureCoord");
+        FUGLUtils.checkLocation(maTextureCoordLoc, "aTextureCoord");
+        muMVPMatrixLoc = GLES20.glGetUniformLocation(mProgramHandle, "uMVPMatrix");
+        FUGLUtils.checkLocation(muMVPMatrixLoc, "uMVPMatrix");
+        muTexMatrixLoc = GLES20.glGetUniformLocation(mProgramHandle, "uTexMatrix");
+        FUGLUtils.checkLocation(muTexMatrixLoc, "uTexMatrix");
+        msTextureYLoc = GLES20.glGetUniformLocation(mProgramHandle, "sTextureY");
+        FUGLUtils.checkLocation(msTextureYLoc, "sTextureY");
+        msTextureUVLoc = GLES20.glGetUniformLocation(mProgramHandle, "sTextureUV");
+        FUGLUtils.checkLocation(msTextureUVLoc, "sTextureUV");
+        muSwapUVLoc = GLES20.glGetUniformLocation(mProgramHandle, "uSwapUV");
+        FUGLUtils.checkLocation(muSwapUVLoc, "uSwapUV");
+        muBrightnessLoc = GLES20.glGetUniformLocation(mProgramHandle, "uBrightness");
+        FUGLUtils.checkLocation(muBrightnessLoc, "uBrightness");
+    }
+
+    /**
+     * 上传 Y/UV 两个平面，尺寸变化时重新分配纹理存储
+     *
+     * @param pixels 一帧 NV12/NV21 数据，Y 平面从 position 0 开始，UV 平面紧随其后
+     */
+    private void uploadPlanes(Buffer pixels, int width, int height) {
+        int uvWidth = (width + 1) / 2;
+        int uvHeight = (height + 1) / 2;
+        if (mTextureYId == -1) {
+            mTextureYId = FUGLUtils.createTextureObject(GLES20.GL_TEXTURE_2D);
+            mTextureUVId = FUGLUtils.createTextureObject(GLES20.GL_TEXTURE_2D);
+        }
+        GLES20.glPixelStorei(GLES20.GL_UNPACK_ALIGNMENT, 1);
+        boolean sizeChanged = mTextureWidth != width || mTextureHeight != height;
+
+        GLES20.glActiveTexture(GLES20.GL_TEXTURE0);
+        GLES20.glBindTexture(GLES20.GL_TEXTURE_2D, mTextureYId);
+        if (sizeChanged) {
+            GLES20.glTexImage2D(GLES20.GL_TEXTURE_2D, 0, GLES20.GL_LUMINANCE, width, height, 0,
+                    GLES20.GL_LUMINANCE, GLES20.GL_UNSIGNED_BYTE, null);
+            FUGLUtils.checkGlError("glTexImage2D Y");
+        }
+        pixels.position(0);
+        GLES20.glTexSubImage2D(GLES20.GL_TEXTURE_2D, 0, 0, 0, width, height,
+                GLES20.GL_LUMINANCE, GLES20.GL_UNSIGNED_BYTE, pixels);
+        FUGLUtils.checkGlError("glTexSubImage2D Y");
+
+        GLES20.glActiveTexture(GLES20.GL_TEXTURE1);
+        GLES20.glBindTexture(GLES20.GL_TEXTURE_2D, mTextureUVId);
+        if (sizeChanged) {
+            GLES20.glTexImage2D(GLES20.GL_TEXTURE_2D, 0, GLES20.GL_LUMINANCE_ALPHA, uvWidth, uvHeight, 0,
+                    GLES20.GL_LUMINANCE_ALPHA, GLES20.GL_UNSIGNED_BYTE, null);
+            FUGLUtils.checkGlError("glTexImage2D UV");
+            mTextureWidth = width;
+            mTextureHeight = height;
+        }
+        pixels.position(width * height);
+        GLES20.glTexSubImage2D(GLES20.GL_TEXTURE_2D, 0, 0, 0, uvWidth, uvHeight,
+                GLES20.GL_LUMINANCE_ALPHA, GLES20.GL_UNSIGNED_BYTE, pixels);
+        FUGLUtils.checkGlError("glTexSubImage2D UV");
+        pixels.position(0);
+    }
+
+    /**
+     * 直接绘制 NV12/NV21 buffer
+     *
+     * @param pixels      帧数据，推荐使用 direct ByteBuffer
+     * @param width       宽
+     * @param height      高
+     * @param nv21        是否为 NV21 数据（VU 交错）
+     * @param texMatrix
+     * @param mvpMatrix
+     * @param uBrightness 亮度控制参数 1.0 为不调整（建议范围0.5-3.0）
+     */
+    public void drawFrame(Buffer pixels, int width, int height, boolean nv21,
+                          float[] texMatrix, float[] mvpMatrix, float uBrightness) {
+        FUGLUtils.checkGlError("draw start");
+        // Select the program.
+        GLES20.glUseProgram(mProgramHandle);
+        FUGLUtils.checkGlError("glUseProgram");
+
+        uploadPlanes(pixels, width, height);
+        GLES20.glUniform1i(msTextureYLoc, 0);
+        GLES20.glUniform1i(msTextureUVLoc, 1);
+        GLES20.glUniform1f(muSwapUVLoc, nv21 ? 1f : 0f);
+        GLES20.glUniform1f(muBrightnessLoc, uBrightness);
+        drawQuad(texMatrix, mvpMatrix);
+
+        GLES20.glActiveTexture(GLES20.GL_TEXTURE1);
+        GLES20.glBindTexture(GLES20.GL_TEXTURE_2D, 0);
+        GLES20.glActiveTexture(GLES20.GL_TEXTURE0);
+        GLES20.glBindTexture(GLES20.GL_TEXTURE_2D, 0);
+    }
+
+    /**
+     * YUV 需要两个平面纹理，不支持单纹理绘制
+     */
+    @Override
+    public void drawFrame(int textureId, float[] texMatrix, float[] mvpMatrix) {
+        throw new UnsupportedOperationException("FUProgramBufferYUV only draws NV12/NV21 buffers");
+    }
+
+    private void drawQuad(float[] texMatrix, float[] mvpMatrix) {
+        // Copy the model / view / projection matrix over.
+        GLES20.glUniformMatrix4fv(muMVPMatrixLoc, 1, false, mvpMatrix, 0);
+        FUGLUtils.checkGlError("glUniformMatrix4fv");
+
+        // Copy the texture transformation matrix over.
+        GLES20.glUniformMatrix4fv(muTexMatrixLoc, 1, false, texMatrix, 0);
+        FUGLUtils.checkGlError("glUniformMatrix4fv");
+
+        // Enable the "aPosition" vertex attribute.
+        GLES20.glEnableVertexAttribArray(maPositionLoc);
+        FUGLUtils.checkGlError("glEnableVertexAttribArray");
+
+        // Connect vertexBuffer to "aPosition".
+        GLES20.glVertexAttribPointer(maPositionLoc, FUDrawable2d.COORDS_PER_VERTEX,
+                GLES20.GL_FLOAT, false, FUDrawable2d.VERTEXTURE_STRIDE, mDrawable2d.vertexArray());
+        FUGLUtils.checkGlError("glVertexAttribPointer");
+
+        // Enable the "aTextureCoord" vertex attribute.
+        GLES20.glEnableVertexAttribArray(maTextureCoordLoc);
+        FUGLUtils.checkGlError("glEnableVertexAttribArray");
+
+        // Connect texBuffer to "aTextureCoord".
+        GLES20.glVertexAttribPointer(maTextureCoordLoc, 2,
+                GLES20.GL_FLOAT, false, FUDrawable2d.TEXTURE_COORD_STRIDE, mDrawable2d.texCoordArray());
+        FUGLUtils.checkGlError("glVertexAttribPointer");
+
+        // Draw the rect.
+        GLES20.glDrawArrays(GLES20.GL_TRIANGLE_STRIP, 0, mDrawable2d.vertexCount());
+        FUGLUtils.checkGlError("glDrawArrays");
+
+        // Done -- disable vertex array and program, textures are unbound by the caller.
+        GLES20.glDisableVertexAttribArray(maPositionLoc);
+        GLES20.glDisableVertexAttribArray(maTextureCoordLoc);
+        GLES20.glUseProgram(0);
+    }
+
+    @Override
+    public void release() {
+        super.release();
+        if (mTextureYId != -1) {
+            FUGLUtils.deleteTextures(new int[]{mTextureYId, mTextureUVId});
+            mTextureYId = mTextureUVId = -1;
+        }
+        mTextureWidth = mTextureHeight = 0;
+    }
+}
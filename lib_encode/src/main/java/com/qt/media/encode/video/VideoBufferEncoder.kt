@@ -11,6 +11,7 @@ import com.qt.media.encode.video.encoder.MediaAudioExportEncoder
 import com.qt.media.encode.video.encoder.MediaBufferVideoEncoder
 import com.qt.media.encode.video.encoder.MediaEncoder
 import com.qt.media.encode.video.encoder.MediaMuxerWrapper
+import com.qt.media.encode.video.encoder.PresentationClock
 import java.io.File
 import java.util.concurrent.CountDownLatch
 import java.util.concurrent.TimeUnit
@@ -19,12 +20,16 @@ import java.util.concurrent.TimeUnit
 /**
  * 描述：音视频编码
  * 录制buffer数据的同时，将音频文件一起编码到视频中去
- * 会将buffer转成bitmap，然后将bitmap渲染到mediaCodec的inputSurface上
- * 目前支持的buffer格式为：RGBA、NV21
+ * 默认将buffer转成bitmap，然后将bitmap渲染到mediaCodec的inputSurface上
+ * 开启 bufferUpload 时将buffer直接上传为纹理（RGBA/BGRA 单纹理，NV12/NV21 Y/UV 双纹理在 shader 中转 RGB），然后渲染到mediaCodec的inputSurface上
+ * 目前支持的buffer格式为：RGBA、BGRA（仅 bufferUpload）、NV12、NV21
+ *
+ * @param bufferUpload 是否使用 buffer 直接上传模式，默认关闭，onFrameUnit 回调的是 Bitmap；
+ * 开启时 onFrameUnit 回调的是 ImageFrame，只在回调期间有效，回调返回后帧会被释放
  *
  * @author cizongfa on 2024/2/27
  */
-class VideoBufferEncoder() : IVideoEncoder() {
+class VideoBufferEncoder @JvmOverloads constructor(private val bufferUpload: Boolean = false) : IVideoEncoder() {
 
 
     /**
@@ -62,9 +67,11 @@ class VideoBufferEncoder() : IVideoEncoder() {
         val outFile = File(outputPath)
         try {
             mMuxerWrapper =
-                MediaMuxerWrapper(outFile.absolutePath)
+                MediaMuxerWrapper(outFile.absolutePath, muxerOutputFormat, muxerWriteBufferSize)
 
             mMuxerWrapper?.let { muxer ->
+                muxer.presentationClock = PresentationClock(clockMode)
+                muxer.metrics.setListener(metricsListener, metricsIntervalMs)
                 mVideoEncoder = MediaBufferVideoEncoder(
                     muxer,
                     mMediaEncoderListener,
@@ -72,12 +79,18 @@ class VideoBufferEncoder() : IVideoEncoder() {
                     videoHeight,
                     videoFps,
                 ).apply {
-                    setIntervalTime(((1.0f / videoFps) * 1000 * 1000).toLong())
+                    setFrameRate(videoFps)
+                    setConstantFrameRate(constantFrameRate)
                     setMediaFormatConfig(config)
+                    setEngine(encoderEngine)
+                    setBufferUploadEnable(bufferUpload)
+                    setFrameQueueConfig(frameQueueCapacity, frameDropPolicy)
                 }
 
                 if (audioEntities.isNotEmpty()) {
-                    MediaAudioExportEncoder(muxer, mMediaEncoderListener, audioEntities, videoTotalDuration)
+                    MediaAudioExportEncoder(muxer, mMediaEncoderListener, audioEntities, videoTotalDuration).apply {
+                        offlineMode = audioOfflineMode
+                    }
                 }
 
                 mMediaEncoderListener?.bindCountDownLatch(CountDownLatch(muxer.encoderCount))
@@ -101,7 +114,7 @@ class VideoBufferEncoder() : IVideoEncoder() {
      * 将render渲染的纹理编码到MP4中去
      *
      * @param frame openGL渲染的纹理帧
-     * @return Result<Boolean>
+     * @return Result<Boolean> success(false) 表示帧未被接收（如按队列策略丢弃），仍由调用方持有
      */
     override fun encoderBufferFrame2Video(frame: ImageFrame): Result<Boolean> {
         FULogger.d(TAG, "encoderBufferFrame2Video")
@@ -112,6 +125,10 @@ class VideoBufferEncoder() : IVideoEncoder() {
         return Result.failure(Throwable("not support encoderBufferFrame2Video "))
     }
 
+    override fun getDroppedFrameCount(): Long {
+        return (mVideoEncoder as? MediaBufferVideoEncoder)?.droppedFrameCount ?: 0
+    }
+
     /**
      * 结束编码，释放资源
      * @param listener 编码完成回调 成功返回纹理编码后的视频文件路径
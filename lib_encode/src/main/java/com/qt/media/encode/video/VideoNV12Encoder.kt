@@ -60,16 +60,21 @@ class VideoNV12Encoder(private val presentationTimeUsByPtsUs:Boolean = false) :
         val outFile = File(outputPath)
         try {
             mMuxerWrapper =
-                MediaMuxerWrapper(outFile.absolutePath)
+                MediaMuxerWrapper(outFile.absolutePath, muxerOutputFormat, muxerWriteBufferSize)
 
             mMuxerWrapper?.let { muxer ->
+                muxer.metrics.setListener(metricsListener, metricsIntervalMs)
                 mVideoEncoder = MediaVideoNV12Encoder(muxer, mMediaEncoderListener, videoWidth, videoHeight,presentationTimeUsByPtsUs).apply {
-                    setIntervalTime(((1.0f / videoFps) * 1000 * 1000).toLong())
+                    setFrameRate(videoFps)
                     setMediaFormatConfig(config)
+                    setFrameQueueConfig(frameQueueCapacity, frameDropPolicy)
+                    setEngine(encoderEngine)
                 }
 
                 if (audioEntities.isNotEmpty()) {
-                    MediaAudioExportEncoder(muxer, mMediaEncoderListener, audioEntities, videoTotalDuration)
+                    MediaAudioExportEncoder(muxer, mMediaEncoderListener, audioEntities, videoTotalDuration).apply {
+                        offlineMode = audioOfflineMode
+                    }
                 }
 
                 mMediaEncoderListener?.bindCountDownLatch(CountDownLatch(muxer.encoderCount))
@@ -99,13 +104,15 @@ class VideoNV12Encoder(private val presentationTimeUsByPtsUs:Boolean = false) :
         FULogger.d(TAG, "encoderBufferFrame2Video")
         if(mVideoEncoder!= null && mVideoEncoder is MediaVideoNV12Encoder){
             val flag = (mVideoEncoder as MediaVideoNV12Encoder).frameAvailableSoon(frame)
-            if (flag == true) {
-                return Result.success(true)
-            }
+            return Result.success(flag)
         }
         return Result.failure(Throwable("not support encoderBufferFrame2Video "))
     }
 
+    override fun getDroppedFrameCount(): Long {
+        return (mVideoEncoder as? MediaVideoNV12Encoder)?.droppedFrameCount ?: 0
+    }
+
     /**
      * 结束编码，释放资源
      * @param listener 编码完成回调 成功返回纹理编码后的视频文件路径
@@ -11,6 +11,7 @@ import com.qt.media.encode.video.encoder.MediaAudioExportEncoder
 import com.qt.media.encode.video.encoder.MediaEncoder
 import com.qt.media.encode.video.encoder.MediaMuxerWrapper
 import com.qt.media.encode.video.encoder.MediaVideoTextureEncoder
+import com.qt.media.encode.video.encoder.PresentationClock
 import java.io.File
 import java.util.concurrent.CountDownLatch
 import java.util.concurrent.TimeUnit
@@ -58,21 +59,27 @@ class VideoTextureEncoder : IVideoEncoder() {
         val outFile = File(outputPath)
         try {
             mMuxerWrapper =
-                MediaMuxerWrapper(outFile.absolutePath)
+                MediaMuxerWrapper(outFile.absolutePath, muxerOutputFormat, muxerWriteBufferSize)
 
             mMuxerWrapper?.let { muxer ->
+                muxer.presentationClock = PresentationClock(clockMode)
+                muxer.metrics.setListener(metricsListener, metricsIntervalMs)
                 mVideoEncoder = MediaVideoTextureEncoder(
                     mMuxerWrapper,
                     mMediaEncoderListener,
                     videoWidth,
                     videoHeight
                 ).apply {
-                    setIntervalTime(((1.0f / videoFps) * 1000 * 1000).toLong())
+                    setFrameRate(videoFps)
+                    setConstantFrameRate(constantFrameRate)
                     setMediaFormatConfig(config)
+                    setEngine(encoderEngine)
                 }
 
                 if (audioEntities.isNotEmpty()) {
-                    MediaAudioExportEncoder(muxer, mMediaEncoderListener, audioEntities, videoTotalDuration)
+                    MediaAudioExportEncoder(muxer, mMediaEncoderListener, audioEntities, videoTotalDuration).apply {
+                        offlineMode = audioOfflineMode
+                    }
                 }
 
                 mMediaEncoderListener?.bindCountDownLatch(CountDownLatch(muxer.encoderCount))
@@ -106,7 +113,8 @@ class VideoTextureEncoder : IVideoEncoder() {
                 frame.texMatrix,
                 frame.mvpMatrix,
                 frame.width,
-                frame.height
+                frame.height,
+                frame.captureTimeNs
             )
             if (flag == true) {
                 return Result.success(true)
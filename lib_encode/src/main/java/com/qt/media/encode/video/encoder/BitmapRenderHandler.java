@@ -5,29 +5,36 @@ import android.graphics.Bitmap;
 import android.opengl.EGLContext;
 import android.opengl.GLES20;
 import android.opengl.Matrix;
-import android.text.TextUtils;
 import android.util.Log;
 import android.view.Surface;
 
+import com.qt.camera.log.FULogger;
+import com.qt.camera.log.TraceRing;
+import com.qt.media.encode.BuildConfig;
+import com.qt.media.encode.entity.FrameFormat;
 import com.qt.media.encode.entity.ImageFrame;
 import com.qt.media.encode.help.LimitFpsHelper;
 import com.qt.media.encode.interfaces.IFrameRenderListener;
 import com.qt.media.encode.program.FUProgramBitmap2d;
 import com.qt.media.encode.program.FUProgramBitmapWithBrightness;
+import com.qt.media.encode.program.FUProgramBufferRGBA;
+import com.qt.media.encode.program.FUProgramBufferYUV;
 import com.qt.media.encode.program.core.FUEglCore;
 import com.qt.media.encode.program.core.FUWindowSurface;
 import com.qt.media.encode.program.utils.FUGLUtils;
 import com.qt.program.utils.FUDecimalUtils;
 
-import java.util.concurrent.ConcurrentLinkedQueue;
+import java.nio.ByteBuffer;
 import java.util.concurrent.atomic.AtomicInteger;
 
 
 /**
- * Helper class to draw texture to whole view on private thread
+ * Helper class to draw texture to whole view
+ * 绘制在 EncoderScheduler 的串行队列中执行，每个任务开始时绑定 EGL 上下文、结束时解绑，任务可以运行在任意调度线程
  */
-public final class BitmapRenderHandler implements Runnable {
-    private static final boolean DEBUG = true;    // TODO set false on release
+public final class BitmapRenderHandler {
+    private static final boolean DEBUG = BuildConfig.ENCODER_LOG;
+    private static final TraceRing TRACE = TraceRing.getDefault();
     private static final String TAG = "InputFrameEncoder";
 
     private final Object mSync = new Object();
@@ -36,7 +43,7 @@ public final class BitmapRenderHandler implements Runnable {
     private float[] mTexMatrix = new float[16];
     private float[] mMvpMatrix = new float[16];
 
-    private volatile boolean mRequestSetEglContext;
+    private final EncoderScheduler.SerialQueue mQueue;
     private volatile boolean mRequestRelease;
     private AtomicInteger mRequestDraw = new AtomicInteger(0);
 
@@ -44,30 +51,66 @@ public final class BitmapRenderHandler implements Runnable {
     private FUEglCore mEglCore;
     private FUProgramBitmapWithBrightness mProgramBrightness;
     private FUProgramBitmap2d mProgram2d;
+    private FUProgramBufferRGBA mProgramBufferRGBA;
+    private FUProgramBufferYUV mProgramBufferYUV;
     private IFrameRenderListener frameRenderListener;
+    /**
+     * buffer 直接上传模式：RGBA/BGRA/NV12/NV21 帧直接上传为纹理，不再转换成 Bitmap，默认关闭
+     */
+    private volatile boolean mBufferUpload = false;
 
     public static final BitmapRenderHandler createHandler(final String name) {
+        return createHandler(name, EncoderScheduler.getDefault().newSession(name != null ? name : TAG));
+    }
+
+    /**
+     * @param session 绘制任务所在的调度会话，与编码器共用 muxer 的会话
+     */
+    public static final BitmapRenderHandler createHandler(final String name, final EncoderScheduler.Session session) {
         if (DEBUG) {
-            Log.v(TAG, "createHandler:");
+            FULogger.v(TAG, "createHandler:");
         }
-        final BitmapRenderHandler handler = new BitmapRenderHandler();
-        synchronized (handler.mSync) {
-            new Thread(handler, !TextUtils.isEmpty(name) ? name : TAG).start();
-            try {
-                handler.mSync.wait();
-            } catch (final InterruptedException e) {
-            }
-        }
-        return handler;
+        return new BitmapRenderHandler(session.newQueue(name != null ? name : TAG));
+    }
+
+    private BitmapRenderHandler(EncoderScheduler.SerialQueue queue) {
+        mQueue = queue;
     }
 
+    private final Runnable mDrawTask = new Runnable() {
+        @Override
+        public void run() {
+            drawNextFrame();
+        }
+    };
+
     public void setFrameRenderListener(IFrameRenderListener listener){
         this.frameRenderListener = listener;
     }
 
+    /**
+     * 设置是否使用 buffer 直接上传模式，关闭后所有帧都走 Bitmap 渲染
+     * 开启时 IFrameRenderListener 回调的是 ImageFrame，关闭时回调的是 Bitmap
+     */
+    public void setBufferUploadEnable(boolean enable) {
+        mBufferUpload = enable;
+    }
+
+    /**
+     * 该帧是否可以直接上传为纹理
+     */
+    private boolean canUploadBuffer(ImageFrame imageFrame) {
+        if (!mBufferUpload || (imageFrame.getBuffer() == null && imageFrame.getDirectBuffer() == null)) {
+            return false;
+        }
+        FrameFormat format = imageFrame.getFormat();
+        return format == FrameFormat.FORMAT_RGBA || format == FrameFormat.FORMAT_BGRA
+                || format == FrameFormat.FORMAT_NV12 || format == FrameFormat.FORMAT_NV21;
+    }
+
     public final void setEglContext(final EGLContext shared_context, final Surface surface) {
         if (DEBUG) {
-            Log.i(TAG, "setEglContext:");
+            FULogger.i(TAG, "setEglContext:");
         }
         synchronized (mSync) {
             if (mRequestRelease) {
@@ -75,166 +118,303 @@ public final class BitmapRenderHandler implements Runnable {
             }
             mShard_context = shared_context;
             mSurface = surface;
-            mRequestSetEglContext = true;
             mMvpMatrix = FUDecimalUtils.copyArray(FUGLUtils.IDENTITY_MATRIX);
             // 由于底层给的纹理上下镜像，导致我们这边需要通过矩阵做一下
             //上下镜像
             Matrix.scaleM(mMvpMatrix, 0, 1f, -1f, 1f);
             mTexMatrix  = FUGLUtils.IDENTITY_MATRIX;
-            mSync.notifyAll();
-            try {
-                mSync.wait();
-            } catch (final InterruptedException e) {
-                if (DEBUG) {
-                    Log.e(TAG, "setEglContext error:"+e);
+        }
+        mQueue.runAndWait(new Runnable() {
+            @Override
+            public void run() {
+                if (mRequestRelease) {
+                    return;
                 }
+                internalPrepare();
+                detachEglContext();
             }
-        }
+        });
     }
-    private ConcurrentLinkedQueue<ImageFrame> bufferQueue = new ConcurrentLinkedQueue();
+    private volatile BoundedFrameQueue bufferQueue = new BoundedFrameQueue(BoundedFrameQueue.DEFAULT_CAPACITY, BoundedFrameQueue.DropPolicy.BLOCK);
     private AtomicInteger  offerQueueCount  = new AtomicInteger(0);
     private AtomicInteger renderFrameCount = new AtomicInteger(0);
+
+    /**
+     * 设置渲染队列的容量与队列满时的处理策略，需要在开始送帧前调用
+     *
+     * @param capacity 队列容量
+     * @param policy   队列满时的处理策略
+     */
+    public void setFrameQueueConfig(int capacity, BoundedFrameQueue.DropPolicy policy) {
+        BoundedFrameQueue oldQueue = bufferQueue;
+        bufferQueue = new BoundedFrameQueue(capacity, policy);
+        final EncoderMetrics metrics = mMetrics;
+        if (metrics != null) {
+            metrics.bindFrameQueue(bufferQueue);
+        }
+        oldQueue.close();
+        oldQueue.clear();
+    }
+
+    private volatile EncoderMetrics mMetrics;
+
+    /**
+     * 设置记录渲染耗时（队列等待、格式转换、上传绘制、swapBuffers）的指标
+     */
+    public void setMetrics(EncoderMetrics metrics) {
+        mMetrics = metrics;
+        if (metrics != null) {
+            metrics.bindFrameQueue(bufferQueue);
+        }
+    }
+
+    /**
+     * 因渲染队列满被丢弃的帧数
+     */
+    public long getDroppedFrameCount() {
+        return bufferQueue.getDroppedCount();
+    }
+
+    /**
+     * 送入一帧，返回 false 表示该帧没有入队（已释放或按策略被丢弃），帧仍由调用方持有
+     * BLOCK 策略下队列满时会阻塞调用线程直到渲染线程取走一帧
+     */
     public boolean offerImageFrame(final ImageFrame imageFrame) {
-        synchronized (mSync) {
-            if (mRequestRelease) {
-                return false;
-            }
+        if (mRequestRelease) {
+            return false;
+        }
+        if (!canUploadBuffer(imageFrame)) {
+            long start = System.nanoTime();
             imageFrame.getImageBitmap();
-            boolean offer = bufferQueue.offer(imageFrame);
-            if(offer){
-                offerQueueCount.incrementAndGet();
-            }else {
-                Log.e(TAG, "offerImageFrame error:"+offer);
-            }
-            Log.d(TAG, "renderFinishCount:"+renderFrameCount.get()+" inputQueueCount:"+offerQueueCount.get());
+            record(EncoderMetrics.Stage.CONVERT, start);
+        }
+        if (imageFrame.getCaptureTimeNs() == 0) {
+            imageFrame.setCaptureTimeNs(System.nanoTime());
+        }
+        //入队不能持有 mSync，否则 BLOCK 策略下会阻塞渲染线程
+        int offer = bufferQueue.offer(imageFrame);
+        TRACE.record(TraceRing.EVENT_FRAME_OFFERED, offer);
+        if (offer == BoundedFrameQueue.OFFER_REJECTED) {
+            Log.w(TAG, "offerImageFrame rejected, droppedCount:" + bufferQueue.getDroppedCount());
+            return false;
+        }
+        offerQueueCount.incrementAndGet();
+        if (DEBUG) {
+            FULogger.d(TAG, () -> "renderFinishCount:"+renderFrameCount.get()+" inputQueueCount:"+offerQueueCount.get()+" offer:"+offer);
+        }
+        if (offer == BoundedFrameQueue.OFFER_ACCEPTED) {
+            //OFFER_REPLACED 时队列长度不变，不需要增加绘制次数
             mRequestDraw.incrementAndGet();
-            mSync.notifyAll();
-            return true;
+            mQueue.execute(mDrawTask);
         }
+        return true;
     }
 
 
     public final void release() {
         if (DEBUG) {
-            Log.i(TAG, "release:");
+            FULogger.i(TAG, "release:");
         }
+        //唤醒 BLOCK 策略下阻塞的生产者
+        bufferQueue.close();
         synchronized (mSync) {
             if (mRequestRelease) {
                 return;
             }
             mRequestRelease = true;
             frameRenderListener = null;
-            mSync.notifyAll();
-            try {
-                mSync.wait();
-            } catch (final InterruptedException e) {
-            }
         }
+        //排在已提交的绘制任务之后，这些任务看到 mRequestRelease 后直接返回
+        mQueue.runAndWait(new Runnable() {
+            @Override
+            public void run() {
+                internalRelease();
+                if (DEBUG) {
+                    FULogger.i(TAG, "RenderHandler released:");
+                }
+            }
+        });
+        mQueue.shutdown();
     }
     private LimitFpsHelper limitFpsHelper = new LimitFpsHelper();
+    /**
+     * 写入 Surface 的时间戳，未设置时按帧序号与帧率计算
+     */
+    private volatile PresentationClock.Track mClockTrack;
+    /**
+     * 按帧的 captureTimeNs 转换为固定帧率：帧间隔过长时重复输出，过短时丢帧，需要 FIXED_RATE 轨道
+     */
+    private volatile boolean mConstantFrameRate;
 
     //********************************************************************************
 //********************************************************************************
 
-    @Override
-    public final void run() {
-        if (DEBUG) {
-            Log.i(TAG, "RenderHandler thread started:");
+    /**
+     * 绘制队列中的一帧，每送入一帧执行一次
+     */
+    private void drawNextFrame() {
+        if (mRequestRelease) {
+            return;
         }
-        synchronized (mSync) {
-            mRequestSetEglContext = mRequestRelease = false;
-            mRequestDraw.set(0);
-            mSync.notifyAll();
-        }
-        boolean localRequestDraw;
-        for (; ; ) {
-            synchronized (mSync) {
-                if (mRequestRelease) {
-                    break;
-                }
-                if (mRequestSetEglContext) {
-                    mRequestSetEglContext = false;
-                    internalPrepare();
-                }
-                localRequestDraw = mRequestDraw.get() > 0;
-                if (localRequestDraw) {
-                    mRequestDraw.getAndDecrement();//减一
-                }
-            }
-            if (localRequestDraw) {
-                ImageFrame imageFrame = bufferQueue.poll();
-                    Bitmap bitmap = null;
-                    if(imageFrame!= null){
-                        bitmap = imageFrame.getImageBitmap();
-                    }
-                if ((mEglCore != null) && bitmap!=null && !bitmap.isRecycled()) {
-                    if(frameRenderListener!= null){
-                        frameRenderListener.renderInputFrameBefore(bitmap,imageFrame);
-                    }
-                    int frameIndex =  renderFrameCount.incrementAndGet();//帧数加一
-                    if (DEBUG) {
-                        Log.i(TAG, "drawFrame frameIndex:"+frameIndex);
-                    }
-                    mInputWindowSurface.makeCurrent();
-                    // clear screen with yellow color so that you can see rendering rectangle
-                    GLES20.glClearColor(0f, 0f, 0f, 0f);
-                    GLES20.glClear(GLES20.GL_COLOR_BUFFER_BIT | GLES20.GL_DEPTH_BUFFER_BIT);
-                    if (imageFrame.getUBrightness()!=null){
-                        mProgramBrightness.drawFrame(bitmap, mTexMatrix, mMvpMatrix, imageFrame.getUBrightness());
-                    }else {
-                        mProgram2d.drawFrame(bitmap, mTexMatrix, mMvpMatrix);
-                    }
-                    long nanoPts = computePresentationTime(frameIndex) * 1000; // us
-                    mInputWindowSurface.setPresentationTime(nanoPts);
-                    mInputWindowSurface.swapBuffers();
-                    if (DEBUG) {
-                        Log.i(TAG, "setPresentationTime:"+nanoPts+" frameIndex:"+frameIndex);
-                    }
-                    if(frameRenderListener!= null){
-                        frameRenderListener.onInputFrameRender(bitmap);
-                    }
-                    if (imageFrame!= null){
-                        imageFrame.release();
-                    }
-                }
-//                limitFpsHelper.limitFrameRate();
-            } else {
-                synchronized (mSync) {
-                    try {
-                        if (DEBUG) {
-                            Log.i(TAG, "drawFrame Thread wait newInput frame");
-                        }
-                        mSync.wait();
-                    } catch (final InterruptedException e) {
-                        if (DEBUG) {
-                            Log.e(TAG, "drawFrame error:"+e);
-                        }
-                        break;
+        mRequestDraw.getAndDecrement();//减一
+        ImageFrame imageFrame = bufferQueue.poll();
+        if (mEglCore != null && imageFrame != null) {
+            int count = frameCount(imageFrame.getCaptureTimeNs());
+            boolean upload = canUploadBuffer(imageFrame);
+            try {
+                for (int i = 0; i < count; i++) {
+                    if (upload) {
+                        drawBufferFrame(imageFrame);
+                    } else {
+                        drawBitmapFrame(imageFrame);
                     }
                 }
+            } finally {
+                detachEglContext();
+            }
+            if (DEBUG && count != 1) {
+                FULogger.d(TAG, () -> "constant frame rate, captureTimeNs:" + imageFrame.getCaptureTimeNs() + " drawCount:" + count);
             }
         }
-        synchronized (mSync) {
-            mRequestRelease = true;
-            internalRelease();
-            mSync.notifyAll();
+        if (imageFrame!= null){
+            //归还帧内存到FramePool
+            imageFrame.release();
+        }
+    }
+
+    /**
+     * 下一个任务可能在其它线程执行，结束时解绑 EGL 上下文
+     */
+    private void detachEglContext() {
+        if (mEglCore != null) {
+            mEglCore.makeNothingCurrent();
+        }
+    }
+
+    /**
+     * Bitmap 渲染：帧在入队时已转换成 Bitmap
+     */
+    private void drawBitmapFrame(ImageFrame imageFrame) {
+        Bitmap bitmap = imageFrame.getImageBitmap();
+        if (bitmap == null || bitmap.isRecycled()) {
+            return;
+        }
+        if(frameRenderListener!= null){
+            frameRenderListener.renderInputFrameBefore(bitmap,imageFrame);
+        }
+        int frameIndex = beginDraw();
+        long start = System.nanoTime();
+        if (imageFrame.getUBrightness()!=null){
+            mProgramBrightness.drawFrame(bitmap, mTexMatrix, mMvpMatrix, imageFrame.getUBrightness());
+        }else {
+            mProgram2d.drawFrame(bitmap, mTexMatrix, mMvpMatrix);
+        }
+        record(EncoderMetrics.Stage.GL_UPLOAD, start);
+        endDraw(frameIndex, imageFrame.getCaptureTimeNs());
+        if(frameRenderListener!= null){
+            frameRenderListener.onInputFrameRender(bitmap);
+        }
+    }
+
+    /**
+     * buffer 直接上传渲染：RGBA/BGRA 上传为 RGBA 纹理，NV12/NV21 上传为 Y/UV 两个纹理在 shader 中转换
+     */
+    private void drawBufferFrame(ImageFrame imageFrame) {
+        ByteBuffer pixels = imageFrame.getPixelBuffer();
+        if (pixels == null) {
+            return;
+        }
+        if(frameRenderListener!= null){
+            frameRenderListener.renderInputFrameBefore(null,imageFrame);
+        }
+        int frameIndex = beginDraw();
+        float brightness = imageFrame.getUBrightness() != null ? imageFrame.getUBrightness() : 1f;
+        FrameFormat format = imageFrame.getFormat();
+        long start = System.nanoTime();
+        if (format == FrameFormat.FORMAT_NV12 || format == FrameFormat.FORMAT_NV21) {
+            mProgramBufferYUV.drawFrame(pixels, imageFrame.getWidth(), imageFrame.getHeight(),
+                    format == FrameFormat.FORMAT_NV21, mTexMatrix, mMvpMatrix, brightness);
+        } else {
+            mProgramBufferRGBA.drawFrame(pixels, imageFrame.getWidth(), imageFrame.getHeight(),
+                    format == FrameFormat.FORMAT_BGRA, mTexMatrix, mMvpMatrix, brightness);
+        }
+        record(EncoderMetrics.Stage.GL_UPLOAD, start);
+        endDraw(frameIndex, imageFrame.getCaptureTimeNs());
+        if(frameRenderListener!= null){
+            frameRenderListener.onInputFrameRender(imageFrame);
+        }
+    }
+
+    private int beginDraw() {
+        int frameIndex =  renderFrameCount.incrementAndGet();//帧数加一
+        if (DEBUG) {
+            FULogger.i(TAG, () -> "drawFrame frameIndex:"+frameIndex);
+        }
+        mInputWindowSurface.makeCurrent();
+        // clear screen with yellow color so that you can see rendering rectangle
+        GLES20.glClearColor(0f, 0f, 0f, 0f);
+        GLES20.glClear(GLES20.GL_COLOR_BUFFER_BIT | GLES20.GL_DEPTH_BUFFER_BIT);
+        return frameIndex;
+    }
+
+    /**
+     * 这一帧需要绘制的次数，只有固定帧率转换时才会是 0（丢帧）或大于 1（重复）
+     */
+    private int frameCount(long captureTimeNs) {
+        final PresentationClock.Track clockTrack = mClockTrack;
+        if (!mConstantFrameRate || clockTrack == null || clockTrack.getMode() != PresentationClock.Mode.FIXED_RATE) {
+            return 1;
         }
+        return clockTrack.slotsFor(captureTimeNs);
+    }
+
+    private void endDraw(int frameIndex, long captureTimeNs) {
+        long nanoPts = presentationTimeUs(frameIndex, captureTimeNs) * 1000;
+        mInputWindowSurface.setPresentationTime(nanoPts);
+        long start = System.nanoTime();
+        mInputWindowSurface.swapBuffers();
+        record(EncoderMetrics.Stage.SWAP_BUFFERS, start);
+        TRACE.record(TraceRing.EVENT_FRAME_DRAWN, nanoPts / 1000);
         if (DEBUG) {
-            Log.i(TAG, "RenderHandler thread finished:");
+            FULogger.i(TAG, () -> "setPresentationTime:"+nanoPts+" frameIndex:"+frameIndex);
         }
     }
+
+    /**
+     * FIXED_RATE 轨道按帧计数，其它模式使用帧的 captureTimeNs，得到可变帧率的时间戳
+     */
+    private long presentationTimeUs(int frameIndex, long captureTimeNs) {
+        final PresentationClock.Track clockTrack = mClockTrack;
+        if (clockTrack == null) {
+            return computePresentationTime(frameIndex);
+        }
+        if (clockTrack.getMode() == PresentationClock.Mode.FIXED_RATE) {
+            return clockTrack.nextFrame();
+        }
+        return clockTrack.fromCaptureTime(captureTimeNs);
+    }
+
+    private void record(EncoderMetrics.Stage stage, long startNs) {
+        final EncoderMetrics metrics = mMetrics;
+        if (metrics != null) {
+            metrics.record(stage, System.nanoTime() - startNs);
+        }
+    }
+
     private Long computePresentationTime(int frameIndex) {
         return (long) (frameIndex * 1000000.0 /limitFpsHelper.getFps());
     }
     public boolean isDrawing(){
         boolean isDrawing =  mRequestDraw.get()>0;
-        Log.e("czf", "isDrawing:"+isDrawing+" mRequestDraw:"+mRequestDraw.get());
+        if (DEBUG) {
+            FULogger.d(TAG, () -> "isDrawing:" + isDrawing + " mRequestDraw:" + mRequestDraw.get());
+        }
         return isDrawing;
     }
 
     private final void internalPrepare() {
         if (DEBUG) {
-            Log.i(TAG, "internalPrepare:");
+            FULogger.i(TAG, "internalPrepare:");
         }
         internalRelease();
         mEglCore = new FUEglCore(mShard_context, FUEglCore.FLAG_RECORDABLE);
@@ -243,14 +423,18 @@ public final class BitmapRenderHandler implements Runnable {
         mInputWindowSurface.swapInterval(1);//开垂直同步
         mProgramBrightness = new FUProgramBitmapWithBrightness();
         mProgram2d = new FUProgramBitmap2d();
+        mProgramBufferRGBA = new FUProgramBufferRGBA();
+        mProgramBufferYUV = new FUProgramBufferYUV();
         mSurface = null;
-        mSync.notifyAll();
     }
     private final void internalRelease() {
         if (DEBUG) {
-            Log.i(TAG, "internalRelease:");
+            FULogger.i(TAG, "internalRelease:");
         }
+        TRACE.record(TraceRing.EVENT_RENDER_RELEASED, 0);
         if (mInputWindowSurface != null) {
+            //GL 对象需要在上下文当前时释放
+            mInputWindowSurface.makeCurrent();
             mInputWindowSurface.release();
             mInputWindowSurface = null;
         }
@@ -262,20 +446,37 @@ public final class BitmapRenderHandler implements Runnable {
             mProgram2d.release();
             mProgram2d = null;
         }
+        if (mProgramBufferRGBA != null){
+            mProgramBufferRGBA.release();
+            mProgramBufferRGBA = null;
+        }
+        if (mProgramBufferYUV != null){
+            mProgramBufferYUV.release();
+            mProgramBufferYUV = null;
+        }
         if (mEglCore != null) {
             mEglCore.release();
             mEglCore = null;
         }
-        while (!bufferQueue.isEmpty()){
-            ImageFrame frame = bufferQueue.poll();
-            if (frame!= null){
-                frame.release();
-            }
-        }
         bufferQueue.clear();
     }
 
     public void setFps(float fps) {
-        limitFpsHelper.setTargetFps((int) fps);
+        limitFpsHelper.setTargetFps(fps);
+    }
+
+    /**
+     * 开启后按帧的 captureTimeNs 把可变帧率输入转换为固定帧率输出
+     * @see PresentationClock.Track#slotsFor(long)
+     */
+    public void setConstantFrameRate(boolean enable) {
+        mConstantFrameRate = enable;
+    }
+
+    /**
+     * 使用编码器在 muxer 时钟上的轨道生成时间戳
+     */
+    public void setClockTrack(PresentationClock.Track clockTrack) {
+        mClockTrack = clockTrack;
     }
 }
@@ -0,0 +1,267 @@
+package com.qt.media.encode.video.encoder;
+
+import com.qt.media.encode.entity.ImageFrame;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * 有界帧队列（环形数组），队列满时按 DropPolicy 处理，避免编码器卡顿时帧无限堆积导致 OOM
+ * 被丢弃的帧由队列调用 ImageFrame.release 归还，被拒绝入队的帧仍由调用方持有
+ */
+public final class BoundedFrameQueue {
+
+    /**
+     * 队列满时的处理策略
+     */
+    public enum DropPolicy {
+        /**
+         * 阻塞生产者直到有空位（或队列关闭）
+         */
+        BLOCK,
+        /**
+         * 丢弃队头最旧的帧，新帧入队
+         */
+        DROP_OLDEST,
+        /**
+         * 拒绝新帧
+         */
+        DROP_NEWEST,
+        /**
+         * 新帧为非关键帧时拒绝，为关键帧时丢弃队列中最旧的非关键帧（全是关键帧则丢弃最旧的）
+         */
+        DROP_NON_KEY
+    }
+
+    /**
+     * 入队成功
+     */
+    public static final int OFFER_ACCEPTED = 0;
+    /**
+     * 入队成功，但丢弃了队列中的一帧
+     */
+    public static final int OFFER_REPLACED = 1;
+    /**
+     * 入队失败，帧仍由调用方持有
+     */
+    public static final int OFFER_REJECTED = -1;
+
+    public static final int DEFAULT_CAPACITY = 8;
+
+    private final ReentrantLock mLock = new ReentrantLock();
+    private final Condition mNotFull = mLock.newCondition();
+    private final Condition mNotEmpty = mLock.newCondition();
+    private final ImageFrame[] mItems;
+    /**
+     * 每一帧的入队时间，与 mItems 对应
+     */
+    private final long[] mEnqueueNs;
+    private final DropPolicy mPolicy;
+    private int mHead;
+    private int mCount;
+    private boolean mClosed;
+    private long mDroppedCount;
+    private volatile LatencyHistogram mWaitHistogram;
+
+    public BoundedFrameQueue(int capacity, DropPolicy policy) {
+        mItems = new ImageFrame[capacity > 0 ? capacity : DEFAULT_CAPACITY];
+        mEnqueueNs = new long[mItems.length];
+        mPolicy = policy != null ? policy : DropPolicy.BLOCK;
+    }
+
+    public int capacity() {
+        return mItems.length;
+    }
+
+    public DropPolicy getPolicy() {
+        return mPolicy;
+    }
+
+    /**
+     * 记录帧出队时在队列中等待的时间，传 null 不记录
+     */
+    public void setWaitHistogram(LatencyHistogram histogram) {
+        mWaitHistogram = histogram;
+    }
+
+    /**
+     * 入队，BLOCK 策略下队列满时会阻塞调用线程
+     *
+     * @return OFFER_ACCEPTED / OFFER_REPLACED / OFFER_REJECTED
+     */
+    public int offer(ImageFrame frame) {
+        if (frame == null) {
+            return OFFER_REJECTED;
+        }
+        ImageFrame dropped = null;
+        int result = OFFER_ACCEPTED;
+        mLock.lock();
+        try {
+            if (mClosed) {
+                return OFFER_REJECTED;
+            }
+            if (mCount == mItems.length) {
+                switch (mPolicy) {
+                    case BLOCK:
+                        while (mCount == mItems.length && !mClosed) {
+                            mNotFull.awaitUninterruptibly();
+                        }
+                        if (mClosed) {
+                            return OFFER_REJECTED;
+                        }
+                        break;
+                    case DROP_OLDEST:
+                        dropped = removeAt(0);
+                        mDroppedCount++;
+                        result = OFFER_REPLACED;
+                        break;
+                    case DROP_NEWEST:
+                        mDroppedCount++;
+                        return OFFER_REJECTED;
+                    case DROP_NON_KEY:
+                        if (!frame.isKeyFrame()) {
+                            mDroppedCount++;
+                            return OFFER_REJECTED;
+                        }
+                        dropped = removeAt(indexOfOldestNonKey());
+                        mDroppedCount++;
+                        result = OFFER_REPLACED;
+                        break;
+                }
+            }
+            int tail = (mHead + mCount) % mItems.length;
+            mItems[tail] = frame;
+            mEnqueueNs[tail] = System.nanoTime();
+            mCount++;
+            mNotEmpty.signal();
+        } finally {
+            mLock.unlock();
+        }
+        if (dropped != null) {
+            dropped.release();
+        }
+        return result;
+    }
+
+    /**
+     * 出队，队列为空时返回 null
+     */
+    public ImageFrame poll() {
+        mLock.lock();
+        try {
+            return mCount == 0 ? null : takeHead();
+        } finally {
+            mLock.unlock();
+        }
+    }
+
+    /**
+     * 出队，队列为空时最多等待 timeout，队列关闭或超时返回 null
+     */
+    public ImageFrame poll(long timeout, TimeUnit unit) throws InterruptedException {
+        long nanos = unit.toNanos(timeout);
+        mLock.lockInterruptibly();
+        try {
+            while (mCount == 0) {
+                if (mClosed || nanos <= 0) {
+                    return null;
+                }
+                nanos = mNotEmpty.awaitNanos(nanos);
+            }
+            return takeHead();
+        } finally {
+            mLock.unlock();
+        }
+    }
+
+    public int size() {
+        mLock.lock();
+        try {
+            return mCount;
+        } finally {
+            mLock.unlock();
+        }
+    }
+
+    /**
+     * 因队列满被丢弃（含拒绝入队）的帧数
+     */
+    public long getDroppedCount() {
+        mLock.lock();
+        try {
+            return mDroppedCount;
+        } finally {
+            mLock.unlock();
+        }
+    }
+
+    /**
+     * 关闭队列，唤醒阻塞的生产者与消费者，之后的入队全部被拒绝
+     */
+    public void close() {
+        mLock.lock();
+        try {
+            mClosed = true;
+            mNotFull.signalAll();
+            mNotEmpty.signalAll();
+        } finally {
+            mLock.unlock();
+        }
+    }
+
+    /**
+     * 清空队列并释放队列中的帧
+     */
+    public void clear() {
+        ImageFrame frame;
+        while ((frame = poll()) != null) {
+            frame.release();
+        }
+    }
+
+    /**
+     * 队列中最旧的非关键帧下标（相对队头），没有则返回 0
+     */
+    private int indexOfOldestNonKey() {
+        for (int i = 0; i < mCount; i++) {
+            if (!mItems[(mHead + i) % mItems.length].isKeyFrame()) {
+                return i;
+            }
+        }
+        return 0;
+    }
+
+    /**
+     * 取出队头的帧并记录等待时间
+     */
+    private ImageFrame takeHead() {
+        final LatencyHistogram histogram = mWaitHistogram;
+        if (histogram != null) {
+            histogram.recordNanos(System.nanoTime() - mEnqueueNs[mHead]);
+        }
+        return removeAt(0);
+    }
+
+    /**
+     * 移除相对队头下标为 index 的帧，后面的帧依次前移
+     */
+    private ImageFrame removeAt(int index) {
+        int length = mItems.length;
+        int pos = (mHead + index) % length;
+        ImageFrame frame = mItems[pos];
+        if (index == 0) {
+            mItems[pos] = null;
+            mHead = (mHead + 1) % length;
+        } else {
+            for (int i = index; i < mCount - 1; i++) {
+                mItems[(mHead + i) % length] = mItems[(mHead + i + 1) % length];
+                mEnqueueNs[(mHead + i) % length] = mEnqueueNs[(mHead + i + 1) % length];
+            }
+            mItems[(mHead + mCount - 1) % length] = null;
+        }
+        mCount--;
+        mNotFull.signal();
+        return frame;
+    }
+}
@@ -0,0 +1,118 @@
+package com.qt.media.encode.video.encoder;
+
+import android.media.Image;
+import android.media.MediaCodec;
+import android.media.MediaCodecInfo;
+import android.media.MediaFormat;
+import android.view.Surface;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+import androidx.annotation.Nullable;
+
+/**
+ * 编码器后端，MediaEncoder 只通过该接口访问编码器
+ * 默认实现为 MediaCodecBackend，FakeCodecBackend 可在 JVM 上模拟编码器，用于编码管线的单元测试与性能测试
+ * 返回值、下标与 flag 的含义与 MediaCodec 一致（INFO_TRY_AGAIN_LATER、BUFFER_FLAG_END_OF_STREAM 等）
+ */
+public interface CodecBackend {
+
+    /**
+     * 按 mime 类型创建编码器
+     */
+    interface Factory {
+        CodecBackend createEncoder(String mimeType) throws IOException;
+
+        /**
+         * createEncoder 将要创建的编码器支持的输入颜色格式，按编码器的偏好排列，没有可用的编码器时返回 null
+         * 默认实现用于不经过 MediaCodecList 的编码器（如 FakeCodecBackend）：支持 NV12 的 ByteBuffer 输入与 Surface 输入
+         */
+        @Nullable
+        default int[] getColorFormats(String mimeType) {
+            return new int[]{
+                    MediaCodecInfo.CodecCapabilities.COLOR_FormatYUV420SemiPlanar,
+                    MediaCodecInfo.CodecCapabilities.COLOR_FormatSurface
+            };
+        }
+    }
+
+    /**
+     * 异步模式回调，运行在编码器的回调线程
+     */
+    interface Callback {
+        void onInputBufferAvailable(int index);
+
+        /**
+         * @param info 只在回调期间有效
+         */
+        void onOutputBufferAvailable(int index, MediaCodec.BufferInfo info);
+
+        void onOutputFormatChanged(MediaFormat format);
+
+        void onError(Exception e);
+    }
+
+    /**
+     * 以编码模式配置编码器
+     */
+    void configure(MediaFormat format);
+
+    /**
+     * 是否支持 setCallback
+     */
+    boolean isAsyncSupported();
+
+    /**
+     * 设置异步回调，需要在 configure 之前调用，回调线程由编码器创建并在 release 时退出
+     *
+     * @param threadName 回调线程名
+     */
+    void setCallback(Callback callback, String threadName);
+
+    /**
+     * 创建输入 Surface，只能在 configure 与 start 之间调用
+     */
+    Surface createInputSurface();
+
+    void start();
+
+    void stop();
+
+    void release();
+
+    int dequeueInputBuffer(long timeoutUs);
+
+    @Nullable
+    ByteBuffer getInputBuffer(int index);
+
+    /**
+     * 输入 buffer 的平面描述，不支持时返回 null
+     */
+    @Nullable
+    Image getInputImage(int index);
+
+    @Nullable
+    MediaFormat getInputFormat();
+
+    void queueInputBuffer(int index, int offset, int size, long presentationTimeUs, int flags);
+
+    /**
+     * Surface 输入时通知编码器输入结束
+     */
+    void signalEndOfInputStream();
+
+    int dequeueOutputBuffer(MediaCodec.BufferInfo info, long timeoutUs);
+
+    @Nullable
+    ByteBuffer getOutputBuffer(int index);
+
+    MediaFormat getOutputFormat();
+
+    void releaseOutputBuffer(int index);
+
+    /**
+     * 请求尽快输出关键帧
+     */
+    void requestSyncFrame();
+}
@@ -0,0 +1,270 @@
+package com.qt.media.encode.video.encoder;
+
+import android.util.Log;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 一次编码会话的流水线指标
+ * <p>
+ * 每个阶段一个 {@link LatencyHistogram}，记录在各自的线程中进行，不分配对象；
+ * 另外统计视频样本的帧率、码率，渲染队列与 muxer 队列的深度和丢帧数。
+ * 可以随时调用 {@link #snapshot()} 轮询，也可以设置 {@link Listener} 在视频样本写出时按间隔推送。
+ * 由 MediaMuxerWrapper 持有，编码器、渲染器通过 muxer 取得。
+ */
+public final class EncoderMetrics {
+    private static final String TAG = "EncoderMetrics";
+
+    /**
+     * 流水线阶段
+     */
+    public enum Stage {
+        /**
+         * 帧在渲染队列中等待的时间
+         */
+        QUEUE_WAIT,
+        /**
+         * 帧格式转换：buffer 转 Bitmap、RGBA 转 YUV
+         */
+        CONVERT,
+        /**
+         * 上传纹理并绘制
+         */
+        GL_UPLOAD,
+        /**
+         * eglSwapBuffers，编码器输入 Surface 满时会阻塞在这里
+         */
+        SWAP_BUFFERS,
+        /**
+         * 帧送入编码器到编码输出
+         */
+        CODEC,
+        /**
+         * 样本进入 muxer 交织队列到写入文件
+         */
+        MUXER_WRITE
+    }
+
+    public interface Listener {
+        /**
+         * 在写出视频样本的编码线程回调，不要做耗时操作
+         */
+        void onMetrics(Snapshot snapshot);
+    }
+
+    private final LatencyHistogram[] mHistograms;
+    private final AtomicLong mVideoFrames = new AtomicLong();
+    private final AtomicLong mVideoBytes = new AtomicLong();
+    private volatile long mFirstPtsUs = -1;
+    private volatile long mLastPtsUs;
+    private volatile long mFirstSampleNs;
+    private volatile long mLastSampleNs;
+
+    private volatile BoundedFrameQueue mFrameQueue;
+    private volatile SampleInterleaver mInterleaver;
+
+    private volatile Listener mListener;
+    private volatile long mListenerIntervalNs;
+    private final AtomicLong mLastPublishNs = new AtomicLong();
+
+    public EncoderMetrics() {
+        Stage[] stages = Stage.values();
+        mHistograms = new LatencyHistogram[stages.length];
+        for (int i = 0; i < stages.length; i++) {
+            mHistograms[i] = new LatencyHistogram();
+        }
+    }
+
+    public LatencyHistogram getHistogram(Stage stage) {
+        return mHistograms[stage.ordinal()];
+    }
+
+    public void record(Stage stage, long nanos) {
+        mHistograms[stage.ordinal()].recordNanos(nanos);
+    }
+
+    /**
+     * 设置推送监听，intervalMs 内最多回调一次，传 null 取消
+     */
+    public void setListener(Listener listener, long intervalMs) {
+        mListenerIntervalNs = Math.max(0, intervalMs) * 1000_000L;
+        mListener = listener;
+    }
+
+    /**
+     * 渲染队列，用于统计队列深度与丢帧数，队列重建后需要重新设置
+     */
+    void bindFrameQueue(BoundedFrameQueue queue) {
+        mFrameQueue = queue;
+        if (queue != null) {
+            queue.setWaitHistogram(getHistogram(Stage.QUEUE_WAIT));
+        }
+    }
+
+    void bindInterleaver(SampleInterleaver interleaver) {
+        mInterleaver = interleaver;
+        interleaver.setWriteHistogram(getHistogram(Stage.MUXER_WRITE));
+    }
+
+    /**
+     * 视频样本送入 muxer 时调用，统计帧率与码率，到达间隔时推送给监听
+     */
+    void recordVideoSample(int size, long ptsUs) {
+        long now = System.nanoTime();
+        if (mFirstPtsUs < 0) {
+            mFirstPtsUs = ptsUs;
+            mFirstSampleNs = now;
+        }
+        mLastPtsUs = Math.max(mLastPtsUs, ptsUs);
+        mLastSampleNs = now;
+        mVideoFrames.incrementAndGet();
+        mVideoBytes.addAndGet(size);
+        final Listener listener = mListener;
+        if (listener != null) {
+            long last = mLastPublishNs.get();
+            if (now - last >= mListenerIntervalNs && mLastPublishNs.compareAndSet(last, now)) {
+                publish(listener);
+            }
+        }
+    }
+
+    /**
+     * 立即推送一次，编码结束时调用
+     */
+    void publish() {
+        final Listener listener = mListener;
+        if (listener != null) {
+            mLastPublishNs.set(System.nanoTime());
+            publish(listener);
+        }
+    }
+
+    private void publish(Listener listener) {
+        try {
+            listener.onMetrics(snapshot());
+        } catch (Exception e) {
+            Log.e(TAG, "onMetrics", e);
+        }
+    }
+
+    public Snapshot snapshot() {
+        Stage[] stages = Stage.values();
+        LatencyHistogram.Snapshot[] histograms = new LatencyHistogram.Snapshot[stages.length];
+        for (int i = 0; i < stages.length; i++) {
+            histograms[i] = mHistograms[i].snapshot();
+        }
+        long frames = mVideoFrames.get();
+        long bytes = mVideoBytes.get();
+        long ptsSpanUs = mFirstPtsUs < 0 ? 0 : mLastPtsUs - mFirstPtsUs;
+        long wallSpanNs = mFirstPtsUs < 0 ? 0 : mLastSampleNs - mFirstSampleNs;
+        final BoundedFrameQueue frameQueue = mFrameQueue;
+        final SampleInterleaver interleaver = mInterleaver;
+        return new Snapshot(histograms,
+                frames,
+                // n 帧覆盖 n-1 个帧间隔
+                frames > 1 && ptsSpanUs > 0 ? (frames - 1) * 1e6 / ptsSpanUs : 0,
+                frames > 1 && wallSpanNs > 0 ? (frames - 1) * 1e9 / wallSpanNs : 0,
+                // 最后一帧也占一个帧间隔
+                frames > 1 && ptsSpanUs > 0 ? (long) (bytes * 8 * 1e6 * (frames - 1) / frames / ptsSpanUs) : 0,
+                frameQueue != null ? frameQueue.size() : 0,
+                frameQueue != null ? frameQueue.getDroppedCount() : 0,
+                interleaver != null ? interleaver.getMaxQueueDepth() : 0);
+    }
+
+    /**
+     * 指标快照
+     */
+    public static final class Snapshot {
+        private final LatencyHistogram.Snapshot[] mHistograms;
+        private final long mVideoFrameCount;
+        private final double mVideoFps;
+        private final double mEncodeFps;
+        private final long mBitrate;
+        private final int mFrameQueueDepth;
+        private final long mDroppedFrameCount;
+        private final int mMuxerMaxQueueDepth;
+
+        private Snapshot(LatencyHistogram.Snapshot[] histograms, long videoFrameCount, double videoFps, double encodeFps,
+                         long bitrate, int frameQueueDepth, long droppedFrameCount, int muxerMaxQueueDepth) {
+            mHistograms = histograms;
+            mVideoFrameCount = videoFrameCount;
+            mVideoFps = videoFps;
+            mEncodeFps = encodeFps;
+            mBitrate = bitrate;
+            mFrameQueueDepth = frameQueueDepth;
+            mDroppedFrameCount = droppedFrameCount;
+            mMuxerMaxQueueDepth = muxerMaxQueueDepth;
+        }
+
+        public LatencyHistogram.Snapshot getLatency(Stage stage) {
+            return mHistograms[stage.ordinal()];
+        }
+
+        /**
+         * 已写出的视频帧数
+         */
+        public long getVideoFrameCount() {
+            return mVideoFrameCount;
+        }
+
+        /**
+         * 按视频时间戳计算的帧率，即输出视频的平均帧率
+         */
+        public double getVideoFps() {
+            return mVideoFps;
+        }
+
+        /**
+         * 按实际耗时计算的编码帧率，离线导出时大于视频帧率说明导出快于实时
+         */
+        public double getEncodeFps() {
+            return mEncodeFps;
+        }
+
+        /**
+         * 实际视频码率，单位 bit/s
+         */
+        public long getBitrate() {
+            return mBitrate;
+        }
+
+        /**
+         * 渲染队列当前的帧数
+         */
+        public int getFrameQueueDepth() {
+            return mFrameQueueDepth;
+        }
+
+        /**
+         * 渲染队列因满被丢弃的帧数
+         */
+        public long getDroppedFrameCount() {
+            return mDroppedFrameCount;
+        }
+
+        /**
+         * muxer 交织队列出现过的最大排队样本数
+         */
+        public int getMuxerMaxQueueDepth() {
+            return mMuxerMaxQueueDepth;
+        }
+
+        @Override
+        public String toString() {
+            StringBuilder builder = new StringBuilder();
+            builder.append("frames=").append(mVideoFrameCount)
+                    .append(String.format(" fps=%.2f encodeFps=%.2f", mVideoFps, mEncodeFps))
+                    .append(" bitrate=").append(mBitrate)
+                    .append(" frameQueue=").append(mFrameQueueDepth)
+                    .append(" dropped=").append(mDroppedFrameCount)
+                    .append(" muxerMaxQueue=").append(mMuxerMaxQueueDepth);
+            Stage[] stages = Stage.values();
+            for (int i = 0; i < stages.length; i++) {
+                if (mHistograms[i].getCount() > 0) {
+                    builder.append('\n').append(stages[i]).append(": ").append(mHistograms[i]);
+                }
+            }
+            return builder.toString();
+        }
+    }
+}
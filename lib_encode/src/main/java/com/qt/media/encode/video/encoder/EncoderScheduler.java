@@ -0,0 +1,448 @@
+package com.qt.media.encode.video.encoder;
+
+import android.util.Log;
+
+import java.util.ArrayDeque;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * 多个编码会话共用的线程池
+ * <p>
+ * 每个编码会话（一个 MediaMuxerWrapper，或一个 GIF/WebP 导出）是一个 {@link Session}，会话内的每个执行者
+ * （编码器、渲染器）是一个 {@link SerialQueue}：同一个队列的任务按提交顺序串行执行，代替原来各自独占的线程。
+ * 工作线程按会话轮转取任务，每次只执行一个任务，一个会话任务再多也不会饿死其它会话；会话内的多个队列同样轮转。
+ * <p>
+ * 常驻线程数为 CPU 核数，空闲超过 KEEP_ALIVE_MS 的线程退出。任务可能阻塞（eglSwapBuffers、等待编码器的输入 buffer），
+ * 所有线程都在执行任务且超过 STARVATION_TIMEOUT_MS 没有取出新任务时临时增加线程，最多为核数的两倍，
+ * 避免渲染任务阻塞等待同一会话的编码任务而互相卡住。
+ * <p>
+ * 需要过一段时间再执行的任务（如等待编码器输出的重试）用 {@link SerialQueue#executeDelayed} 提交，
+ * 由一个定时线程在到期时放入队列，等待期间不占用工作线程。
+ */
+public final class EncoderScheduler {
+    private static final boolean DEBUG = false;
+    private static final String TAG = "EncoderScheduler";
+
+    private static final long STARVATION_TIMEOUT_MS = 100;
+    private static final long KEEP_ALIVE_MS = 10_000;
+
+    private static volatile EncoderScheduler sDefault;
+
+    private final String mName;
+    private final int mCoreThreads;
+    private final int mMaxThreads;
+    private final ReentrantLock mLock = new ReentrantLock();
+    /**
+     * 空闲线程等待任务，每次只唤醒一个
+     */
+    private final Condition mWorkAvailable = mLock.newCondition();
+    /**
+     * 只用于 watchdog 的定时等待，不会被唤醒
+     */
+    private final Condition mWatchdogWake = mLock.newCondition();
+    /**
+     * 有可执行任务的会话，按轮转顺序排列
+     */
+    private final ArrayDeque<Session> mReadySessions = new ArrayDeque<>();
+    private int mThreadCount;
+    private int mIdleCount;
+    private int mPeakThreadCount;
+    private int mThreadSeq;
+    private long mCompletedTaskCount;
+    private long mLastDispatchMs;
+    private boolean mWatchdogRunning;
+    /**
+     * 延迟任务的定时线程，只负责到期后把任务放入队列，第一次使用时创建
+     */
+    private ScheduledThreadPoolExecutor mTimer;
+
+    /**
+     * 进程内共用的调度器，线程数为 CPU 核数
+     */
+    public static EncoderScheduler getDefault() {
+        EncoderScheduler scheduler = sDefault;
+        if (scheduler == null) {
+            synchronized (EncoderScheduler.class) {
+                scheduler = sDefault;
+                if (scheduler == null) {
+                    scheduler = new EncoderScheduler(TAG, Runtime.getRuntime().availableProcessors());
+                    sDefault = scheduler;
+                }
+            }
+        }
+        return scheduler;
+    }
+
+    public EncoderScheduler(String name, int coreThreads) {
+        this(name, coreThreads, coreThreads * 2);
+    }
+
+    /**
+     * @param coreThreads 常驻线程数
+     * @param maxThreads  任务阻塞时最多临时增加到的线程数
+     */
+    public EncoderScheduler(String name, int coreThreads, int maxThreads) {
+        mName = name;
+        mCoreThreads = Math.max(1, coreThreads);
+        mMaxThreads = Math.max(mCoreThreads, maxThreads);
+    }
+
+    public Session newSession(String name) {
+        return new Session(name);
+    }
+
+    public int getThreadCount() {
+        mLock.lock();
+        try {
+            return mThreadCount;
+        } finally {
+            mLock.unlock();
+        }
+    }
+
+    public int getPeakThreadCount() {
+        mLock.lock();
+        try {
+            return mPeakThreadCount;
+        } finally {
+            mLock.unlock();
+        }
+    }
+
+    public long getCompletedTaskCount() {
+        mLock.lock();
+        try {
+            return mCompletedTaskCount;
+        } finally {
+            mLock.unlock();
+        }
+    }
+
+    /**
+     * 队列有任务可以执行，加入所在会话的轮转，需要持有 mLock
+     */
+    private void onQueueReady(SerialQueue queue) {
+        Session session = queue.mSession;
+        session.mReadyQueues.add(queue);
+        if (!session.mReady) {
+            session.mReady = true;
+            mReadySessions.add(session);
+        }
+        if (mIdleCount > 0) {
+            mWorkAvailable.signal();
+        } else if (mThreadCount < mCoreThreads) {
+            startWorker();
+        } else if (mThreadCount < mMaxThreads) {
+            startWatchdog();
+        }
+    }
+
+    private void startWorker() {
+        mThreadCount++;
+        mPeakThreadCount = Math.max(mPeakThreadCount, mThreadCount);
+        Thread thread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                workerLoop();
+            }
+        }, mName + "-" + (++mThreadSeq));
+        thread.setDaemon(true);
+        thread.start();
+        if (DEBUG) Log.i(TAG, "start worker, threads:" + mThreadCount);
+    }
+
+    private void workerLoop() {
+        SerialQueue queue = null;
+        for (; ; ) {
+            Runnable task;
+            mLock.lock();
+            try {
+                if (queue != null) {
+                    queue.mRunningThread = null;
+                    mCompletedTaskCount++;
+                    if (!queue.mTasks.isEmpty()) {
+                        //放到会话的队尾，与同一会话的其它队列轮转
+                        onQueueReady(queue);
+                    } else {
+                        queue.mScheduled = false;
+                    }
+                    queue = null;
+                }
+                long idleStart = System.currentTimeMillis();
+                while (mReadySessions.isEmpty()) {
+                    long idleMs = System.currentTimeMillis() - idleStart;
+                    if (idleMs >= KEEP_ALIVE_MS) {
+                        mThreadCount--;
+                        if (DEBUG) Log.i(TAG, "worker exit, threads:" + mThreadCount);
+                        return;
+                    }
+                    mIdleCount++;
+                    try {
+                        mWorkAvailable.await(KEEP_ALIVE_MS - idleMs, TimeUnit.MILLISECONDS);
+                    } catch (InterruptedException e) {
+                        //调度线程不响应中断，只在空闲超时后退出
+                    } finally {
+                        mIdleCount--;
+                    }
+                }
+                Session session = mReadySessions.poll();
+                queue = session.mReadyQueues.poll();
+                if (!session.mReadyQueues.isEmpty()) {
+                    mReadySessions.add(session);
+                } else {
+                    session.mReady = false;
+                }
+                task = queue.mTasks.poll();
+                queue.mRunningThread = Thread.currentThread();
+                mLastDispatchMs = System.currentTimeMillis();
+            } finally {
+                mLock.unlock();
+            }
+            try {
+                task.run();
+            } catch (Throwable e) {
+                Log.e(TAG, "task failed in " + queue.mSession.mName + "/" + queue.mName, e);
+            }
+        }
+    }
+
+    private ScheduledThreadPoolExecutor getTimer() {
+        mLock.lock();
+        try {
+            if (mTimer == null) {
+                mTimer = new ScheduledThreadPoolExecutor(1, new ThreadFactory() {
+                    @Override
+                    public Thread newThread(Runnable r) {
+                        Thread thread = new Thread(r, mName + "-timer");
+                        thread.setDaemon(true);
+                        return thread;
+                    }
+                });
+                //空闲时定时线程退出，下次提交延迟任务时重新创建
+                mTimer.setKeepAliveTime(KEEP_ALIVE_MS, TimeUnit.MILLISECONDS);
+                mTimer.allowCoreThreadTimeOut(true);
+            }
+            return mTimer;
+        } finally {
+            mLock.unlock();
+        }
+    }
+
+    /**
+     * 所有线程都在执行任务时检查是否卡住，需要持有 mLock
+     */
+    private void startWatchdog() {
+        if (mWatchdogRunning) {
+            return;
+        }
+        mWatchdogRunning = true;
+        Thread thread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                watchdogLoop();
+            }
+        }, mName + "-watchdog");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    private void watchdogLoop() {
+        mLock.lock();
+        try {
+            try {
+                while (!mReadySessions.isEmpty() && mIdleCount == 0 && mThreadCount < mMaxThreads) {
+                    try {
+                        mWatchdogWake.await(STARVATION_TIMEOUT_MS, TimeUnit.MILLISECONDS);
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                    long stalledMs = System.currentTimeMillis() - mLastDispatchMs;
+                    if (!mReadySessions.isEmpty() && mIdleCount == 0 && stalledMs >= STARVATION_TIMEOUT_MS
+                            && mThreadCount < mMaxThreads) {
+                        Log.w(TAG, "all workers blocked for " + stalledMs + "ms, add worker, threads:" + (mThreadCount + 1));
+                        startWorker();
+                    }
+                }
+            } finally {
+                mWatchdogRunning = false;
+            }
+        } finally {
+            mLock.unlock();
+        }
+    }
+
+    /**
+     * 一个编码会话，会话之间公平轮转
+     */
+    public final class Session {
+        private final String mName;
+        private final ArrayDeque<SerialQueue> mReadyQueues = new ArrayDeque<>();
+        private boolean mReady;
+
+        private Session(String name) {
+            mName = name;
+        }
+
+        public String getName() {
+            return mName;
+        }
+
+        public EncoderScheduler getScheduler() {
+            return EncoderScheduler.this;
+        }
+
+        /**
+         * 创建会话内的一个串行队列
+         */
+        public SerialQueue newQueue(String name) {
+            return new SerialQueue(this, name);
+        }
+    }
+
+    /**
+     * 串行任务队列：任务按提交顺序执行，同一时间最多只有一个任务在运行，前一个任务的写入对后一个任务可见
+     * 不同任务可能运行在不同的线程，依赖线程状态（如 EGL 当前上下文）的任务需要自己在开始时绑定、结束时解绑
+     */
+    public final class SerialQueue {
+        private final Session mSession;
+        private final String mName;
+        private final ArrayDeque<Runnable> mTasks = new ArrayDeque<>();
+        /**
+         * 在会话的可执行列表中或正在执行
+         */
+        private boolean mScheduled;
+        private boolean mShutdown;
+        private volatile Thread mRunningThread;
+
+        private SerialQueue(Session session, String name) {
+            mSession = session;
+            mName = name;
+        }
+
+        public String getName() {
+            return mName;
+        }
+
+        /**
+         * 提交任务
+         *
+         * @return false 队列已经 shutdown，任务不会执行
+         */
+        public boolean execute(Runnable task) {
+            mLock.lock();
+            try {
+                if (mShutdown) {
+                    return false;
+                }
+                mTasks.add(task);
+                if (!mScheduled) {
+                    mScheduled = true;
+                    onQueueReady(this);
+                }
+                return true;
+            } finally {
+                mLock.unlock();
+            }
+        }
+
+        /**
+         * delayMs 之后提交任务，等待期间不占用工作线程，到期时队列已经 shutdown 则任务不会执行
+         *
+         * @return false 队列已经 shutdown
+         */
+        public boolean executeDelayed(final Runnable task, long delayMs) {
+            if (delayMs <= 0) {
+                return execute(task);
+            }
+            if (isShutdown()) {
+                return false;
+            }
+            getTimer().schedule(new Runnable() {
+                @Override
+                public void run() {
+                    execute(task);
+                }
+            }, delayMs, TimeUnit.MILLISECONDS);
+            return true;
+        }
+
+        /**
+         * 提交任务并等待执行完成，在本队列的任务中调用时直接执行
+         *
+         * @return false 队列已经 shutdown 或等待被中断
+         */
+        public boolean runAndWait(final Runnable task) {
+            if (isCurrentThread()) {
+                task.run();
+                return true;
+            }
+            final CountDownLatch done = new CountDownLatch(1);
+            boolean accepted = execute(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        task.run();
+                    } finally {
+                        done.countDown();
+                    }
+                }
+            });
+            if (!accepted) {
+                return false;
+            }
+            try {
+                done.await();
+                return true;
+            } catch (InterruptedException e) {
+                Log.e(TAG, "runAndWait interrupted: " + mName, e);
+                Thread.currentThread().interrupt();
+                return false;
+            }
+        }
+
+        /**
+         * 不再接受新任务，已提交的任务仍会执行
+         */
+        public void shutdown() {
+            mLock.lock();
+            try {
+                mShutdown = true;
+            } finally {
+                mLock.unlock();
+            }
+        }
+
+        public boolean isShutdown() {
+            mLock.lock();
+            try {
+                return mShutdown;
+            } finally {
+                mLock.unlock();
+            }
+        }
+
+        /**
+         * 当前线程是否正在执行本队列的任务
+         */
+        public boolean isCurrentThread() {
+            return mRunningThread == Thread.currentThread();
+        }
+
+        /**
+         * 等待执行的任务数，不包括正在执行的任务
+         */
+        public int getPendingTaskCount() {
+            mLock.lock();
+            try {
+                return mTasks.size();
+            } finally {
+                mLock.unlock();
+            }
+        }
+    }
+}
@@ -0,0 +1,645 @@
+package com.qt.media.encode.video.encoder;
+
+import android.graphics.SurfaceTexture;
+import android.media.Image;
+import android.media.MediaCodec;
+import android.media.MediaFormat;
+import android.view.Surface;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+import androidx.annotation.Nullable;
+
+/**
+ * 纯 JVM 实现的模拟编码器，不依赖 MediaCodec，用于在主机上对 encode/drain/muxer 管线做单元测试与性能测试
+ * <p>
+ * 行为是确定的：输出顺序与输入一致，输出大小由固定种子的随机序列决定，每个输出 buffer 用帧序号填充。
+ * 时间模型：编码器串行处理，每帧占用 processingTimeUs，处理完成后再经过 pipelineDelayUs 才可以取出；
+ * 输入 buffer 在对应的输出产生后才归还，因此同时在编码器中的帧数（队列深度）不超过输入 buffer 个数，
+ * 输出 buffer 未 release 时不会产生新的输出。
+ * <p>
+ * 与真实编码器一致，第一个输出前先返回 INFO_OUTPUT_FORMAT_CHANGED（格式即 configure 的格式），
+ * 之后输出一个 BUFFER_FLAG_CODEC_CONFIG 的 buffer。
+ * <p>
+ * Surface 输入：createInputSurface 返回一个不连接编码器的 Surface，渲染器写入的内容会被忽略，
+ * 由 queueSurfaceFrame 代替渲染器的 eglSwapBuffers 送入一帧，队列满时与 eglSwapBuffers 一样阻塞。
+ */
+public class FakeCodecBackend implements CodecBackend {
+
+    public static final int DEFAULT_INPUT_BUFFER_COUNT = 4;
+    public static final int DEFAULT_OUTPUT_BUFFER_COUNT = 4;
+    public static final int DEFAULT_INPUT_BUFFER_SIZE = 1920 * 1080 * 3 / 2;
+    public static final int DEFAULT_OUTPUT_BUFFER_SIZE = 512 * 1024;
+    private static final int CODEC_CONFIG_SIZE = 32;
+
+    private final Object mLock = new Object();
+    private final ByteBuffer[] mInputBuffers;
+    private final ByteBuffer[] mOutputBuffers;
+    private final boolean[] mOutputBusy;
+
+    /**
+     * 空闲的输入 buffer 下标（环形数组）
+     */
+    private final int[] mFreeInputs;
+    private int mFreeInputHead;
+    private int mFreeInputCount;
+
+    /**
+     * 已送入还未输出的帧（环形数组），多一个位置留给 signalEndOfInputStream
+     */
+    private final int[] mPendingIndex;
+    private final int[] mPendingSize;
+    private final int[] mPendingFlags;
+    private final long[] mPendingPtsUs;
+    private final long[] mPendingReadyAtNs;
+    private int mPendingHead;
+    private int mPendingCount;
+
+    private long mProcessingTimeNs;
+    private long mPipelineDelayNs;
+    private int mKeyFrameInterval = 30;
+    private int mKeyFrameSize = 64 * 1024;
+    private int mFrameSize = 16 * 1024;
+    private int mFrameSizeJitter = 4 * 1024;
+    private long mSeed = 1;
+
+    private MediaFormat mFormat;
+    /**
+     * 使用 Surface 输入，输入 buffer 不可用，帧由 queueSurfaceFrame 送入
+     */
+    private boolean mSurfaceInput;
+    private SurfaceTexture mInputSurfaceTexture;
+    private Callback mCallback;
+    private String mCallbackThreadName;
+    private Thread mCallbackThread;
+    private final MediaCodec.BufferInfo mCallbackInfo = new MediaCodec.BufferInfo();
+
+    private boolean mStarted;
+    private boolean mFormatPending;
+    private boolean mConfigPending;
+    private boolean mSyncRequested;
+    private long mRandom;
+    private long mLastFinishNs;
+
+    private long mInputFrameCount;
+    private long mOutputFrameCount;
+    private long mOutputBytes;
+    private int mMaxQueueDepth;
+    private long mDequeueOutputCount;
+
+    public FakeCodecBackend() {
+        this(DEFAULT_INPUT_BUFFER_COUNT, DEFAULT_OUTPUT_BUFFER_COUNT, DEFAULT_INPUT_BUFFER_SIZE, DEFAULT_OUTPUT_BUFFER_SIZE);
+    }
+
+    /**
+     * @param inputBufferCount  输入 buffer 个数，即最大队列深度
+     * @param outputBufferCount 输出 buffer 个数
+     * @param inputBufferSize   单个输入 buffer 的大小
+     * @param outputBufferSize  单个输出 buffer 的大小，输出帧大小不会超过该值
+     */
+    public FakeCodecBackend(int inputBufferCount, int outputBufferCount, int inputBufferSize, int outputBufferSize) {
+        mInputBuffers = new ByteBuffer[Math.max(inputBufferCount, 1)];
+        for (int i = 0; i < mInputBuffers.length; i++) {
+            mInputBuffers[i] = ByteBuffer.allocate(inputBufferSize);
+        }
+        mOutputBuffers = new ByteBuffer[Math.max(outputBufferCount, 1)];
+        for (int i = 0; i < mOutputBuffers.length; i++) {
+            mOutputBuffers[i] = ByteBuffer.allocate(Math.max(outputBufferSize, CODEC_CONFIG_SIZE));
+        }
+        mOutputBusy = new boolean[mOutputBuffers.length];
+        mFreeInputs = new int[mInputBuffers.length];
+        int pendingCapacity = mInputBuffers.length + 1;
+        mPendingIndex = new int[pendingCapacity];
+        mPendingSize = new int[pendingCapacity];
+        mPendingFlags = new int[pendingCapacity];
+        mPendingPtsUs = new long[pendingCapacity];
+        mPendingReadyAtNs = new long[pendingCapacity];
+    }
+
+    /**
+     * 返回一个使用相同参数创建 FakeCodecBackend 的工厂，忽略 mime 类型
+     */
+    public static Factory factory(final int inputBufferCount, final int outputBufferCount,
+                                  final int inputBufferSize, final int outputBufferSize,
+                                  final long processingTimeUs, final long pipelineDelayUs) {
+        return new Factory() {
+            @Override
+            public CodecBackend createEncoder(String mimeType) {
+                FakeCodecBackend codec = new FakeCodecBackend(inputBufferCount, outputBufferCount, inputBufferSize, outputBufferSize);
+                codec.setLatency(processingTimeUs, pipelineDelayUs);
+                return codec;
+            }
+        };
+    }
+
+    /**
+     * 设置时间模型，需要在 start 之前调用
+     *
+     * @param processingTimeUs 每帧占用编码器的时间，决定吞吐
+     * @param pipelineDelayUs  处理完成到可以取出的额外延迟
+     */
+    public void setLatency(long processingTimeUs, long pipelineDelayUs) {
+        synchronized (mLock) {
+            mProcessingTimeNs = Math.max(processingTimeUs, 0) * 1000;
+            mPipelineDelayNs = Math.max(pipelineDelayUs, 0) * 1000;
+        }
+    }
+
+    /**
+     * 设置输出大小模型，需要在 start 之前调用
+     *
+     * @param keyFrameInterval 关键帧间隔（帧数），小于等于 0 时只有第一帧是关键帧
+     * @param keyFrameSize     关键帧大小
+     * @param frameSize        非关键帧的平均大小
+     * @param jitter           非关键帧大小的最大偏差
+     * @param seed             随机种子，相同种子输出大小序列相同
+     */
+    public void setOutputSize(int keyFrameInterval, int keyFrameSize, int frameSize, int jitter, long seed) {
+        synchronized (mLock) {
+            mKeyFrameInterval = keyFrameInterval;
+            mKeyFrameSize = keyFrameSize;
+            mFrameSize = frameSize;
+            mFrameSizeJitter = Math.max(jitter, 0);
+            mSeed = seed;
+        }
+    }
+
+    @Override
+    public void configure(MediaFormat format) {
+        synchronized (mLock) {
+            if (mStarted) {
+                throw new IllegalStateException("configure after start");
+            }
+            mFormat = format;
+            mSurfaceInput = false;
+        }
+    }
+
+    @Override
+    public boolean isAsyncSupported() {
+        return true;
+    }
+
+    @Override
+    public void setCallback(Callback callback, String threadName) {
+        synchronized (mLock) {
+            if (mStarted) {
+                throw new IllegalStateException("setCallback after start");
+            }
+            mCallback = callback;
+            mCallbackThreadName = threadName;
+        }
+    }
+
+    @Override
+    public Surface createInputSurface() {
+        synchronized (mLock) {
+            if (mStarted) {
+                throw new IllegalStateException("createInputSurface after start");
+            }
+            mSurfaceInput = true;
+            if (mInputSurfaceTexture == null) {
+                mInputSurfaceTexture = new SurfaceTexture(0);
+            }
+            return new Surface(mInputSurfaceTexture);
+        }
+    }
+
+    /**
+     * Surface 输入时代替渲染器的 eglPresentationTimeANDROID + eglSwapBuffers 送入一帧，
+     * 编码器中的帧数达到输入 buffer 个数时阻塞，直到有输出被取出
+     *
+     * @param presentationTimeUs 帧的时间戳
+     */
+    public void queueSurfaceFrame(long presentationTimeUs) {
+        synchronized (mLock) {
+            checkStarted();
+            if (!mSurfaceInput) {
+                throw new IllegalStateException("queueSurfaceFrame without createInputSurface");
+            }
+            while (mPendingCount >= mInputBuffers.length) {
+                waitLocked(0);
+                checkStarted();
+            }
+            addPendingLocked(-1, mInputBuffers[0].capacity(), presentationTimeUs, 0);
+        }
+    }
+
+    @Override
+    public void start() {
+        synchronized (mLock) {
+            if (mStarted) {
+                return;
+            }
+            mStarted = true;
+            mFormatPending = true;
+            mConfigPending = true;
+            mSyncRequested = false;
+            mRandom = mSeed;
+            mLastFinishNs = 0;
+            mInputFrameCount = mOutputFrameCount = mOutputBytes = 0;
+            mMaxQueueDepth = 0;
+            mDequeueOutputCount = 0;
+            mPendingHead = mPendingCount = 0;
+            mFreeInputHead = 0;
+            mFreeInputCount = mInputBuffers.length;
+            for (int i = 0; i < mFreeInputs.length; i++) {
+                mFreeInputs[i] = i;
+            }
+            Arrays.fill(mOutputBusy, false);
+            if (mCallback != null) {
+                mCallbackThread = new Thread(new Runnable() {
+                    @Override
+                    public void run() {
+                        callbackLoop();
+                    }
+                }, mCallbackThreadName != null ? mCallbackThreadName : "FakeCodecBackend-callback");
+                mCallbackThread.start();
+            }
+        }
+    }
+
+    @Override
+    public void stop() {
+        Thread callbackThread;
+        synchronized (mLock) {
+            mStarted = false;
+            mPendingCount = 0;
+            callbackThread = mCallbackThread;
+            mCallbackThread = null;
+            mLock.notifyAll();
+        }
+        if (callbackThread != null && callbackThread != Thread.currentThread()) {
+            try {
+                callbackThread.join(500);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    @Override
+    public void release() {
+        stop();
+        synchronized (mLock) {
+            mCallback = null;
+            if (mInputSurfaceTexture != null) {
+                mInputSurfaceTexture.release();
+                mInputSurfaceTexture = null;
+            }
+        }
+    }
+
+    @Override
+    public int dequeueInputBuffer(long timeoutUs) {
+        synchronized (mLock) {
+            checkStarted();
+            if (mCallback != null) {
+                throw new IllegalStateException("dequeueInputBuffer in async mode");
+            }
+            if (mSurfaceInput) {
+                throw new IllegalStateException("dequeueInputBuffer with Surface input");
+            }
+            long deadline = System.nanoTime() + timeoutUs * 1000;
+            while (mFreeInputCount == 0) {
+                long waitNs = timeoutUs < 0 ? 0 : deadline - System.nanoTime();
+                if (timeoutUs >= 0 && waitNs <= 0) {
+                    return MediaCodec.INFO_TRY_AGAIN_LATER;
+                }
+                waitLocked(waitNs);
+                checkStarted();
+            }
+            return pollFreeInputLocked();
+        }
+    }
+
+    @Nullable
+    @Override
+    public ByteBuffer getInputBuffer(int index) {
+        ByteBuffer buffer = mInputBuffers[index];
+        buffer.clear();
+        return buffer;
+    }
+
+    @Nullable
+    @Override
+    public Image getInputImage(int index) {
+        return null;
+    }
+
+    @Nullable
+    @Override
+    public MediaFormat getInputFormat() {
+        synchronized (mLock) {
+            return mFormat;
+        }
+    }
+
+    @Override
+    public void queueInputBuffer(int index, int offset, int size, long presentationTimeUs, int flags) {
+        synchronized (mLock) {
+            checkStarted();
+            if (index < 0 || index >= mInputBuffers.length) {
+                throw new IllegalArgumentException("invalid input index " + index);
+            }
+            addPendingLocked(index, size, presentationTimeUs, flags);
+        }
+    }
+
+    @Override
+    public void signalEndOfInputStream() {
+        synchronized (mLock) {
+            checkStarted();
+            addPendingLocked(-1, 0, 0, MediaCodec.BUFFER_FLAG_END_OF_STREAM);
+        }
+    }
+
+    @Override
+    public int dequeueOutputBuffer(MediaCodec.BufferInfo info, long timeoutUs) {
+        synchronized (mLock) {
+            checkStarted();
+            if (mCallback != null) {
+                throw new IllegalStateException("dequeueOutputBuffer in async mode");
+            }
+            mDequeueOutputCount++;
+            long deadline = System.nanoTime() + timeoutUs * 1000;
+            while (true) {
+                long now = System.nanoTime();
+                int result = nextOutputLocked(info, now);
+                if (result != MediaCodec.INFO_TRY_AGAIN_LATER) {
+                    return result;
+                }
+                long waitNs = nextReadyDelayLocked(now);
+                if (timeoutUs >= 0) {
+                    long remain = deadline - now;
+                    if (remain <= 0) {
+                        return MediaCodec.INFO_TRY_AGAIN_LATER;
+                    }
+                    waitNs = waitNs > 0 ? Math.min(waitNs, remain) : remain;
+                }
+                waitLocked(waitNs);
+                checkStarted();
+            }
+        }
+    }
+
+    @Nullable
+    @Override
+    public ByteBuffer getOutputBuffer(int index) {
+        return mOutputBuffers[index];
+    }
+
+    @Override
+    public MediaFormat getOutputFormat() {
+        synchronized (mLock) {
+            return mFormat;
+        }
+    }
+
+    @Override
+    public void releaseOutputBuffer(int index) {
+        synchronized (mLock) {
+            mOutputBusy[index] = false;
+            mLock.notifyAll();
+        }
+    }
+
+    @Override
+    public void requestSyncFrame() {
+        synchronized (mLock) {
+            mSyncRequested = true;
+        }
+    }
+
+    /**
+     * 已送入的帧数（不含 EOS）
+     */
+    public long getInputFrameCount() {
+        synchronized (mLock) {
+            return mInputFrameCount;
+        }
+    }
+
+    /**
+     * 已输出的帧数（不含 codec config 与 EOS）
+     */
+    public long getOutputFrameCount() {
+        synchronized (mLock) {
+            return mOutputFrameCount;
+        }
+    }
+
+    /**
+     * 已输出的数据大小
+     */
+    public long getOutputBytes() {
+        synchronized (mLock) {
+            return mOutputBytes;
+        }
+    }
+
+    /**
+     * 同时在编码器中的最大帧数
+     */
+    public int getMaxQueueDepth() {
+        synchronized (mLock) {
+            return mMaxQueueDepth;
+        }
+    }
+
+    /**
+     * dequeueOutputBuffer 的调用次数
+     */
+    public long getDequeueOutputCount() {
+        synchronized (mLock) {
+            return mDequeueOutputCount;
+        }
+    }
+
+    private void callbackLoop() {
+        final MediaCodec.BufferInfo info = mCallbackInfo;
+        while (true) {
+            final Callback callback;
+            int input = -1;
+            int output;
+            synchronized (mLock) {
+                while (true) {
+                    if (!mStarted || mCallback == null) {
+                        return;
+                    }
+                    long now = System.nanoTime();
+                    output = nextOutputLocked(info, now);
+                    if (output != MediaCodec.INFO_TRY_AGAIN_LATER) {
+                        break;
+                    }
+                    if (mFreeInputCount > 0 && !mSurfaceInput) {
+                        input = pollFreeInputLocked();
+                        break;
+                    }
+                    waitLocked(nextReadyDelayLocked(now));
+                }
+                callback = mCallback;
+            }
+            try {
+                if (input >= 0) {
+                    callback.onInputBufferAvailable(input);
+                } else if (output == MediaCodec.INFO_OUTPUT_FORMAT_CHANGED) {
+                    callback.onOutputFormatChanged(getOutputFormat());
+                } else {
+                    callback.onOutputBufferAvailable(output, info);
+                }
+            } catch (Exception e) {
+                callback.onError(e);
+            }
+        }
+    }
+
+    private void addPendingLocked(int index, int size, long presentationTimeUs, int flags) {
+        if (mPendingCount == mPendingIndex.length) {
+            throw new IllegalStateException("too many pending frames");
+        }
+        long now = System.nanoTime();
+        long finish = Math.max(now, mLastFinishNs) + mProcessingTimeNs;
+        mLastFinishNs = finish;
+        int pos = (mPendingHead + mPendingCount) % mPendingIndex.length;
+        mPendingIndex[pos] = index;
+        mPendingSize[pos] = size;
+        mPendingFlags[pos] = flags;
+        mPendingPtsUs[pos] = presentationTimeUs;
+        mPendingReadyAtNs[pos] = finish + mPipelineDelayNs;
+        mPendingCount++;
+        if ((flags & MediaCodec.BUFFER_FLAG_END_OF_STREAM) == 0 || size > 0) {
+            mInputFrameCount++;
+        }
+        if (mPendingCount > mMaxQueueDepth) {
+            mMaxQueueDepth = mPendingCount;
+        }
+        mLock.notifyAll();
+    }
+
+    /**
+     * 取出下一个输出
+     *
+     * @return 输出 buffer 下标、INFO_OUTPUT_FORMAT_CHANGED 或 INFO_TRY_AGAIN_LATER
+     */
+    private int nextOutputLocked(MediaCodec.BufferInfo info, long now) {
+        if (mPendingCount == 0 || mPendingReadyAtNs[mPendingHead] > now) {
+            return MediaCodec.INFO_TRY_AGAIN_LATER;
+        }
+        if (mFormatPending) {
+            mFormatPending = false;
+            return MediaCodec.INFO_OUTPUT_FORMAT_CHANGED;
+        }
+        int slot = -1;
+        for (int i = 0; i < mOutputBusy.length; i++) {
+            if (!mOutputBusy[i]) {
+                slot = i;
+                break;
+            }
+        }
+        if (slot < 0) {
+            return MediaCodec.INFO_TRY_AGAIN_LATER;
+        }
+        ByteBuffer output = mOutputBuffers[slot];
+        if (mConfigPending) {
+            mConfigPending = false;
+            fillOutput(output, CODEC_CONFIG_SIZE, (byte) 0xff);
+            info.set(0, CODEC_CONFIG_SIZE, 0, MediaCodec.BUFFER_FLAG_CODEC_CONFIG);
+            mOutputBusy[slot] = true;
+            return slot;
+        }
+        int pos = mPendingHead;
+        int inputIndex = mPendingIndex[pos];
+        int inputSize = mPendingSize[pos];
+        int flags = mPendingFlags[pos] & MediaCodec.BUFFER_FLAG_END_OF_STREAM;
+        long ptsUs = mPendingPtsUs[pos];
+        mPendingHead = (mPendingHead + 1) % mPendingIndex.length;
+        mPendingCount--;
+        if (inputIndex >= 0) {
+            mFreeInputs[(mFreeInputHead + mFreeInputCount) % mFreeInputs.length] = inputIndex;
+            mFreeInputCount++;
+        }
+        int size = 0;
+        if (inputSize > 0) {
+            boolean keyFrame = mSyncRequested || mOutputFrameCount == 0
+                    || (mKeyFrameInterval > 0 && mOutputFrameCount % mKeyFrameInterval == 0);
+            mSyncRequested = false;
+            size = keyFrame ? mKeyFrameSize : nextFrameSize();
+            size = Math.max(1, Math.min(size, output.capacity()));
+            if (keyFrame) {
+                flags |= MediaCodec.BUFFER_FLAG_KEY_FRAME;
+            }
+            fillOutput(output, size, (byte) mOutputFrameCount);
+            mOutputFrameCount++;
+            mOutputBytes += size;
+        } else {
+            output.clear();
+            output.limit(0);
+        }
+        info.set(0, size, ptsUs, flags);
+        mOutputBusy[slot] = true;
+        mLock.notifyAll();
+        return slot;
+    }
+
+    /**
+     * 距离队头的帧可以取出的时间，不需要按时间等待时返回 0
+     */
+    private long nextReadyDelayLocked(long now) {
+        if (mPendingCount == 0) {
+            return 0;
+        }
+        long delay = mPendingReadyAtNs[mPendingHead] - now;
+        return delay > 0 ? delay : 0;
+    }
+
+    private int pollFreeInputLocked() {
+        int index = mFreeInputs[mFreeInputHead];
+        mFreeInputHead = (mFreeInputHead + 1) % mFreeInputs.length;
+        mFreeInputCount--;
+        return index;
+    }
+
+    /**
+     * 等待 waitNs，为 0 时一直等到被唤醒
+     */
+    private void waitLocked(long waitNs) {
+        try {
+            if (waitNs > 0) {
+                long ms = waitNs / 1000000;
+                mLock.wait(ms, (int) (waitNs % 1000000));
+            } else {
+                mLock.wait();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("interrupted", e);
+        }
+    }
+
+    private void checkStarted() {
+        if (!mStarted) {
+            throw new IllegalStateException("codec not started");
+        }
+    }
+
+    /**
+     * 非关键帧大小：frameSize ± jitter，使用固定种子的线性同余序列
+     */
+    private int nextFrameSize() {
+        if (mFrameSizeJitter == 0) {
+            return mFrameSize;
+        }
+        mRandom = mRandom * 6364136223846793005L + 1442695040888963407L;
+        int range = mFrameSizeJitter * 2 + 1;
+        int offset = (int) ((mRandom >>> 33) % range) - mFrameSizeJitter;
+        return mFrameSize + offset;
+    }
+
+    private static void fillOutput(ByteBuffer output, int size, byte value) {
+        output.clear();
+        Arrays.fill(output.array(), output.arrayOffset(), output.arrayOffset() + size, value);
+        output.limit(size);
+    }
+}
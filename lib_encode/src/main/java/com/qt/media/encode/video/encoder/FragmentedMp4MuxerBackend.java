@@ -0,0 +1,111 @@
+package com.qt.media.encode.video.encoder;
+
+import android.media.MediaCodec;
+import android.media.MediaFormat;
+
+import java.io.File;
+import java.io.FileDescriptor;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * 基于 FragmentedMp4Writer 的封装器后端，输出 fragmented MP4
+ * 样本按片段追加写入文件，录制中崩溃时文件可以播放到最后一个写出的片段，也可以边录边读取上传
+ * 支持 H.264 视频与 AAC 音频，出错时与 MediaMuxer 一样抛出 IllegalStateException
+ * 文件经 WriteBehindChannel 异步写入，writeBufferSize 为写缓冲的内存上限
+ *
+ * @see FragmentedMp4Writer
+ */
+public class FragmentedMp4MuxerBackend implements MuxerBackend {
+
+    private final FragmentedMp4Writer mWriter;
+
+    public FragmentedMp4MuxerBackend(String filePath) throws IOException {
+        this(filePath, WriteBehindChannel.DEFAULT_BUFFER_SIZE);
+    }
+
+    /**
+     * @param writeBufferSize 写缓冲字节数，不大于 0 时在写线程直接写文件
+     */
+    public FragmentedMp4MuxerBackend(String filePath, int writeBufferSize) throws IOException {
+        mWriter = new FragmentedMp4Writer(new File(filePath));
+        mWriter.setWriteBufferSize(writeBufferSize);
+    }
+
+    /**
+     * 写入已打开的文件描述符（如 ContentResolver/SAF 得到的 ParcelFileDescriptor.getFileDescriptor()），
+     * 从描述符的当前位置开始写，需要可读写（"rw"）以便回填总时长，stop 后不会关闭描述符
+     */
+    public FragmentedMp4MuxerBackend(FileDescriptor fd, int writeBufferSize) throws IOException {
+        mWriter = new FragmentedMp4Writer(new FileOutputStream(fd).getChannel());
+        mWriter.setWriteBufferSize(writeBufferSize);
+    }
+
+    public FragmentedMp4Writer getWriter() {
+        return mWriter;
+    }
+
+    @Override
+    public int addTrack(MediaFormat format) {
+        String mime = format.getString(MediaFormat.KEY_MIME);
+        if (MediaFormat.MIMETYPE_VIDEO_AVC.equals(mime)) {
+            return mWriter.addAvcTrack(format.getInteger(MediaFormat.KEY_WIDTH), format.getInteger(MediaFormat.KEY_HEIGHT),
+                    getCodecConfig(format, "csd-0"), getCodecConfig(format, "csd-1"));
+        }
+        if (MediaFormat.MIMETYPE_AUDIO_AAC.equals(mime)) {
+            int bitRate = format.containsKey(MediaFormat.KEY_BIT_RATE) ? format.getInteger(MediaFormat.KEY_BIT_RATE) : 0;
+            return mWriter.addAacTrack(format.getInteger(MediaFormat.KEY_SAMPLE_RATE), format.getInteger(MediaFormat.KEY_CHANNEL_COUNT),
+                    getCodecConfig(format, "csd-0"), bitRate);
+        }
+        throw new IllegalArgumentException("unsupported mime type for fragmented mp4: " + mime);
+    }
+
+    @Override
+    public void start() {
+        try {
+            mWriter.start();
+        } catch (IOException e) {
+            throw new IllegalStateException("fragmented mp4 start failed", e);
+        }
+    }
+
+    @Override
+    public void writeSampleData(int trackIndex, ByteBuffer byteBuf, MediaCodec.BufferInfo bufferInfo) {
+        if ((bufferInfo.flags & MediaCodec.BUFFER_FLAG_CODEC_CONFIG) != 0 || bufferInfo.size <= 0) {
+            return;
+        }
+        ByteBuffer sample = byteBuf.duplicate();
+        sample.limit(bufferInfo.offset + bufferInfo.size);
+        sample.position(bufferInfo.offset);
+        try {
+            mWriter.writeSample(trackIndex, sample, bufferInfo.presentationTimeUs,
+                    (bufferInfo.flags & MediaCodec.BUFFER_FLAG_KEY_FRAME) != 0);
+        } catch (IOException e) {
+            throw new IllegalStateException("fragmented mp4 write failed", e);
+        }
+    }
+
+    @Override
+    public void stop() {
+        try {
+            mWriter.close();
+        } catch (IOException e) {
+            throw new IllegalStateException("fragmented mp4 stop failed", e);
+        }
+    }
+
+    @Override
+    public void release() {
+        //stop 已经关闭文件，没有调用 stop 时关闭已写出的部分
+        try {
+            mWriter.close();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    private static ByteBuffer getCodecConfig(MediaFormat format, String key) {
+        return format.containsKey(key) ? format.getByteBuffer(key) : null;
+    }
+}
@@ -0,0 +1,977 @@
+package com.qt.media.encode.video.encoder;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * 纯 Java 实现的 fragmented MP4（fMP4）写入，不依赖 android.media.MediaMuxer
+ * <p>
+ * start 时写入 ftyp 与不含样本表的 moov（样本信息放在 mvex 之后的片段里），之后样本按片段（moof + mdat）追加写入 FileChannel。
+ * 每个片段写完后文件就是可以播放的，录制中崩溃只丢失还没有写出的最后一个片段，已写出的部分也可以边录边上传。
+ * <p>
+ * 有视频轨时在片段时长达到 fragmentDurationUs 之后的第一个关键帧处切片（片段长度不会小于关键帧间隔），只有音频时按时长切片。
+ * 片段内的视频样本按时间戳排序得到解码时间，有 B 帧时使用带符号的 composition offset（trun version 1）。
+ * 视频支持 H.264，样本为 MediaCodec 输出的 Annex-B 码流，写入时转为 4 字节长度前缀；音频支持 AAC（不带 ADTS 头）。
+ * 文件写入经过 WriteBehindChannel：片段合并为大块后由后台线程写入，每 syncInterval 个片段 force 一次，
+ * 存储卡刷盘慢时不阻塞 writeSample 的调用线程。
+ * 只依赖 java.nio，可以直接在 JVM 上用构造的 H.264/AAC 样本测试。
+ */
+public class FragmentedMp4Writer implements Closeable {
+
+    /**
+     * 片段写入文件后的回调，运行在 WriteBehindChannel 的 I/O 线程（写缓冲为 0 时为调用 writeSample/close 的线程）
+     * 到达 syncInterval 的片段在落盘之后回调
+     */
+    public interface FragmentListener {
+        /**
+         * @param sequence 片段序号，从 1 开始
+         * @param position 片段在文件中的起始位置，此前的内容（加上本片段）已经是完整可播放的 fMP4
+         * @param size     片段字节数（moof + mdat）
+         */
+        void onFragmentWritten(int sequence, long position, long size);
+    }
+
+    public static final long DEFAULT_FRAGMENT_DURATION_US = 1000_000L;
+    /**
+     * 默认每个片段落盘一次，崩溃或断电时最多丢失一个片段
+     */
+    public static final int DEFAULT_SYNC_INTERVAL = 1;
+
+    /**
+     * 时间戳取整或抖动使关键帧间隔略小于片段时长时也切片，避免片段长度翻倍
+     */
+    private static final long FRAGMENT_DURATION_TOLERANCE_US = 10_000L;
+    private static final int MOVIE_TIMESCALE = 1000;
+    private static final int VIDEO_TIMESCALE = 90000;
+    private static final int AAC_FRAME_SIZE = 1024;
+    private static final int INITIAL_TRACK_BUFFER_SIZE = 256 * 1024;
+
+    private static final int SAMPLE_FLAGS_SYNC = 0x02000000;
+    private static final int SAMPLE_FLAGS_NON_SYNC = 0x01010000;
+
+    private static final int TRUN_DATA_OFFSET = 0x000001;
+    private static final int TRUN_SAMPLE_DURATION = 0x000100;
+    private static final int TRUN_SAMPLE_SIZE = 0x000200;
+    private static final int TRUN_SAMPLE_FLAGS = 0x000400;
+    private static final int TRUN_SAMPLE_CTS = 0x000800;
+    private static final int TFHD_DEFAULT_BASE_IS_MOOF = 0x020000;
+
+    private static final int[] AAC_SAMPLE_RATES = {
+            96000, 88200, 64000, 48000, 44100, 32000, 24000, 22050, 16000, 12000, 11025, 8000, 7350
+    };
+
+    private static final int[] UNITY_MATRIX = {
+            0x00010000, 0, 0, 0, 0x00010000, 0, 0, 0, 0x40000000
+    };
+
+    private final FileChannel mChannel;
+    private final boolean mOwnChannel;
+    /**
+     * start 时创建，之后所有写入都经过它
+     */
+    private WriteBehindChannel mOutput;
+    private int mWriteBufferSize = WriteBehindChannel.DEFAULT_BUFFER_SIZE;
+    private int mSyncInterval = DEFAULT_SYNC_INTERVAL;
+    private final List<Track> mTracks = new ArrayList<>();
+    private final BoxBuffer mBox = new BoxBuffer();
+    private Track mVideoTrack;
+    private FragmentListener mListener;
+    private long mFragmentDurationUs = DEFAULT_FRAGMENT_DURATION_US;
+
+    /**
+     * 下一次写入的文件位置
+     */
+    private long mPosition;
+
+    /**
+     * mehd 中 fragment_duration 字段的文件位置，close 时回填总时长
+     */
+    private long mMehdPosition = -1;
+
+    /**
+     * 当前片段第一个样本的时间戳，片段为空时为 -1
+     */
+    private long mFragmentStartUs = -1;
+    private long mEndUs;
+    private int mSequence;
+    private boolean mStarted;
+    private boolean mClosed;
+
+    /**
+     * 创建并清空文件
+     */
+    public FragmentedMp4Writer(File file) throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        raf.setLength(0);
+        mChannel = raf.getChannel();
+        mOwnChannel = true;
+    }
+
+    /**
+     * 从 channel 的当前位置开始写入，close 时不会关闭 channel
+     */
+    public FragmentedMp4Writer(FileChannel channel) throws IOException {
+        mChannel = channel;
+        mOwnChannel = false;
+        mPosition = channel.position();
+    }
+
+    /**
+     * 设置片段时长，需要在 start 之前调用
+     */
+    public void setFragmentDurationUs(long fragmentDurationUs) {
+        mFragmentDurationUs = fragmentDurationUs;
+    }
+
+    /**
+     * 设置写缓冲大小，需要在 start 之前调用，不大于 0 时在调用 writeSample 的线程直接写文件
+     */
+    public void setWriteBufferSize(int bytes) {
+        checkNotStarted();
+        mWriteBufferSize = bytes;
+    }
+
+    /**
+     * 设置每写出多少个片段调用一次 FileChannel.force，需要在 start 之前调用，不大于 0 时只在 close 时落盘
+     */
+    public void setSyncInterval(int fragments) {
+        checkNotStarted();
+        mSyncInterval = fragments;
+    }
+
+    /**
+     * 写缓冲，start 之后有效，可以读取缓冲占用与等待时间
+     */
+    public WriteBehindChannel getOutput() {
+        return mOutput;
+    }
+
+    public void setFragmentListener(FragmentListener listener) {
+        mListener = listener;
+    }
+
+    /**
+     * 添加 H.264 视频轨，只能有一个视频轨
+     *
+     * @param codecConfig MediaFormat 中的 csd-0（SPS）与 csd-1（PPS），Annex-B 格式，也可以是一个包含两者的 buffer
+     * @return 轨道下标
+     */
+    public int addAvcTrack(int width, int height, ByteBuffer... codecConfig) {
+        checkNotStarted();
+        if (mVideoTrack != null) {
+            throw new IllegalStateException("video track already added");
+        }
+        List<byte[]> sps = new ArrayList<>();
+        List<byte[]> pps = new ArrayList<>();
+        for (ByteBuffer config : codecConfig) {
+            if (config == null) {
+                continue;
+            }
+            for (byte[] nal : splitNalUnits(config)) {
+                int type = nal[0] & 0x1F;
+                if (type == 7) {
+                    sps.add(nal);
+                } else if (type == 8) {
+                    pps.add(nal);
+                }
+            }
+        }
+        if (sps.isEmpty() || pps.isEmpty() || sps.get(0).length < 4) {
+            throw new IllegalArgumentException("missing sps/pps in codec config");
+        }
+        Track track = new Track(mTracks.size() + 1, true, VIDEO_TIMESCALE);
+        track.width = width;
+        track.height = height;
+        track.sps = sps;
+        track.pps = pps;
+        mTracks.add(track);
+        mVideoTrack = track;
+        return mTracks.size() - 1;
+    }
+
+    /**
+     * 添加 AAC 音频轨
+     *
+     * @param audioSpecificConfig MediaFormat 中的 csd-0，为 null 时按 AAC-LC 生成
+     * @param bitRate             平均码率，未知时为 0
+     * @return 轨道下标
+     */
+    public int addAacTrack(int sampleRate, int channelCount, ByteBuffer audioSpecificConfig, int bitRate) {
+        checkNotStarted();
+        if (sampleRate <= 0 || channelCount <= 0) {
+            throw new IllegalArgumentException("invalid audio format " + sampleRate + "/" + channelCount);
+        }
+        Track track = new Track(mTracks.size() + 1, false, sampleRate);
+        track.sampleRate = sampleRate;
+        track.channelCount = channelCount;
+        track.bitRate = bitRate;
+        if (audioSpecificConfig != null && audioSpecificConfig.remaining() > 0) {
+            ByteBuffer config = audioSpecificConfig.duplicate();
+            track.audioSpecificConfig = new byte[config.remaining()];
+            config.get(track.audioSpecificConfig);
+        } else {
+            track.audioSpecificConfig = createAudioSpecificConfig(sampleRate, channelCount);
+        }
+        mTracks.add(track);
+        return mTracks.size() - 1;
+    }
+
+    /**
+     * 写入 ftyp 与 moov
+     */
+    public void start() throws IOException {
+        checkNotStarted();
+        if (mTracks.isEmpty()) {
+            throw new IllegalStateException("no track added");
+        }
+        BoxBuffer box = mBox;
+        box.clear();
+        int ftyp = box.begin("ftyp");
+        box.fourcc("isom");
+        box.u32(0x200);
+        box.fourcc("isom");
+        box.fourcc("iso6");
+        box.fourcc("avc1");
+        box.fourcc("mp41");
+        box.end(ftyp);
+        int moov = box.begin("moov");
+        writeMvhd(box);
+        for (Track track : mTracks) {
+            writeTrak(box, track);
+        }
+        int mvex = box.begin("mvex");
+        int mehd = box.beginFull("mehd", 1, 0);
+        int mehdOffset = box.position();
+        box.u64(0);
+        box.end(mehd);
+        for (Track track : mTracks) {
+            int trex = box.beginFull("trex", 0, 0);
+            box.u32(track.id);
+            box.u32(1);
+            box.u32(0);
+            box.u32(0);
+            box.u32(0);
+            box.end(trex);
+        }
+        box.end(mvex);
+        box.end(moov);
+        mOutput = new WriteBehindChannel(mChannel, mWriteBufferSize);
+        mMehdPosition = mPosition + mehdOffset;
+        write(box.flip());
+        mStarted = true;
+    }
+
+    /**
+     * 写入一个样本，data 从 position 到 limit 的内容会被拷贝，不改变 data 的 position
+     *
+     * @param trackIndex         addXxxTrack 返回的下标
+     * @param presentationTimeUs 显示时间戳
+     * @param keyFrame           是否为关键帧，音频样本忽略
+     */
+    public void writeSample(int trackIndex, ByteBuffer data, long presentationTimeUs, boolean keyFrame) throws IOException {
+        if (!mStarted || mClosed) {
+            throw new IllegalStateException("writer not started");
+        }
+        if (trackIndex < 0 || trackIndex >= mTracks.size()) {
+            throw new IllegalArgumentException("invalid track index " + trackIndex);
+        }
+        Track track = mTracks.get(trackIndex);
+        if (shouldCutFragment(track, presentationTimeUs, keyFrame)) {
+            writeFragment(track, presentationTimeUs, false);
+        }
+        track.append(data, presentationTimeUs, keyFrame || !track.video);
+        if (mFragmentStartUs < 0) {
+            mFragmentStartUs = presentationTimeUs;
+        }
+    }
+
+    /**
+     * 写出剩余的样本并回填总时长，之后不能再写入
+     */
+    @Override
+    public void close() throws IOException {
+        if (mClosed) {
+            return;
+        }
+        mClosed = true;
+        try {
+            if (mStarted) {
+                writeFragment(null, 0, true);
+                ByteBuffer duration = ByteBuffer.allocate(8);
+                duration.putLong(0, mEndUs * MOVIE_TIMESCALE / 1000_000L);
+                mOutput.writeAt(duration, mMehdPosition);
+            }
+        } finally {
+            try {
+                if (mOutput != null) {
+                    //写完缓冲中的数据并落盘
+                    mOutput.close();
+                }
+            } finally {
+                if (mOwnChannel) {
+                    mChannel.close();
+                }
+            }
+        }
+    }
+
+    /**
+     * 已写出的片段个数
+     */
+    public int getFragmentCount() {
+        return mSequence;
+    }
+
+    private boolean shouldCutFragment(Track track, long presentationTimeUs, boolean keyFrame) {
+        if (mFragmentStartUs < 0 || presentationTimeUs - mFragmentStartUs + FRAGMENT_DURATION_TOLERANCE_US < mFragmentDurationUs) {
+            return false;
+        }
+        if (mVideoTrack != null) {
+            //只在关键帧处切片，片段内的 B 帧重排不会跨片段
+            return track == mVideoTrack && keyFrame && track.count > 0;
+        }
+        return true;
+    }
+
+    /**
+     * 写出一个片段
+     *
+     * @param trigger     触发切片的轨道，它的所有样本都写出，下一个样本的时间为 nextPtsUs；其它轨道保留最后一个样本，以确定它的时长
+     * @param last        写出全部样本（close）
+     */
+    private void writeFragment(Track trigger, long nextPtsUs, boolean last) throws IOException {
+        int trackCount = mTracks.size();
+        int[] emitCounts = new int[trackCount];
+        int totalSamples = 0;
+        for (int i = 0; i < trackCount; i++) {
+            Track track = mTracks.get(i);
+            emitCounts[i] = last || track == trigger ? track.count : Math.max(track.count - 1, 0);
+            totalSamples += emitCounts[i];
+        }
+        if (totalSamples == 0) {
+            return;
+        }
+        BoxBuffer box = mBox;
+        box.clear();
+        int[] dataOffsetFields = new int[trackCount];
+        int moof = box.begin("moof");
+        int mfhd = box.beginFull("mfhd", 0, 0);
+        box.u32(mSequence + 1);
+        box.end(mfhd);
+        for (int i = 0; i < trackCount; i++) {
+            if (emitCounts[i] > 0) {
+                Track track = mTracks.get(i);
+                long nextDts = track == trigger ? track.toTicks(nextPtsUs) : -1;
+                dataOffsetFields[i] = writeTraf(box, track, emitCounts[i], nextDts);
+            }
+        }
+        box.end(moof);
+        int moofSize = box.position();
+        long mdatSize = 8;
+        for (int i = 0; i < trackCount; i++) {
+            if (emitCounts[i] > 0) {
+                //default-base-is-moof：data_offset 相对 moof 的起始位置
+                box.putInt(dataOffsetFields[i], (int) (moofSize + mdatSize));
+                mdatSize += mTracks.get(i).bytesOf(emitCounts[i]);
+            }
+        }
+        box.u32((int) mdatSize);
+        box.fourcc("mdat");
+        ByteBuffer[] buffers = new ByteBuffer[trackCount + 1];
+        buffers[0] = box.flip();
+        for (int i = 0; i < trackCount; i++) {
+            buffers[i + 1] = mTracks.get(i).emittedData(emitCounts[i]);
+        }
+        final long position = mPosition;
+        write(buffers);
+        for (int i = 0; i < trackCount; i++) {
+            mTracks.get(i).remove(emitCounts[i]);
+        }
+        mSequence++;
+        mFragmentStartUs = last ? -1 : nextPtsUs;
+        final FragmentListener listener = mListener;
+        final int sequence = mSequence;
+        final long size = mPosition - position;
+        Runnable onWritten = listener == null ? null : new Runnable() {
+            @Override
+            public void run() {
+                listener.onFragmentWritten(sequence, position, size);
+            }
+        };
+        //每个片段都提交缓冲，片段尽快写入文件；close 时由 WriteBehindChannel.close 落盘
+        if (!last && mSyncInterval > 0 && sequence % mSyncInterval == 0) {
+            mOutput.sync(onWritten);
+        } else {
+            mOutput.flush(onWritten);
+        }
+    }
+
+    /**
+     * 写入一个 traf，返回 trun 中 data_offset 字段的位置
+     *
+     * @param nextDts 下一个样本的解码时间（tick），未知时为 -1
+     */
+    private int writeTraf(BoxBuffer box, Track track, int count, long nextDts) {
+        long[] dts = new long[count];
+        long[] pts = new long[count];
+        for (int i = 0; i < count; i++) {
+            pts[i] = track.toTicks(track.ptsUs[i]);
+            dts[i] = pts[i];
+        }
+        if (track.video) {
+            Arrays.sort(dts);
+        }
+        //解码时间严格递增
+        long prev = track.lastDts;
+        for (int i = 0; i < count; i++) {
+            if (dts[i] <= prev) {
+                dts[i] = prev + 1;
+            }
+            prev = dts[i];
+        }
+        if (nextDts < 0 && count < track.count) {
+            nextDts = track.toTicks(track.ptsUs[count]);
+        }
+        boolean hasCts = false;
+        for (int i = 0; i < count; i++) {
+            if (pts[i] != dts[i]) {
+                hasCts = true;
+                break;
+            }
+        }
+        int traf = box.begin("traf");
+        int tfhd = box.beginFull("tfhd", 0, TFHD_DEFAULT_BASE_IS_MOOF);
+        box.u32(track.id);
+        box.end(tfhd);
+        int tfdt = box.beginFull("tfdt", 1, 0);
+        box.u64(dts[0]);
+        box.end(tfdt);
+        int flags = TRUN_DATA_OFFSET | TRUN_SAMPLE_DURATION | TRUN_SAMPLE_SIZE | TRUN_SAMPLE_FLAGS;
+        if (hasCts) {
+            flags |= TRUN_SAMPLE_CTS;
+        }
+        int trun = box.beginFull("trun", hasCts ? 1 : 0, flags);
+        box.u32(count);
+        int dataOffsetField = box.position();
+        box.u32(0);
+        for (int i = 0; i < count; i++) {
+            long duration;
+            if (i + 1 < count) {
+                duration = dts[i + 1] - dts[i];
+            } else if (nextDts >= 0) {
+                duration = nextDts - dts[i];
+            } else {
+                duration = track.lastDuration > 0 ? track.lastDuration : track.defaultDuration();
+            }
+            duration = Math.max(duration, 1);
+            box.u32((int) duration);
+            box.u32(track.sizes[i]);
+            box.u32(track.sync[i] ? SAMPLE_FLAGS_SYNC : SAMPLE_FLAGS_NON_SYNC);
+            if (hasCts) {
+                box.u32((int) (pts[i] - dts[i]));
+            }
+            track.lastDuration = duration;
+        }
+        box.end(trun);
+        box.end(traf);
+        track.lastDts = dts[count - 1];
+        mEndUs = Math.max(mEndUs, track.toUs(dts[count - 1] + track.lastDuration));
+        return dataOffsetField;
+    }
+
+    private void writeMvhd(BoxBuffer box) {
+        int mvhd = box.beginFull("mvhd", 0, 0);
+        box.u32(0);
+        box.u32(0);
+        box.u32(MOVIE_TIMESCALE);
+        box.u32(0);
+        box.u32(0x00010000);
+        box.u16(0x0100);
+        box.zeros(10);
+        for (int value : UNITY_MATRIX) {
+            box.u32(value);
+        }
+        box.zeros(24);
+        box.u32(mTracks.size() + 1);
+        box.end(mvhd);
+    }
+
+    private void writeTrak(BoxBuffer box, Track track) {
+        int trak = box.begin("trak");
+        int tkhd = box.beginFull("tkhd", 0, 0x000003);
+        box.u32(0);
+        box.u32(0);
+        box.u32(track.id);
+        box.u32(0);
+        box.u32(0);
+        box.zeros(8);
+        box.u16(0);
+        box.u16(0);
+        box.u16(track.video ? 0 : 0x0100);
+        box.u16(0);
+        for (int value : UNITY_MATRIX) {
+            box.u32(value);
+        }
+        box.u32(track.video ? track.width << 16 : 0);
+        box.u32(track.video ? track.height << 16 : 0);
+        box.end(tkhd);
+
+        int mdia = box.begin("mdia");
+        int mdhd = box.beginFull("mdhd", 0, 0);
+        box.u32(0);
+        box.u32(0);
+        box.u32(track.timescale);
+        box.u32(0);
+        box.u16(0x55C4); // "und"
+        box.u16(0);
+        box.end(mdhd);
+        int hdlr = box.beginFull("hdlr", 0, 0);
+        box.u32(0);
+        box.fourcc(track.video ? "vide" : "soun");
+        box.zeros(12);
+        box.bytes((track.video ? "VideoHandler" : "SoundHandler").getBytes(StandardCharsets.US_ASCII));
+        box.u8(0);
+        box.end(hdlr);
+
+        int minf = box.begin("minf");
+        if (track.video) {
+            int vmhd = box.beginFull("vmhd", 0, 1);
+            box.zeros(8);
+            box.end(vmhd);
+        } else {
+            int smhd = box.beginFull("smhd", 0, 0);
+            box.zeros(4);
+            box.end(smhd);
+        }
+        int dinf = box.begin("dinf");
+        int dref = box.beginFull("dref", 0, 0);
+        box.u32(1);
+        int url = box.beginFull("url ", 0, 1);
+        box.end(url);
+        box.end(dref);
+        box.end(dinf);
+
+        int stbl = box.begin("stbl");
+        int stsd = box.beginFull("stsd", 0, 0);
+        box.u32(1);
+        if (track.video) {
+            writeAvc1(box, track);
+        } else {
+            writeMp4a(box, track);
+        }
+        box.end(stsd);
+        //样本信息都在片段中，样本表为空
+        for (String type : new String[]{"stts", "stsc", "stco"}) {
+            int empty = box.beginFull(type, 0, 0);
+            box.u32(0);
+            box.end(empty);
+        }
+        int stsz = box.beginFull("stsz", 0, 0);
+        box.u32(0);
+        box.u32(0);
+        box.end(stsz);
+        box.end(stbl);
+        box.end(minf);
+        box.end(mdia);
+        box.end(trak);
+    }
+
+    private void writeAvc1(BoxBuffer box, Track track) {
+        int avc1 = box.begin("avc1");
+        box.zeros(6);
+        box.u16(1);
+        box.zeros(16);
+        box.u16(track.width);
+        box.u16(track.height);
+        box.u32(0x00480000);
+        box.u32(0x00480000);
+        box.u32(0);
+        box.u16(1);
+        box.zeros(32);
+        box.u16(0x0018);
+        box.u16(0xFFFF);
+
+        byte[] sps = track.sps.get(0);
+        int profile = sps[1] & 0xFF;
+        int avcC = box.begin("avcC");
+        box.u8(1);
+        box.u8(profile);
+        box.u8(sps[2] & 0xFF);
+        box.u8(sps[3] & 0xFF);
+        box.u8(0xFF); // 长度前缀 4 字节
+        box.u8(0xE0 | track.sps.size());
+        for (byte[] nal : track.sps) {
+            box.u16(nal.length);
+            box.bytes(nal);
+        }
+        box.u8(track.pps.size());
+        for (byte[] nal : track.pps) {
+            box.u16(nal.length);
+            box.bytes(nal);
+        }
+        if (profile == 100 || profile == 110 || profile == 122 || profile == 144) {
+            //High profile 需要的扩展字段，按编码器输出的 4:2:0 8bit 填写
+            box.u8(0xFC | 1);
+            box.u8(0xF8);
+            box.u8(0xF8);
+            box.u8(0);
+        }
+        box.end(avcC);
+        box.end(avc1);
+    }
+
+    private void writeMp4a(BoxBuffer box, Track track) {
+        int mp4a = box.begin("mp4a");
+        box.zeros(6);
+        box.u16(1);
+        box.zeros(8);
+        box.u16(track.channelCount);
+        box.u16(16);
+        box.u16(0);
+        box.u16(0);
+        box.u32(track.sampleRate <= 0xFFFF ? track.sampleRate << 16 : 0);
+
+        byte[] asc = track.audioSpecificConfig;
+        int esds = box.beginFull("esds", 0, 0);
+        box.u8(0x03); // ES_Descriptor
+        box.u8(3 + 2 + 13 + 2 + asc.length + 3);
+        box.u16(track.id);
+        box.u8(0);
+        box.u8(0x04); // DecoderConfigDescriptor
+        box.u8(13 + 2 + asc.length);
+        box.u8(0x40); // AAC
+        box.u8(0x15); // audio stream
+        box.u24(0);
+        box.u32(track.bitRate);
+        box.u32(track.bitRate);
+        box.u8(0x05); // DecoderSpecificInfo
+        box.u8(asc.length);
+        box.bytes(asc);
+        box.u8(0x06); // SLConfigDescriptor
+        box.u8(1);
+        box.u8(2);
+        box.end(esds);
+        box.end(mp4a);
+    }
+
+    private void write(ByteBuffer... buffers) throws IOException {
+        mOutput.write(buffers);
+        mPosition = mOutput.position();
+    }
+
+    private void checkNotStarted() {
+        if (mStarted || mClosed) {
+            throw new IllegalStateException("writer already started");
+        }
+    }
+
+    /**
+     * AAC-LC 的 AudioSpecificConfig：5bit object type、4bit 采样率下标、4bit 声道配置
+     */
+    private static byte[] createAudioSpecificConfig(int sampleRate, int channelCount) {
+        int index = 4;
+        for (int i = 0; i < AAC_SAMPLE_RATES.length; i++) {
+            if (AAC_SAMPLE_RATES[i] == sampleRate) {
+                index = i;
+                break;
+            }
+        }
+        int config = (2 << 11) | (index << 7) | (channelCount << 3);
+        return new byte[]{(byte) (config >> 8), (byte) config};
+    }
+
+    /**
+     * 按起始码拆分 Annex-B 码流，不含起始码与末尾的 0
+     */
+    static List<byte[]> splitNalUnits(ByteBuffer buffer) {
+        List<byte[]> result = new ArrayList<>();
+        int limit = buffer.limit();
+        int start = findStartCode(buffer, buffer.position(), limit);
+        while (start >= 0) {
+            int nalStart = start + 3;
+            int next = findStartCode(buffer, nalStart, limit);
+            int nalEnd = next >= 0 ? next : limit;
+            while (nalEnd > nalStart && buffer.get(nalEnd - 1) == 0) {
+                nalEnd--;
+            }
+            if (nalEnd > nalStart) {
+                byte[] nal = new byte[nalEnd - nalStart];
+                for (int i = 0; i < nal.length; i++) {
+                    nal[i] = buffer.get(nalStart + i);
+                }
+                result.add(nal);
+            }
+            start = next;
+        }
+        return result;
+    }
+
+    /**
+     * 从 from 开始查找 00 00 01，返回其位置，没有时返回 -1
+     */
+    private static int findStartCode(ByteBuffer buffer, int from, int limit) {
+        for (int i = from; i + 2 < limit; i++) {
+            if ((buffer.get(i + 2) & 0xFF) > 1) {
+                //第三个字节大于 1 时，i、i+1、i+2 都不可能是起始码的开头
+                i += 2;
+            } else if (buffer.get(i) == 0 && buffer.get(i + 1) == 0 && buffer.get(i + 2) == 1) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    private static boolean isAnnexB(ByteBuffer buffer) {
+        int pos = buffer.position();
+        int remaining = buffer.remaining();
+        if (remaining >= 3 && buffer.get(pos) == 0 && buffer.get(pos + 1) == 0 && buffer.get(pos + 2) == 1) {
+            return true;
+        }
+        return remaining >= 4 && buffer.get(pos) == 0 && buffer.get(pos + 1) == 0
+                && buffer.get(pos + 2) == 0 && buffer.get(pos + 3) == 1;
+    }
+
+    /**
+     * 单个轨道还没有写出的样本，数据连续存放在 data 中
+     */
+    private static final class Track {
+        final int id;
+        final boolean video;
+        final int timescale;
+
+        int width;
+        int height;
+        List<byte[]> sps;
+        List<byte[]> pps;
+
+        int sampleRate;
+        int channelCount;
+        int bitRate;
+        byte[] audioSpecificConfig;
+
+        ByteBuffer data = ByteBuffer.allocate(INITIAL_TRACK_BUFFER_SIZE);
+        long[] ptsUs = new long[64];
+        int[] sizes = new int[64];
+        boolean[] sync = new boolean[64];
+        int count;
+
+        /**
+         * 上一个写出样本的解码时间与时长（tick）
+         */
+        long lastDts = -1;
+        long lastDuration;
+
+        Track(int id, boolean video, int timescale) {
+            this.id = id;
+            this.video = video;
+            this.timescale = timescale;
+        }
+
+        long toTicks(long timeUs) {
+            return (timeUs * timescale + 500_000) / 1000_000L;
+        }
+
+        long toUs(long ticks) {
+            return ticks * 1000_000L / timescale;
+        }
+
+        long defaultDuration() {
+            return video ? timescale / 30 : AAC_FRAME_SIZE;
+        }
+
+        void append(ByteBuffer sample, long presentationTimeUs, boolean keyFrame) {
+            if (count == ptsUs.length) {
+                ptsUs = Arrays.copyOf(ptsUs, count * 2);
+                sizes = Arrays.copyOf(sizes, count * 2);
+                sync = Arrays.copyOf(sync, count * 2);
+            }
+            ByteBuffer src = sample.duplicate();
+            //Annex-B 转为长度前缀最多增加 4 / 3 倍起始码的长度，按 2 倍预留
+            ensureCapacity(src.remaining() * 2 + 4);
+            int begin = data.position();
+            if (video && isAnnexB(src)) {
+                appendAnnexB(src);
+            } else {
+                data.put(src);
+            }
+            ptsUs[count] = presentationTimeUs;
+            sizes[count] = data.position() - begin;
+            sync[count] = keyFrame;
+            count++;
+        }
+
+        private void appendAnnexB(ByteBuffer src) {
+            int limit = src.limit();
+            int start = findStartCode(src, src.position(), limit);
+            while (start >= 0) {
+                int nalStart = start + 3;
+                int next = findStartCode(src, nalStart, limit);
+                int nalEnd = next >= 0 ? next : limit;
+                while (nalEnd > nalStart && src.get(nalEnd - 1) == 0) {
+                    nalEnd--;
+                }
+                if (nalEnd > nalStart) {
+                    data.putInt(nalEnd - nalStart);
+                    ByteBuffer nal = src.duplicate();
+                    nal.limit(nalEnd);
+                    nal.position(nalStart);
+                    data.put(nal);
+                }
+                start = next;
+            }
+        }
+
+        private void ensureCapacity(int extra) {
+            if (data.remaining() < extra) {
+                ByteBuffer grown = ByteBuffer.allocate(Math.max(data.capacity() * 2, data.position() + extra));
+                data.flip();
+                grown.put(data);
+                data = grown;
+            }
+        }
+
+        long bytesOf(int samples) {
+            long bytes = 0;
+            for (int i = 0; i < samples; i++) {
+                bytes += sizes[i];
+            }
+            return bytes;
+        }
+
+        /**
+         * 前 samples 个样本的数据视图
+         */
+        ByteBuffer emittedData(int samples) {
+            ByteBuffer view = data.duplicate();
+            view.flip();
+            view.limit((int) bytesOf(samples));
+            return view;
+        }
+
+        /**
+         * 移除已写出的前 samples 个样本
+         */
+        void remove(int samples) {
+            if (samples == 0) {
+                return;
+            }
+            int bytes = (int) bytesOf(samples);
+            data.flip();
+            data.position(bytes);
+            data.compact();
+            int rest = count - samples;
+            System.arraycopy(ptsUs, samples, ptsUs, 0, rest);
+            System.arraycopy(sizes, samples, sizes, 0, rest);
+            System.arraycopy(sync, samples, sync, 0, rest);
+            count = rest;
+        }
+    }
+
+    /**
+     * 按 box 结构写入的大端 buffer，begin 写入占位的 size，end 回填
+     */
+    private static final class BoxBuffer {
+        private ByteBuffer mBuffer = ByteBuffer.allocate(4096);
+
+        void clear() {
+            mBuffer.clear();
+        }
+
+        int position() {
+            return mBuffer.position();
+        }
+
+        int begin(String type) {
+            ensure(8);
+            int position = mBuffer.position();
+            mBuffer.putInt(0);
+            fourcc(type);
+            return position;
+        }
+
+        int beginFull(String type, int version, int flags) {
+            int position = begin(type);
+            u32((version << 24) | flags);
+            return position;
+        }
+
+        void end(int position) {
+            mBuffer.putInt(position, mBuffer.position() - position);
+        }
+
+        void putInt(int position, int value) {
+            mBuffer.putInt(position, value);
+        }
+
+        void fourcc(String type) {
+            ensure(4);
+            for (int i = 0; i < 4; i++) {
+                mBuffer.put((byte) type.charAt(i));
+            }
+        }
+
+        void u8(int value) {
+            ensure(1);
+            mBuffer.put((byte) value);
+        }
+
+        void u16(int value) {
+            ensure(2);
+            mBuffer.putShort((short) value);
+        }
+
+        void u24(int value) {
+            ensure(3);
+            mBuffer.put((byte) (value >> 16));
+            mBuffer.putShort((short) value);
+        }
+
+        void u32(int value) {
+            ensure(4);
+            mBuffer.putInt(value);
+        }
+
+        void u64(long value) {
+            ensure(8);
+            mBuffer.putLong(value);
+        }
+
+        void zeros(int count) {
+            ensure(count);
+            for (int i = 0; i < count; i++) {
+                mBuffer.put((byte) 0);
+            }
+        }
+
+        void bytes(byte[] value) {
+            ensure(value.length);
+            mBuffer.put(value);
+        }
+
+        /**
+         * 返回已写入内容的视图，下次 clear 前有效
+         */
+        ByteBuffer flip() {
+            ByteBuffer view = mBuffer.duplicate();
+            view.flip();
+            return view;
+        }
+
+        private void ensure(int extra) {
+            if (mBuffer.remaining() < extra) {
+                ByteBuffer grown = ByteBuffer.allocate(Math.max(mBuffer.capacity() * 2, mBuffer.position() + extra));
+                mBuffer.flip();
+                grown.put(mBuffer);
+                mBuffer = grown;
+            }
+        }
+    }
+}
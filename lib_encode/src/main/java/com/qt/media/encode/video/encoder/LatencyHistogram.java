@@ -0,0 +1,167 @@
+package com.qt.media.encode.video.encoder;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * 延迟直方图（HdrHistogram 式的对数-线性分桶），单位微秒
+ * <p>
+ * 小于 32us 的值每 1us 一个桶；之后每个 2 的幂区间分为 16 个桶，相对误差不超过 1/16，
+ * 最大记录约 19 小时（2^36us），超出的值计入最后一个桶。桶在构造时分配，record 只做原子自增，
+ * 不分配对象也不加锁，可以在多个线程的热路径上调用。
+ */
+public final class LatencyHistogram {
+
+    private static final int SUB_BUCKET_BITS = 4;
+    private static final int SUB_BUCKET_HALF = 1 << SUB_BUCKET_BITS;
+    private static final int LINEAR_LIMIT = SUB_BUCKET_HALF * 2;
+    private static final int MAX_MAGNITUDE = 35;
+    private static final int BUCKET_COUNT = (MAX_MAGNITUDE - SUB_BUCKET_BITS + 1) * SUB_BUCKET_HALF + SUB_BUCKET_HALF;
+
+    private final AtomicLongArray mCounts = new AtomicLongArray(BUCKET_COUNT);
+    private final AtomicLong mTotalCount = new AtomicLong();
+    private final AtomicLong mTotalUs = new AtomicLong();
+    private final AtomicLong mMaxUs = new AtomicLong();
+
+    /**
+     * 记录一次耗时
+     */
+    public void recordNanos(long nanos) {
+        recordMicros(nanos / 1000);
+    }
+
+    public void recordMicros(long micros) {
+        if (micros < 0) {
+            micros = 0;
+        }
+        mCounts.incrementAndGet(bucketIndex(micros));
+        mTotalCount.incrementAndGet();
+        mTotalUs.addAndGet(micros);
+        long max = mMaxUs.get();
+        while (micros > max && !mMaxUs.compareAndSet(max, micros)) {
+            max = mMaxUs.get();
+        }
+    }
+
+    public long getCount() {
+        return mTotalCount.get();
+    }
+
+    public long getMeanUs() {
+        long count = mTotalCount.get();
+        return count > 0 ? mTotalUs.get() / count : 0;
+    }
+
+    public long getMaxUs() {
+        return mMaxUs.get();
+    }
+
+    /**
+     * @param percentile 0 ~ 100
+     */
+    public long getPercentileUs(double percentile) {
+        return snapshot().getPercentileUs(percentile);
+    }
+
+    /**
+     * 复制当前的计数，之后的记录不影响快照；记录同时进行时各桶可能相差几次计数
+     */
+    public Snapshot snapshot() {
+        long[] counts = new long[BUCKET_COUNT];
+        long total = 0;
+        for (int i = 0; i < BUCKET_COUNT; i++) {
+            counts[i] = mCounts.get(i);
+            total += counts[i];
+        }
+        return new Snapshot(counts, total, mTotalUs.get(), mMaxUs.get());
+    }
+
+    public void reset() {
+        for (int i = 0; i < BUCKET_COUNT; i++) {
+            mCounts.set(i, 0);
+        }
+        mTotalCount.set(0);
+        mTotalUs.set(0);
+        mMaxUs.set(0);
+    }
+
+    static int bucketIndex(long micros) {
+        if (micros < LINEAR_LIMIT) {
+            return (int) micros;
+        }
+        int magnitude = 63 - Long.numberOfLeadingZeros(micros);
+        if (magnitude > MAX_MAGNITUDE) {
+            return BUCKET_COUNT - 1;
+        }
+        int shift = magnitude - SUB_BUCKET_BITS;
+        return shift * SUB_BUCKET_HALF + (int) (micros >>> shift);
+    }
+
+    /**
+     * 桶内的最大值
+     */
+    static long bucketUpperBound(int index) {
+        if (index < LINEAR_LIMIT) {
+            return index;
+        }
+        int shift = index / SUB_BUCKET_HALF - 1;
+        long sub = index % SUB_BUCKET_HALF + SUB_BUCKET_HALF;
+        return ((sub + 1) << shift) - 1;
+    }
+
+    /**
+     * 直方图快照
+     */
+    public static final class Snapshot {
+        private final long[] mCounts;
+        private final long mCount;
+        private final long mTotalUs;
+        private final long mMaxUs;
+
+        private Snapshot(long[] counts, long count, long totalUs, long maxUs) {
+            mCounts = counts;
+            mCount = count;
+            mTotalUs = totalUs;
+            mMaxUs = maxUs;
+        }
+
+        public long getCount() {
+            return mCount;
+        }
+
+        public long getMeanUs() {
+            return mCount > 0 ? mTotalUs / mCount : 0;
+        }
+
+        public long getMaxUs() {
+            return mMaxUs;
+        }
+
+        /**
+         * 百分位数，返回所在桶的上界（不超过最大值）
+         *
+         * @param percentile 0 ~ 100
+         */
+        public long getPercentileUs(double percentile) {
+            if (mCount == 0) {
+                return 0;
+            }
+            long target = (long) Math.ceil(Math.min(100, Math.max(0, percentile)) / 100 * mCount);
+            target = Math.max(1, target);
+            long seen = 0;
+            for (int i = 0; i < mCounts.length; i++) {
+                seen += mCounts[i];
+                if (seen >= target) {
+                    return Math.min(bucketUpperBound(i), mMaxUs);
+                }
+            }
+            return mMaxUs;
+        }
+
+        @Override
+        public String toString() {
+            return "count=" + mCount + " mean=" + getMeanUs() + "us p50=" + getPercentileUs(50)
+                    + "us p90=" + getPercentileUs(90) + "us p99=" + getPercentileUs(99) + "us max=" + mMaxUs + "us";
+        }
+    }
+}
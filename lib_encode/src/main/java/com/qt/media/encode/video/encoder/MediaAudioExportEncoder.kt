@@ -1,20 +1,24 @@
 package com.qt.media.encode.video.encoder
 
-import android.media.MediaCodec
 import android.media.MediaCodecInfo
 import android.media.MediaCodecList
 import android.media.MediaFormat
 import android.util.Log
+import com.qt.media.encode.BuildConfig
 import com.qt.media.encode.entity.AudioTrackEntity
 import com.qt.media.encode.help.AudioHelp
+import com.qt.media.encode.help.CpuTimeHelp
+import com.qt.media.encode.help.PcmMixer
 import java.io.IOException
 import java.nio.ByteBuffer
-import java.util.Arrays
+import java.nio.ByteOrder
+import java.nio.ShortBuffer
 
 /**
  * 音频编码
- * @param mAudioTrackEntities 音频文件数组 需要固定格式的音频文件：采样率44100，左右双声道，16bit
+ * @param mAudioTrackEntities 音频文件数组 16bit PCM wav，采样率与声道数不是 44100 双声道时导出过程中自动转换
  * @see AudioHelp
+ * @see com.qt.media.encode.help.PcmResampler
  * @param mVideoTotalDuration 视频的总长度
  */
 class MediaAudioExportEncoder(
@@ -25,8 +29,43 @@ class MediaAudioExportEncoder(
 ) : MediaEncoder(muxer, listener) {
 
     private var mAudioExportThread: AudioExportThread? = null
-    private var step = 0f
-    var exportAudioCurTime = 0f
+
+    /**
+     * 已写入编码器的帧数（每个声道一个采样），时间轴按帧数计算，不累积误差
+     */
+    @Volatile
+    var exportedFrames = 0L
+        private set
+
+    /**
+     * 当前导出到的时间，单位毫秒
+     */
+    val exportAudioCurTime: Float
+        get() = exportedFrames * 1000f / AudioHelp.DEFAULT_SAMPLE_RATE
+
+    /**
+     * 离线批量导出：每次唤醒把编码器所有空闲的输入 buffer 写满（每个 buffer 包含多个 AAC 帧的数据），
+     * 只唤醒一次 drain，不再逐块等待编码器，适合导出已有文件等不需要实时同步的场景
+     * 编码器输入 buffer 的大小按这个模式配置，需要在 prepare 之前设置，之后修改会抛出 IllegalStateException
+     */
+    var offlineMode = false
+        set(value) {
+            check(!mPrepared || value == field) { "offlineMode must be set before prepare" }
+            field = value
+        }
+
+    /**
+     * prepare 时读取的 offlineMode，之后 offlineMode 不能再修改，导出线程使用这个值
+     */
+    @Volatile
+    private var mPrepared = false
+    private var mPreparedOfflineMode = false
+
+    /**
+     * 导出线程消耗的 CPU 时间，单位纳秒，不支持统计时为 -1
+     */
+    @Volatile
+    var exportThreadCpuTimeNs = 0L
         private set
 
     @Throws(IOException::class)
@@ -37,6 +76,9 @@ class MediaAudioExportEncoder(
         mTrackIndex = -1
         mIsEOS = false
         mMuxerStarted = mIsEOS
+        val offline = offlineMode
+        mPreparedOfflineMode = offline
+        mPrepared = true
         // prepare MediaCodec for AAC encoding of audio data from inernal mic.
         val audioCodecInfo = selectAudioCodec(MediaFormat.MIMETYPE_AUDIO_AAC)
         if (audioCodecInfo == null) {
@@ -51,13 +93,13 @@ class MediaAudioExportEncoder(
         audioFormat.setInteger(MediaFormat.KEY_CHANNEL_MASK, AudioHelp.DEFAULT_CHANNEL_CONFIG)
         audioFormat.setInteger(MediaFormat.KEY_AAC_PROFILE, MediaCodecInfo.CodecProfileLevel.AACObjectLC)
         audioFormat.setInteger(MediaFormat.KEY_BIT_RATE, AudioHelp.DEFAULT_BIT_RATE)
-        audioFormat.setInteger(MediaFormat.KEY_MAX_INPUT_SIZE, AudioHelp.getDefaultMinBufferSize() / 4 * 2)
+        audioFormat.setInteger(MediaFormat.KEY_MAX_INPUT_SIZE, blockSamples(offline) * 2 * if (offline) OFFLINE_BLOCKS_PER_BUFFER else 1)
         //        audioFormat.setLong(MediaFormat.KEY_DURATION, (long) mDuration);
         if (DEBUG) {
             Log.i(TAG, "format: $audioFormat")
         }
-        mMediaCodec = MediaCodec.createEncoderByType(MediaFormat.MIMETYPE_AUDIO_AAC)
-        mMediaCodec.configure(audioFormat, null, null, MediaCodec.CONFIGURE_FLAG_ENCODE)
+        mMediaCodec = createEncoder(MediaFormat.MIMETYPE_AUDIO_AAC)
+        configureEncoder(audioFormat)
         mMediaCodec.start()
         if (DEBUG) {
             Log.i(TAG, "prepare finishing")
@@ -75,7 +117,7 @@ class MediaAudioExportEncoder(
         super.startRecording()
         // create and execute audio capturing thread using internal mic
         if (mAudioExportThread == null) {
-            mAudioExportThread = AudioExportThread().apply {
+            mAudioExportThread = AudioExportThread(mPreparedOfflineMode).apply {
                 start()
             }
         }
@@ -93,66 +135,141 @@ class MediaAudioExportEncoder(
         }
     }
 
-    private inner class AudioExportThread : Thread() {
+    /**
+     * 每次混音的采样（short）个数：实时模式与 AudioRecord 的读取大小一致，离线模式为一个 AAC 帧
+     */
+    private fun blockSamples(offline: Boolean): Int {
+        return if (offline) {
+            AAC_FRAME_SIZE * AudioHelp.DEFAULT_CHANNEL_COUNT
+        } else {
+            AudioHelp.getDefaultMinBufferSize() / 4
+        }
+    }
+
+    /**
+     * @param offline prepare 时的 offlineMode，与编码器输入 buffer 的大小一致
+     */
+    private inner class AudioExportThread(private val offline: Boolean) : Thread() {
+        private val trackCount = mAudioTrackEntities.size
+        private val mixer = PcmMixer(AudioHelp.DEFAULT_CHANNEL_COUNT, trackCount)
+        private val mixWriter = MixInputWriter()
+
+        /**
+         * 每轨当前要混音的数据，格式一致时直接指向 wav 文件的映射内存
+         */
+        private val trackInputs = arrayOfNulls<ShortBuffer>(trackCount)
+
         override fun run() {
+            val startCpuTime = CpuTimeHelp.currentThreadCpuTimeNs()
             try {
-                val bufferSize = AudioHelp.getDefaultMinBufferSize() / 4 * 2
                 if (mIsCapturing) {
-                    for (export in mAudioTrackEntities) {
-                        export.init()
-                    }
-                    val mInputBuffer: ByteBuffer = ByteBuffer.allocateDirect(bufferSize + 16)
-                    val sampleBytes: Array<ByteArray?> = Array(mAudioTrackEntities.size) { ByteArray(bufferSize) }
-                    val sampleBytesEmpty: ByteArray = ByteArray(bufferSize)
-                    //bufferSize 对应大小的音频数据 对应的时长 为 step
-                    step = 1000f * bufferSize / AudioHelp.DEFAULT_CHANNEL_COUNT / 2 / AudioHelp.DEFAULT_SAMPLE_RATE
-                    exportAudioCurTime = 0f
-                    while (mIsCapturing && !mRequestStop && !mIsEOS && exportAudioCurTime < mVideoTotalDuration) {
-                        var numTrack = 0
-                        val vols = FloatArray(mAudioTrackEntities.size)
-                        Arrays.fill(vols, 1f)
-                        for (i in mAudioTrackEntities.indices) {
-                            val export = mAudioTrackEntities[i]
-                            sampleBytes[numTrack] = null
-                            sampleBytes[numTrack] = export.read(exportAudioCurTime, bufferSize)
-                            if (sampleBytes[numTrack] != null) {
-                                vols[numTrack] = export.volume
-                                numTrack++
-                            }
+                    for (i in mAudioTrackEntities.indices) {
+                        val export = mAudioTrackEntities[i]
+                        export.init(AudioHelp.DEFAULT_SAMPLE_RATE, AudioHelp.DEFAULT_CHANNEL_COUNT)
+                        mixer.setGain(i, export.volume)
+                        if (DEBUG && (export.sampleRate != AudioHelp.DEFAULT_SAMPLE_RATE || export.channelCount != AudioHelp.DEFAULT_CHANNEL_COUNT)) {
+                            Log.i(TAG, "audio track $i convert from sampleRate:${export.sampleRate} channelCount:${export.channelCount}")
                         }
-                        mInputBuffer.position(0)
-                        mInputBuffer.clear()
-                        if (numTrack == 0) {
-                            mInputBuffer.put(sampleBytesEmpty)
-                        } else if (numTrack == 1 && vols[0] == 1f) {
-                            mInputBuffer.put(sampleBytes[0])
+                    }
+                    mixWriter.blockSamples = blockSamples(offline)
+                    mixWriter.maxSamples = mixWriter.blockSamples * if (offline) OFFLINE_BLOCKS_PER_BUFFER else 1
+                    mixWriter.totalFrames = Math.ceil(mVideoTotalDuration.toDouble() * AudioHelp.DEFAULT_SAMPLE_RATE / 1000).toLong()
+                    exportedFrames = 0
+                    while (mIsCapturing && !mRequestStop && !mIsEOS && mixWriter.hasMoreInput()) {
+                        if (offline) {
+                            encodeAvailable(mixWriter)
                         } else {
-                            //这里一定满足 sampleBytes[i] != null
-                            mInputBuffer.put(AudioHelp.mixPcm(sampleBytes, vols, numTrack, bufferSize))
+                            //直接混音到编码器的输入 buffer
+                            encode(mixWriter, mixWriter.nextPresentationTimeUs())
+                            frameAvailableSoon()
                         }
-                        mInputBuffer.position(bufferSize)
-                        mInputBuffer.flip()
-                        encode(mInputBuffer, bufferSize, (exportAudioCurTime * 1000).toLong())
-                        frameAvailableSoon()
-                        exportAudioCurTime += step
                     }
                 }
             } catch (e: Exception) {
                 Log.e(TAG, "AudioExportThread#run", e)
             }
+            exportThreadCpuTimeNs = if (startCpuTime >= 0) CpuTimeHelp.currentThreadCpuTimeNs() - startCpuTime else -1
             if (DEBUG) {
-                Log.v(TAG, "AudioExportThread:finished")
+                Log.v(TAG, "AudioExportThread:finished offline:$offline frames:$exportedFrames cpuTime:${exportThreadCpuTimeNs / 1000}us")
             }
         }
-    }
 
-    override fun getPTSUs(): Long {
-        return mBufferInfo.presentationTimeUs
+        /**
+         * 按块读取各轨数据混音写入编码器的输入 buffer，一个 buffer 最多写入 maxSamples 个采样
+         */
+        private inner class MixInputWriter : MediaEncoder.BatchInputWriter {
+            var blockSamples = 0
+            var maxSamples = 0
+            var totalFrames = 0L
+
+            /**
+             * 以采样为 tick 的时间戳，与其它轨道共用 muxer 的时钟
+             */
+            private val clockTrack = getPresentationClock()
+                .newTrack(PresentationClock.Mode.FIXED_RATE, 1, AudioHelp.DEFAULT_SAMPLE_RATE.toLong())
+
+            /**
+             * 编码器输入 buffer 的 ShortBuffer 视图，按下标缓存
+             */
+            private var inputBuffers = arrayOfNulls<ByteBuffer>(0)
+            private var inputViews = arrayOfNulls<ShortBuffer>(0)
+
+            override fun hasMoreInput(): Boolean {
+                return exportedFrames < totalFrames
+            }
+
+            override fun nextPresentationTimeUs(): Long {
+                return clockTrack.ptsOf(exportedFrames)
+            }
+
+            override fun write(codec: CodecBackend, index: Int): Int {
+                val buffer = codec.getInputBuffer(index) ?: return 0
+                val channelCount = AudioHelp.DEFAULT_CHANNEL_COUNT
+                val remainSamples = (totalFrames - exportedFrames) * channelCount
+                val samples = minOf(maxSamples.toLong(), remainSamples, (buffer.capacity() / 2 / channelCount * channelCount).toLong()).toInt()
+                if (samples <= 0) {
+                    Log.e(TAG, "input buffer too small:${buffer.capacity()}")
+                    return 0
+                }
+                if (index >= inputViews.size) {
+                    inputBuffers = inputBuffers.copyOf(index + 1)
+                    inputViews = inputViews.copyOf(index + 1)
+                }
+                val view = inputViews[index]?.takeIf { inputBuffers[index] === buffer }
+                    ?: buffer.order(ByteOrder.LITTLE_ENDIAN).asShortBuffer().also {
+                        inputViews[index] = it
+                        inputBuffers[index] = buffer
+                    }
+                view.clear()
+                var written = 0
+                while (written < samples) {
+                    val count = minOf(blockSamples, samples - written)
+                    val cur = exportAudioCurTime
+                    for (i in 0 until trackCount) {
+                        trackInputs[i] = mAudioTrackEntities[i].readSamples(cur, count)
+                    }
+                    mixer.mix(trackInputs, trackCount, view, count)
+                    written += count
+                    exportedFrames += count / channelCount
+                }
+                return samples * 2
+            }
+        }
     }
 
     companion object {
         private val TAG = MediaAudioRecordEncoder::class.java.simpleName
-        private const val DEBUG = true
+        private const val DEBUG = BuildConfig.ENCODER_LOG
+
+        /**
+         * AAC 每帧的采样数（每个声道）
+         */
+        private const val AAC_FRAME_SIZE = 1024
+
+        /**
+         * 离线模式下每个输入 buffer 包含的 AAC 帧数
+         */
+        private const val OFFLINE_BLOCKS_PER_BUFFER = 8
 
         /**
          * select the first codec that match a specific MIME type
@@ -2,7 +2,6 @@ package com.qt.media.encode.video.encoder;
 
 import android.media.AudioFormat;
 import android.media.AudioRecord;
-import android.media.MediaCodec;
 import android.media.MediaCodecInfo;
 import android.media.MediaCodecList;
 import android.media.MediaFormat;
@@ -57,8 +56,8 @@ public class MediaAudioRecordEncoder extends MediaEncoder {
         if (DEBUG) {
             Log.i(TAG, "format: " + audioFormat);
         }
-        mMediaCodec = MediaCodec.createEncoderByType(MIME_TYPE);
-        mMediaCodec.configure(audioFormat, null, null, MediaCodec.CONFIGURE_FLAG_ENCODE);
+        mMediaCodec = createEncoder(MIME_TYPE);
+        configureEncoder(audioFormat);
         mMediaCodec.start();
         if (DEBUG) {
             Log.i(TAG, "prepare finishing");
@@ -136,6 +135,9 @@ public class MediaAudioRecordEncoder extends MediaEncoder {
                                 Log.v(TAG, "AudioThread:start audio recording");
                             }
                             final ByteBuffer buf = ByteBuffer.allocateDirect(SAMPLES_PER_FRAME);
+                            // 按已编码的采样数计算时间戳
+                            final PresentationClock.Track clockTrack = getPresentationClock()
+                                    .newTrack(PresentationClock.Mode.FIXED_RATE, 1, SAMPLE_RATE);
                             int readBytes;
                             audioRecord.startRecording();
                             try {
@@ -147,7 +149,7 @@ public class MediaAudioRecordEncoder extends MediaEncoder {
                                         // set audio data to encoder
                                         buf.position(readBytes);
                                         buf.flip();
-                                        encode(buf, readBytes, getPTSUs());
+                                        encode(buf, readBytes, clockTrack.advance(readBytes / 2));
                                         frameAvailableSoon();
                                     }
                                 }
@@ -1,14 +1,14 @@
 package com.qt.media.encode.video.encoder;
 
 
-import android.media.MediaCodec;
 import android.media.MediaCodecInfo;
-import android.media.MediaCodecList;
 import android.media.MediaFormat;
 import android.opengl.EGLContext;
 import android.util.Log;
 import android.view.Surface;
 
+import com.qt.camera.log.FULogger;
+import com.qt.media.encode.BuildConfig;
 import com.qt.media.encode.entity.ImageFrame;
 import com.qt.media.encode.interfaces.IFrameRenderListener;
 
@@ -22,7 +22,7 @@ import androidx.annotation.Nullable;
  * 根据纹理数据编码视频
  */
 public class MediaBufferVideoEncoder extends MediaEncoder implements IFrameRenderListener {
-    private static final boolean DEBUG = true;    // TODO set false on release
+    private static final boolean DEBUG = BuildConfig.ENCODER_LOG;
     String TAG = "FUMediaBitmapVideoEncoder";
 
     private static final String MIME_TYPE = MediaFormat.MIMETYPE_VIDEO_AVC;
@@ -36,29 +36,82 @@ public class MediaBufferVideoEncoder extends MediaEncoder implements IFrameRende
     private Surface mSurface;
 
     private Map<String, Integer> config;
+    private boolean mConstantFrameRate;
     public MediaBufferVideoEncoder(final MediaMuxerWrapper muxer, final MediaEncoderListener listener, final int videoWidth, final int videoHeight, float fps) {
         super(muxer, listener);
         if (DEBUG) {
-            Log.i(TAG, "MediaVideoEncoder: ");
+            FULogger.i(TAG, "MediaVideoEncoder: ");
         }
         mWidth = videoWidth;
         mHeight = videoHeight;
-        mRenderHandler = BitmapRenderHandler.createHandler(TAG);
+        mRenderHandler = BitmapRenderHandler.createHandler(TAG, muxer.getSchedulerSession());
         mRenderHandler.setFrameRenderListener(this);
         mRenderHandler.setFps(fps);
+        mRenderHandler.setMetrics(muxer.getMetrics());
     }
 
+    /**
+     * 送入一帧
+     * @return true 帧已入渲染队列，由编码器负责 release；false 帧未被接收（未初始化/已停止/按队列策略丢弃），仍由调用方持有
+     */
     public boolean frameAvailableSoon(ImageFrame buffer) {
         if (!glInit) {
             return false;
         }
         boolean result;
-        if(buffer.isKeyFrame())requestKeyFrame();//手动请求输出关键帧
         if (result = super.frameAvailableSoon()) {
-            mRenderHandler.offerImageFrame(buffer);
+            result = mRenderHandler.offerImageFrame(buffer);
+            if (result && buffer.isKeyFrame()) requestKeyFrame();//手动请求输出关键帧
         }
         return result;
     }
+
+    /**
+     * 设置渲染队列的容量与队列满时的处理策略，需要在开始送帧前调用
+     * @see BoundedFrameQueue.DropPolicy
+     */
+    public void setFrameQueueConfig(int capacity, BoundedFrameQueue.DropPolicy policy) {
+        if (mRenderHandler != null) {
+            mRenderHandler.setFrameQueueConfig(capacity, policy);
+        }
+    }
+
+    /**
+     * 因渲染队列满被丢弃的帧数
+     */
+    public long getDroppedFrameCount() {
+        return mRenderHandler != null ? mRenderHandler.getDroppedFrameCount() : 0;
+    }
+    /**
+     * 是否使用 buffer 直接上传纹理模式（默认关闭，帧先转换成 Bitmap 再渲染），开启后 onFrame 回调的是 ImageFrame
+     * @see BitmapRenderHandler#setBufferUploadEnable(boolean)
+     */
+    public void setBufferUploadEnable(boolean enable) {
+        if (mRenderHandler != null) {
+            mRenderHandler.setBufferUploadEnable(enable);
+        }
+    }
+
+    /**
+     * 按帧的 captureTimeNs 把可变帧率输入转换为 setFrameRate 的固定帧率（重复/丢帧），需要在 prepare 之前调用
+     * 未开启时时间戳按 muxer 时钟的模式生成，CAPTURE_TIME/VARIABLE_RATE 下直接输出可变帧率
+     * @see PresentationClock.Track#slotsFor(long)
+     */
+    public void setConstantFrameRate(boolean enable) {
+        mConstantFrameRate = enable;
+        if (mRenderHandler != null) {
+            mRenderHandler.setConstantFrameRate(enable);
+        }
+    }
+
+    @Override
+    protected PresentationClock.Track createClockTrack(PresentationClock clock, long tickNum, long tickDen) {
+        if (mConstantFrameRate) {
+            return clock.newTrack(PresentationClock.Mode.FIXED_RATE, tickNum, tickDen);
+        }
+        return super.createClockTrack(clock, tickNum, tickDen);
+    }
+
     public void setMediaFormatConfig(Map<String, Integer> config) {
         this.config = config;
     }
@@ -76,22 +129,19 @@ public class MediaBufferVideoEncoder extends MediaEncoder implements IFrameRende
     protected void prepare() {
         try {
             if (DEBUG) {
-                Log.i(TAG, "prepare: ");
+                FULogger.i(TAG, "prepare: ");
             }
             mTrackIndex = -1;
             mMuxerStarted = mIsEOS = false;
 
-            final MediaCodecInfo videoCodecInfo = selectCodec(MIME_TYPE);
-            if (videoCodecInfo == null) {
+            final int[] colorFormats = getColorFormats(MIME_TYPE);
+            if (colorFormats == null) {
                 Log.e(TAG, "Unable to find an appropriate codec for " + MIME_TYPE);
                 return;
-            }else  if(!isSupportFormatSurface(videoCodecInfo,MIME_TYPE)){
+            }else  if(!isSupportFormatSurface(colorFormats)){
                 Log.e(TAG, "not support COLOR_FormatSurface codec for " + MIME_TYPE);
                 return;
             }
-            if (DEBUG) {
-                Log.i(TAG, "selected codec: " + videoCodecInfo.getName());
-            }
 
             final MediaFormat format = MediaFormat.createVideoFormat(MIME_TYPE, mWidth, mHeight);
             format.setInteger(MediaFormat.KEY_COLOR_FORMAT, MediaCodecInfo.CodecCapabilities.COLOR_FormatSurface);    // API >= 18
@@ -99,17 +149,20 @@ public class MediaBufferVideoEncoder extends MediaEncoder implements IFrameRende
             format.setInteger(MediaFormat.KEY_FRAME_RATE, getValueOrDefault(MediaFormat.KEY_FRAME_RATE,FRAME_RATE));
             format.setInteger(MediaFormat.KEY_I_FRAME_INTERVAL, getValueOrDefault(MediaFormat.KEY_I_FRAME_INTERVAL,10));
             if (DEBUG) {
-                Log.i(TAG, "format: " + format);
+                FULogger.i(TAG, () -> "format: " + format);
             }
 
-            mMediaCodec = MediaCodec.createEncoderByType(MIME_TYPE);
-            mMediaCodec.configure(format, null, null, MediaCodec.CONFIGURE_FLAG_ENCODE);
+            mMediaCodec = createEncoder(MIME_TYPE);
+            configureEncoder(format);
             // get Surface for encoder input
             // this method only can call between #configure and #start
             mSurface = mMediaCodec.createInputSurface();    // API >= 18
+            if (mRenderHandler != null) {
+                mRenderHandler.setClockTrack(getClockTrack());
+            }
             mMediaCodec.start();
             if (DEBUG) {
-                Log.i(TAG, "prepare finishing");
+                FULogger.i(TAG, "prepare finishing");
             }
             if (mListener != null) {
                 try {
@@ -131,39 +184,16 @@ public class MediaBufferVideoEncoder extends MediaEncoder implements IFrameRende
     public Surface getSurface(){
         return mSurface;
     }
-    /**
-     * Returns the first codec capable of encoding the specified MIME type, or null if no
-     * match was found.
-     */
-    private MediaCodecInfo selectCodec(String mimeType) {
-        int numCodecs = MediaCodecList.getCodecCount();
-        for (int i = 0; i < numCodecs; i++) {
-            MediaCodecInfo codecInfo = MediaCodecList.getCodecInfoAt(i);
-            if (!codecInfo.isEncoder()) {
-                continue;
-            }
-            String[] types = codecInfo.getSupportedTypes();
-            for (int j = 0; j < types.length; j++) {
-                if (types[j].equals(mimeType)) {
-                    return codecInfo;
-                }
-            }
-        }
-
-        return null;
-    }
     /**
      * Returns a color format that is supported by the codec and by this test code.  If no
      * match is found, this throws a test failure -- the set of formats known to the test
      * should be expanded for new platforms.
      */
-    private Boolean isSupportFormatSurface(MediaCodecInfo codecInfo, String mimeType) {
-        MediaCodecInfo.CodecCapabilities capabilities = codecInfo.getCapabilitiesForType(mimeType);
-        for (int i = 0; i < capabilities.colorFormats.length; i++) {
-            int colorFormat = capabilities.colorFormats[i];
+    private Boolean isSupportFormatSurface(int[] colorFormats) {
+        for (int i = 0; i < colorFormats.length; i++) {
+            int colorFormat = colorFormats[i];
             if (colorFormat == MediaCodecInfo.CodecCapabilities.COLOR_FormatSurface) {
                 // 编解码器支持 COLOR_FormatSurface 格式
-                Log.d(TAG, "Codec " + codecInfo.getName() + " supports FormatSurface encoding");
                 return true;
             }
         }
@@ -176,7 +206,7 @@ public class MediaBufferVideoEncoder extends MediaEncoder implements IFrameRende
      */
     public void setEglContext(final EGLContext shared_context) {
         if (DEBUG) {
-            Log.i(TAG, "setEglContext ThreadId:" + Thread.currentThread().getId());
+            FULogger.i(TAG, () -> "setEglContext ThreadId:" + Thread.currentThread().getId());
         }
         if (mRenderHandler != null) {
             mRenderHandler.setEglContext(shared_context, mSurface);
@@ -187,7 +217,7 @@ public class MediaBufferVideoEncoder extends MediaEncoder implements IFrameRende
     @Override
     public void release() {
         if (DEBUG) {
-            Log.i(TAG, "release:");
+            FULogger.i(TAG, "release:");
         }
         if (mSurface != null) {
             mSurface.release();
@@ -203,7 +233,7 @@ public class MediaBufferVideoEncoder extends MediaEncoder implements IFrameRende
 
     public void releaseGL() {
         if (DEBUG) {
-            Log.i(TAG, "releaseGL ThreadId:" + Thread.currentThread().getId());
+            FULogger.i(TAG, () -> "releaseGL ThreadId:" + Thread.currentThread().getId());
         }
         glInit = false;
     }
@@ -218,7 +248,7 @@ public class MediaBufferVideoEncoder extends MediaEncoder implements IFrameRende
     @Override
     protected void signalEndOfInputStream() {
         if (DEBUG) {
-            Log.d(TAG, "sending EOS to encoder");
+            FULogger.d(TAG, "sending EOS to encoder");
         }
         waitFinish.set(false);
         if (mMediaCodec != null) {
@@ -269,12 +299,13 @@ public class MediaBufferVideoEncoder extends MediaEncoder implements IFrameRende
     }
     @Override
     public void onInputFrameRender(@Nullable Object any) {
+        markInputFrame();
         if(mListener!= null){
             mListener.onFrameRender(this,any);
         }
         int count = inputFrameCount.incrementAndGet();
         if (DEBUG) {
-            Log.d(TAG, "inputFrame Count="+count);
+            FULogger.d(TAG, () -> "inputFrame Count="+count);
         }
     }
 
@@ -283,7 +314,7 @@ public class MediaBufferVideoEncoder extends MediaEncoder implements IFrameRende
         super.onWriteSampleData(object);
         int count = outFrameCount.incrementAndGet();
         if (DEBUG) {
-            Log.d(TAG, "outputFrame Count="+count);
+            FULogger.d(TAG, () -> "outputFrame Count="+count);
         }
         if(waitFinish.get() && mWeakMuxer!= null){
             waitFinishFrameCount.decrementAndGet();
@@ -0,0 +1,222 @@
+package com.qt.media.encode.video.encoder;
+
+import android.media.Image;
+import android.media.MediaCodec;
+import android.media.MediaCodecInfo;
+import android.media.MediaCodecList;
+import android.media.MediaFormat;
+import android.os.Build;
+import android.os.Bundle;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.util.Log;
+import android.view.Surface;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+import androidx.annotation.RequiresApi;
+
+/**
+ * 基于 android.media.MediaCodec 的编码器后端
+ */
+public class MediaCodecBackend implements CodecBackend {
+    private static final String TAG = "MediaCodecBackend";
+
+    public static final Factory FACTORY = new Factory() {
+        @Override
+        public CodecBackend createEncoder(String mimeType) throws IOException {
+            return new MediaCodecBackend(MediaCodec.createEncoderByType(mimeType));
+        }
+
+        /**
+         * MediaCodec.createEncoderByType 选择 MediaCodecList 中第一个支持 mimeType 的编码器
+         */
+        @Override
+        public int[] getColorFormats(String mimeType) {
+            final MediaCodecInfo codecInfo = selectCodec(mimeType);
+            if (codecInfo == null) {
+                return null;
+            }
+            Log.d(TAG, "found codec: " + codecInfo.getName());
+            return codecInfo.getCapabilitiesForType(mimeType).colorFormats;
+        }
+    };
+
+    private final MediaCodec mCodec;
+    /**
+     * 异步回调线程，只在 setCallback 后创建
+     */
+    private HandlerThread mCallbackThread;
+
+    public MediaCodecBackend(MediaCodec codec) {
+        mCodec = codec;
+    }
+
+    /**
+     * Returns the first codec capable of encoding the specified MIME type, or null if no
+     * match was found.
+     */
+    private static MediaCodecInfo selectCodec(String mimeType) {
+        int numCodecs = MediaCodecList.getCodecCount();
+        for (int i = 0; i < numCodecs; i++) {
+            MediaCodecInfo codecInfo = MediaCodecList.getCodecInfoAt(i);
+            if (!codecInfo.isEncoder()) {
+                continue;
+            }
+            String[] types = codecInfo.getSupportedTypes();
+            for (int j = 0; j < types.length; j++) {
+                if (types[j].equalsIgnoreCase(mimeType)) {
+                    return codecInfo;
+                }
+            }
+        }
+        return null;
+    }
+
+    public MediaCodec getCodec() {
+        return mCodec;
+    }
+
+    @Override
+    public void configure(MediaFormat format) {
+        mCodec.configure(format, null, null, MediaCodec.CONFIGURE_FLAG_ENCODE);
+    }
+
+    @Override
+    public boolean isAsyncSupported() {
+        return Build.VERSION.SDK_INT >= Build.VERSION_CODES.M;
+    }
+
+    @Override
+    public void setCallback(final Callback callback, String threadName) {
+        if (!isAsyncSupported()) {
+            throw new IllegalStateException("MediaCodec.setCallback need API >= 23");
+        }
+        quitCallbackThread();
+        mCallbackThread = new HandlerThread(threadName);
+        mCallbackThread.start();
+        setCodecCallback(callback, new Handler(mCallbackThread.getLooper()));
+    }
+
+    @RequiresApi(api = Build.VERSION_CODES.M)
+    private void setCodecCallback(final Callback callback, Handler handler) {
+        mCodec.setCallback(new MediaCodec.Callback() {
+            @Override
+            public void onInputBufferAvailable(@NonNull MediaCodec codec, int index) {
+                callback.onInputBufferAvailable(index);
+            }
+
+            @Override
+            public void onOutputBufferAvailable(@NonNull MediaCodec codec, int index, @NonNull MediaCodec.BufferInfo info) {
+                callback.onOutputBufferAvailable(index, info);
+            }
+
+            @Override
+            public void onError(@NonNull MediaCodec codec, @NonNull MediaCodec.CodecException e) {
+                callback.onError(e);
+            }
+
+            @Override
+            public void onOutputFormatChanged(@NonNull MediaCodec codec, @NonNull MediaFormat format) {
+                callback.onOutputFormatChanged(format);
+            }
+        }, handler);
+    }
+
+    @Override
+    public Surface createInputSurface() {
+        return mCodec.createInputSurface();    // API >= 18
+    }
+
+    @Override
+    public void start() {
+        mCodec.start();
+    }
+
+    @Override
+    public void stop() {
+        mCodec.stop();
+    }
+
+    @Override
+    public void release() {
+        try {
+            mCodec.release();
+        } finally {
+            quitCallbackThread();
+        }
+    }
+
+    private void quitCallbackThread() {
+        if (mCallbackThread != null) {
+            mCallbackThread.quitSafely();
+            mCallbackThread = null;
+        }
+    }
+
+    @Override
+    public int dequeueInputBuffer(long timeoutUs) {
+        return mCodec.dequeueInputBuffer(timeoutUs);
+    }
+
+    @Nullable
+    @Override
+    public ByteBuffer getInputBuffer(int index) {
+        return mCodec.getInputBuffer(index);
+    }
+
+    @Nullable
+    @Override
+    public Image getInputImage(int index) {
+        return mCodec.getInputImage(index);
+    }
+
+    @Nullable
+    @Override
+    public MediaFormat getInputFormat() {
+        return mCodec.getInputFormat();
+    }
+
+    @Override
+    public void queueInputBuffer(int index, int offset, int size, long presentationTimeUs, int flags) {
+        mCodec.queueInputBuffer(index, offset, size, presentationTimeUs, flags);
+    }
+
+    @Override
+    public void signalEndOfInputStream() {
+        mCodec.signalEndOfInputStream();    // API >= 18
+    }
+
+    @Override
+    public int dequeueOutputBuffer(MediaCodec.BufferInfo info, long timeoutUs) {
+        return mCodec.dequeueOutputBuffer(info, timeoutUs);
+    }
+
+    @Nullable
+    @Override
+    public ByteBuffer getOutputBuffer(int index) {
+        return mCodec.getOutputBuffer(index);
+    }
+
+    @Override
+    public MediaFormat getOutputFormat() {
+        return mCodec.getOutputFormat();
+    }
+
+    @Override
+    public void releaseOutputBuffer(int index) {
+        mCodec.releaseOutputBuffer(index, false);
+    }
+
+    @Override
+    public void requestSyncFrame() {
+        if (Build.VERSION.SDK_INT >= 23) {
+            Bundle params = new Bundle();
+            params.putInt(MediaCodec.PARAMETER_KEY_REQUEST_SYNC_FRAME, 0);
+            mCodec.setParameters(params);
+        }
+    }
+}
@@ -2,24 +2,37 @@ package com.qt.media.encode.video.encoder;
 
 import android.media.MediaCodec;
 import android.media.MediaFormat;
-import android.os.Build;
-import android.os.Bundle;
 import android.util.Log;
 
+import com.qt.camera.log.FULogger;
+import com.qt.camera.log.TraceRing;
+import com.qt.media.encode.BuildConfig;
+
 import java.io.IOException;
 import java.lang.ref.WeakReference;
 import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 import androidx.annotation.Nullable;
 
 /**
  * see https://github.com/saki4510t/AudioVideoRecordingSample
  */
-public abstract class MediaEncoder implements Runnable {
+public abstract class MediaEncoder {
     private static final String TAG = MediaEncoder.class.getSimpleName();
-    private static final boolean DEBUG = true;
+    private static final boolean DEBUG = BuildConfig.ENCODER_LOG;
+    private static final TraceRing TRACE = TraceRing.getDefault();
 
     protected static final int TIMEOUT_USEC = 10000;    // 10[msec]
+    /**
+     * drain 没有取到输出时，间隔 DRAIN_RETRY_MS 重新提交 drain：
+     * 未结束时连续 DRAIN_IDLE_RETRIES 次没有输出结束本轮，发送 EOS 后最多重试 DRAIN_EOS_RETRIES 次（5s）；
+     * 结束时没有空闲的输入 buffer 发送 EOS，同样间隔 DRAIN_RETRY_MS 最多重试 DRAIN_EOS_RETRIES 次
+     */
+    private static final long DRAIN_RETRY_MS = TIMEOUT_USEC / 1000;
+    private static final int DRAIN_IDLE_RETRIES = 5;
+    private static final int DRAIN_EOS_RETRIES = 500;
 
     public interface MediaEncoderListener {
         public void onPrepared(MediaEncoder encoder);
@@ -31,15 +44,60 @@ public abstract class MediaEncoder implements Runnable {
         public void onError(MediaEncoder encoder, Exception exception);
     }
 
+    /**
+     * 编码输出的驱动方式
+     */
+    public enum Engine {
+        /**
+         * 编码线程被唤醒后轮询 dequeueOutputBuffer（默认）
+         */
+        DRAIN_LOOP,
+        /**
+         * 编码器异步回调，输出就绪后立即在回调线程写入 muxer（MediaCodec 需要 API >= 23，不支持时自动退回 DRAIN_LOOP）
+         */
+        ASYNC_CALLBACK
+    }
+
     protected final Object mLock = new Object();
     /**
      * Flag that indicate this encoder is capturing now.
      */
     protected volatile boolean mIsCapturing;
     /**
-     * Flag that indicate the frame data will be available soon.
+     * 编码任务队列，drain 与结束流程在 muxer 所在会话的调度线程上串行执行，代替独占的编码线程
+     */
+    private final EncoderScheduler.SerialQueue mQueue;
+    private final Runnable mDrainTask = new Runnable() {
+        @Override
+        public void run() {
+            mDrainPending.set(false);
+            drain();
+        }
+    };
+    /**
+     * 已经提交（或延迟提交）了 mDrainTask 还没有执行，期间的 frameAvailableSoon 不再重复提交
+     */
+    private final AtomicBoolean mDrainPending = new AtomicBoolean();
+    /**
+     * 有新的输入，下一次 drain 开始新的一轮
+     */
+    private volatile boolean mDrainRestart = true;
+    /**
+     * 以下只在编码任务队列中访问：本轮连续没有输出的次数、本轮开始时异步输出的计数、是否在等待 EOS 后结束编码
      */
-    private volatile int mRequestDrain;
+    private int mDrainEmptyCount;
+    private int mDrainAsyncOutputCount;
+    private boolean mFinishing;
+    /**
+     * 只在编码任务队列中访问：发送 EOS 还能重试的次数
+     */
+    private int mEosRetriesLeft;
+    private final Runnable mFinishTask = new Runnable() {
+        @Override
+        public void run() {
+            finishEncoding();
+        }
+    };
     /**
      * Flag to request stop capturing
      */
@@ -57,9 +115,9 @@ public abstract class MediaEncoder implements Runnable {
      */
     protected int mTrackIndex;
     /**
-     * MediaCodec instance for encoding
+     * 编码器，子类在 prepare 中通过 createEncoder 创建
      */
-    protected MediaCodec mMediaCodec;                // API >= 16(Android4.1.2)
+    protected CodecBackend mMediaCodec;
     /**
      * Weak refarence of MediaMuxerWarapper instance
      */
@@ -71,21 +129,55 @@ public abstract class MediaEncoder implements Runnable {
 
     protected  MediaEncoderListener mListener;
 
+    /**
+     * 所有编码器默认使用的编码器工厂
+     */
+    private static volatile CodecBackend.Factory sDefaultCodecFactory = MediaCodecBackend.FACTORY;
+    private CodecBackend.Factory mCodecFactory;
+
+    private Engine mEngine = Engine.DRAIN_LOOP;
+    /**
+     * 异步模式是否已生效（编码器支持 setCallback）
+     */
+    private boolean mAsyncActive;
+    /**
+     * 异步模式下保护输出写入与编码器释放，drain 通过 mAsyncOutputCount 判断是否有新的输出
+     */
+    private final Object mAsyncSync = new Object();
+    private volatile boolean mAsyncReleased;
+    private int mAsyncOutputCount;
+    /**
+     * 异步模式下可用的输入 buffer 下标
+     */
+    private final ArrayDeque<Integer> mFreeInputIndices = new ArrayDeque<>();
+
+    /**
+     * 输入帧时间（纳秒），用于统计输入到写入 muxer 的延迟
+     */
+    private final long[] mInputFrameTimes = new long[64];
+    private int mInputFrameHead;
+    private int mInputFrameCount;
+    private long mLatencyFrameCount;
+    private long mTotalLatencyNs;
+    private long mMaxLatencyNs;
+    private final EncoderMetrics mMetrics;
+    /**
+     * 输出格式为视频时统计帧率与码率
+     */
+    private boolean mIsVideoTrack;
+
     public MediaEncoder(final MediaMuxerWrapper muxer, final MediaEncoderListener listener) {
         if (listener == null) throw new NullPointerException("MediaDecoderListener is null");
         if (muxer == null) throw new NullPointerException("MediaExtractorWrapper is null");
         mWeakMuxer = new WeakReference<MediaMuxerWrapper>(muxer);
         muxer.addEncoder(this);
         mListener = listener;
+        mQueue = muxer.getSchedulerSession().newQueue(getClass().getSimpleName());
+        mMetrics = muxer.getMetrics();
         synchronized (mLock) {
             // create BufferInfo here for effectiveness(to reduce GC)
             mBufferInfo = new MediaCodec.BufferInfo();
-            // wait for starting thread
-            new Thread(this, getClass().getSimpleName()).start();
-            try {
-                mLock.wait();
-            } catch (final InterruptedException e) {
-            }
+            mRequestStop = false;
         }
     }
 
@@ -94,71 +186,193 @@ public abstract class MediaEncoder implements Runnable {
         return muxer != null ? muxer.getOutputPath() : null;
     }
 
+    /**
+     * 设置所有编码器默认使用的编码器工厂，传 null 恢复为 MediaCodec
+     */
+    public static void setDefaultCodecFactory(CodecBackend.Factory factory) {
+        sDefaultCodecFactory = factory != null ? factory : MediaCodecBackend.FACTORY;
+    }
+
+    /**
+     * 设置当前编码器使用的编码器工厂（如 FakeCodecBackend），需要在 prepare 之前调用，传 null 使用默认工厂
+     */
+    public void setCodecFactory(CodecBackend.Factory factory) {
+        mCodecFactory = factory;
+    }
+
+    /**
+     * 创建编码器，子类在 prepare 中代替 MediaCodec.createEncoderByType 调用
+     */
+    protected CodecBackend createEncoder(String mimeType) throws IOException {
+        return getCodecFactory().createEncoder(mimeType);
+    }
+
+    private CodecBackend.Factory getCodecFactory() {
+        return mCodecFactory != null ? mCodecFactory : sDefaultCodecFactory;
+    }
+
+    /**
+     * 将要创建的编码器支持的输入颜色格式，由编码器工厂决定，没有可用的编码器时返回 null
+     *
+     * @see CodecBackend.Factory#getColorFormats(String)
+     */
+    @Nullable
+    protected int[] getColorFormats(String mimeType) {
+        return getCodecFactory().getColorFormats(mimeType);
+    }
+
+    /**
+     * 设置编码输出的驱动方式，需要在 prepare 之前调用
+     */
+    public void setEngine(Engine engine) {
+        mEngine = engine != null ? engine : Engine.DRAIN_LOOP;
+    }
+
+    public Engine getEngine() {
+        return mEngine;
+    }
+
+    /**
+     * 是否以异步回调驱动，编码器不支持时 configureEncoder 之后返回 false
+     */
+    protected boolean isAsyncEngine() {
+        return mAsyncActive;
+    }
+
+    /**
+     * 配置编码器，子类在 prepare 中代替 mMediaCodec.configure 调用，异步模式下会先设置回调
+     */
+    protected void configureEncoder(MediaFormat format) {
+        mAsyncActive = false;
+        if (mEngine == Engine.ASYNC_CALLBACK) {
+            if (mMediaCodec.isAsyncSupported()) {
+                setAsyncCallback();
+            } else {
+                Log.w(TAG, "encoder not support ASYNC_CALLBACK, fallback to DRAIN_LOOP");
+            }
+        }
+        mMediaCodec.configure(format);
+    }
+
+    private void setAsyncCallback() {
+        synchronized (mAsyncSync) {
+            mAsyncReleased = false;
+            mAsyncOutputCount = 0;
+        }
+        mMediaCodec.setCallback(new AsyncCodecCallback(), getClass().getSimpleName() + "-callback");
+        mAsyncActive = true;
+    }
+
+    /**
+     * 标记一帧已送入编码器，用于统计输入到写入 muxer 的延迟
+     */
+    protected void markInputFrame() {
+        synchronized (mInputFrameTimes) {
+            int length = mInputFrameTimes.length;
+            if (mInputFrameCount == length) {
+                mInputFrameHead = (mInputFrameHead + 1) % length;
+                mInputFrameCount--;
+            }
+            mInputFrameTimes[(mInputFrameHead + mInputFrameCount) % length] = System.nanoTime();
+            mInputFrameCount++;
+        }
+    }
+
+    private void recordOutputLatency() {
+        synchronized (mInputFrameTimes) {
+            if (mInputFrameCount == 0) {
+                return;
+            }
+            long latency = System.nanoTime() - mInputFrameTimes[mInputFrameHead];
+            mInputFrameHead = (mInputFrameHead + 1) % mInputFrameTimes.length;
+            mInputFrameCount--;
+            mLatencyFrameCount++;
+            mTotalLatencyNs += latency;
+            if (latency > mMaxLatencyNs) {
+                mMaxLatencyNs = latency;
+            }
+            mMetrics.record(EncoderMetrics.Stage.CODEC, latency);
+        }
+    }
+
+    /**
+     * 输入帧到写入 muxer 的平均延迟，单位微秒
+     */
+    public long getAverageOutputLatencyUs() {
+        synchronized (mInputFrameTimes) {
+            return mLatencyFrameCount == 0 ? 0 : mTotalLatencyNs / mLatencyFrameCount / 1000;
+        }
+    }
+
+    /**
+     * 输入帧到写入 muxer 的最大延迟，单位微秒
+     */
+    public long getMaxOutputLatencyUs() {
+        synchronized (mInputFrameTimes) {
+            return mMaxLatencyNs / 1000;
+        }
+    }
+
     /**
      * the method to indicate frame data is soon available or already available
      *
      * @return return true if encoder is ready to encod.
      */
     public boolean frameAvailableSoon() {
-        if (DEBUG) Log.d(TAG, "frameAvailableSoon");
+        if (DEBUG) FULogger.d(TAG, "frameAvailableSoon");
+        TRACE.record(TraceRing.EVENT_FRAME_AVAILABLE, mTrackIndex);
         synchronized (mLock) {
             if (!mIsCapturing || mRequestStop) {
                 return false;
             }
-            mRequestDrain++;
-            mLock.notifyAll();
+            mDrainRestart = true;
+            //已经有 drain 在排队时合并，不为每一帧提交一次
+            scheduleDrain(0);
         }
         return true;
     }
 
     /**
-     * encoding loop on private thread
+     * 提交 drain，已经有 drain 在排队时不重复提交
      */
-    @Override
-    public void run() {
-//		android.os.Process.setThreadPriority(android.os.Process.THREAD_PRIORITY_URGENT_AUDIO);
-        synchronized (mLock) {
-            mRequestStop = false;
-            mRequestDrain = 0;
-            mLock.notify();
-        }
-        boolean localRequestStop;
-        boolean localRequestDrain;
-        while (true) {
-            synchronized (mLock) {
-                localRequestStop = mRequestStop;
-                localRequestDrain = (mRequestDrain > 0);
-                if (localRequestDrain)
-                    mRequestDrain--;
-            }
-            if (DEBUG) Log.d(TAG, "localRequestStop: " + localRequestStop +" localRequestDrain:"+localRequestDrain);
-            if (localRequestStop) {
-                drain();
-                // request stop recording
-                signalEndOfInputStream();
-                // process output data again for EOS signale
-                drain();
-                // release all related objects
-                release();
-                break;
-            }
-            if (localRequestDrain) {
-                drain();
-            } else {
-                synchronized (mLock) {
-                    try {
-                        mLock.wait();
-                    } catch (final InterruptedException e) {
-                        break;
-                    }
-                }
+    private void scheduleDrain(long delayMs) {
+        if (mDrainPending.compareAndSet(false, true)) {
+            if (!mQueue.executeDelayed(mDrainTask, delayMs)) {
+                mDrainPending.set(false);
             }
-        } // end of while
-        if (DEBUG) Log.e(TAG, "Encoder thread exiting");
+        }
+    }
+
+    /**
+     * 结束编码：发送 EOS，之后由 drain 写出剩余输出，收到 EOS 输出（或超时）后释放，在编码任务队列中执行
+     * 没有空闲的输入 buffer 发送 EOS 时延迟 DRAIN_RETRY_MS 重新提交，不占着调度线程等待
+     */
+    private void finishEncoding() {
+        // request stop recording
+        signalEndOfInputStream();
+        if (!mIsEOS && mIsCapturing && mMediaCodec != null && mEosRetriesLeft-- > 0
+                && mQueue.executeDelayed(mFinishTask, DRAIN_RETRY_MS)) {
+            return;
+        }
+        // process output data again for EOS signale
+        mFinishing = true;
+        mDrainRestart = true;
+        drain();
+    }
+
+    /**
+     * EOS 之后的一轮 drain 结束，释放编码器并关闭任务队列
+     */
+    private void onFinishDrained() {
+        mFinishing = false;
+        // release all related objects
+        release();
+        if (DEBUG) FULogger.e(TAG, "Encoder finished");
         synchronized (mLock) {
             mRequestStop = true;
             mIsCapturing = false;
         }
+        mQueue.shutdown();
     }
 
     /*
@@ -170,7 +384,7 @@ public abstract class MediaEncoder implements Runnable {
     abstract void prepare() throws IOException;
 
     /*package*/ void startRecording() {
-        if (DEBUG) Log.e(TAG, "startRecording:"+this);
+        if (DEBUG) FULogger.e(TAG, () -> "startRecording:"+this);
         synchronized (mLock) {
             mIsCapturing = true;
             mRequestStop = false;
@@ -182,13 +396,15 @@ public abstract class MediaEncoder implements Runnable {
      * the method to request stop encoding
      */
     /*package*/ void stopRecording() {
-        if (DEBUG) Log.e(TAG, "stopRecording:"+this);
+        if (DEBUG) FULogger.e(TAG, () -> "stopRecording:"+this);
         synchronized (mLock) {
             if (!mIsCapturing || mRequestStop) {
                 return;
             }
             mRequestStop = true;    // for rejecting newer frame
-            mLock.notifyAll();
+            mEosRetriesLeft = DRAIN_EOS_RETRIES;
+            //排在已提交的 drain 之后执行
+            mQueue.execute(mFinishTask);
             // We can not know when the encoding and writing finish.
             // so we return immediately after request to avoid delay of caller thread
         }
@@ -201,8 +417,13 @@ public abstract class MediaEncoder implements Runnable {
      * Release all releated objects
      */
     public void release() {
-        if (DEBUG) Log.e(TAG, "release:"+this);
+        if (DEBUG) FULogger.e(TAG, () -> "release:"+this);
+        TRACE.record(TraceRing.EVENT_ENCODER_RELEASED, mTrackIndex);
         mIsCapturing = false;
+        synchronized (mAsyncSync) {
+            //回调线程拿到锁后不会再访问编码器与 muxer
+            mAsyncReleased = true;
+        }
         if (mMediaCodec != null) {
             try {
                 mMediaCodec.stop();
@@ -212,11 +433,15 @@ public abstract class MediaEncoder implements Runnable {
                 Log.e(TAG, "failed releasing MediaCodec", e);
             }
         }
+        synchronized (mFreeInputIndices) {
+            mFreeInputIndices.clear();
+        }
+        Log.i(TAG, "release engine:" + mEngine + " outputLatency avg:" + getAverageOutputLatencyUs() + "us max:" + getMaxOutputLatencyUs() + "us");
         if (mMuxerStarted) {
             final MediaMuxerWrapper muxer = mWeakMuxer != null ? mWeakMuxer.get() : null;
             if (muxer != null) {
                 try {
-                    muxer.stop();
+                    muxer.stop(mTrackIndex);
                 } catch (final Exception e) {
                     Log.e(TAG, "failed stopping muxer", e);
                 }
@@ -231,15 +456,49 @@ public abstract class MediaEncoder implements Runnable {
                 Log.e(TAG, "failed onStopped", e);
             }
         }
-        if (DEBUG) Log.e(TAG, "release: end");
+        if (DEBUG) FULogger.e(TAG, "release: end");
     }
 
     protected void signalEndOfInputStream() {
-        if (DEBUG) Log.e(TAG, "sending EOS to encoder");
+        if (DEBUG) FULogger.e(TAG, "sending EOS to encoder");
         // signalEndOfInputStream is only avairable for video encoding with surface
         // and equivalent sending a empty buffer with BUFFER_FLAG_END_OF_STREAM flag.
 //		mMediaCodec.signalEndOfInputStream();	// API >= 18
-        encode(null, 0, getPTSUs());
+        //在编码任务队列中执行，drain 不会同时运行：输入 buffer 都在编码器中时先取出输出，编码器才会归还输入 buffer，
+        //不等待，仍然没有空闲的输入 buffer 时由 finishEncoding 延迟重试
+        if (!mIsCapturing || mMediaCodec == null) {
+            return;
+        }
+        final int inputBufferIndex = dequeueInputIndex(0);
+        if (inputBufferIndex >= 0) {
+            mIsEOS = true;
+            if (DEBUG) FULogger.e(TAG, "send BUFFER_FLAG_END_OF_STREAM");
+            mMediaCodec.queueInputBuffer(inputBufferIndex, 0, 0,
+                    mLastInputPTSUs, MediaCodec.BUFFER_FLAG_END_OF_STREAM);
+            TRACE.record(TraceRing.EVENT_EOS_SIGNALED, mLastInputPTSUs);
+            return;
+        }
+        if (!isAsyncEngine()) {
+            try {
+                pollOutput();
+            } catch (Exception e) {
+                Log.e(TAG, "signalEndOfInputStream", e);
+                reportError(e);
+                //不再重试，直接进入结束流程
+                mEosRetriesLeft = 0;
+            }
+        }
+    }
+
+    /**
+     * 没有空闲的输入 buffer 时确保有 drain 在取输出，DRAIN_LOOP 下编码器取出输出后才会归还输入 buffer，
+     * 只有送帧线程唤醒 drain 时，一轮 drain 空闲结束后送帧线程会一直等不到输入 buffer
+     */
+    private void requestDrainForInput() {
+        if (!isAsyncEngine()) {
+            mDrainRestart = true;
+            scheduleDrain(0);
+        }
     }
 
     /**
@@ -252,143 +511,391 @@ public abstract class MediaEncoder implements Runnable {
     protected void encode(final ByteBuffer buffer, final int length, final long presentationTimeUs) {
         if (!mIsCapturing || mMediaCodec == null) return;
         while (mIsCapturing) {
-            final int inputBufferIndex = mMediaCodec.dequeueInputBuffer(TIMEOUT_USEC);
-            if (DEBUG) Log.e(TAG, "inputBufferIndex: " + inputBufferIndex);
+            final int inputBufferIndex = dequeueInputIndex(TIMEOUT_USEC);
+            if (DEBUG) FULogger.e(TAG, () -> "inputBufferIndex: " + inputBufferIndex);
             if (inputBufferIndex >= 0) {
                 final ByteBuffer inputBuffer = mMediaCodec.getInputBuffer(inputBufferIndex);
                 inputBuffer.clear();
                 if (buffer != null) {
                     inputBuffer.put(buffer);
                 }
-                if (DEBUG) Log.e(TAG, "encode:queueInputBuffer");
+                if (DEBUG) FULogger.e(TAG, "encode:queueInputBuffer");
                 if (length <= 0) {
                     // send EOS
                     mIsEOS = true;
-                    if (DEBUG) Log.e(TAG, "send BUFFER_FLAG_END_OF_STREAM");
+                    if (DEBUG) FULogger.e(TAG, "send BUFFER_FLAG_END_OF_STREAM");
                     mMediaCodec.queueInputBuffer(inputBufferIndex, 0, 0,
                             presentationTimeUs, MediaCodec.BUFFER_FLAG_END_OF_STREAM);
+                    TRACE.record(TraceRing.EVENT_EOS_SIGNALED, presentationTimeUs);
                     break;
                 } else {
                     mMediaCodec.queueInputBuffer(inputBufferIndex, 0, length,
                             presentationTimeUs, 0);
+                    TRACE.record(TraceRing.EVENT_INPUT_QUEUED, presentationTimeUs);
+                    mLastInputPTSUs = presentationTimeUs;
                 }
                 break;
             } else if (inputBufferIndex == MediaCodec.INFO_TRY_AGAIN_LATER) {
                 // wait for MediaCodec encoder is ready to encode
                 // nothing to do here because MediaCodec#dequeueInputBuffer(TIMEOUT_USEC)
                 // will wait for maximum TIMEOUT_USEC(10msec) on each call
+                requestDrainForInput();
             }
         }
     }
 
+    /**
+     * 由调用方直接写入编码器的输入 buffer（如 MediaCodec#getInputImage 的各个平面），省去中间数据的拷贝
+     */
+    public interface InputBufferWriter {
+        /**
+         * 写入下标为 index 的输入 buffer
+         *
+         * @return 写入的数据大小，小于等于 0 表示写入失败，该输入 buffer 会以空数据提交
+         */
+        int write(CodecBackend codec, int index);
+    }
+
+    /**
+     * 获取一个输入 buffer 交给 writer 写入后提交给编码器
+     *
+     * @return 是否成功写入并提交
+     */
+    protected boolean encode(final InputBufferWriter writer, final long presentationTimeUs) {
+        if (!mIsCapturing || mMediaCodec == null) return false;
+        while (mIsCapturing) {
+            final int inputBufferIndex = dequeueInputIndex(TIMEOUT_USEC);
+            if (inputBufferIndex >= 0) {
+                final int size = writer.write(mMediaCodec, inputBufferIndex);
+                mMediaCodec.queueInputBuffer(inputBufferIndex, 0, Math.max(size, 0),
+                        presentationTimeUs, 0);
+                mLastInputPTSUs = presentationTimeUs;
+                return size > 0;
+            }
+            requestDrainForInput();
+        }
+        return false;
+    }
+
+    /**
+     * 批量写入时由调用方决定写入多少个输入 buffer 以及每个 buffer 的时间戳
+     */
+    public interface BatchInputWriter extends InputBufferWriter {
+        /**
+         * 是否还有数据需要写入
+         */
+        boolean hasMoreInput();
+
+        /**
+         * 下一个输入 buffer 的时间戳，在对应的 write 之前调用
+         */
+        long nextPresentationTimeUs();
+    }
+
+    /**
+     * 批量写入：最多等待 TIMEOUT_USEC 获取第一个输入 buffer，之后不再等待，
+     * 把编码器当前所有空闲的输入 buffer 依次交给 writer 写入并提交，最后只唤醒一次编码线程 drain，
+     * 用于不需要与采集节奏同步的离线导出
+     *
+     * @return 提交的输入 buffer 个数，0 表示等待超时或没有数据
+     */
+    protected int encodeAvailable(final BatchInputWriter writer) {
+        if (!mIsCapturing || mMediaCodec == null) return 0;
+        int count = 0;
+        while (mIsCapturing && writer.hasMoreInput()) {
+            final int inputBufferIndex = dequeueInputIndex(count == 0 ? TIMEOUT_USEC : 0);
+            if (inputBufferIndex < 0) {
+                break;
+            }
+            final long presentationTimeUs = writer.nextPresentationTimeUs();
+            final int size = writer.write(mMediaCodec, inputBufferIndex);
+            mMediaCodec.queueInputBuffer(inputBufferIndex, 0, Math.max(size, 0),
+                    presentationTimeUs, 0);
+            mLastInputPTSUs = presentationTimeUs;
+            count++;
+            if (size <= 0) {
+                break;
+            }
+        }
+        if (count > 0) {
+            frameAvailableSoon();
+        } else {
+            requestDrainForInput();
+        }
+        return count;
+    }
+
+    /**
+     * 获取一个可用的输入 buffer 下标，最多等待 timeoutUs，为 0 时不等待
+     */
+    private int dequeueInputIndex(long timeoutUs) {
+        return isAsyncEngine() ? pollFreeInputIndex(timeoutUs) : mMediaCodec.dequeueInputBuffer(timeoutUs);
+    }
+
+    /**
+     * 异步模式下获取一个可用的输入 buffer，最多等待 timeoutUs
+     *
+     * @return 输入 buffer 下标，超时返回 INFO_TRY_AGAIN_LATER
+     */
+    private int pollFreeInputIndex(long timeoutUs) {
+        synchronized (mFreeInputIndices) {
+            if (mFreeInputIndices.isEmpty() && timeoutUs > 0) {
+                try {
+                    mFreeInputIndices.wait(Math.max(timeoutUs / 1000, 1));
+                } catch (final InterruptedException e) {
+                    return MediaCodec.INFO_TRY_AGAIN_LATER;
+                }
+            }
+            Integer index = mFreeInputIndices.poll();
+            return index != null ? index : MediaCodec.INFO_TRY_AGAIN_LATER;
+        }
+    }
+
     /**
      * drain encoded data and write them to muxer
+     * 不阻塞调度线程：只取编码器当前已有的输出，没有输出时延迟 DRAIN_RETRY_MS 重新提交，
+     * 一轮结束（收到 EOS，或连续多次没有输出）时回调 dequeueOutputBufferLoopEnd
      */
-    private boolean dequeueOutputBuffer = false;
+    private volatile boolean dequeueOutputBuffer = false;
     protected void drain() {
+        if (mMediaCodec == null) {
+            if (mFinishing) onFinishDrained();
+            return;
+        }
+        if (mDrainRestart) {
+            mDrainRestart = false;
+            mDrainEmptyCount = 0;
+            synchronized (mAsyncSync) {
+                mDrainAsyncOutputCount = mAsyncOutputCount;
+            }
+        }
+        boolean roundEnd;
         try {
-            if (mMediaCodec == null) return;
-            int encoderStatus, count = 0;
-            final MediaMuxerWrapper muxer = mWeakMuxer.get();
-            if (muxer == null) {
-//        	throw new NullPointerException("muxer is unexpectedly null");
-                if (DEBUG) Log.e(TAG, "muxer is unexpectedly null");
-                return;
+            roundEnd = isAsyncEngine() ? pollAsyncOutput() : pollOutput();
+            if (roundEnd) {
+                dequeueOutputBufferLoopEnd();
             }
-            if (DEBUG) Log.d(TAG, "mIsCapturing: " + mIsCapturing +" mIsEOS:"+mIsEOS);
-            LOOP:
+        } catch (Exception e) {
+            Log.e(TAG,"drain",e);
+            reportError(e);
+            roundEnd = true;
+        }
+        if (!roundEnd) {
+            scheduleDrain(DRAIN_RETRY_MS);
+        } else {
+            mDrainRestart = true;
+            if (mFinishing) onFinishDrained();
+        }
+    }
+
+    /**
+     * 不等待地取出编码器当前所有的输出写入 muxer
+     *
+     * @return 本轮 drain 是否结束，false 需要稍后再取
+     */
+    private boolean pollOutput() {
+        final MediaMuxerWrapper muxer = mWeakMuxer.get();
+        if (muxer == null) {
+//        	throw new NullPointerException("muxer is unexpectedly null");
+            if (DEBUG) FULogger.e(TAG, "muxer is unexpectedly null");
+            return true;
+        }
+        if (DEBUG) FULogger.d(TAG, () -> "mIsCapturing: " + mIsCapturing +" mIsEOS:"+mIsEOS);
+        try {
             while (mIsCapturing) {
                 dequeueOutputBuffer = true;
-                // get encoded data with maximum timeout duration of TIMEOUT_USEC(=10[msec])
-                encoderStatus = mMediaCodec.dequeueOutputBuffer(mBufferInfo, TIMEOUT_USEC);
+                final int encoderStatus = mMediaCodec.dequeueOutputBuffer(mBufferInfo, 0);
+                TRACE.record(TraceRing.EVENT_OUTPUT_DEQUEUED, encoderStatus);
                 dequeueOutputBufferStatus(encoderStatus);
-                if (DEBUG) Log.d(TAG, "encoderStatus: " + encoderStatus+" mBufferInfo.flags:"+mBufferInfo.flags);
+                if (DEBUG) FULogger.d(TAG, () -> "encoderStatus: " + encoderStatus+" mBufferInfo.flags:"+mBufferInfo.flags);
                 if (encoderStatus == MediaCodec.INFO_TRY_AGAIN_LATER) {
-                    // wait 5 counts(=TIMEOUT_USEC x 5 = 50msec) until data/EOS come
+                    // wait 5 counts(=DRAIN_RETRY_MS x 5 = 50msec) until data/EOS come
                     if (!mIsEOS) {
-                        if (++count > 5)
-                            break LOOP;        // out of while
-                    }else if ((mBufferInfo.flags & MediaCodec.BUFFER_FLAG_END_OF_STREAM) != 0 || ++count>500){ //TIMEOUT_USEC x 500 = 5s
-                        if (DEBUG) Log.e(TAG, "mIsEOS==true but 5s no outPut frame");//收到结束信号，或循环500次都没有新的帧就直接结束了，对最坏情况的兜底，避免出现一直接收不到新的帧和结束信号导致mediaCodec资源无法释放。（有遇到过客户机器MediaCodec底层不工作时会出现这种情况）
-                        break ;
+                        return ++mDrainEmptyCount > DRAIN_IDLE_RETRIES;
+                    } else if ((mBufferInfo.flags & MediaCodec.BUFFER_FLAG_END_OF_STREAM) != 0 || ++mDrainEmptyCount > DRAIN_EOS_RETRIES) { //DRAIN_RETRY_MS x 500 = 5s
+                        if (DEBUG) FULogger.e(TAG, "mIsEOS==true but 5s no outPut frame");//收到结束信号，或重试500次都没有新的帧就直接结束了，对最坏情况的兜底，避免出现一直接收不到新的帧和结束信号导致mediaCodec资源无法释放。（有遇到过客户机器MediaCodec底层不工作时会出现这种情况）
+                        return true;
                     }
+                    return false;
                 } else if (encoderStatus == MediaCodec.INFO_OUTPUT_BUFFERS_CHANGED) {
-                    if (DEBUG) Log.e(TAG, "INFO_OUTPUT_BUFFERS_CHANGED");
+                    if (DEBUG) FULogger.e(TAG, "INFO_OUTPUT_BUFFERS_CHANGED");
                     // this shoud not come when encoding
                 } else if (encoderStatus == MediaCodec.INFO_OUTPUT_FORMAT_CHANGED) {
-                    if (DEBUG) Log.e(TAG, "INFO_OUTPUT_FORMAT_CHANGED");
-                    // this status indicate the output format of codec is changed
-                    // this should come only once before actual encoded data
-                    // but this status never come on Android4.3 or less
-                    // and in that case, you should treat when MediaCodec.BUFFER_FLAG_CODEC_CONFIG come.
-                    if (mMuxerStarted) {    // second time request is error
-                        throw new RuntimeException("format changed twice");
-                    }
-                    // get output format from codec and pass them to muxer
+                    if (DEBUG) FULogger.e(TAG, "INFO_OUTPUT_FORMAT_CHANGED");
                     // getOutputFormat should be called after INFO_OUTPUT_FORMAT_CHANGED otherwise crash.
-                    final MediaFormat format = mMediaCodec.getOutputFormat(); // API >= 16
-                    mTrackIndex = muxer.addTrack(format);
-                    mMuxerStarted = true;
-                    if (!muxer.start()) {
-                        // we should wait until muxer is ready
-                        synchronized (muxer) {
-                            while (!muxer.isStarted())
-                                try {
-                                    muxer.wait(100);
-                                } catch (final InterruptedException e) {
-                                    break LOOP;
-                                }
-                        }
-                    }
+                    onOutputFormatChanged(muxer, mMediaCodec.getOutputFormat());
                 } else if (encoderStatus < 0) {
                     // unexpected status
                     if (DEBUG)
-                        Log.e(TAG, "drain:unexpected result from encoder#dequeueOutputBuffer: " + encoderStatus);
+                        FULogger.e(TAG, () -> "drain:unexpected result from encoder#dequeueOutputBuffer: " + encoderStatus);
                 } else {
-                    final ByteBuffer encodedData = mMediaCodec.getOutputBuffer(encoderStatus);
-                    if (encodedData == null) {
-                        // this never should come...may be a MediaCodec internal error
-                        throw new RuntimeException("encoderOutputBuffer " + encoderStatus + " was null");
-                    }
-                    boolean keyFrame = (mBufferInfo.flags & MediaCodec.BUFFER_FLAG_KEY_FRAME) != 0;
-                    if (DEBUG) Log.w(TAG, "keyFrame:"+keyFrame +" mBufferInfo.flags="+mBufferInfo.flags);
-                    if ((mBufferInfo.flags & MediaCodec.BUFFER_FLAG_CODEC_CONFIG) != 0) {
-                        // You shoud set output format to muxer here when you target Android4.3 or less
-                        // but MediaCodec#getOutputFormat can not call here(because INFO_OUTPUT_FORMAT_CHANGED don't come yet)
-                        // therefor we should expand and prepare output format from buffer data.
-                        // This sample is for API>=18(>=Android 4.3), just ignore this flag here
-                        if (DEBUG) Log.e(TAG, "drain:BUFFER_FLAG_CODEC_CONFIG");
-                        mBufferInfo.size = 0;
-                    }
-
-                    if (mBufferInfo.size != 0) {
+                    if (mBufferInfo.size != 0 && (mBufferInfo.flags & MediaCodec.BUFFER_FLAG_CODEC_CONFIG) == 0) {
                         // encoded data is ready, clear waiting counter
-                        count = 0;
-                        if (!mMuxerStarted) {
-                            // muxer is not ready...this will prrograming failure.
-                            throw new RuntimeException("drain:muxer hasn't started");
-                        }
-                        onWriteSampleData(encodedData);
-                        // write encoded data to muxer(need to adjust presentationTimeUs.
-                        mBufferInfo.presentationTimeUs = getPTSUs();
-                        muxer.writeSampleData(mTrackIndex, encodedData, mBufferInfo);
-                        prevOutputPTSUs = mBufferInfo.presentationTimeUs;
+                        mDrainEmptyCount = 0;
                     }
-                    // return buffer to encoder
-                    mMediaCodec.releaseOutputBuffer(encoderStatus, false);
-                    if ((mBufferInfo.flags & MediaCodec.BUFFER_FLAG_END_OF_STREAM) != 0) {
-                        // when EOS come.
-                        if (DEBUG) Log.w(TAG, "EOS come,mIsCapturing==false");
-                        mIsCapturing = false;
-                        break;      // out of while
+                    if (writeOutputBuffer(muxer, encoderStatus)) {
+                        return true;      // EOS
                     }
                 }
             }
+            return true;
+        } finally {
             dequeueOutputBuffer = false;
-            dequeueOutputBufferLoopEnd();
-        } catch (Exception e) {
-            Log.e(TAG,"drain",e);
-            onError(e);
+        }
+    }
+    /**
+     * 输出格式确定后添加轨道并启动 muxer
+     * 其它轨道还没有就绪时样本先排在 muxer 的交织队列中，这里不需要等待
+     */
+    private void onOutputFormatChanged(MediaMuxerWrapper muxer, MediaFormat format) {
+        // this status indicate the output format of codec is changed
+        // this should come only once before actual encoded data
+        // but this status never come on Android4.3 or less
+        // and in that case, you should treat when MediaCodec.BUFFER_FLAG_CODEC_CONFIG come.
+        if (mMuxerStarted) {    // second time request is error
+            throw new RuntimeException("format changed twice");
+        }
+        // get output format from codec and pass them to muxer
+        mTrackIndex = muxer.addTrack(format);
+        mMuxerStarted = true;
+        final String mime = format.getString(MediaFormat.KEY_MIME);
+        mIsVideoTrack = mime != null && mime.startsWith("video/");
+        TRACE.record(TraceRing.EVENT_FORMAT_CHANGED, mTrackIndex);
+        muxer.start();
+    }
+
+    /**
+     * 将 mBufferInfo 描述的输出 buffer 写入 muxer 并归还给编码器，两种 Engine 共用
+     *
+     * @return true 收到 EOS
+     */
+    private boolean writeOutputBuffer(MediaMuxerWrapper muxer, int index) {
+        final ByteBuffer encodedData = mMediaCodec.getOutputBuffer(index);
+        if (encodedData == null) {
+            // this never should come...may be a MediaCodec internal error
+            throw new RuntimeException("encoderOutputBuffer " + index + " was null");
+        }
+        boolean keyFrame = (mBufferInfo.flags & MediaCodec.BUFFER_FLAG_KEY_FRAME) != 0;
+        if (DEBUG) FULogger.w(TAG, () -> "keyFrame:"+keyFrame +" mBufferInfo.flags="+mBufferInfo.flags);
+        if ((mBufferInfo.flags & MediaCodec.BUFFER_FLAG_CODEC_CONFIG) != 0) {
+            // You shoud set output format to muxer here when you target Android4.3 or less
+            // but MediaCodec#getOutputFormat can not call here(because INFO_OUTPUT_FORMAT_CHANGED don't come yet)
+            // therefor we should expand and prepare output format from buffer data.
+            // This sample is for API>=18(>=Android 4.3), just ignore this flag here
+            if (DEBUG) FULogger.e(TAG, "drain:BUFFER_FLAG_CODEC_CONFIG");
+            mBufferInfo.size = 0;
+        }
+
+        if (mBufferInfo.size != 0) {
+            if (!mMuxerStarted) {
+                // muxer is not ready...this will prrograming failure.
+                throw new RuntimeException("drain:muxer hasn't started");
+            }
+            onWriteSampleData(encodedData);
+            // 保留编码器给出的时间戳，有 B 帧时输出顺序与显示顺序不同，不能按输出顺序重新生成
+            muxer.writeSampleData(mTrackIndex, encodedData, mBufferInfo);
+            TRACE.record(TraceRing.EVENT_SAMPLE_WRITTEN, mBufferInfo.presentationTimeUs);
+            prevOutputPTSUs = mBufferInfo.presentationTimeUs;
+            recordOutputLatency();
+            if (mIsVideoTrack) {
+                mMetrics.recordVideoSample(mBufferInfo.size, mBufferInfo.presentationTimeUs);
+            }
+        }
+        // return buffer to encoder
+        mMediaCodec.releaseOutputBuffer(index);
+        if ((mBufferInfo.flags & MediaCodec.BUFFER_FLAG_END_OF_STREAM) != 0) {
+            // when EOS come.
+            if (DEBUG) FULogger.w(TAG, "EOS come,mIsCapturing==false");
+            TRACE.record(TraceRing.EVENT_EOS_RECEIVED, mTrackIndex);
+            mIsCapturing = false;
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * 异步模式下 drain 不轮询编码器，只检查回调线程是否写出了数据：
+     * 未结束时本轮有新的输出或连续 DRAIN_IDLE_RETRIES 次没有输出时结束，结束时等到收到 EOS 或重试 DRAIN_EOS_RETRIES 次，
+     * 与 DRAIN_LOOP 的结束判断一致
+     *
+     * @return 本轮 drain 是否结束，false 需要稍后再检查
+     */
+    private boolean pollAsyncOutput() {
+        synchronized (mAsyncSync) {
+            if (!mIsCapturing || mAsyncReleased) {
+                return true;
+            }
+            if (!mIsEOS) {
+                return mAsyncOutputCount != mDrainAsyncOutputCount || ++mDrainEmptyCount > DRAIN_IDLE_RETRIES;
+            }
+            if (++mDrainEmptyCount > DRAIN_EOS_RETRIES) {
+                if (DEBUG) FULogger.e(TAG, "mIsEOS==true but 5s no outPut frame");
+                return true;
+            }
+            return false;
+        }
+    }
+
+    /**
+     * 编码器异步回调，运行在编码器的回调线程
+     */
+    private final class AsyncCodecCallback implements CodecBackend.Callback {
+
+        @Override
+        public void onInputBufferAvailable(int index) {
+            synchronized (mFreeInputIndices) {
+                mFreeInputIndices.offer(index);
+                mFreeInputIndices.notifyAll();
+            }
+        }
+
+        @Override
+        public void onOutputBufferAvailable(int index, MediaCodec.BufferInfo info) {
+            TRACE.record(TraceRing.EVENT_OUTPUT_DEQUEUED, index);
+            dequeueOutputBufferStatus(index);
+            synchronized (mAsyncSync) {
+                if (mAsyncReleased || mMediaCodec == null || mBufferInfo == null) {
+                    return;
+                }
+                final MediaMuxerWrapper muxer = mWeakMuxer.get();
+                if (muxer == null) {
+                    if (DEBUG) FULogger.e(TAG, "muxer is unexpectedly null");
+                    return;
+                }
+                dequeueOutputBuffer = true;
+                try {
+                    // 复制到 mBufferInfo，保证子类逻辑在两种 Engine 下一致
+                    mBufferInfo.set(info.offset, info.size, info.presentationTimeUs, info.flags);
+                    writeOutputBuffer(muxer, index);
+                } catch (Exception e) {
+                    Log.e(TAG, "onOutputBufferAvailable", e);
+                    reportError(e);
+                } finally {
+                    dequeueOutputBuffer = false;
+                    mAsyncOutputCount++;
+                }
+            }
+        }
+
+        @Override
+        public void onError(Exception e) {
+            Log.e(TAG, "AsyncCodecCallback onError", e);
+            reportError(e);
+        }
+
+        @Override
+        public void onOutputFormatChanged(MediaFormat format) {
+            if (DEBUG) FULogger.e(TAG, "INFO_OUTPUT_FORMAT_CHANGED");
+            final MediaMuxerWrapper muxer = mWeakMuxer.get();
+            if (muxer == null || mAsyncReleased) {
+                return;
+            }
+            try {
+                MediaEncoder.this.onOutputFormatChanged(muxer, format);
+            } catch (Exception e) {
+                Log.e(TAG, "onOutputFormatChanged", e);
+                reportError(e);
+            }
         }
     }
 
@@ -396,18 +903,16 @@ public abstract class MediaEncoder implements Runnable {
      * 手动触发输出关键帧
      */
     protected void requestKeyFrame(){
-        if (Build.VERSION.SDK_INT >= 23 && mIsCapturing && mMediaCodec!= null) {
-            if (DEBUG) Log.d(TAG, "requestKeyFrame" );
-            Bundle params = new Bundle();
-            params.putInt(MediaCodec.PARAMETER_KEY_REQUEST_SYNC_FRAME, 0);
-            mMediaCodec.setParameters(params);
+        if (mIsCapturing && mMediaCodec!= null) {
+            if (DEBUG) FULogger.d(TAG, "requestKeyFrame");
+            mMediaCodec.requestSyncFrame();
         }
     }
     protected void dequeueOutputBufferLoopEnd(){
     }
     protected void dequeueOutputBufferStatus(int outIndex){
         if (DEBUG)
-            Log.d(TAG, "dequeueOutputBufferStatus: " + outIndex+" dequeueOutputBuffer:"+dequeueOutputBuffer);
+            FULogger.d(TAG, () -> "dequeueOutputBufferStatus: " + outIndex+" dequeueOutputBuffer:"+dequeueOutputBuffer);
     }
     protected void onWriteSampleData(Object object){
 
@@ -421,27 +926,85 @@ public abstract class MediaEncoder implements Runnable {
      */
     protected long prevOutputPTSUs = 0;
 
+    /**
+     * 最近一次送入编码器的时间戳，结束信号使用
+     */
+    protected long mLastInputPTSUs = 0;
+
     /**
      * 每帧的时间间隔：视频渲染的时候需要
-     * 单位：毫秒
+     * 单位：微秒
      */
     protected long intervalTime = 33333;
 
+    /**
+     * 帧率（num/den 帧每秒），默认由 intervalTime 换算
+     */
+    private long mFrameRateNum = 1000_000;
+    private long mFrameRateDen = 33333;
+
+    private PresentationClock.Track mClockTrack;
+
     /**
      * 每帧的时间间隔：视频渲染的时候需要
      * @param intervalTime 单位微秒
      */
     public void setIntervalTime(long intervalTime) {
-        this.intervalTime = intervalTime;
+        setFrameRate(1000_000, intervalTime);
+    }
+
+    /**
+     * 按千分之一精度设置帧率，需要在送入第一帧之前调用
+     */
+    public void setFrameRate(float fps) {
+        setFrameRate(Math.round(fps * 1000), 1000);
+    }
+
+    /**
+     * 设置帧率为 num/den 帧每秒（如 30000/1001），需要在送入第一帧之前调用
+     */
+    public void setFrameRate(long num, long den) {
+        mFrameRateNum = num;
+        mFrameRateDen = den;
+        intervalTime = den * 1000_000 / num;
+        mClockTrack = null;
+    }
+
+    /**
+     * 本编码器在 muxer 时钟上的轨道，以帧为 tick，第一次使用时创建
+     */
+    protected PresentationClock.Track getClockTrack() {
+        if (mClockTrack == null) {
+            mClockTrack = createClockTrack(getPresentationClock(), mFrameRateDen, mFrameRateNum);
+        }
+        return mClockTrack;
+    }
+
+    /**
+     * 创建 getClockTrack 返回的轨道，默认使用时钟的模式，子类可以指定模式
+     *
+     * @param tickNum 每帧秒数的分子
+     * @param tickDen 每帧秒数的分母
+     */
+    protected PresentationClock.Track createClockTrack(PresentationClock clock, long tickNum, long tickDen) {
+        return clock.newTrack(tickNum, tickDen);
+    }
+
+    /**
+     * muxer 的时间戳时钟，muxer 已释放时返回独立的时钟
+     */
+    protected PresentationClock getPresentationClock() {
+        final MediaMuxerWrapper muxer = mWeakMuxer != null ? mWeakMuxer.get() : null;
+        return muxer != null ? muxer.getPresentationClock() : new PresentationClock();
     }
 
     /**
      * get next encoding presentationTimeUs
      *
-     * @return
+     * @return 下一帧输入的时间戳，按 muxer 时钟的模式生成
      */
     protected long getPTSUs() {
-        return prevOutputPTSUs += intervalTime;
+        return getClockTrack().nextFrame();
     }
 
     /**
@@ -459,10 +1022,19 @@ public abstract class MediaEncoder implements Runnable {
      */
     public void cancel(MediaMuxerWrapper muxerWrapper){
         if (muxerWrapper!= null){
-            if (DEBUG) Log.d(TAG, "cancel encoder "+this);
+            if (DEBUG) FULogger.d(TAG, () -> "cancel encoder "+this);
             muxerWrapper.stopRecording();
         }
     }
+    /**
+     * 出错时先把最近的编码事件输出到日志，再交给 onError 处理
+     */
+    private void reportError(Exception e) {
+        TRACE.record(TraceRing.EVENT_ENCODER_ERROR, mTrackIndex);
+        TRACE.dumpToLog(TAG);
+        onError(e);
+    }
+
     protected void onError(Exception e) {
         String tip = "您的手机不支持该分辨率视频的导出";
         if (e != null && e.getMessage() != null) {
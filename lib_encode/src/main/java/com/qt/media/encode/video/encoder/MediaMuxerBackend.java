@@ -0,0 +1,57 @@
+package com.qt.media.encode.video.encoder;
+
+import android.media.MediaCodec;
+import android.media.MediaFormat;
+import android.media.MediaMuxer;
+import android.os.Build;
+
+import androidx.annotation.RequiresApi;
+
+import java.io.FileDescriptor;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * 基于 android.media.MediaMuxer 的封装器后端，输出普通 MP4，moov 在 stop 时写入
+ */
+public class MediaMuxerBackend implements MuxerBackend {
+
+    private final MediaMuxer mMuxer;    // API >= 18
+
+    public MediaMuxerBackend(String filePath) throws IOException {
+        mMuxer = new MediaMuxer(filePath, MediaMuxer.OutputFormat.MUXER_OUTPUT_MPEG_4);
+    }
+
+    /**
+     * 写入已打开的文件描述符，需要可读写（"rw"），文件 I/O 由 MediaMuxer 自己完成
+     */
+    @RequiresApi(api = Build.VERSION_CODES.O)
+    public MediaMuxerBackend(FileDescriptor fd) throws IOException {
+        mMuxer = new MediaMuxer(fd, MediaMuxer.OutputFormat.MUXER_OUTPUT_MPEG_4);
+    }
+
+    @Override
+    public int addTrack(MediaFormat format) {
+        return mMuxer.addTrack(format);
+    }
+
+    @Override
+    public void start() {
+        mMuxer.start();
+    }
+
+    @Override
+    public void writeSampleData(int trackIndex, ByteBuffer byteBuf, MediaCodec.BufferInfo bufferInfo) {
+        mMuxer.writeSampleData(trackIndex, byteBuf, bufferInfo);
+    }
+
+    @Override
+    public void stop() {
+        mMuxer.stop();
+    }
+
+    @Override
+    public void release() {
+        mMuxer.release();
+    }
+}
@@ -2,8 +2,11 @@ package com.qt.media.encode.video.encoder;
 
 import android.media.MediaCodec;
 import android.media.MediaFormat;
-import android.media.MediaMuxer;
 import android.util.Log;
+
+import com.qt.media.encode.BuildConfig;
+
+import java.io.FileDescriptor;
 import java.io.IOException;
 import java.nio.ByteBuffer;
 
@@ -12,13 +15,44 @@ import java.nio.ByteBuffer;
  */
 public class MediaMuxerWrapper {
     private static final String TAG = MediaMuxerWrapper.class.getSimpleName();
-    private static final boolean DEBUG = true;
+    private static final boolean DEBUG = BuildConfig.ENCODER_LOG;
+
+    /**
+     * 输出文件格式
+     */
+    public enum OutputFormat {
+        /**
+         * android.media.MediaMuxer 输出的普通 MP4，moov 在录制结束时写入，中途崩溃文件不可用
+         */
+        MPEG_4,
+        /**
+         * FragmentedMp4Writer 输出的 fragmented MP4，按片段追加写入，崩溃时可以播放到最后一个片段，支持边录边传
+         */
+        FRAGMENTED_MPEG_4
+    }
 
     private String mOutputPath;
-    private final MediaMuxer mMediaMuxer;    // API >= 18
+    private final MuxerBackend mMediaMuxer;
+    /**
+     * 编码线程只把样本放入交织队列，由它的写线程写入 mMediaMuxer
+     */
+    private final SampleInterleaver mInterleaver;
     private int mEncoderCount, mStatredCount;
     private boolean mIsStarted;
     private MediaEncoder mVideoEncoder, mAudioEncoder, mAudioExportEncoder;
+    /**
+     * 所有轨道共用的时间戳时钟
+     */
+    private PresentationClock mPresentationClock = new PresentationClock();
+    /**
+     * 编码器与渲染器提交任务的调度会话，第一次使用时在 mScheduler 上创建
+     */
+    private EncoderScheduler mScheduler = EncoderScheduler.getDefault();
+    private EncoderScheduler.Session mSchedulerSession;
+    /**
+     * 本次录制的流水线指标，编码器与渲染器共用
+     */
+    private final EncoderMetrics mMetrics = new EncoderMetrics();
 
     /**
      * Constructor
@@ -26,8 +60,38 @@ public class MediaMuxerWrapper {
      * @throws IOException
      */
     public MediaMuxerWrapper(String filePath) throws IOException {
+        this(filePath, OutputFormat.MPEG_4);
+    }
+
+    public MediaMuxerWrapper(String filePath, OutputFormat format) throws IOException {
+        this(filePath, format, WriteBehindChannel.DEFAULT_BUFFER_SIZE);
+    }
+
+    /**
+     * @param writeBufferSize FRAGMENTED_MPEG_4 的写缓冲字节数，存储卡刷盘慢时由缓冲吸收；MPEG_4 的文件 I/O 由 MediaMuxer 完成，忽略该参数
+     */
+    public MediaMuxerWrapper(String filePath, OutputFormat format, int writeBufferSize) throws IOException {
+        this(filePath, format == OutputFormat.FRAGMENTED_MPEG_4
+                ? new FragmentedMp4MuxerBackend(filePath, writeBufferSize) : new MediaMuxerBackend(filePath));
+    }
+
+    /**
+     * 写入已打开的文件描述符，需要可读写（"rw"），getOutputPath 返回 null
+     * MPEG_4 需要 API >= 26
+     */
+    public MediaMuxerWrapper(FileDescriptor fd, OutputFormat format, int writeBufferSize) throws IOException {
+        this(null, format == OutputFormat.FRAGMENTED_MPEG_4
+                ? new FragmentedMp4MuxerBackend(fd, writeBufferSize) : new MediaMuxerBackend(fd));
+    }
+
+    /**
+     * @param backend 写入 filePath 的封装器后端
+     */
+    public MediaMuxerWrapper(String filePath, MuxerBackend backend) {
         mOutputPath = filePath;
-        mMediaMuxer = new MediaMuxer(mOutputPath, MediaMuxer.OutputFormat.MUXER_OUTPUT_MPEG_4);
+        mMediaMuxer = backend;
+        mInterleaver = new SampleInterleaver(backend);
+        mMetrics.bindInterleaver(mInterleaver);
         mEncoderCount = mStatredCount = 0;
         mIsStarted = false;
     }
@@ -36,6 +100,51 @@ public class MediaMuxerWrapper {
         return mOutputPath;
     }
 
+    public PresentationClock getPresentationClock() {
+        return mPresentationClock;
+    }
+
+    public EncoderMetrics getMetrics() {
+        return mMetrics;
+    }
+
+    /**
+     * 片段写入文件后的回调，只在 FRAGMENTED_MPEG_4 格式下有效，需要在 prepare 之前调用
+     * 回调运行在写缓冲的 I/O 线程，片段已经写入文件，可以用于边录边上传已写出的部分
+     */
+    public void setFragmentListener(FragmentedMp4Writer.FragmentListener listener) {
+        if (mMediaMuxer instanceof FragmentedMp4MuxerBackend) {
+            ((FragmentedMp4MuxerBackend) mMediaMuxer).getWriter().setFragmentListener(listener);
+        }
+    }
+
+    /**
+     * 设置编码任务使用的调度器，需要在创建编码器之前调用，默认为 EncoderScheduler.getDefault()
+     */
+    public synchronized void setScheduler(EncoderScheduler scheduler) {
+        if (mSchedulerSession != null) {
+            throw new IllegalStateException("encoder already created");
+        }
+        mScheduler = scheduler;
+    }
+
+    /**
+     * 本次录制的调度会话，编码器与渲染器在同一个会话中与其它录制公平轮转
+     */
+    public synchronized EncoderScheduler.Session getSchedulerSession() {
+        if (mSchedulerSession == null) {
+            mSchedulerSession = mScheduler.newSession(mOutputPath != null ? mOutputPath : TAG);
+        }
+        return mSchedulerSession;
+    }
+
+    /**
+     * 设置时间戳时钟，需要在 prepare 之前调用
+     */
+    public void setPresentationClock(PresentationClock clock) {
+        mPresentationClock = clock;
+    }
+
     public void prepare() throws IOException, MediaCodec.CodecException, IllegalArgumentException {
         if (mVideoEncoder != null) {
             mVideoEncoder.prepare();
@@ -118,6 +227,7 @@ public class MediaMuxerWrapper {
 
     /**
      * request start recording from encoder
+     * 样本在所有轨道就绪前先进入交织队列，调用方不需要等待返回值为 true
      *
      * @return true when muxer is ready to write
      */
@@ -128,7 +238,7 @@ public class MediaMuxerWrapper {
         }
         mStatredCount++;
         if ((mEncoderCount > 0) && (mStatredCount == mEncoderCount)) {
-            mMediaMuxer.start();
+            mInterleaver.start();
             mIsStarted = true;
             notifyAll();
             if (DEBUG) {
@@ -140,20 +250,29 @@ public class MediaMuxerWrapper {
 
     /**
      * request stop recording from encoder when encoder received EOS
+     * 最后一个轨道停止时等待交织队列写完并关闭文件
+     *
+     * @param trackIndex 停止的轨道
      */
     /*package*/
-    synchronized void stop() {
-        if (DEBUG) {
-            Log.i(TAG, "stop:mStatredCount=" + mStatredCount);
-        }
-        mStatredCount--;
-        if ((mEncoderCount > 0) && (mStatredCount <= 0)) {
-            mMediaMuxer.stop();
-            mMediaMuxer.release();
-            mIsStarted = false;
+    void stop(int trackIndex) {
+        synchronized (this) {
             if (DEBUG) {
-                Log.i(TAG, "MediaMuxer stopped:");
+                Log.i(TAG, "stop:mStatredCount=" + mStatredCount + " trackIndex=" + trackIndex);
+            }
+            mStatredCount--;
+            mInterleaver.finishTrack(trackIndex);
+            if ((mEncoderCount <= 0) || (mStatredCount > 0)) {
+                return;
             }
+            mIsStarted = false;
+        }
+        //写线程写完剩余样本需要时间，不持有锁等待
+        mInterleaver.stop();
+        mMetrics.publish();
+        if (DEBUG) {
+            Log.i(TAG, "MediaMuxer stopped: maxQueueDepth=" + mInterleaver.getMaxQueueDepth()
+                    + " writeLatency avg=" + mInterleaver.getAverageWriteLatencyUs() + "us max=" + mInterleaver.getMaxWriteLatencyUs() + "us");
         }
     }
 
@@ -168,7 +287,7 @@ public class MediaMuxerWrapper {
         if (mIsStarted) {
             throw new IllegalStateException("muxer already started");
         }
-        final int trackIx = mMediaMuxer.addTrack(format);
+        final int trackIx = mInterleaver.addTrack(format);
         if (DEBUG) {
             Log.i(TAG, "addTrack:trackNum=" + mEncoderCount + ",trackIx=" + trackIx + ",format=" + format);
         }
@@ -177,19 +296,57 @@ public class MediaMuxerWrapper {
 
     /**
      * write encoded data to muxer
+     * 数据拷贝到轨道的交织队列后立即返回，不等待文件写入，每个轨道只能由一个线程调用
      *
      * @param trackIndex
      * @param byteBuf
      * @param bufferInfo
      */
     /*package*/
-    synchronized void writeSampleData(final int trackIndex, final ByteBuffer byteBuf, final MediaCodec.BufferInfo bufferInfo) {
-        if (mStatredCount > 0) {
-            mMediaMuxer.writeSampleData(trackIndex, byteBuf, bufferInfo);
-        }
+    void writeSampleData(final int trackIndex, final ByteBuffer byteBuf, final MediaCodec.BufferInfo bufferInfo) {
+        mInterleaver.offer(trackIndex, byteBuf, bufferInfo);
     }
 
     public int getEncoderCount() {
         return mEncoderCount;
     }
+
+    /**
+     * 轨道当前在交织队列中排队的样本数
+     */
+    public int getQueueDepth(int trackIndex) {
+        return mInterleaver.getQueueDepth(trackIndex);
+    }
+
+    /**
+     * 交织队列出现过的最大排队样本数
+     */
+    public int getMaxQueueDepth() {
+        return mInterleaver.getMaxQueueDepth();
+    }
+
+    /**
+     * 样本从编码线程入队到写入文件的平均延迟，单位微秒
+     */
+    public long getAverageWriteLatencyUs() {
+        return mInterleaver.getAverageWriteLatencyUs();
+    }
+
+    /**
+     * 样本从编码线程入队到写入文件的最大延迟，单位微秒
+     */
+    public long getMaxWriteLatencyUs() {
+        return mInterleaver.getMaxWriteLatencyUs();
+    }
+
+    /**
+     * FRAGMENTED_MPEG_4 写缓冲用完时累计等待存储的时间，单位微秒，其它格式为 0
+     */
+    public long getWriteStallTimeUs() {
+        if (mMediaMuxer instanceof FragmentedMp4MuxerBackend) {
+            WriteBehindChannel output = ((FragmentedMp4MuxerBackend) mMediaMuxer).getWriter().getOutput();
+            return output != null ? output.getStallTimeUs() : 0;
+        }
+        return 0;
+    }
 }
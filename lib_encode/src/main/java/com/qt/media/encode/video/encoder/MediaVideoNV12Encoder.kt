@@ -1,20 +1,23 @@
 package com.qt.media.encode.video.encoder
 
-import android.media.MediaCodec
 import android.media.MediaCodecInfo
 import android.media.MediaCodecInfo.CodecCapabilities
-import android.media.MediaCodecList
 import android.media.MediaFormat
 import android.util.Log
+import com.libyuv.util.YuvUtil
+import com.qt.media.encode.BuildConfig
+import com.qt.media.encode.entity.FrameFormat
 import com.qt.media.encode.entity.ImageFrame
+import com.qt.media.encode.help.CpuTimeHelp
 import java.io.IOException
 import java.nio.ByteBuffer
-import java.util.concurrent.ConcurrentLinkedQueue
+import java.util.concurrent.TimeUnit
 
 
 /**
  *nv12数据视频编码
- * 但是在有些机型上有硬件编码适配性问题
+ * 支持 NV12/NV21/YU12(I420)/YV12 输入，通过 MediaCodec#getInputImage 按编码器实际的 stride 与颜色格式直接写入各个平面，
+ * 编码器不支持 Image 时按输入格式的 stride/slice-height 计算平面位置
  */
 class MediaVideoNV12Encoder(
     muxer: MediaMuxerWrapper,
@@ -24,8 +27,17 @@ class MediaVideoNV12Encoder(
     private val presentationTimeUsByPtsUs: Boolean = true
 ) : MediaEncoder(muxer, listener) {
     private var mVideoExportThread: VideoExportThread? = null
-    private val bufferQueue: ConcurrentLinkedQueue<ImageFrame> = ConcurrentLinkedQueue()
+    private val mMetrics: EncoderMetrics = muxer.metrics
+
+    /**
+     * 生产者（调用 frameAvailableSoon 的线程）与导出线程之间的阻塞队列，队列为空时导出线程挂起而不是空转
+     */
+    @Volatile
+    private var bufferQueue = BoundedFrameQueue(BoundedFrameQueue.DEFAULT_CAPACITY, BoundedFrameQueue.DropPolicy.BLOCK)
+        .also { mMetrics.bindFrameQueue(it) }
     private var config: Map<String, Int>? = null
+    private var mColorFormat = 0
+    private val mInputWriter = FrameInputWriter()
     @Throws(IOException::class)
     override fun prepare() {
         try {
@@ -35,14 +47,14 @@ class MediaVideoNV12Encoder(
             mTrackIndex = -1
             mIsEOS = false
             mMuxerStarted = mIsEOS
-            val codecInfo = selectCodec(MIME_TYPE)
-            if (codecInfo == null) {
+            val colorFormats = getColorFormats(MIME_TYPE)
+            if (colorFormats == null) {
                 // Don't fail CTS if they don't have an AVC codec (not here, anyway).
                 Log.e(TAG, "Unable to find an appropriate codec for $MIME_TYPE")
                 return
             }
-            Log.d(TAG, "found codec: " + codecInfo.name)
-            val colorFormat = selectColorFormat(codecInfo, MIME_TYPE)
+            val colorFormat = selectColorFormat(colorFormats)
+            mColorFormat = colorFormat
             Log.d(TAG, "found colorFormat: $colorFormat")
             val format = MediaFormat.createVideoFormat(
                 MIME_TYPE,
@@ -68,8 +80,8 @@ class MediaVideoNV12Encoder(
             if (DEBUG) {
                 Log.i(TAG, "format: $format")
             }
-            mMediaCodec = MediaCodec.createEncoderByType(MIME_TYPE)
-            mMediaCodec.configure(format, null, null, MediaCodec.CONFIGURE_FLAG_ENCODE)
+            mMediaCodec = createEncoder(MIME_TYPE)
+            configureEncoder(format)
             mMediaCodec.start()
             if (DEBUG) {
                 Log.i(TAG, "prepare finishing")
@@ -93,8 +105,29 @@ class MediaVideoNV12Encoder(
     private fun getValueOrDefault(key: String, defaultValue: Int): Int {
         return config?.get(key)?:defaultValue
     }
+
+    /**
+     * 设置帧队列长度与队列满时的处理策略，需要在 startRecording 之前调用
+     *
+     * @param capacity 队列长度
+     * @param policy 队列满时的处理策略，默认 BLOCK 阻塞生产者
+     */
+    fun setFrameQueueConfig(capacity: Int, policy: BoundedFrameQueue.DropPolicy?) {
+        bufferQueue.close()
+        bufferQueue.clear()
+        bufferQueue = BoundedFrameQueue(capacity, policy)
+        mMetrics.bindFrameQueue(bufferQueue)
+    }
+
+    /**
+     * 因队列满被丢弃的帧数
+     */
+    val droppedFrameCount: Long
+        get() = bufferQueue.droppedCount
+
     /**
      * 编码nv12 buffer数据
+     * 入队成功后帧由编码器持有并在编码后 release，入队失败时帧仍由调用方持有
      */
     fun frameAvailableSoon(
         buffer: ImageFrame
@@ -102,7 +135,10 @@ class MediaVideoNV12Encoder(
         if (mVideoExportThread == null) {
             return false
         }
-        return bufferQueue.offer(buffer)
+        if (buffer.captureTimeNs == 0L) {
+            buffer.captureTimeNs = System.nanoTime()
+        }
+        return bufferQueue.offer(buffer) != BoundedFrameQueue.OFFER_REJECTED
     }
 
     override fun startRecording() {
@@ -115,35 +151,73 @@ class MediaVideoNV12Encoder(
         }
     }
 
+    override fun stopRecording() {
+        super.stopRecording()
+        //唤醒等待中的导出线程，队列中剩余的帧由导出线程退出时释放
+        bufferQueue.close()
+    }
+
     override fun release() {
         mVideoExportThread = null
+        bufferQueue.close()
         super.release()
     }
 
     var exportVideoCurTime = 0L
         private set
 
-    private inner class VideoExportThread : Thread() {
+    /**
+     * 导出线程已消耗的 CPU 时间，单位纳秒，不支持统计时为 -1
+     */
+    @Volatile
+    var exportThreadCpuTimeNs = 0L
+        private set
+
+    /**
+     * 导出线程已写入编码器的帧数
+     */
+    @Volatile
+    var exportFrameCount = 0L
+        private set
+
+    /**
+     * presentationTimeUsByPtsUs 为 true 时按帧率计算时间戳，否则使用帧送入的系统时间
+     */
+    override fun createClockTrack(clock: PresentationClock, tickNum: Long, tickDen: Long): PresentationClock.Track {
+        val mode = if (presentationTimeUsByPtsUs) PresentationClock.Mode.FIXED_RATE else PresentationClock.Mode.CAPTURE_TIME
+        return clock.newTrack(mode, tickNum, tickDen)
+    }
+
+    private inner class VideoExportThread : Thread("$TAG-export") {
         override fun run() {
+            val startCpuTime = CpuTimeHelp.currentThreadCpuTimeNs()
             try {
                 if (mIsCapturing) {
                     while (mIsCapturing && !mRequestStop && !mIsEOS) {
-                        val imageFrame = bufferQueue.poll()
-                        val byteArray = imageFrame?.buffer
-                        if (byteArray!= null) {
-//                            val byteArray = swapYV12toI420(imageFrame.buffer,imageFrame.width,imageFrame.height)
-                            val bufferSize = byteArray.size
-                            val byteBuffer = ByteBuffer.wrap(byteArray)
-                            // set nv12 data to encoder
+                        //队列为空时挂起等待，超时只用于重新检查停止标记；setFrameQueueConfig 会替换队列，每次从当前队列取帧
+                        val imageFrame = bufferQueue.poll(POLL_TIMEOUT_MS, TimeUnit.MILLISECONDS)
+                        if (imageFrame != null) {
+                            // set yuv data to encoder
+                            val clockTrack = getClockTrack()
                             val presentationTimeUs =
-                                if (presentationTimeUsByPtsUs || exportVideoCurTime == 0L) {
-                                    ptsUs
+                                if (clockTrack.mode == PresentationClock.Mode.FIXED_RATE) {
+                                    clockTrack.nextFrame()
                                 } else {
-                                    System.currentTimeMillis() - exportVideoCurTime
+                                    clockTrack.fromCaptureTime(imageFrame.captureTimeNs)
                                 }
-                            encode(byteBuffer, bufferSize, presentationTimeUs)
+                            mInputWriter.frame = imageFrame
+                            try {
+                                encode(mInputWriter, presentationTimeUs)
+                            } finally {
+                                //编码器已停止时 encode 会抛出异常，帧同样需要释放
+                                mInputWriter.frame = null
+                                imageFrame.release()
+                            }
+                            markInputFrame()
                             frameAvailableSoon()
                             exportVideoCurTime = System.currentTimeMillis()
+                            exportFrameCount++
+                            updateCpuTime(startCpuTime)
                         }
                     }
 //                    frameAvailableSoon()
@@ -151,38 +225,151 @@ class MediaVideoNV12Encoder(
             } catch (e: Exception) {
                 Log.e(TAG, "VideoExportThread#run", e)
             } finally {
-                bufferQueue.clear()
+                val queue = bufferQueue
+                queue.close()
+                queue.clear()
+                updateCpuTime(startCpuTime)
             }
             if (DEBUG) {
-                Log.v(TAG, "VideoExportThread:finished")
+                Log.v(TAG, "VideoExportThread:finished frames:$exportFrameCount cpuTime:${exportThreadCpuTimeNs / 1000}us")
             }
         }
 
-        private fun swapYV12toI420(yv12bytes: ByteArray, width: Int, height: Int): ByteArray {
-            val i420bytes = ByteArray(yv12bytes.size)
-            for (i in 0 until width * height) i420bytes[i] = yv12bytes[i]
-            for (i in width * height until width * height + width / 2 * height / 2) i420bytes[i] =
-                yv12bytes[i + width / 2 * height / 2]
-            for (i in width * height + width / 2 * height / 2 until width * height + 2 * (width / 2 * height / 2)) i420bytes[i] =
-                yv12bytes[i - width / 2 * height / 2]
-            return i420bytes
+        private fun updateCpuTime(startCpuTime: Long) {
+            if (startCpuTime >= 0) {
+                exportThreadCpuTimeNs = CpuTimeHelp.currentThreadCpuTimeNs() - startCpuTime
+            } else {
+                exportThreadCpuTimeNs = -1
+            }
         }
+    }
+
+    /**
+     * 将一帧 yuv 数据一次转换写入编码器的输入 buffer，无中间数组
+     */
+    private inner class FrameInputWriter : MediaEncoder.InputBufferWriter {
+        var frame: ImageFrame? = null
 
         /**
-         * NV21 is a 4:2:0 YCbCr, For 1 NV21 pixel: YYYYYYYY VUVU I420YUVSemiPlanar
-         * is a 4:2:0 YUV, For a single I420 pixel: YYYYYYYY UVUV Apply NV21 to
-         * I420YUVSemiPlanar(NV12) Refer to https://wiki.videolan.org/YUV/
+         * 不支持 Image 时使用的平面布局，按编码器输入格式计算一次
          */
-        private fun nV21toI420SemiPlanar(
-            nv21bytes: ByteArray, i420bytes: ByteArray,
-            width: Int, height: Int
-        ) {
-            val totle = width * height //Y数据的长度
-            val nLen = totle / 4 //U、V数据的长度
-            System.arraycopy(nv21bytes, 0, i420bytes, 0, totle)
-            for (i in 0 until nLen) {
-                i420bytes[totle + i] = nv21bytes[totle + 2 * i]
-                i420bytes[totle + nLen + i] = nv21bytes[totle + 2 * i + 1]
+        private var stride = 0
+        private var sliceHeight = 0
+
+        override fun write(codec: CodecBackend, index: Int): Int {
+            val frame = frame ?: return 0
+            val src = frame.buffer ?: return 0
+            val srcFormat = yuvFormatOf(frame.format)
+            if (srcFormat < 0 || frame.width != mWidth || frame.height != mHeight) {
+                Log.e(TAG, "not support frame ${frame.format} ${frame.width}x${frame.height}, encoder ${mWidth}x${mHeight}")
+                return 0
+            }
+            //先取 Image，取得 Image 之后同一个下标之前取得的 ByteBuffer 失效，只在不支持 Image 时取 ByteBuffer
+            val image = try {
+                codec.getInputImage(index)
+            } catch (e: Exception) {
+                null
+            }
+            val start = System.nanoTime()
+            val size: Int
+            val result = if (image != null) {
+                val planes = image.planes
+                //平面之间可能有 slice-height 填充（如 1080p 的色度从第 1088 行开始），按平面在输入 buffer 中的实际范围计算大小
+                size = YuvUtil.planesSize(planes[0].buffer, planes[1].buffer, planes[2].buffer)
+                if (size <= 0) {
+                    size
+                } else {
+                    YuvUtil.writeYUVToPlanes(
+                        src, srcFormat, mWidth, mHeight,
+                        planes[0].buffer, planes[0].rowStride,
+                        planes[1].buffer, planes[1].rowStride,
+                        planes[2].buffer, planes[2].rowStride,
+                        planes[1].pixelStride
+                    )
+                }
+            } else {
+                val buffer = codec.getInputBuffer(index) ?: return 0
+                val frameSize = byteBufferFrameSize(codec)
+                //按 stride 计算的各平面大小，不超过 buffer 的容量
+                size = minOf(frameSize, buffer.capacity())
+                writeToByteBuffer(buffer, src, srcFormat, frameSize)
+            }
+            mMetrics.record(EncoderMetrics.Stage.CONVERT, System.nanoTime() - start)
+            if (result != 0) {
+                Log.e(TAG, "writeYUVToPlanes error:$result")
+                return 0
+            }
+            return size
+        }
+
+        /**
+         * 不支持 Image 时按编码器输入格式的 stride/slice-height 计算一帧的大小，第一次调用时读取输入格式
+         */
+        private fun byteBufferFrameSize(codec: CodecBackend): Int {
+            if (stride == 0) {
+                val inputFormat = codec.inputFormat
+                stride = if (inputFormat != null && inputFormat.containsKey(MediaFormat.KEY_STRIDE)) inputFormat.getInteger(MediaFormat.KEY_STRIDE) else mWidth
+                sliceHeight = if (inputFormat != null && inputFormat.containsKey(MediaFormat.KEY_SLICE_HEIGHT)) inputFormat.getInteger(MediaFormat.KEY_SLICE_HEIGHT) else mHeight
+                stride = maxOf(stride, mWidth)
+                sliceHeight = maxOf(sliceHeight, mHeight)
+                Log.d(TAG, "input buffer stride:$stride sliceHeight:$sliceHeight colorFormat:$mColorFormat")
+            }
+            val ySize = stride * sliceHeight
+            val uvHeight = (mHeight + 1) / 2
+            return if (isSemiPlanarYUV(mColorFormat)) {
+                ySize + stride * uvHeight
+            } else {
+                val uvStride = stride / 2
+                ySize + uvStride * (sliceHeight / 2) + uvStride * uvHeight
+            }
+        }
+
+        private fun writeToByteBuffer(buffer: ByteBuffer, src: ByteArray, srcFormat: Int, size: Int): Int {
+            val ySize = stride * sliceHeight
+            val semiPlanar = isSemiPlanarYUV(mColorFormat)
+            //输入与编码器的平面布局相同（NV12/I420）且没有行、平面填充时整帧直接拷贝，不经过 libyuv
+            if (stride == mWidth && sliceHeight == mHeight && mWidth % 2 == 0 && mHeight % 2 == 0 &&
+                srcFormat == (if (semiPlanar) YuvUtil.FORMAT_NV12 else YuvUtil.FORMAT_I420) &&
+                src.size >= size && buffer.capacity() >= size
+            ) {
+                buffer.clear()
+                buffer.put(src, 0, size)
+                return 0
+            }
+            return if (semiPlanar) {
+                YuvUtil.writeYUVToPlanes(
+                    src, srcFormat, mWidth, mHeight,
+                    planeOf(buffer, 0), stride,
+                    planeOf(buffer, ySize), stride,
+                    planeOf(buffer, ySize + 1), stride,
+                    2
+                )
+            } else {
+                val uvStride = stride / 2
+                YuvUtil.writeYUVToPlanes(
+                    src, srcFormat, mWidth, mHeight,
+                    planeOf(buffer, 0), stride,
+                    planeOf(buffer, ySize), uvStride,
+                    planeOf(buffer, ySize + uvStride * (sliceHeight / 2)), uvStride,
+                    1
+                )
+            }
+        }
+
+        private fun planeOf(buffer: ByteBuffer, offset: Int): ByteBuffer {
+            val plane = buffer.duplicate()
+            plane.clear()
+            plane.position(offset)
+            return plane.slice()
+        }
+
+        private fun yuvFormatOf(format: FrameFormat): Int {
+            return when (format) {
+                FrameFormat.FORMAT_NV12 -> YuvUtil.FORMAT_NV12
+                FrameFormat.FORMAT_NV21 -> YuvUtil.FORMAT_NV21
+                FrameFormat.FORMAT_YU12 -> YuvUtil.FORMAT_I420
+                FrameFormat.FORMAT_YV12 -> YuvUtil.FORMAT_YV12
+                else -> -1
             }
         }
     }
@@ -199,7 +386,7 @@ class MediaVideoNV12Encoder(
 
     companion object {
         private val TAG = MediaVideoNV12Encoder::class.java.simpleName
-        private const val DEBUG = true
+        private const val DEBUG = BuildConfig.ENCODER_LOG
         private const val MIME_TYPE = MediaFormat.MIMETYPE_VIDEO_AVC
 //        private const val MIME_TYPE = MediaFormat.MIMETYPE_VIDEO_VP8
 
@@ -208,35 +395,22 @@ class MediaVideoNV12Encoder(
         private const val BPP = 0.25f
 
         /**
-         * Returns the first codec capable of encoding the specified MIME type, or null if no
-         * match was found.
+         * 导出线程等待新帧的超时时间
          */
-        private fun selectCodec(mimeType: String): MediaCodecInfo? {
-            val numCodecs = MediaCodecList.getCodecCount()
-            for (i in 0 until numCodecs) {
-                val codecInfo = MediaCodecList.getCodecInfoAt(i)
-                if (!codecInfo.isEncoder) {
-                    continue
-                }
-                val types = codecInfo.supportedTypes
-                for (j in types.indices) {
-                    if (types[j].equals(mimeType, ignoreCase = true)) {
-                        return codecInfo
-                    }
-                }
-            }
-            return null
-        }
+        private const val POLL_TIMEOUT_MS = 100L
 
         /**
          * Returns a color format that is supported by the codec and by this test code.  If no
          * match is found, this throws a test failure -- the set of formats known to the test
          * should be expanded for new platforms.
          */
-        private fun selectColorFormat(codecInfo: MediaCodecInfo, mimeType: String): Int {
-            val capabilities = codecInfo.getCapabilitiesForType(mimeType)
-            for (i in capabilities.colorFormats.indices) {
-                val colorFormat = capabilities.colorFormats[i]
+        private fun selectColorFormat(colorFormats: IntArray): Int {
+            //优先使用 Flexible，保证 getInputImage 可用，由 Image 的平面描述实际布局
+            if (colorFormats.contains(CodecCapabilities.COLOR_FormatYUV420Flexible)) {
+                return CodecCapabilities.COLOR_FormatYUV420Flexible
+            }
+            for (i in colorFormats.indices) {
+                val colorFormat = colorFormats[i]
                 if (isRecognizedFormat(colorFormat)) {
                     return colorFormat
                 }
@@ -1,9 +1,7 @@
 package com.qt.media.encode.video.encoder;
 
 
-import android.media.MediaCodec;
 import android.media.MediaCodecInfo;
-import android.media.MediaCodecList;
 import android.media.MediaFormat;
 import android.opengl.EGLContext;
 import android.opengl.GLES20;
@@ -48,6 +46,7 @@ public class MediaVideoTextureEncoder extends MediaEncoder {
     private int[] mFboId;
     private int[] mViewPort = new int[4];
     private Map<String, Integer> config;
+    private boolean mConstantFrameRate;
     public MediaVideoTextureEncoder(final MediaMuxerWrapper muxer, final MediaEncoderListener listener, final int videoWidth, final int videoHeight) {
         this(muxer, listener, videoWidth, videoHeight, 0, 0, videoWidth, videoHeight);
     }
@@ -61,6 +60,7 @@ public class MediaVideoTextureEncoder extends MediaEncoder {
         mWidth = videoWidth;
         mHeight = videoHeight;
         mRenderHandler = TextureRenderHandler.createHandler(TAG);
+        mRenderHandler.setMetrics(muxer.getMetrics());
         this.cropX = cropX;
         this.cropY = cropY;
         this.textureWidth = textureWidth;
@@ -68,6 +68,13 @@ public class MediaVideoTextureEncoder extends MediaEncoder {
     }
 
     public boolean frameAvailableSoon(int texId, float[] texMatrix, float[] mvpMatrix,int textureWidth, int textureHeight) {
+        return frameAvailableSoon(texId, texMatrix, mvpMatrix, textureWidth, textureHeight, 0);
+    }
+
+    /**
+     * @param captureTimeNs 纹理帧产生的系统时间（System.nanoTime），为 0 时使用送入编码器的时间
+     */
+    public boolean frameAvailableSoon(int texId, float[] texMatrix, float[] mvpMatrix, int textureWidth, int textureHeight, long captureTimeNs) {
         if (program == null) {
             return false;
         }
@@ -83,10 +90,30 @@ public class MediaVideoTextureEncoder extends MediaEncoder {
         }
         boolean result;
         if (result = super.frameAvailableSoon()) {
-            mRenderHandler.draw(mFboTex[0], texMatrix, FUGLUtils.IDENTITY_MATRIX);
+            mRenderHandler.draw(mFboTex[0], texMatrix, FUGLUtils.IDENTITY_MATRIX, captureTimeNs);
+            markInputFrame();
         }
         return result;
     }
+    /**
+     * 按纹理帧的产生时间把可变帧率输入转换为 setFrameRate 的固定帧率（重复/丢帧），需要在 prepare 之前调用
+     * @see MediaBufferVideoEncoder#setConstantFrameRate(boolean)
+     */
+    public void setConstantFrameRate(boolean enable) {
+        mConstantFrameRate = enable;
+        if (mRenderHandler != null) {
+            mRenderHandler.setConstantFrameRate(enable);
+        }
+    }
+
+    @Override
+    protected PresentationClock.Track createClockTrack(PresentationClock clock, long tickNum, long tickDen) {
+        if (mConstantFrameRate) {
+            return clock.newTrack(PresentationClock.Mode.FIXED_RATE, tickNum, tickDen);
+        }
+        return super.createClockTrack(clock, tickNum, tickDen);
+    }
+
     public void setMediaFormatConfig(Map<String, Integer> config) {
         this.config = config;
     }
@@ -109,17 +136,14 @@ public class MediaVideoTextureEncoder extends MediaEncoder {
             mTrackIndex = -1;
             mMuxerStarted = mIsEOS = false;
 
-            final MediaCodecInfo videoCodecInfo = selectCodec(MIME_TYPE);
-            if (videoCodecInfo == null) {
+            final int[] colorFormats = getColorFormats(MIME_TYPE);
+            if (colorFormats == null) {
                 Log.e(TAG, "Unable to find an appropriate codec for " + MIME_TYPE);
                 return;
-            }else  if(!isSupportFormatSurface(videoCodecInfo,MIME_TYPE)){
+            }else  if(!isSupportFormatSurface(colorFormats)){
                 Log.e(TAG, "not support COLOR_FormatSurface codec for " + MIME_TYPE);
                 return;
             }
-            if (DEBUG) {
-                Log.i(TAG, "selected codec: " + videoCodecInfo.getName());
-            }
 
             final MediaFormat format = MediaFormat.createVideoFormat(MIME_TYPE, mWidth, mHeight);
             format.setInteger(MediaFormat.KEY_COLOR_FORMAT, MediaCodecInfo.CodecCapabilities.COLOR_FormatSurface);    // API >= 18
@@ -130,11 +154,14 @@ public class MediaVideoTextureEncoder extends MediaEncoder {
                 Log.i(TAG, "format: " + format);
             }
 
-            mMediaCodec = MediaCodec.createEncoderByType(MIME_TYPE);
-            mMediaCodec.configure(format, null, null, MediaCodec.CONFIGURE_FLAG_ENCODE);
+            mMediaCodec = createEncoder(MIME_TYPE);
+            configureEncoder(format);
             // get Surface for encoder input
             // this method only can call between #configure and #start
             mSurface = mMediaCodec.createInputSurface();    // API >= 18
+            if (mRenderHandler != null) {
+                mRenderHandler.setClockTrack(getClockTrack());
+            }
             mMediaCodec.start();
             if (DEBUG) {
                 Log.i(TAG, "prepare finishing");
@@ -213,39 +240,16 @@ public class MediaVideoTextureEncoder extends MediaEncoder {
         return bitrate;
     }
 
-    /**
-     * Returns the first codec capable of encoding the specified MIME type, or null if no
-     * match was found.
-     */
-    private MediaCodecInfo selectCodec(String mimeType) {
-        int numCodecs = MediaCodecList.getCodecCount();
-        for (int i = 0; i < numCodecs; i++) {
-            MediaCodecInfo codecInfo = MediaCodecList.getCodecInfoAt(i);
-            if (!codecInfo.isEncoder()) {
-                continue;
-            }
-            String[] types = codecInfo.getSupportedTypes();
-            for (int j = 0; j < types.length; j++) {
-                if (types[j].equals(mimeType)) {
-                    return codecInfo;
-                }
-            }
-        }
-
-        return null;
-    }
     /**
      * Returns a color format that is supported by the codec and by this test code.  If no
      * match is found, this throws a test failure -- the set of formats known to the test
      * should be expanded for new platforms.
      */
-    private Boolean isSupportFormatSurface(MediaCodecInfo codecInfo, String mimeType) {
-        MediaCodecInfo.CodecCapabilities capabilities = codecInfo.getCapabilitiesForType(mimeType);
-        for (int i = 0; i < capabilities.colorFormats.length; i++) {
-            int colorFormat = capabilities.colorFormats[i];
+    private Boolean isSupportFormatSurface(int[] colorFormats) {
+        for (int i = 0; i < colorFormats.length; i++) {
+            int colorFormat = colorFormats[i];
             if (colorFormat == MediaCodecInfo.CodecCapabilities.COLOR_FormatSurface) {
                 // 编解码器支持 COLOR_FormatSurface 格式
-                Log.d(TAG, "Codec " + codecInfo.getName() + " supports FormatSurface encoding");
                 return true;
             }
         }
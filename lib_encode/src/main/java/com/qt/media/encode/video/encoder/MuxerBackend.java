@@ -0,0 +1,33 @@
+package com.qt.media.encode.video.encoder;
+
+import android.media.MediaCodec;
+import android.media.MediaFormat;
+
+import java.nio.ByteBuffer;
+
+/**
+ * 封装器后端，MediaMuxerWrapper 只通过该接口写文件
+ * 默认实现为 MediaMuxerBackend（android.media.MediaMuxer），FragmentedMp4MuxerBackend 输出可边录边播的 fragmented MP4
+ * 参数、返回值与调用顺序的要求与 MediaMuxer 一致
+ */
+public interface MuxerBackend {
+
+    /**
+     * 添加轨道，只能在 start 之前调用
+     *
+     * @param format 编码器 INFO_OUTPUT_FORMAT_CHANGED 时给出的格式，需要包含 csd
+     * @return 轨道下标
+     */
+    int addTrack(MediaFormat format);
+
+    void start();
+
+    /**
+     * 写入一个编码后的样本，byteBuf 中 [bufferInfo.offset, bufferInfo.offset + bufferInfo.size) 的数据，返回后即可复用
+     */
+    void writeSampleData(int trackIndex, ByteBuffer byteBuf, MediaCodec.BufferInfo bufferInfo);
+
+    void stop();
+
+    void release();
+}
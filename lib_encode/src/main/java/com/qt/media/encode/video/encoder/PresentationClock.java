@@ -0,0 +1,214 @@
+package com.qt.media.encode.video.encoder;
+
+/**
+ * 一个 muxer 内所有轨道共用的时间戳时钟
+ * <p>
+ * 每个轨道（{@link Track}）有自己的有理数时间基（一个 tick = num/den 秒，如视频 1001/30000、音频 1/44100），
+ * 时间戳由 tick 数直接换算为微秒，不做浮点累加，任意时长都不会漂移；所有轨道共享同一个起点，
+ * 返回的时间戳在单个轨道内严格递增。
+ * FIXED_RATE 轨道还可以通过 {@link Track#slotsFor(long)} 把可变帧率的输入按到达时间重复/丢帧转换为固定帧率。
+ * <ul>
+ * <li>FIXED_RATE：按固定帧率/采样率计数，第 n 个 tick 的时间戳为 n * num / den 秒</li>
+ * <li>CAPTURE_TIME：使用帧到达时的系统时间（System.nanoTime），以所有轨道中第一个到达的帧为起点</li>
+ * <li>VARIABLE_RATE：使用调用方提供的源时间戳（该轨道时间基下的 tick），以所有轨道中第一个源时间戳为起点，
+ * 没有源时间戳时退回 CAPTURE_TIME</li>
+ * </ul>
+ */
+public class PresentationClock {
+
+    public enum Mode {
+        FIXED_RATE,
+        CAPTURE_TIME,
+        VARIABLE_RATE
+    }
+
+    private static final long US_PER_SECOND = 1000_000L;
+    private static final long NS_PER_SECOND = 1000_000_000L;
+
+    private final Mode mMode;
+
+    /**
+     * 共享起点，单位纳秒（CAPTURE_TIME）与微秒（VARIABLE_RATE），未确定时为 -1
+     */
+    private long mCaptureBaseNs = -1;
+    private long mStampBaseUs = -1;
+
+    public PresentationClock() {
+        this(Mode.FIXED_RATE);
+    }
+
+    /**
+     * @param mode 未指定模式的轨道使用的模式
+     */
+    public PresentationClock(Mode mode) {
+        mMode = mode;
+    }
+
+    public Mode getMode() {
+        return mMode;
+    }
+
+    /**
+     * 创建使用默认模式的轨道
+     *
+     * @param tickNum 一个 tick 的秒数的分子
+     * @param tickDen 一个 tick 的秒数的分母
+     */
+    public Track newTrack(long tickNum, long tickDen) {
+        return new Track(mMode, tickNum, tickDen);
+    }
+
+    public Track newTrack(Mode mode, long tickNum, long tickDen) {
+        return new Track(mode, tickNum, tickDen);
+    }
+
+    /**
+     * 以帧为 tick 的轨道，帧率按千分之一精度转换为有理数（29.97 即 1000/29970 秒每帧）
+     */
+    public Track newFrameRateTrack(float fps) {
+        if (fps <= 0) {
+            throw new IllegalArgumentException("fps must be positive: " + fps);
+        }
+        return newTrack(1000, Math.round(fps * 1000));
+    }
+
+    private synchronized long captureBaseNs(long timeNs) {
+        if (mCaptureBaseNs < 0) {
+            mCaptureBaseNs = timeNs;
+        }
+        return mCaptureBaseNs;
+    }
+
+    private synchronized long stampBaseUs(long timeUs) {
+        if (mStampBaseUs < 0) {
+            mStampBaseUs = timeUs;
+        }
+        return mStampBaseUs;
+    }
+
+    /**
+     * 单个轨道的时间戳，同一轨道只应在一个线程中使用
+     */
+    public final class Track {
+        private final Mode mTrackMode;
+        private final long mTickNum;
+        private final long mTickDen;
+        /**
+         * slotsFor 一次最多返回的输出帧数，约一秒的 tick
+         */
+        private final int mMaxSlots;
+        private long mTicks;
+        private long mLastPtsUs = -1;
+
+        private Track(Mode mode, long tickNum, long tickDen) {
+            if (tickNum <= 0 || tickDen <= 0) {
+                throw new IllegalArgumentException("invalid timebase " + tickNum + "/" + tickDen);
+            }
+            long gcd = gcd(tickNum, tickDen);
+            mTrackMode = mode;
+            mTickNum = tickNum / gcd;
+            mTickDen = tickDen / gcd;
+            mMaxSlots = (int) Math.max(1, Math.min((mTickDen + mTickNum - 1) / mTickNum, Integer.MAX_VALUE));
+        }
+
+        public Mode getMode() {
+            return mTrackMode;
+        }
+
+        /**
+         * 下一帧的时间戳：FIXED_RATE 前进一个 tick，其它模式使用当前系统时间
+         */
+        public long nextFrame() {
+            if (mTrackMode == Mode.FIXED_RATE) {
+                return advance(1);
+            }
+            return fromCaptureTime(System.nanoTime());
+        }
+
+        /**
+         * 返回当前位置的时间戳，之后前进 ticks（如一次写入的音频帧数），与模式无关
+         */
+        public long advance(long ticks) {
+            long ptsUs = monotonic(ptsOf(mTicks));
+            mTicks += ticks;
+            return ptsUs;
+        }
+
+        /**
+         * 帧到达的系统时间（System.nanoTime）对应的时间戳
+         */
+        public long fromCaptureTime(long timeNs) {
+            long base = captureBaseNs(timeNs);
+            return monotonic((timeNs - base) / 1000);
+        }
+
+        /**
+         * 源时间戳（该轨道时间基下的 tick 数，如解码得到的 pts）对应的时间戳
+         */
+        public long fromTimestamp(long ticks) {
+            long timeUs = ptsOf(ticks);
+            long base = stampBaseUs(timeUs);
+            return monotonic(timeUs - base);
+        }
+
+        /**
+         * 可变帧率输入转固定帧率输出（FIXED_RATE）：按帧到达的系统时间计算这一帧需要输出几次，之后每输出一次调用一次 nextFrame
+         * 到达时间按 tick 四舍五入到输出帧位置，与 CAPTURE_TIME 轨道共用起点；
+         * 落在已输出的位置上时返回 0（丢帧），跳过了 n 个位置时返回 n + 1（用这一帧补齐中间缺少的帧）；
+         * 长时间没有输入（暂停、切到后台）时最多补齐约一秒的帧，更早的位置直接跳过，时间戳在此处出现间隔
+         */
+        public int slotsFor(long captureTimeNs) {
+            long elapsedNs = Math.max(0, captureTimeNs - captureBaseNs(captureTimeNs));
+            //slot = round(elapsedNs * den / (num * 1e9))，同样拆成两部分避免溢出
+            long tickNs = mTickNum * NS_PER_SECOND;
+            long slot = elapsedNs / tickNs * mTickDen + (elapsedNs % tickNs * mTickDen + tickNs / 2) / tickNs;
+            long count = slot - mTicks + 1;
+            if (count > mMaxSlots) {
+                mTicks += count - mMaxSlots;
+                return mMaxSlots;
+            }
+            return (int) Math.max(0, count);
+        }
+
+        /**
+         * tick 数换算为微秒（四舍五入），不改变轨道状态
+         */
+        public long ptsOf(long ticks) {
+            //拆成整数倍与余数两部分，避免 ticks * 1000000 * num 溢出
+            long whole = ticks / mTickDen;
+            long rest = ticks % mTickDen;
+            return whole * mTickNum * US_PER_SECOND + (rest * mTickNum * US_PER_SECOND + mTickDen / 2) / mTickDen;
+        }
+
+        /**
+         * 已前进的 tick 数（FIXED_RATE）
+         */
+        public long getTicks() {
+            return mTicks;
+        }
+
+        /**
+         * 最近一次返回的时间戳，还没有返回过时为 0
+         */
+        public long getLastPtsUs() {
+            return Math.max(mLastPtsUs, 0);
+        }
+
+        private long monotonic(long ptsUs) {
+            if (ptsUs <= mLastPtsUs) {
+                ptsUs = mLastPtsUs + 1;
+            }
+            mLastPtsUs = ptsUs;
+            return ptsUs;
+        }
+    }
+
+    private static long gcd(long a, long b) {
+        while (b != 0) {
+            long t = a % b;
+            a = b;
+            b = t;
+        }
+        return a;
+    }
+}
@@ -0,0 +1,447 @@
+package com.qt.media.encode.video.encoder;
+
+import android.media.MediaCodec;
+import android.media.MediaFormat;
+import android.util.Log;
+
+import com.qt.media.encode.BuildConfig;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * muxer 前的样本交织写入
+ * <p>
+ * 每个轨道一个单生产者单消费者（SPSC）的无锁环形队列：编码器的输出线程只把样本拷贝进自己轨道的队列后立即返回，
+ * 不竞争锁也不等待文件 I/O；一个写线程按时间戳从各轨道队列中取最早的样本写入 MuxerBackend。
+ * 所有轨道 start 之前到达的样本留在队列中，写线程在全部轨道就绪后才启动 backend，编码线程不需要等待其它轨道。
+ * <p>
+ * 交织规则：写出一个样本前需要其它未结束的轨道也有样本排队（才能确定谁最早），
+ * 等待超过 MAX_INTERLEAVE_DELAY_NS 或该轨道队列超过一半容量时不再等待。
+ * 队列满（写线程跟不上）时生产者挂起等待，这是唯一会阻塞编码线程的情况。
+ */
+public final class SampleInterleaver {
+    private static final boolean DEBUG = BuildConfig.ENCODER_LOG;
+    private static final String TAG = "SampleInterleaver";
+
+    /**
+     * 每个轨道的队列容量，需要是 2 的幂；槽位的 buffer 会复用，容量也决定了常驻内存
+     */
+    public static final int DEFAULT_QUEUE_CAPACITY = 64;
+
+    private static final long MAX_INTERLEAVE_DELAY_NS = TimeUnit.MILLISECONDS.toNanos(500);
+    private static final long IDLE_WAIT_NS = TimeUnit.MILLISECONDS.toNanos(10);
+    private static final long FULL_WAIT_NS = TimeUnit.MILLISECONDS.toNanos(1);
+
+    private final MuxerBackend mBackend;
+    private final int mQueueCapacity;
+    private final List<SampleQueue> mQueues = new ArrayList<>();
+    /**
+     * 写线程开始后不再添加轨道，写线程读取时使用这个快照
+     */
+    private volatile SampleQueue[] mQueueArray = new SampleQueue[0];
+
+    private volatile Thread mWriterThread;
+    private volatile boolean mWriterWaiting;
+    private volatile boolean mStopping;
+    private volatile boolean mReleased;
+
+    private volatile long mWrittenCount;
+    private volatile long mTotalWriteLatencyNs;
+    private volatile long mMaxWriteLatencyNs;
+    private volatile LatencyHistogram mWriteHistogram;
+
+    public SampleInterleaver(MuxerBackend backend) {
+        this(backend, DEFAULT_QUEUE_CAPACITY);
+    }
+
+    /**
+     * @param queueCapacity 每个轨道的队列容量，会向上取到 2 的幂
+     */
+    public SampleInterleaver(MuxerBackend backend, int queueCapacity) {
+        mBackend = backend;
+        int capacity = 1;
+        while (capacity < queueCapacity) {
+            capacity <<= 1;
+        }
+        mQueueCapacity = capacity;
+    }
+
+    /**
+     * 添加轨道，需要在 start 之前调用，返回 backend 的轨道下标
+     */
+    public synchronized int addTrack(MediaFormat format) {
+        if (mWriterThread != null) {
+            throw new IllegalStateException("interleaver already started");
+        }
+        int trackIndex = mBackend.addTrack(format);
+        while (mQueues.size() <= trackIndex) {
+            mQueues.add(null);
+        }
+        mQueues.set(trackIndex, new SampleQueue(trackIndex, mQueueCapacity));
+        mQueueArray = mQueues.toArray(new SampleQueue[0]);
+        return trackIndex;
+    }
+
+    /**
+     * 所有轨道都已添加，启动写线程，由写线程启动 backend 并写出已排队的样本
+     */
+    public synchronized void start() {
+        if (mWriterThread != null || mReleased) {
+            return;
+        }
+        mWriterThread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                writeLoop();
+            }
+        }, TAG);
+        mWriterThread.start();
+    }
+
+    /**
+     * 拷贝一个样本到轨道队列，只能由该轨道的输出线程调用，返回后 byteBuf 可以归还给编码器
+     *
+     * @return false 轨道不存在或已经停止，样本被丢弃
+     */
+    public boolean offer(int trackIndex, ByteBuffer byteBuf, MediaCodec.BufferInfo bufferInfo) {
+        SampleQueue[] queues = mQueueArray;
+        if (trackIndex < 0 || trackIndex >= queues.length || queues[trackIndex] == null) {
+            return false;
+        }
+        SampleQueue queue = queues[trackIndex];
+        if (queue.finished) {
+            return false;
+        }
+        while (queue.isFull()) {
+            if (mReleased) {
+                return false;
+            }
+            wakeWriter();
+            LockSupport.parkNanos(FULL_WAIT_NS);
+        }
+        queue.put(byteBuf, bufferInfo);
+        wakeWriter();
+        return true;
+    }
+
+    /**
+     * 轨道不会再有样本，不再等待它交织
+     */
+    public void finishTrack(int trackIndex) {
+        SampleQueue[] queues = mQueueArray;
+        if (trackIndex >= 0 && trackIndex < queues.length && queues[trackIndex] != null) {
+            queues[trackIndex].finished = true;
+            wakeWriter();
+        }
+    }
+
+    /**
+     * 写出所有排队的样本后停止并释放 backend，阻塞到文件写完
+     */
+    public void stop() {
+        Thread writer;
+        synchronized (this) {
+            mStopping = true;
+            for (SampleQueue queue : mQueueArray) {
+                if (queue != null) {
+                    queue.finished = true;
+                }
+            }
+            writer = mWriterThread;
+        }
+        if (writer == null) {
+            //没有启动过，backend 里没有数据
+            mReleased = true;
+            releaseBackend(false);
+            return;
+        }
+        LockSupport.unpark(writer);
+        try {
+            writer.join();
+        } catch (InterruptedException e) {
+            Log.e(TAG, "stop interrupted", e);
+            Thread.currentThread().interrupt();
+        }
+        mReleased = true;
+    }
+
+    /**
+     * 轨道当前排队的样本数
+     */
+    public int getQueueDepth(int trackIndex) {
+        SampleQueue[] queues = mQueueArray;
+        if (trackIndex < 0 || trackIndex >= queues.length || queues[trackIndex] == null) {
+            return 0;
+        }
+        return queues[trackIndex].size();
+    }
+
+    /**
+     * 所有轨道中出现过的最大排队样本数
+     */
+    public int getMaxQueueDepth() {
+        int max = 0;
+        for (SampleQueue queue : mQueueArray) {
+            if (queue != null) {
+                max = Math.max(max, queue.maxDepth);
+            }
+        }
+        return max;
+    }
+
+    /**
+     * 样本从入队到写入 backend 的平均延迟，单位微秒
+     */
+    public long getAverageWriteLatencyUs() {
+        long count = mWrittenCount;
+        return count > 0 ? mTotalWriteLatencyNs / count / 1000 : 0;
+    }
+
+    /**
+     * 样本从入队到写入 backend 的最大延迟，单位微秒
+     */
+    public long getMaxWriteLatencyUs() {
+        return mMaxWriteLatencyNs / 1000;
+    }
+
+    /**
+     * 记录每个样本入队到写入的延迟，传 null 不记录
+     */
+    public void setWriteHistogram(LatencyHistogram histogram) {
+        mWriteHistogram = histogram;
+    }
+
+    public long getWrittenSampleCount() {
+        return mWrittenCount;
+    }
+
+    private void wakeWriter() {
+        if (mWriterWaiting) {
+            Thread writer = mWriterThread;
+            if (writer != null) {
+                LockSupport.unpark(writer);
+            }
+        }
+    }
+
+    private void writeLoop() {
+        boolean started = false;
+        try {
+            mBackend.start();
+            started = true;
+            if (DEBUG) Log.i(TAG, "backend started, tracks:" + mQueueArray.length);
+            final MediaCodec.BufferInfo info = new MediaCodec.BufferInfo();
+            for (; ; ) {
+                SampleQueue[] queues = mQueueArray;
+                SampleQueue next = null;
+                long nextPts = Long.MAX_VALUE;
+                boolean waitingTrack = false;
+                boolean allDone = true;
+                for (SampleQueue queue : queues) {
+                    if (queue == null) {
+                        continue;
+                    }
+                    //先读 finished 再判断是否为空，finished 之后不会再有新样本
+                    boolean finished = queue.finished;
+                    if (queue.isEmpty()) {
+                        if (!finished) {
+                            waitingTrack = true;
+                            allDone = false;
+                        }
+                        continue;
+                    }
+                    allDone = false;
+                    long pts = queue.peekPts();
+                    if (pts < nextPts) {
+                        nextPts = pts;
+                        next = queue;
+                    }
+                }
+                if (next == null) {
+                    if (allDone) {
+                        break;
+                    }
+                    await(IDLE_WAIT_NS);
+                    continue;
+                }
+                if (waitingTrack && !mStopping) {
+                    long waitedNs = System.nanoTime() - next.peekEnqueueNs();
+                    if (waitedNs < MAX_INTERLEAVE_DELAY_NS && next.size() < mQueueCapacity / 2) {
+                        await(Math.min(IDLE_WAIT_NS, MAX_INTERLEAVE_DELAY_NS - waitedNs));
+                        continue;
+                    }
+                }
+                writeHead(next, info);
+            }
+        } catch (Exception e) {
+            Log.e(TAG, "writeLoop", e);
+        } finally {
+            //出错时释放生产者，之后的样本直接丢弃
+            mReleased = true;
+            for (SampleQueue queue : mQueueArray) {
+                if (queue != null) {
+                    queue.finished = true;
+                }
+            }
+            releaseBackend(started);
+            if (DEBUG) {
+                Log.i(TAG, "writer finished, samples:" + mWrittenCount + " maxDepth:" + getMaxQueueDepth()
+                        + " writeLatency avg:" + getAverageWriteLatencyUs() + "us max:" + getMaxWriteLatencyUs() + "us");
+            }
+        }
+    }
+
+    private void writeHead(SampleQueue queue, MediaCodec.BufferInfo info) {
+        int slot = queue.headSlot();
+        ByteBuffer data = queue.data[slot];
+        data.position(0);
+        data.limit(queue.sizes[slot]);
+        info.set(0, queue.sizes[slot], queue.pts[slot], queue.flags[slot]);
+        mBackend.writeSampleData(queue.trackIndex, data, info);
+        long latencyNs = System.nanoTime() - queue.enqueueNs[slot];
+        queue.advanceHead();
+        mTotalWriteLatencyNs += latencyNs;
+        mWrittenCount++;
+        if (latencyNs > mMaxWriteLatencyNs) {
+            mMaxWriteLatencyNs = latencyNs;
+        }
+        final LatencyHistogram histogram = mWriteHistogram;
+        if (histogram != null) {
+            histogram.recordNanos(latencyNs);
+        }
+    }
+
+    private void await(long timeoutNs) {
+        mWriterWaiting = true;
+        if (!hasPendingWork()) {
+            LockSupport.parkNanos(this, timeoutNs);
+        }
+        mWriterWaiting = false;
+    }
+
+    /**
+     * 设置等待标记后再检查一次，避免生产者在检查之前入队而错过唤醒
+     */
+    private boolean hasPendingWork() {
+        if (mStopping) {
+            return true;
+        }
+        for (SampleQueue queue : mQueueArray) {
+            if (queue != null && queue.newSinceCheck()) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private void releaseBackend(boolean started) {
+        if (started) {
+            try {
+                mBackend.stop();
+            } catch (Exception e) {
+                Log.e(TAG, "failed stopping muxer backend", e);
+            }
+        }
+        try {
+            mBackend.release();
+        } catch (Exception e) {
+            Log.e(TAG, "failed releasing muxer backend", e);
+        }
+    }
+
+    /**
+     * 单个轨道的 SPSC 环形队列，tail 只由生产者写，head 只由写线程写
+     */
+    private static final class SampleQueue {
+        final int trackIndex;
+        final int mask;
+        final ByteBuffer[] data;
+        final int[] sizes;
+        final int[] flags;
+        final long[] pts;
+        final long[] enqueueNs;
+        final AtomicLong head = new AtomicLong();
+        final AtomicLong tail = new AtomicLong();
+        volatile boolean finished;
+        volatile int maxDepth;
+        /**
+         * 写线程上次检查时看到的 tail
+         */
+        long checkedTail;
+
+        SampleQueue(int trackIndex, int capacity) {
+            this.trackIndex = trackIndex;
+            mask = capacity - 1;
+            data = new ByteBuffer[capacity];
+            sizes = new int[capacity];
+            flags = new int[capacity];
+            pts = new long[capacity];
+            enqueueNs = new long[capacity];
+        }
+
+        int size() {
+            return (int) (tail.get() - head.get());
+        }
+
+        boolean isEmpty() {
+            return tail.get() == head.get();
+        }
+
+        boolean isFull() {
+            return tail.get() - head.get() > mask;
+        }
+
+        void put(ByteBuffer byteBuf, MediaCodec.BufferInfo bufferInfo) {
+            long t = tail.get();
+            int slot = (int) t & mask;
+            ByteBuffer buffer = data[slot];
+            if (buffer == null || buffer.capacity() < bufferInfo.size) {
+                buffer = ByteBuffer.allocate(Math.max(bufferInfo.size, buffer != null ? buffer.capacity() * 3 / 2 : 0));
+                data[slot] = buffer;
+            }
+            ByteBuffer src = byteBuf.duplicate();
+            src.limit(bufferInfo.offset + bufferInfo.size);
+            src.position(bufferInfo.offset);
+            buffer.clear();
+            buffer.put(src);
+            sizes[slot] = bufferInfo.size;
+            flags[slot] = bufferInfo.flags;
+            pts[slot] = bufferInfo.presentationTimeUs;
+            enqueueNs[slot] = System.nanoTime();
+            //volatile 写：发布槽位内容，并与写线程的等待标记构成先写后读的顺序
+            tail.set(t + 1);
+            int depth = (int) (t + 1 - head.get());
+            if (depth > maxDepth) {
+                maxDepth = depth;
+            }
+        }
+
+        int headSlot() {
+            return (int) head.get() & mask;
+        }
+
+        long peekPts() {
+            return pts[headSlot()];
+        }
+
+        long peekEnqueueNs() {
+            return enqueueNs[headSlot()];
+        }
+
+        void advanceHead() {
+            head.lazySet(head.get() + 1);
+        }
+
+        boolean newSinceCheck() {
+            long t = tail.get();
+            boolean changed = t != checkedTail;
+            checkedTail = t;
+            return changed;
+        }
+    }
+}
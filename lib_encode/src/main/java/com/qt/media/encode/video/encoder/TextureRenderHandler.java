@@ -5,9 +5,11 @@ import android.opengl.EGLContext;
 import android.opengl.GLES20;
 import android.opengl.Matrix;
 import android.text.TextUtils;
-import android.util.Log;
 import android.view.Surface;
 
+import com.qt.camera.log.FULogger;
+import com.qt.camera.log.TraceRing;
+import com.qt.media.encode.BuildConfig;
 import com.qt.media.encode.program.FUProgramTexture2d;
 import com.qt.media.encode.program.core.FUEglCore;
 import com.qt.media.encode.program.core.FUProgram;
@@ -18,7 +20,8 @@ import com.qt.media.encode.program.core.FUWindowSurface;
  * Helper class to draw texture to whole view on private thread
  */
 public final class TextureRenderHandler implements Runnable {
-    private static final boolean DEBUG = true;    // TODO set false on release
+    private static final boolean DEBUG = BuildConfig.ENCODER_LOG;
+    private static final TraceRing TRACE = TraceRing.getDefault();
     private static final String TAG = "Video_RenderHandler";
 
     private final Object mSync = new Object();
@@ -31,6 +34,19 @@ public final class TextureRenderHandler implements Runnable {
     private volatile boolean mRequestSetEglContext;
     private volatile boolean mRequestRelease;
     private volatile int mRequestDraw;
+    /**
+     * 写入 Surface 的时间戳，未设置时由系统使用当前时间
+     */
+    private volatile PresentationClock.Track mClockTrack;
+    /**
+     * 最近一次 draw 的纹理帧产生的系统时间（System.nanoTime）
+     */
+    private long mCaptureTimeNs;
+    /**
+     * 按 mCaptureTimeNs 转换为固定帧率：帧间隔过长时重复输出，过短时丢帧，需要 FIXED_RATE 轨道
+     */
+    private volatile boolean mConstantFrameRate;
+    private volatile EncoderMetrics mMetrics;
 
     private FUWindowSurface mInputWindowSurface;
     private FUEglCore mEglCore;
@@ -38,7 +54,7 @@ public final class TextureRenderHandler implements Runnable {
 
     public static final TextureRenderHandler createHandler(final String name) {
         if (DEBUG) {
-            Log.v(TAG, "createHandler:");
+            FULogger.v(TAG, "createHandler:");
         }
         final TextureRenderHandler handler = new TextureRenderHandler();
         synchronized (handler.mSync) {
@@ -53,7 +69,7 @@ public final class TextureRenderHandler implements Runnable {
 
     public final void setEglContext(final EGLContext shared_context, final Surface surface, final int texId) {
         if (DEBUG) {
-            Log.i(TAG, "setEglContext:");
+            FULogger.i(TAG, "setEglContext:");
         }
         synchronized (mSync) {
             if (mRequestRelease) {
@@ -74,11 +90,19 @@ public final class TextureRenderHandler implements Runnable {
     }
 
     public final void draw(final int tex_id, final float[] tex_matrix, final float[] mvp_matrix) {
+        draw(tex_id, tex_matrix, mvp_matrix, 0);
+    }
+
+    /**
+     * @param captureTimeNs 纹理帧产生的系统时间（System.nanoTime），为 0 时使用调用时的时间
+     */
+    public final void draw(final int tex_id, final float[] tex_matrix, final float[] mvp_matrix, final long captureTimeNs) {
         synchronized (mSync) {
             if (mRequestRelease) {
                 return;
             }
             mTexId = tex_id;
+            mCaptureTimeNs = captureTimeNs != 0 ? captureTimeNs : System.nanoTime();
             if ((tex_matrix != null) && (tex_matrix.length >= 16)) {
                 System.arraycopy(tex_matrix, 0, mTexMatrix, 0, 16);
             } else {
@@ -94,6 +118,28 @@ public final class TextureRenderHandler implements Runnable {
         }
     }
 
+    /**
+     * 使用编码器在 muxer 时钟上的轨道生成时间戳
+     */
+    public void setClockTrack(PresentationClock.Track clockTrack) {
+        mClockTrack = clockTrack;
+    }
+
+    /**
+     * 开启后按纹理帧的产生时间把可变帧率输入转换为固定帧率输出
+     * @see PresentationClock.Track#slotsFor(long)
+     */
+    public void setConstantFrameRate(boolean enable) {
+        mConstantFrameRate = enable;
+    }
+
+    /**
+     * 设置记录绘制与 swapBuffers 耗时的指标
+     */
+    public void setMetrics(EncoderMetrics metrics) {
+        mMetrics = metrics;
+    }
+
     public boolean isValid() {
         synchronized (mSync) {
             return !(mSurface instanceof Surface) || ((Surface) mSurface).isValid();
@@ -102,7 +148,7 @@ public final class TextureRenderHandler implements Runnable {
 
     public final void release() {
         if (DEBUG) {
-            Log.i(TAG, "release:");
+            FULogger.i(TAG, "release:");
         }
         synchronized (mSync) {
             if (mRequestRelease) {
@@ -123,7 +169,7 @@ public final class TextureRenderHandler implements Runnable {
     @Override
     public final void run() {
         if (DEBUG) {
-            Log.i(TAG, "RenderHandler thread started:");
+            FULogger.i(TAG, "RenderHandler thread started:");
         }
         synchronized (mSync) {
             mRequestSetEglContext = mRequestRelease = false;
@@ -131,6 +177,7 @@ public final class TextureRenderHandler implements Runnable {
             mSync.notifyAll();
         }
         boolean localRequestDraw;
+        long captureTimeNs = 0;
         for (; ; ) {
             synchronized (mSync) {
                 if (mRequestRelease) {
@@ -143,16 +190,12 @@ public final class TextureRenderHandler implements Runnable {
                 localRequestDraw = mRequestDraw > 0;
                 if (localRequestDraw) {
                     mRequestDraw--;
+                    captureTimeNs = mCaptureTimeNs;
                 }
             }
             if (localRequestDraw) {
                 if ((mEglCore != null) && mTexId >= 0) {
-                    mInputWindowSurface.makeCurrent();
-                    // clear screen with yellow color so that you can see rendering rectangle
-                    GLES20.glClearColor(1.0f, 1.0f, 1.0f, 1.0f);
-                    GLES20.glClear(GLES20.GL_COLOR_BUFFER_BIT | GLES20.GL_DEPTH_BUFFER_BIT);
-                    mProgramTexture2d.drawFrame(mTexId, mTexMatrix, mMvpMatrix);
-                    mInputWindowSurface.swapBuffers();
+                    drawFrame(captureTimeNs);
                 }
             } else {
                 synchronized (mSync) {
@@ -170,13 +213,51 @@ public final class TextureRenderHandler implements Runnable {
             mSync.notifyAll();
         }
         if (DEBUG) {
-            Log.i(TAG, "RenderHandler thread finished:");
+            FULogger.i(TAG, "RenderHandler thread finished:");
+        }
+    }
+
+    /**
+     * 绘制一帧纹理，在渲染线程中执行
+     */
+    private void drawFrame(final long captureTimeNs) {
+        final PresentationClock.Track clockTrack = mClockTrack;
+        //多次 draw 合并到一次绘制时使用最后一帧的时间，固定帧率转换时合并后的帧会落在同一位置上被丢弃
+        final int count = mConstantFrameRate && clockTrack != null && clockTrack.getMode() == PresentationClock.Mode.FIXED_RATE
+                ? clockTrack.slotsFor(captureTimeNs) : 1;
+        for (int i = 0; i < count; i++) {
+            mInputWindowSurface.makeCurrent();
+            // clear screen with yellow color so that you can see rendering rectangle
+            GLES20.glClearColor(1.0f, 1.0f, 1.0f, 1.0f);
+            GLES20.glClear(GLES20.GL_COLOR_BUFFER_BIT | GLES20.GL_DEPTH_BUFFER_BIT);
+            long start = System.nanoTime();
+            mProgramTexture2d.drawFrame(mTexId, mTexMatrix, mMvpMatrix);
+            record(EncoderMetrics.Stage.GL_UPLOAD, start);
+            if (clockTrack != null) {
+                long ptsUs = clockTrack.getMode() == PresentationClock.Mode.FIXED_RATE
+                        ? clockTrack.nextFrame() : clockTrack.fromCaptureTime(captureTimeNs);
+                mInputWindowSurface.setPresentationTime(ptsUs * 1000);
+            }
+            start = System.nanoTime();
+            mInputWindowSurface.swapBuffers();
+            record(EncoderMetrics.Stage.SWAP_BUFFERS, start);
+            TRACE.record(TraceRing.EVENT_FRAME_DRAWN, captureTimeNs / 1000);
+        }
+        if (DEBUG && count != 1) {
+            FULogger.d(TAG, () -> "constant frame rate, captureTimeNs:" + captureTimeNs + " drawCount:" + count);
+        }
+    }
+
+    private void record(EncoderMetrics.Stage stage, long startNs) {
+        final EncoderMetrics metrics = mMetrics;
+        if (metrics != null) {
+            metrics.record(stage, System.nanoTime() - startNs);
         }
     }
 
     private final void internalPrepare() {
         if (DEBUG) {
-            Log.i(TAG, "internalPrepare:");
+            FULogger.i(TAG, "internalPrepare:");
         }
         internalRelease();
         mEglCore = new FUEglCore(mShard_context, FUEglCore.FLAG_RECORDABLE);
@@ -189,8 +270,9 @@ public final class TextureRenderHandler implements Runnable {
 
     private final void internalRelease() {
         if (DEBUG) {
-            Log.i(TAG, "internalRelease:");
+            FULogger.i(TAG, "internalRelease:");
         }
+        TRACE.record(TraceRing.EVENT_RENDER_RELEASED, 0);
         if (mInputWindowSurface != null) {
             mInputWindowSurface.release();
             mInputWindowSurface = null;
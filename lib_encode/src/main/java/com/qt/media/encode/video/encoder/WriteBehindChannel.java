@@ -0,0 +1,419 @@
+package com.qt.media.encode.video.encoder;
+
+import android.util.Log;
+
+import com.qt.media.encode.BuildConfig;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.LinkedBlockingQueue;
+
+/**
+ * 文件的写缓冲（write-behind）
+ * <p>
+ * 调用方的写入拷贝到固定大小的块中，合并为大块后交给后台 I/O 线程按顺序写入 FileChannel，
+ * 存储卡刷盘变慢时只占用缓冲，不阻塞调用方；缓冲总量不超过 bufferSize，用完时调用方等待 I/O 线程释放块（背压）。
+ * 写入顺序与调用顺序一致，writeAt 的定点写入也在之前的追加数据之后执行。
+ * <p>
+ * flush/sync 是显式的落盘点：flush 提交未满的块，sync 在之前的数据写完后再调用 FileChannel.force，
+ * 两者都可以带一个回调，在数据写完（sync 为落盘）后在 I/O 线程中执行。
+ * I/O 出错后之后的数据都被丢弃，错误在下一次调用时以 IOException 抛出。
+ * bufferSize 不大于 0 时不使用后台线程，直接在调用线程写入。
+ */
+public final class WriteBehindChannel implements Closeable {
+    private static final boolean DEBUG = BuildConfig.ENCODER_LOG;
+    private static final String TAG = "WriteBehindChannel";
+
+    public static final int DEFAULT_BUFFER_SIZE = 4 * 1024 * 1024;
+
+    /**
+     * 单个块的最大大小，也是一次 FileChannel.write 的最大合并量
+     */
+    private static final int MAX_BLOCK_SIZE = 256 * 1024;
+    private static final int MIN_BLOCK_COUNT = 2;
+
+    private final FileChannel mChannel;
+    private final int mBlockSize;
+    private final int mBlockCount;
+    private final BlockingQueue<ByteBuffer> mFreeBlocks;
+    private final BlockingQueue<Op> mOps = new LinkedBlockingQueue<>();
+    private final Thread mIoThread;
+    private int mAllocatedBlocks;
+    /**
+     * 正在填充的块，只在调用线程中使用
+     */
+    private ByteBuffer mCurrent;
+    private long mPosition;
+    private boolean mClosed;
+
+    private volatile IOException mError;
+    private volatile long mBufferedBytes;
+    private volatile long mMaxBufferedBytes;
+    private volatile long mStallNs;
+    private volatile long mMaxWriteNs;
+    private volatile int mSyncCount;
+
+    /**
+     * @param channel    从当前位置开始追加写入，close 时不会关闭
+     * @param bufferSize 缓冲总大小，不大于 0 时直接写入
+     */
+    public WriteBehindChannel(FileChannel channel, int bufferSize) throws IOException {
+        mChannel = channel;
+        mPosition = channel.position();
+        if (bufferSize <= 0) {
+            mBlockSize = 0;
+            mBlockCount = 0;
+            mFreeBlocks = null;
+            mIoThread = null;
+            return;
+        }
+        mBlockCount = Math.max(MIN_BLOCK_COUNT, bufferSize / MAX_BLOCK_SIZE);
+        mBlockSize = Math.max(1, Math.min(MAX_BLOCK_SIZE, bufferSize / mBlockCount));
+        mFreeBlocks = new ArrayBlockingQueue<>(mBlockCount);
+        mIoThread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                ioLoop();
+            }
+        }, TAG);
+        //没有 close 时（如进程崩溃前）不阻止进程退出，缓冲中还没写出的数据丢失，与直接写入时崩溃一致
+        mIoThread.setDaemon(true);
+        mIoThread.start();
+    }
+
+    /**
+     * 下一次追加写入的文件位置
+     */
+    public long position() {
+        return mPosition;
+    }
+
+    /**
+     * 追加写入 buffers 从 position 到 limit 的内容，返回后 buffers 可以复用
+     */
+    public void write(ByteBuffer... buffers) throws IOException {
+        checkOpen();
+        if (mIoThread == null) {
+            long total = 0;
+            for (ByteBuffer buffer : buffers) {
+                total += buffer.remaining();
+            }
+            long written = 0;
+            while (written < total) {
+                written += mChannel.write(buffers);
+            }
+            mPosition += total;
+            return;
+        }
+        for (ByteBuffer buffer : buffers) {
+            ByteBuffer src = buffer.duplicate();
+            while (src.hasRemaining()) {
+                if (mCurrent == null) {
+                    mCurrent = acquireBlock();
+                }
+                int n = Math.min(src.remaining(), mCurrent.remaining());
+                ByteBuffer part = src.duplicate();
+                part.limit(part.position() + n);
+                mCurrent.put(part);
+                src.position(src.position() + n);
+                mPosition += n;
+                if (!mCurrent.hasRemaining()) {
+                    submitCurrent();
+                }
+            }
+        }
+    }
+
+    /**
+     * 在之前追加的数据写完后把 data 写到文件的 position 处（如回填头部字段），不改变追加位置
+     */
+    public void writeAt(ByteBuffer data, long position) throws IOException {
+        checkOpen();
+        if (mIoThread == null) {
+            writeFully(data.duplicate(), position);
+            return;
+        }
+        ByteBuffer copy = ByteBuffer.allocate(data.remaining());
+        copy.put(data.duplicate());
+        copy.flip();
+        submitCurrent();
+        mOps.add(Op.positional(copy, position));
+    }
+
+    /**
+     * 提交缓冲中的数据，不等待写入
+     *
+     * @param onWritten 之前的数据都写入文件后在 I/O 线程回调，可以为 null
+     */
+    public void flush(Runnable onWritten) throws IOException {
+        checkOpen();
+        if (mIoThread == null) {
+            runCallback(onWritten);
+            return;
+        }
+        submitCurrent();
+        if (onWritten != null) {
+            mOps.add(Op.callback(onWritten, false));
+        }
+    }
+
+    /**
+     * 提交缓冲中的数据，写完后调用 FileChannel.force 落盘，不等待
+     *
+     * @param onSynced 落盘后在 I/O 线程回调，可以为 null
+     */
+    public void sync(Runnable onSynced) throws IOException {
+        checkOpen();
+        if (mIoThread == null) {
+            force();
+            runCallback(onSynced);
+            return;
+        }
+        submitCurrent();
+        mOps.add(Op.callback(onSynced, true));
+    }
+
+    /**
+     * 写完所有数据并落盘后停止 I/O 线程，阻塞到完成，不关闭 channel
+     */
+    @Override
+    public void close() throws IOException {
+        if (mClosed) {
+            return;
+        }
+        if (mIoThread == null) {
+            mClosed = true;
+            force();
+            return;
+        }
+        submitCurrent();
+        final CountDownLatch done = new CountDownLatch(1);
+        mOps.add(Op.callback(new Runnable() {
+            @Override
+            public void run() {
+                done.countDown();
+            }
+        }, true));
+        mOps.add(Op.END);
+        mClosed = true;
+        try {
+            mIoThread.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("interrupted while flushing", e);
+        }
+        if (mError != null) {
+            throw mError;
+        }
+        if (done.getCount() > 0) {
+            throw new IOException("write-behind stopped before flushing");
+        }
+        if (DEBUG) {
+            Log.i(TAG, "closed: blockSize=" + mBlockSize + " blocks=" + mAllocatedBlocks + "/" + mBlockCount
+                    + " maxBuffered=" + mMaxBufferedBytes + " stall=" + getStallTimeUs() + "us maxWrite=" + getMaxWriteTimeUs() + "us syncs=" + mSyncCount);
+        }
+    }
+
+    /**
+     * 已提交但还没有写入文件的字节数
+     */
+    public long getBufferedBytes() {
+        return mBufferedBytes;
+    }
+
+    public long getMaxBufferedBytes() {
+        return mMaxBufferedBytes;
+    }
+
+    /**
+     * 缓冲用完时调用方累计等待的时间，单位微秒，不为 0 说明存储写入速度跟不上，需要更大的缓冲
+     */
+    public long getStallTimeUs() {
+        return mStallNs / 1000;
+    }
+
+    /**
+     * 单次合并写入（含 force）的最长耗时，单位微秒
+     */
+    public long getMaxWriteTimeUs() {
+        return mMaxWriteNs / 1000;
+    }
+
+    public int getSyncCount() {
+        return mSyncCount;
+    }
+
+    private void checkOpen() throws IOException {
+        if (mClosed) {
+            throw new IOException("channel closed");
+        }
+        if (mError != null) {
+            throw mError;
+        }
+    }
+
+    private ByteBuffer acquireBlock() throws IOException {
+        ByteBuffer block = mFreeBlocks.poll();
+        if (block == null && mAllocatedBlocks < mBlockCount) {
+            mAllocatedBlocks++;
+            block = ByteBuffer.allocateDirect(mBlockSize);
+        }
+        if (block == null) {
+            long start = System.nanoTime();
+            try {
+                block = mFreeBlocks.take();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IOException("interrupted while waiting for write buffer", e);
+            }
+            mStallNs += System.nanoTime() - start;
+        }
+        if (mError != null) {
+            mFreeBlocks.offer(block);
+            throw mError;
+        }
+        block.clear();
+        return block;
+    }
+
+    private void submitCurrent() {
+        ByteBuffer block = mCurrent;
+        if (block == null) {
+            return;
+        }
+        mCurrent = null;
+        if (block.position() == 0) {
+            mFreeBlocks.offer(block);
+            return;
+        }
+        block.flip();
+        synchronized (this) {
+            mBufferedBytes += block.remaining();
+            if (mBufferedBytes > mMaxBufferedBytes) {
+                mMaxBufferedBytes = mBufferedBytes;
+            }
+        }
+        mOps.add(Op.data(block));
+    }
+
+    private void ioLoop() {
+        for (; ; ) {
+            Op op;
+            try {
+                op = mOps.take();
+            } catch (InterruptedException e) {
+                return;
+            }
+            if (op == Op.END) {
+                return;
+            }
+            if (op.data != null) {
+                int size = op.data.remaining();
+                if (mError == null) {
+                    try {
+                        long start = System.nanoTime();
+                        if (op.position < 0) {
+                            while (op.data.hasRemaining()) {
+                                mChannel.write(op.data);
+                            }
+                        } else {
+                            writeFully(op.data, op.position);
+                        }
+                        recordWriteTime(System.nanoTime() - start);
+                    } catch (IOException e) {
+                        Log.e(TAG, "write failed", e);
+                        mError = e;
+                    }
+                }
+                if (op.position < 0) {
+                    synchronized (this) {
+                        mBufferedBytes -= size;
+                    }
+                    mFreeBlocks.offer(op.data);
+                }
+                continue;
+            }
+            if (mError != null) {
+                continue;
+            }
+            try {
+                if (op.sync) {
+                    long start = System.nanoTime();
+                    force();
+                    recordWriteTime(System.nanoTime() - start);
+                }
+                runCallback(op.callback);
+            } catch (IOException e) {
+                Log.e(TAG, "sync failed", e);
+                mError = e;
+            }
+        }
+    }
+
+    private void writeFully(ByteBuffer data, long position) throws IOException {
+        while (data.hasRemaining()) {
+            position += mChannel.write(data, position);
+        }
+    }
+
+    private void force() throws IOException {
+        mChannel.force(false);
+        mSyncCount++;
+    }
+
+    private void recordWriteTime(long ns) {
+        if (ns > mMaxWriteNs) {
+            mMaxWriteNs = ns;
+        }
+    }
+
+    private static void runCallback(Runnable callback) {
+        if (callback == null) {
+            return;
+        }
+        try {
+            callback.run();
+        } catch (Exception e) {
+            Log.e(TAG, "callback failed", e);
+        }
+    }
+
+    /**
+     * I/O 线程按顺序执行的操作：追加写入一个块、定点写入、或 flush/sync 回调
+     */
+    private static final class Op {
+        static final Op END = new Op(null, -1, null, false);
+
+        final ByteBuffer data;
+        /**
+         * 定点写入的位置，追加写入为 -1
+         */
+        final long position;
+        final Runnable callback;
+        final boolean sync;
+
+        private Op(ByteBuffer data, long position, Runnable callback, boolean sync) {
+            this.data = data;
+            this.position = position;
+            this.callback = callback;
+            this.sync = sync;
+        }
+
+        static Op data(ByteBuffer block) {
+            return new Op(block, -1, null, false);
+        }
+
+        static Op positional(ByteBuffer data, long position) {
+            return new Op(data, position, null, false);
+        }
+
+        static Op callback(Runnable callback, boolean sync) {
+            return new Op(null, -1, callback, sync);
+        }
+    }
+}
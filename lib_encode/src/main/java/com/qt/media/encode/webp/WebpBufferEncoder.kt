@@ -52,10 +52,13 @@ class WebpBufferEncoder(outputPath: String, private val outFps: Double = 20.0,va
 
     }
 
+    /**
+     * 编码帧，编码线程会持有该帧直到编码完成，调用方使用完后照常 release 即可，帧内存可复用 FramePool
+     */
     override fun encode(imageFrame: ImageFrame) {
         super.encode(imageFrame)
         initWebpRecorder(imageFrame)
-        WebpRecordWrapper?.encodeFrame(imageFrame.buffer, imageFrame.width, imageFrame.height)
+        WebpRecordWrapper?.encodeFrame(imageFrame)
     }
 
     /**
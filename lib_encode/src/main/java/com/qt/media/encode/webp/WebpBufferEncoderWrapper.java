@@ -1,15 +1,13 @@
 package com.qt.media.encode.webp;
 
-import android.os.Bundle;
-import android.os.Handler;
-import android.os.HandlerThread;
-import android.os.Looper;
-import android.os.Message;
 import android.util.Log;
 
 import com.faceunity.ImageCodec.ImageCodecAPI;
 import com.faceunity.ImageCodec.ImageEncoderWebp;
+import com.qt.media.encode.entity.ImageFrame;
 import com.qt.media.encode.help.FileUtils;
+import com.qt.media.encode.help.FrameDropHelp;
+import com.qt.media.encode.video.encoder.EncoderScheduler;
 
 import java.io.File;
 import java.util.concurrent.atomic.AtomicBoolean;
@@ -19,13 +17,11 @@ public class WebpBufferEncoderWrapper {
 
     private static boolean DEBUG = false;
 
-    private static final int WHAT_WEBP_ENCODER = 0;
-    private static final String data_key_img = "data_key_img";
-    private static final String data_key_img_w = "data_key_img_w";
-    private static final String data_key_img_h = "data_key_img_h";
     private ImageEncoderWebp encoderWebp;
-    private HandlerThread mThread;
-    private Handler mHandler;
+    /**
+     * 编码任务串行执行在 EncoderScheduler 的调度线程上，代替独占的 HandlerThread
+     */
+    private EncoderScheduler.SerialQueue mQueue;
     private String mWebpPath;
     private String mWebpRecordPath;
     private long lastEncodeTime;
@@ -49,6 +45,13 @@ public class WebpBufferEncoderWrapper {
     private boolean fristFrame = true;
 
     public WebpBufferEncoderWrapper(String path, int WebpWidth, int WebpHeight, int quality, int method) {
+        this(path, WebpWidth, WebpHeight, quality, method, EncoderScheduler.getDefault().newSession(TAG));
+    }
+
+    /**
+     * @param session 编码任务所在的调度会话，多个导出同时进行时在会话之间公平轮转
+     */
+    public WebpBufferEncoderWrapper(String path, int WebpWidth, int WebpHeight, int quality, int method, EncoderScheduler.Session session) {
         String sdkVersion = ImageCodecAPI.SDKVersion();
         String sdkCommitTime = ImageCodecAPI.SDKCommitTime();
         String sdkCommitHash = ImageCodecAPI.SDKCommitHash();
@@ -71,9 +74,7 @@ public class WebpBufferEncoderWrapper {
         mWebpPath = path;
         lastEncodeTime = 0;
         isCancel = new AtomicBoolean(false);
-        mThread = new HandlerThread(TAG);
-        mThread.start();
-        mHandler = new WebpHandler(mThread.getLooper());
+        mQueue = session.newQueue(TAG);
     }
     private boolean checkError(String method,ImageCodecAPI.FuImageCodecErrorCode errorCode){
         if(errorCode.ec == ImageCodecAPI.EFuImageCodecErrorCode.FU_IMAGE_CODEC_ERROR_SUCCESS){
@@ -129,7 +130,7 @@ public class WebpBufferEncoderWrapper {
         this.frameTemplate = frameTemplate;
     }
 
-    public void encodeFrame(byte[] rgbaData, int bufferWidth,int bufferHeight) {
+    public void encodeFrame(final byte[] rgbaData, final int bufferWidth, final int bufferHeight) {
         currentFrameNumber++;
         if (encoderWebp == null) return;
         if (needAbandon()) return;
@@ -137,27 +138,36 @@ public class WebpBufferEncoderWrapper {
 //           //TODO 处理第一帧异常问题
 //            fristFrame = false;
 //        }
-        Message message = mHandler.obtainMessage(WHAT_WEBP_ENCODER);
-        Bundle data = new Bundle();
-        data.putByteArray(data_key_img, rgbaData);
-        data.putInt(data_key_img_w,bufferWidth);
-        data.putInt(data_key_img_h,bufferHeight);
-        message.setData(data);
-        mHandler.sendMessage(message);
+        mQueue.execute(new Runnable() {
+            @Override
+            public void run() {
+                encodeImage(rgbaData, bufferWidth, bufferHeight);
+            }
+        });
     }
-    private boolean needAbandon() {
-        if (frameTemplate == null) {
-            if (discardAFraction != -1 && discardAFraction != 0) {
-                long remainder = currentFrameNumber % discardAFraction;
-                return remainder == (discardAFraction - 1);
+    /**
+     * 编码帧，内部会 retain 该帧，编码线程处理完成后 release，帧内存可以来自 FramePool 复用
+     *
+     * @param imageFrame rgba 帧
+     */
+    public void encodeFrame(ImageFrame imageFrame) {
+        currentFrameNumber++;
+        if (encoderWebp == null || imageFrame == null || imageFrame.getBuffer() == null) return;
+        if (needAbandon()) return;
+        final ImageFrame frame = imageFrame.retain();
+        boolean accepted = mQueue.execute(new Runnable() {
+            @Override
+            public void run() {
+                encodeImage(frame.getBuffer(), frame.getWidth(), frame.getHeight());
+                frame.release();
             }
-        } else {
-            // 求余数
-            int remainder = (int) (currentFrameNumber % frameTemplate.length);
-            // 判断当前帧是否需要丢弃
-            return frameTemplate[remainder] == 0;
+        });
+        if (!accepted) {
+            frame.release();
         }
-        return false;
+    }
+    private boolean needAbandon() {
+        return FrameDropHelp.needAbandon(currentFrameNumber, discardAFraction, frameTemplate);
     }
 
     public void cancel() {
@@ -167,7 +177,7 @@ public class WebpBufferEncoderWrapper {
         frameTemplate = null;
         currentFrameNumber = 0;
         if (encoderWebp == null) return;
-        mHandler.post(new Runnable() {
+        mQueue.execute(new Runnable() {
             @Override
             public void run() {
                 if (encoderWebp == null) return;
@@ -178,8 +188,8 @@ public class WebpBufferEncoderWrapper {
                 encoderWebp.Destroy(errorCode);
                 checkError("Destroy",errorCode);
                 encoderWebp = null;
-                mHandler.removeMessages(WHAT_WEBP_ENCODER);
-                mThread.quitSafely();
+                //之后提交的编码任务不再执行，已排队的任务看到编码器为空后直接返回
+                mQueue.shutdown();
                 if (listener != null) {
                     Log.i(TAG, "cancel WebpEncoder OnRecordEnd");
                     listener.onRecordEnd(isCancel.get());
@@ -199,7 +209,7 @@ public class WebpBufferEncoderWrapper {
         frameTemplate = null;
         currentFrameNumber = 0;
         if (encoderWebp == null) return;
-        mHandler.post(new Runnable() {
+        mQueue.execute(new Runnable() {
             @Override
             public void run() {
                 Log.i(TAG, "release run listener = " + listener);
@@ -214,8 +224,7 @@ public class WebpBufferEncoderWrapper {
                 checkError("Destroy",errorCode);
                 encoderWebp = null;
                 Log.i(TAG, "release time = "+(System.currentTimeMillis()-startTime));
-                mHandler.removeMessages(WHAT_WEBP_ENCODER);
-                mThread.quitSafely();
+                mQueue.shutdown();
                 Log.i(TAG, "release Webp record end");
                 if (isCancel.get()) {
                     File file = new File(mWebpRecordPath);
@@ -245,41 +254,30 @@ public class WebpBufferEncoderWrapper {
         });
     }
 
-    class WebpHandler extends Handler {
-
-        public WebpHandler(Looper looper) {
-            super(looper);
+    /**
+     * 在编码任务队列中执行
+     */
+    private void encodeImage(byte[] img, int width, int height) {
+        if (DEBUG) {
+            Log.i(TAG, "encodeImage " + width + "x" + height);
         }
-
-        @Override
-        public void handleMessage(Message msg) {
-            if (DEBUG) {
-                Log.i(TAG, "handleMessage what = " + msg.what);
+        if (encoderWebp == null) return;
+        ImageCodecAPI.FuImageCodecErrorCode errorCode = new ImageCodecAPI.FuImageCodecErrorCode();
+        if (fps > 0) {
+            int duration_time_ms =  (int) (1000.0 / fps);
+            int[] durations = encoderWebp.GetImageDurationsFromFps((float) fps, errorCode);
+            if(checkError("GetImageDurationsFromFps",errorCode) && durations!= null && durations.length>0){
+                duration_time_ms = durations[0];
             }
-            if (WHAT_WEBP_ENCODER == msg.what && encoderWebp != null) {
-                Bundle data = msg.getData();
-                byte[] img = data.getByteArray(data_key_img);
-                int width = data.getInt(data_key_img_w);
-                int height = data.getInt(data_key_img_h);
-                if (encoderWebp == null) return;
-                ImageCodecAPI.FuImageCodecErrorCode errorCode = new ImageCodecAPI.FuImageCodecErrorCode();
-                if (fps > 0) {
-                    int duration_time_ms =  (int) (1000.0 / fps);
-                    int[] durations = encoderWebp.GetImageDurationsFromFps((float) fps, errorCode);
-                    if(checkError("GetImageDurationsFromFps",errorCode) && durations!= null && durations.length>0){
-                        duration_time_ms = durations[0];
-                    }
-                    encoderWebp.EncodeImage(img,width,height, duration_time_ms,errorCode);
-                    checkError("EncodeImage",errorCode);
-                } else {
-                    long encodeTime = System.nanoTime() / 1000000;
-                    if (lastEncodeTime > 0) {
-                        encoderWebp.EncodeImage(img,width,height,(int) (encodeTime - lastEncodeTime),errorCode);
-                        checkError("EncodeImage",errorCode);
-                    }
-                    lastEncodeTime = encodeTime;
-                }
+            encoderWebp.EncodeImage(img,width,height, duration_time_ms,errorCode);
+            checkError("EncodeImage",errorCode);
+        } else {
+            long encodeTime = System.nanoTime() / 1000000;
+            if (lastEncodeTime > 0) {
+                encoderWebp.EncodeImage(img,width,height,(int) (encodeTime - lastEncodeTime),errorCode);
+                checkError("EncodeImage",errorCode);
             }
+            lastEncodeTime = encodeTime;
         }
     }
     /**
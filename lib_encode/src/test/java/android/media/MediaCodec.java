@@ -0,0 +1,49 @@
+package android.media;
+
+/**
+ * JVM 单元测试使用的 MediaCodec，代替 android.jar 中只返回默认值的实现，编码器由 FakeCodecBackend 模拟
+ * 只包含编码管线在 JVM 上用到的部分：常量、BufferInfo（set 写入字段）、Callback 与 CodecException
+ */
+public final class MediaCodec {
+    public static final int BUFFER_FLAG_KEY_FRAME = 1;
+    public static final int BUFFER_FLAG_CODEC_CONFIG = 2;
+    public static final int BUFFER_FLAG_END_OF_STREAM = 4;
+    public static final int CONFIGURE_FLAG_ENCODE = 1;
+    public static final int INFO_TRY_AGAIN_LATER = -1;
+    public static final int INFO_OUTPUT_FORMAT_CHANGED = -2;
+    public static final int INFO_OUTPUT_BUFFERS_CHANGED = -3;
+    public static final String PARAMETER_KEY_REQUEST_SYNC_FRAME = "request-sync";
+
+    private MediaCodec() {
+    }
+
+    public static final class BufferInfo {
+        public int offset;
+        public int size;
+        public long presentationTimeUs;
+        public int flags;
+
+        public void set(int newOffset, int newSize, long newTimeUs, int newFlags) {
+            offset = newOffset;
+            size = newSize;
+            presentationTimeUs = newTimeUs;
+            flags = newFlags;
+        }
+    }
+
+    public static abstract class Callback {
+        public abstract void onInputBufferAvailable(MediaCodec codec, int index);
+
+        public abstract void onOutputBufferAvailable(MediaCodec codec, int index, BufferInfo info);
+
+        public abstract void onError(MediaCodec codec, CodecException e);
+
+        public abstract void onOutputFormatChanged(MediaCodec codec, MediaFormat format);
+    }
+
+    public static final class CodecException extends IllegalStateException {
+        CodecException(String message) {
+            super(message);
+        }
+    }
+}
@@ -0,0 +1,110 @@
+package android.media;
+
+import java.nio.ByteBuffer;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * JVM 单元测试使用的 MediaFormat，代替 android.jar 中只返回默认值的实现（createVideoFormat 返回 null、设置的值读不出来）
+ * 只包含编码管线在 JVM 上用到的部分，键值保存在 Map 中
+ */
+public final class MediaFormat {
+    public static final String KEY_MIME = "mime";
+    public static final String KEY_WIDTH = "width";
+    public static final String KEY_HEIGHT = "height";
+    public static final String KEY_SAMPLE_RATE = "sample-rate";
+    public static final String KEY_CHANNEL_COUNT = "channel-count";
+    public static final String KEY_COLOR_FORMAT = "color-format";
+    public static final String KEY_BIT_RATE = "bitrate";
+    public static final String KEY_FRAME_RATE = "frame-rate";
+    public static final String KEY_I_FRAME_INTERVAL = "i-frame-interval";
+    public static final String KEY_STRIDE = "stride";
+    public static final String KEY_SLICE_HEIGHT = "slice-height";
+    public static final String MIMETYPE_VIDEO_AVC = "video/avc";
+    public static final String MIMETYPE_AUDIO_AAC = "audio/mp4a-latm";
+
+    private final Map<String, Object> mMap = new HashMap<>();
+
+    public MediaFormat() {
+    }
+
+    public static MediaFormat createVideoFormat(String mime, int width, int height) {
+        MediaFormat format = new MediaFormat();
+        format.setString(KEY_MIME, mime);
+        format.setInteger(KEY_WIDTH, width);
+        format.setInteger(KEY_HEIGHT, height);
+        return format;
+    }
+
+    public static MediaFormat createAudioFormat(String mime, int sampleRate, int channelCount) {
+        MediaFormat format = new MediaFormat();
+        format.setString(KEY_MIME, mime);
+        format.setInteger(KEY_SAMPLE_RATE, sampleRate);
+        format.setInteger(KEY_CHANNEL_COUNT, channelCount);
+        return format;
+    }
+
+    public final boolean containsKey(String name) {
+        return mMap.containsKey(name);
+    }
+
+    public final int getInteger(String name) {
+        return (Integer) get(name);
+    }
+
+    public final int getInteger(String name, int defaultValue) {
+        return containsKey(name) ? getInteger(name) : defaultValue;
+    }
+
+    public final long getLong(String name) {
+        return (Long) get(name);
+    }
+
+    public final float getFloat(String name) {
+        return (Float) get(name);
+    }
+
+    public final String getString(String name) {
+        return (String) mMap.get(name);
+    }
+
+    public final ByteBuffer getByteBuffer(String name) {
+        return (ByteBuffer) mMap.get(name);
+    }
+
+    public final void setInteger(String name, int value) {
+        mMap.put(name, value);
+    }
+
+    public final void setLong(String name, long value) {
+        mMap.put(name, value);
+    }
+
+    public final void setFloat(String name, float value) {
+        mMap.put(name, value);
+    }
+
+    public final void setString(String name, String value) {
+        mMap.put(name, value);
+    }
+
+    public final void setByteBuffer(String name, ByteBuffer bytes) {
+        mMap.put(name, bytes);
+    }
+
+    /**
+     * 与 android 一致，不存在的键抛出 NullPointerException
+     */
+    private Object get(String name) {
+        Object value = mMap.get(name);
+        if (value == null) {
+            throw new NullPointerException("no value for " + name);
+        }
+        return value;
+    }
+
+    @Override
+    public String toString() {
+        return mMap.toString();
+    }
+}
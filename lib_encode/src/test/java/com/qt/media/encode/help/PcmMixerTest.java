@@ -0,0 +1,128 @@
+package com.qt.media.encode.help;
+
+import org.junit.Test;
+
+import java.nio.ShortBuffer;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+/**
+ * PcmMixer 多轨叠加：饱和截断、增益与线性渐变的终值、单轨整块拷贝时静音轨的渐变照常推进、输入输出 position 的推进
+ */
+public class PcmMixerTest {
+    private static final int CHANNELS = 2;
+
+    private static ShortBuffer constant(int frames, int value) {
+        short[] data = new short[frames * CHANNELS];
+        for (int i = 0; i < data.length; i++) {
+            data[i] = (short) value;
+        }
+        return ShortBuffer.wrap(data);
+    }
+
+    @Test
+    public void sumIsSaturatedInsteadOfWrapping() {
+        PcmMixer mixer = new PcmMixer(CHANNELS, 2);
+        ShortBuffer output = ShortBuffer.allocate(8 * CHANNELS);
+        mixer.mix(new ShortBuffer[]{constant(4, 30000), constant(4, 30000)}, 2, output, 4 * CHANNELS);
+        mixer.mix(new ShortBuffer[]{constant(4, -30000), constant(4, -30000)}, 2, output, 4 * CHANNELS);
+        for (int i = 0; i < 4 * CHANNELS; i++) {
+            assertEquals(Short.MAX_VALUE, output.get(i));
+            assertEquals(Short.MIN_VALUE, output.get(4 * CHANNELS + i));
+        }
+    }
+
+    @Test
+    public void tracksAreScaledByGain() {
+        PcmMixer mixer = new PcmMixer(CHANNELS, 2);
+        mixer.setGain(0, 0.5f);
+        mixer.setGain(1, 0.25f);
+        ShortBuffer output = ShortBuffer.allocate(4 * CHANNELS);
+        mixer.mix(new ShortBuffer[]{constant(4, 1000), constant(4, 4000)}, 2, output, 4 * CHANNELS);
+        for (int i = 0; i < 4 * CHANNELS; i++) {
+            assertEquals(1500, output.get(i));
+        }
+        // 只有一轨且增益不为 1 时不能走整块拷贝
+        output.clear();
+        mixer.mix(new ShortBuffer[]{constant(4, 1000), null}, 2, output, 4 * CHANNELS);
+        assertEquals(500, output.get(0));
+    }
+
+    @Test
+    public void rampReachesTargetExactlyAndHoldsIt() {
+        int frames = 100;
+        PcmMixer mixer = new PcmMixer(CHANNELS, 2);
+        mixer.rampGain(0, 0f, frames);
+        ShortBuffer output = ShortBuffer.allocate(150 * CHANNELS);
+        // 分两块混音，渐变跨越块边界
+        mixer.mix(new ShortBuffer[]{constant(60, 10000), constant(60, 0)}, 2, output, 60 * CHANNELS);
+        mixer.mix(new ShortBuffer[]{constant(90, 10000), constant(90, 0)}, 2, output, 90 * CHANNELS);
+        for (int frame = 0; frame < 150; frame++) {
+            int expected = frame >= frames ? 0 : Math.round(10000f * (frames - frame) / frames);
+            for (int c = 0; c < CHANNELS; c++) {
+                int actual = output.get(frame * CHANNELS + c);
+                assertEquals("frame " + frame, expected, actual, 1);
+            }
+        }
+        assertEquals(0f, mixer.getGain(0), 0f);
+
+        // 渐变到 2 倍后保持
+        mixer.rampGain(0, 2f, 10);
+        output.clear();
+        mixer.mix(new ShortBuffer[]{constant(20, 1000), null}, 2, output, 20 * CHANNELS);
+        assertEquals(2f, mixer.getGain(0), 0f);
+        assertEquals(2000, output.get(19 * CHANNELS));
+    }
+
+    @Test
+    public void silentTrackRampAdvancesWhileAnotherTrackIsCopied() {
+        PcmMixer mixer = new PcmMixer(CHANNELS, 2);
+        mixer.rampGain(1, 0f, 100);
+        ShortBuffer input = constant(40, 1234);
+        ShortBuffer output = ShortBuffer.allocate(40 * CHANNELS);
+        // 第 0 轨增益为 1、第 1 轨为 null：整块拷贝，第 1 轨的渐变推进 40 帧
+        mixer.mix(new ShortBuffer[]{input, null}, 2, output, 40 * CHANNELS);
+        assertEquals(0.6f, mixer.getGain(1), 1e-5f);
+        assertEquals(1234, output.get(0));
+        mixer.mix(new ShortBuffer[]{constant(60, 1), null}, 2, ShortBuffer.allocate(60 * CHANNELS), 60 * CHANNELS);
+        assertEquals(0f, mixer.getGain(1), 0f);
+    }
+
+    @Test
+    public void silentTrackRampAdvancesWhenAllTracksAreSilent() {
+        PcmMixer mixer = new PcmMixer(CHANNELS, 2);
+        mixer.rampGain(0, 0.5f, 10);
+        ShortBuffer output = constant(20, 99);
+        mixer.mix(new ShortBuffer[]{null, null}, 2, output, 20 * CHANNELS);
+        assertEquals(0.5f, mixer.getGain(0), 0f);
+        for (int i = 0; i < 20 * CHANNELS; i++) {
+            assertEquals(0, output.get(i));
+        }
+    }
+
+    @Test
+    public void singleTrackIsCopiedAndPositionsAdvance() {
+        short[] data = new short[10 * CHANNELS];
+        for (int i = 0; i < data.length; i++) {
+            data[i] = (short) (i * 1000 - 9000);
+        }
+        ShortBuffer input = ShortBuffer.wrap(data);
+        input.position(2 * CHANNELS);
+        ShortBuffer output = ShortBuffer.allocate(12 * CHANNELS);
+        output.position(CHANNELS);
+        PcmMixer mixer = new PcmMixer(CHANNELS, 1);
+        // 轨道数超过预分配时自动扩容
+        mixer.mix(new ShortBuffer[]{null, null, input}, 3, output, 6 * CHANNELS);
+        assertEquals(8 * CHANNELS, input.position());
+        assertEquals(10 * CHANNELS, input.limit());
+        assertEquals(7 * CHANNELS, output.position());
+        short[] expected = new short[6 * CHANNELS];
+        System.arraycopy(data, 2 * CHANNELS, expected, 0, expected.length);
+        short[] actual = new short[expected.length];
+        for (int i = 0; i < actual.length; i++) {
+            actual[i] = output.get(CHANNELS + i);
+        }
+        assertArrayEquals(expected, actual);
+    }
+}
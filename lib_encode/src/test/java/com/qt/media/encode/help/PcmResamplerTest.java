@@ -0,0 +1,163 @@
+package com.qt.media.encode.help;
+
+import org.junit.Test;
+
+import java.nio.ShortBuffer;
+import java.util.Arrays;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * PcmResampler 声道转换与重采样精度：同采样率时的声道复制与平均折叠，
+ * 440Hz 正弦经常见采样率转换后与理想信号（输出第 n 帧对应时刻 n / outRate，无延迟）的误差不超过 2 LSB，
+ * 输出与分块大小无关，满幅信号饱和截断不回绕
+ */
+public class PcmResamplerTest {
+    private static final double FREQUENCY = 440;
+    private static final double AMPLITUDE = 10000;
+
+    /**
+     * 输入开始前按静音处理，滤波器前后各约 halfTaps 帧受影响，跳过开头
+     */
+    private static final int SETTLE_FRAMES = 200;
+
+    private static short[] sine(int rate, int channels, int frames) {
+        short[] data = new short[frames * channels];
+        for (int n = 0; n < frames; n++) {
+            short value = (short) Math.round(AMPLITUDE * Math.sin(2 * Math.PI * FREQUENCY * n / rate));
+            for (int c = 0; c < channels; c++) {
+                data[n * channels + c] = value;
+            }
+        }
+        return data;
+    }
+
+    /**
+     * 按 blockFrames 帧一块流式转换，每块只送入 requiredInputFrames 帧
+     */
+    private static short[] run(PcmResampler resampler, short[] input, int inChannels, int outChannels, int outFrames, int[] blockFrames) {
+        ShortBuffer source = ShortBuffer.wrap(input);
+        ShortBuffer output = ShortBuffer.allocate(outFrames * outChannels);
+        int block = 0;
+        int done = 0;
+        while (done < outFrames) {
+            int frames = Math.min(blockFrames[block++ % blockFrames.length], outFrames - done);
+            int required = resampler.requiredInputFrames(frames);
+            ShortBuffer chunk = source.duplicate();
+            chunk.limit(Math.min(source.limit(), source.position() + required * inChannels));
+            resampler.resample(chunk, output, frames);
+            assertEquals(chunk.limit(), chunk.position());
+            source.position(chunk.position());
+            done += frames;
+            assertEquals(done * outChannels, output.position());
+        }
+        return output.array();
+    }
+
+    private static void assertSineAccuracy(int inRate, int inChannels, int outRate, int outChannels) {
+        int outFrames = outRate / 5;
+        int inFrames = (int) ((long) outFrames * inRate / outRate) + 256;
+        short[] input = sine(inRate, inChannels, inFrames);
+        PcmResampler resampler = new PcmResampler(inRate, inChannels, outRate, outChannels);
+        short[] output = run(resampler, input, inChannels, outChannels, outFrames, new int[]{1024});
+        double maxError = 0;
+        for (int n = SETTLE_FRAMES; n < outFrames; n++) {
+            double expected = AMPLITUDE * Math.sin(2 * Math.PI * FREQUENCY * n / outRate);
+            for (int c = 0; c < outChannels; c++) {
+                maxError = Math.max(maxError, Math.abs(output[n * outChannels + c] - expected));
+            }
+        }
+        assertTrue(inRate + "/" + inChannels + " -> " + outRate + "/" + outChannels + " error " + maxError, maxError <= 2);
+    }
+
+    @Test
+    public void sameRateConvertsChannels() {
+        short[] stereo = new short[6];
+        new PcmResampler(44100, 1, 44100, 2).resample(ShortBuffer.wrap(new short[]{1, -2, 3}), ShortBuffer.wrap(stereo), 3);
+        assertArrayEquals(new short[]{1, 1, -2, -2, 3, 3}, stereo);
+
+        short[] folded = new short[4];
+        new PcmResampler(48000, 4, 48000, 2).resample(ShortBuffer.wrap(new short[]{10, 20, 30, 41, -1, -2, -3, -4}), ShortBuffer.wrap(folded), 2);
+        assertArrayEquals(new short[]{20, 31, -2, -3}, folded);
+
+        short[] mono = new short[3];
+        new PcmResampler(16000, 2, 16000, 1).resample(ShortBuffer.wrap(new short[]{100, 200, -100, -201, 32767, 32767}), ShortBuffer.wrap(mono), 3);
+        assertArrayEquals(new short[]{150, -151, 32767}, mono);
+    }
+
+    @Test
+    public void sameRatePadsMissingInputWithSilence() {
+        ShortBuffer input = ShortBuffer.wrap(new short[]{5, 6, 7, 8});
+        ShortBuffer output = ShortBuffer.wrap(new short[]{9, 9, 9, 9, 9, 9, 9, 9});
+        PcmResampler resampler = new PcmResampler(44100, 2, 44100, 2);
+        resampler.resample(input, output, 4);
+        assertEquals(4, input.position());
+        assertEquals(8, output.position());
+        assertArrayEquals(new short[]{5, 6, 7, 8, 0, 0, 0, 0}, output.array());
+    }
+
+    @Test
+    public void downsamplesSineWithinTwoLsb() {
+        assertSineAccuracy(48000, 1, 44100, 2);
+        assertSineAccuracy(96000, 2, 44100, 2);
+    }
+
+    @Test
+    public void upsamplesSineWithinTwoLsb() {
+        assertSineAccuracy(22050, 2, 44100, 2);
+        assertSineAccuracy(8000, 1, 44100, 2);
+    }
+
+    @Test
+    public void outputDoesNotDependOnBlockSize() {
+        short[] input = sine(48000, 2, 12000);
+        short[] oneShot = run(new PcmResampler(48000, 2, 44100, 2), input, 2, 2, 10000, new int[]{10000});
+        short[] streamed = run(new PcmResampler(48000, 2, 44100, 2), input, 2, 2, 10000, new int[]{1, 7, 441, 1024, 13, 2048});
+        assertArrayEquals(oneShot, streamed);
+
+        // reset 后与新建的实例输出相同
+        PcmResampler resampler = new PcmResampler(48000, 2, 44100, 2);
+        run(resampler, sine(48000, 2, 3000), 2, 2, 2000, new int[]{512});
+        resampler.reset();
+        assertArrayEquals(oneShot, run(resampler, input, 2, 2, 10000, new int[]{333}));
+    }
+
+    @Test
+    public void nullInputProducesSilence() {
+        PcmResampler resampler = new PcmResampler(48000, 1, 44100, 2);
+        short[] data = new short[882];
+        Arrays.fill(data, (short) 7);
+        ShortBuffer output = ShortBuffer.wrap(data);
+        resampler.resample(null, output, 441);
+        assertEquals(882, output.position());
+        for (short value : data) {
+            assertEquals(0, value);
+        }
+    }
+
+    @Test
+    public void fullScaleSquareWaveSaturatesWithoutWrapping() {
+        // 满幅方波经过 sinc 滤波会在跳变处过冲，超出 16bit 的部分需要截断而不是回绕
+        short[] input = new short[4800];
+        for (int n = 0; n < input.length; n++) {
+            input[n] = (n / 50) % 2 == 0 ? Short.MAX_VALUE : Short.MIN_VALUE;
+        }
+        short[] output = run(new PcmResampler(48000, 1, 44100, 1), input, 1, 1, 4000, new int[]{4000});
+        int clipped = 0;
+        for (int n = SETTLE_FRAMES; n < output.length; n++) {
+            // 平台段附近采样的符号必须与输入一致，回绕会让正的峰值变成负数
+            int inIndex = (int) ((long) n * 48000 / 44100);
+            if (inIndex % 50 > 5 && inIndex % 50 < 45) {
+                boolean positive = (inIndex / 50) % 2 == 0;
+                assertEquals("frame " + n, positive, output[n] > 0);
+                assertTrue("frame " + n + " " + output[n], Math.abs(output[n]) > 30000);
+            }
+            if (output[n] == Short.MAX_VALUE || output[n] == Short.MIN_VALUE) {
+                clipped++;
+            }
+        }
+        assertTrue(clipped > 0);
+    }
+}
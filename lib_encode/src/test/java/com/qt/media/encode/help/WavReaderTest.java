@@ -0,0 +1,241 @@
+package com.qt.media.encode.help;
+
+import org.junit.After;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.ShortBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.fail;
+
+/**
+ * WavReader 文件头解析：LIST/fact 等非音频 chunk 与奇数长度的 chunk 补齐、18/40 字节的 fmt chunk、
+ * 录制中断时 data 大小为 0 或 0xFFFFFFFF 的文件，以及按帧精确定位读取
+ * 每帧第 c 个声道的采样值为 frame * channels + c，便于校验读取位置
+ */
+public class WavReaderTest {
+    private final List<File> mFiles = new ArrayList<>();
+    private final List<WavReader> mReaders = new ArrayList<>();
+
+    @After
+    public void tearDown() throws IOException {
+        for (WavReader reader : mReaders) {
+            reader.close();
+        }
+        for (File file : mFiles) {
+            file.delete();
+        }
+    }
+
+    /**
+     * 按顺序拼接 chunk 生成 wav 文件，RIFF 大小按实际内容填写
+     */
+    private static final class WavBuilder {
+        private final ByteBuffer mBuffer = ByteBuffer.allocate(1 << 20).order(ByteOrder.LITTLE_ENDIAN);
+
+        WavBuilder() {
+            mBuffer.put("RIFF".getBytes(StandardCharsets.US_ASCII));
+            mBuffer.putInt(0);
+            mBuffer.put("WAVE".getBytes(StandardCharsets.US_ASCII));
+        }
+
+        WavBuilder chunk(String id, byte[] body) {
+            return chunk(id, body.length, body);
+        }
+
+        /**
+         * @param size 写入 chunk 头的大小，可以与 body 实际长度不同
+         */
+        WavBuilder chunk(String id, long size, byte[] body) {
+            mBuffer.put(id.getBytes(StandardCharsets.US_ASCII));
+            mBuffer.putInt((int) size);
+            mBuffer.put(body);
+            if ((body.length & 1) != 0) {
+                mBuffer.put((byte) 0);
+            }
+            return this;
+        }
+
+        WavBuilder fmt(int format, int channels, int rate, int bits, int size) {
+            ByteBuffer body = ByteBuffer.allocate(size).order(ByteOrder.LITTLE_ENDIAN);
+            body.putShort((short) format);
+            body.putShort((short) channels);
+            body.putInt(rate);
+            body.putInt(rate * channels * bits / 8);
+            body.putShort((short) (channels * bits / 8));
+            body.putShort((short) bits);
+            if (size >= 18) {
+                body.putShort((short) (size - 18));
+            }
+            if (size >= 40) {
+                // WAVE_FORMAT_EXTENSIBLE：validBits、channelMask、SubFormat(PCM)
+                body.putShort((short) bits);
+                body.putInt(3);
+                body.putShort((short) 1);
+            }
+            return chunk("fmt ", body.array());
+        }
+
+        WavBuilder fmt(int channels, int rate) {
+            return fmt(1, channels, rate, 16, 16);
+        }
+
+        WavBuilder data(int channels, int frames, long size) {
+            ByteBuffer body = ByteBuffer.allocate(frames * channels * 2).order(ByteOrder.LITTLE_ENDIAN);
+            for (int i = 0; i < frames * channels; i++) {
+                body.putShort((short) i);
+            }
+            return chunk("data", size, body.array());
+        }
+
+        WavBuilder data(int channels, int frames) {
+            return data(channels, frames, frames * channels * 2L);
+        }
+
+        /**
+         * 在末尾追加不成帧的字节，模拟写到一半中断的文件
+         */
+        WavBuilder raw(int bytes) {
+            mBuffer.put(new byte[bytes]);
+            return this;
+        }
+
+        byte[] build() {
+            mBuffer.putInt(4, mBuffer.position() - 8);
+            byte[] bytes = new byte[mBuffer.position()];
+            mBuffer.flip();
+            mBuffer.get(bytes);
+            return bytes;
+        }
+    }
+
+    private File write(byte[] bytes) throws IOException {
+        File file = File.createTempFile("wav_reader", ".wav");
+        mFiles.add(file);
+        try (FileOutputStream out = new FileOutputStream(file)) {
+            out.write(bytes);
+        }
+        return file;
+    }
+
+    private WavReader open(WavBuilder builder) throws IOException {
+        WavReader reader = new WavReader(write(builder.build()));
+        mReaders.add(reader);
+        return reader;
+    }
+
+    private static void assertFrames(ShortBuffer buffer, int channels, long startFrame, int frames) {
+        assertNotNull(buffer);
+        assertEquals(frames * channels, buffer.remaining());
+        int base = buffer.position();
+        for (int i = 0; i < frames * channels; i++) {
+            assertEquals((short) (startFrame * channels + i), buffer.get(base + i));
+        }
+    }
+
+    @Test
+    public void skipsListAndFactChunksWithPadding() throws IOException {
+        // 奇数长度的 LIST chunk 后面有一个补齐字节，fact chunk 位于 fmt 与 data 之间
+        WavReader reader = open(new WavBuilder()
+                .chunk("LIST", "INFOISFT\u0005\u0000\u0000\u0000Lavf\u0000".getBytes(StandardCharsets.ISO_8859_1))
+                .fmt(2, 44100)
+                .chunk("fact", new byte[]{100, 0, 0, 0})
+                .data(2, 100));
+        assertEquals(44100, reader.getSampleRate());
+        assertEquals(2, reader.getChannelCount());
+        assertEquals(100, reader.getFrameCount());
+        assertFrames(reader.readFrames(0, 100), 2, 0, 100);
+    }
+
+    @Test
+    public void acceptsExtendedFmtChunks() throws IOException {
+        WavReader reader = open(new WavBuilder().fmt(1, 1, 22050, 16, 18).data(1, 50));
+        assertEquals(22050, reader.getSampleRate());
+        assertEquals(1, reader.getChannelCount());
+        assertEquals(50, reader.getFrameCount());
+        assertFrames(reader.readFrames(10, 5), 1, 10, 5);
+
+        reader = open(new WavBuilder().fmt(0xFFFE, 2, 48000, 16, 40).data(2, 48));
+        assertEquals(48000, reader.getSampleRate());
+        assertEquals(2, reader.getChannelCount());
+        assertEquals(48, reader.getFrameCount());
+        assertEquals(1000, reader.getDurationUs());
+        assertFrames(reader.readFrames(47, 1), 2, 47, 1);
+    }
+
+    @Test
+    public void unfinishedDataSizeFallsBackToFileLength() throws IOException {
+        // 录制中断：data 大小未回填，文件末尾还有半帧
+        WavReader reader = open(new WavBuilder().fmt(2, 8000).data(2, 30, 0).raw(3));
+        assertEquals(30, reader.getFrameCount());
+        assertFrames(reader.readFrames(0, 30), 2, 0, 30);
+
+        reader = open(new WavBuilder().fmt(2, 8000).data(2, 30, 0xFFFFFFFFL).raw(1));
+        assertEquals(30, reader.getFrameCount());
+        assertFrames(reader.readFrames(25, 10), 2, 25, 5);
+    }
+
+    @Test
+    public void seeksToExactFrames() throws IOException {
+        WavReader reader = open(new WavBuilder().fmt(2, 44100).data(2, 2000));
+        assertEquals(2000L * 1000000 / 44100, reader.getDurationUs());
+        // 向下取整到整帧
+        assertEquals(0, reader.frameOf(0));
+        // 第 1000 帧位于 22675.7us
+        assertEquals(999, reader.frameOf(22675));
+        assertEquals(1000, reader.frameOf(22676));
+        assertEquals(44100, reader.frameOf(1000000));
+
+        long start = reader.frameOf(22675);
+        assertFrames(reader.readFrames(start, 256), 2, start, 256);
+        // 超出文件的部分截掉，完全越界返回 null
+        assertFrames(reader.readFrames(1990, 256), 2, 1990, 10);
+        assertNull(reader.readFrames(2000, 1));
+        assertNull(reader.readFrames(0, 0));
+        assertFrames(reader.readFrames(-5, 3), 2, 0, 3);
+    }
+
+    @Test
+    public void sliceIsIndependentOfLaterReads() throws IOException {
+        WavReader reader = open(new WavBuilder().fmt(1, 16000).data(1, 1000));
+        ShortBuffer slice = reader.slice(100, 10);
+        ShortBuffer shared = reader.readFrames(500, 20);
+        assertFrames(shared, 1, 500, 20);
+        assertEquals(0, slice.position());
+        assertFrames(slice, 1, 100, 10);
+        // readFrames 复用同一个 buffer
+        assertSame(shared, reader.readFrames(0, 1));
+    }
+
+    @Test
+    public void rejectsUnsupportedFiles() throws IOException {
+        assertRejected(new WavBuilder().fmt(1, 2, 44100, 8, 16).data(2, 10).build());
+        assertRejected(new WavBuilder().fmt(3, 2, 44100, 32, 16).data(2, 10).build());
+        assertRejected(new WavBuilder().fmt(2, 44100).build());
+        assertRejected(new WavBuilder().data(2, 10).build());
+        byte[] notRiff = new WavBuilder().fmt(2, 44100).data(2, 10).build();
+        notRiff[0] = 'X';
+        assertRejected(notRiff);
+        assertRejected(new byte[4]);
+    }
+
+    private void assertRejected(byte[] bytes) throws IOException {
+        File file = write(bytes);
+        try {
+            new WavReader(file).close();
+            fail("expected IOException");
+        } catch (IOException expected) {
+        }
+    }
+}
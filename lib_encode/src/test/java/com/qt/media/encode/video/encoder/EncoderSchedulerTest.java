@@ -0,0 +1,253 @@
+package com.qt.media.encode.video.encoder;
+
+import com.qt.media.encode.entity.FrameFormat;
+import com.qt.media.encode.entity.ImageFrame;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * EncoderScheduler 串行队列与会话轮转：队列内按顺序串行执行、会话之间公平轮转、
+ * 所有线程阻塞时 watchdog 临时增加线程、延迟任务不占用工作线程、runAndWait 在本队列中直接执行；
+ * 以及编码器在共用线程池上的行为：frameAvailableSoon 合并 drain、输入 buffer 都在编码器中时等待发送 EOS 不占住工作线程
+ */
+public class EncoderSchedulerTest {
+
+    /**
+     * 占住工作线程直到 release
+     */
+    private static final class Blocker implements Runnable {
+        final CountDownLatch started = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+
+        @Override
+        public void run() {
+            started.countDown();
+            try {
+                release.await();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    @Test(timeout = 10000)
+    public void queueRunsTasksInOrderOneAtATime() throws Exception {
+        EncoderScheduler scheduler = new EncoderScheduler("order", 4);
+        EncoderScheduler.SerialQueue queue = scheduler.newSession("session").newQueue("queue");
+        final int taskCount = 2000;
+        final List<Integer> order = Collections.synchronizedList(new ArrayList<Integer>());
+        final AtomicInteger running = new AtomicInteger();
+        final AtomicBoolean overlapped = new AtomicBoolean();
+        final CountDownLatch done = new CountDownLatch(taskCount);
+        for (int i = 0; i < taskCount; i++) {
+            final int index = i;
+            assertTrue(queue.execute(() -> {
+                if (running.incrementAndGet() != 1) {
+                    overlapped.set(true);
+                }
+                order.add(index);
+                running.decrementAndGet();
+                done.countDown();
+            }));
+        }
+        assertTrue(done.await(5, TimeUnit.SECONDS));
+        assertFalse(overlapped.get());
+        for (int i = 0; i < taskCount; i++) {
+            assertEquals(i, (int) order.get(i));
+        }
+    }
+
+    @Test(timeout = 10000)
+    public void sessionsAreServedRoundRobin() throws Exception {
+        EncoderScheduler scheduler = new EncoderScheduler("fair", 1, 1);
+        EncoderScheduler.SerialQueue busy = scheduler.newSession("busy").newQueue("queue");
+        EncoderScheduler.SerialQueue other = scheduler.newSession("other").newQueue("queue");
+        Blocker blocker = new Blocker();
+        busy.execute(blocker);
+        assertTrue(blocker.started.await(5, TimeUnit.SECONDS));
+
+        final List<String> order = Collections.synchronizedList(new ArrayList<String>());
+        final CountDownLatch done = new CountDownLatch(101);
+        for (int i = 0; i < 100; i++) {
+            final int index = i;
+            busy.execute(() -> {
+                order.add("busy" + index);
+                done.countDown();
+            });
+        }
+        other.execute(() -> {
+            order.add("other");
+            done.countDown();
+        });
+        blocker.release.countDown();
+        assertTrue(done.await(5, TimeUnit.SECONDS));
+        // busy 会话执行完 blocker 后排到 other 之后，other 的任务不需要等 busy 的 100 个任务
+        assertTrue(order.toString(), order.indexOf("other") <= 1);
+    }
+
+    @Test(timeout = 10000)
+    public void watchdogAddsWorkerWhenAllWorkersAreBlocked() throws Exception {
+        EncoderScheduler scheduler = new EncoderScheduler("watchdog", 1, 2);
+        Blocker blocker = new Blocker();
+        scheduler.newSession("render").newQueue("queue").execute(blocker);
+        assertTrue(blocker.started.await(5, TimeUnit.SECONDS));
+        assertEquals(1, scheduler.getThreadCount());
+
+        // 唯一的线程被阻塞，watchdog 在 STARVATION_TIMEOUT_MS 后增加线程执行另一个会话的任务
+        final CountDownLatch ran = new CountDownLatch(1);
+        scheduler.newSession("encode").newQueue("queue").execute(ran::countDown);
+        assertTrue(ran.await(2, TimeUnit.SECONDS));
+        assertEquals(2, scheduler.getPeakThreadCount());
+
+        // 已经达到最大线程数，不再增加
+        Blocker second = new Blocker();
+        scheduler.newSession("second").newQueue("queue").execute(second);
+        assertTrue(second.started.await(5, TimeUnit.SECONDS));
+        final CountDownLatch third = new CountDownLatch(1);
+        scheduler.newSession("third").newQueue("queue").execute(third::countDown);
+        assertFalse(third.await(500, TimeUnit.MILLISECONDS));
+        assertEquals(2, scheduler.getPeakThreadCount());
+        blocker.release.countDown();
+        second.release.countDown();
+        assertTrue(third.await(5, TimeUnit.SECONDS));
+    }
+
+    @Test(timeout = 10000)
+    public void delayedTaskDoesNotOccupyWorker() throws Exception {
+        EncoderScheduler scheduler = new EncoderScheduler("delayed", 1, 1);
+        EncoderScheduler.SerialQueue queue = scheduler.newSession("session").newQueue("queue");
+        final long delayMs = 200;
+        final AtomicLong delayedAtNs = new AtomicLong();
+        final CountDownLatch delayed = new CountDownLatch(1);
+        long startNs = System.nanoTime();
+        assertTrue(queue.executeDelayed(() -> {
+            delayedAtNs.set(System.nanoTime());
+            delayed.countDown();
+        }, delayMs));
+
+        // 等待期间同一个队列与其它会话的任务都能在唯一的线程上执行
+        final CountDownLatch immediate = new CountDownLatch(2);
+        queue.execute(immediate::countDown);
+        scheduler.newSession("other").newQueue("queue").execute(immediate::countDown);
+        assertTrue(immediate.await(delayMs / 2, TimeUnit.MILLISECONDS));
+        assertEquals(1, delayed.getCount());
+
+        assertTrue(delayed.await(5, TimeUnit.SECONDS));
+        assertTrue(delayedAtNs.get() - startNs >= TimeUnit.MILLISECONDS.toNanos(delayMs));
+
+        // 到期时已经 shutdown 的队列不再执行
+        final CountDownLatch dropped = new CountDownLatch(1);
+        assertTrue(queue.executeDelayed(dropped::countDown, 50));
+        queue.shutdown();
+        assertFalse(dropped.await(300, TimeUnit.MILLISECONDS));
+        assertFalse(queue.executeDelayed(dropped::countDown, 50));
+        assertFalse(queue.execute(dropped::countDown));
+    }
+
+    @Test(timeout = 10000)
+    public void runAndWaitRunsInlineOnItsOwnQueue() throws Exception {
+        EncoderScheduler scheduler = new EncoderScheduler("reentrant", 1, 1);
+        final EncoderScheduler.SerialQueue queue = scheduler.newSession("session").newQueue("queue");
+        final List<String> order = Collections.synchronizedList(new ArrayList<String>());
+        // 单线程时在本队列的任务中等待本队列会死锁，isCurrentThread 时直接执行
+        assertTrue(queue.runAndWait(() -> {
+            assertTrue(queue.isCurrentThread());
+            order.add("outer");
+            assertTrue(queue.runAndWait(() -> order.add("inner")));
+            order.add("outer-end");
+        }));
+        assertFalse(queue.isCurrentThread());
+        assertEquals("[outer, inner, outer-end]", order.toString());
+
+        queue.shutdown();
+        assertFalse(queue.runAndWait(() -> order.add("rejected")));
+        assertEquals(3, order.size());
+    }
+
+    @Test(timeout = 10000)
+    public void frameAvailableSoonCoalescesDrains() throws Exception {
+        // 渲染器的任务会阻塞等待编码器，至少需要两个线程
+        EncoderScheduler scheduler = new EncoderScheduler("coalesce", 1, 2);
+        RecordingEncoderListener listener = new RecordingEncoderListener();
+        MediaMuxerWrapper muxer = new MediaMuxerWrapper("coalesce.mp4", new RecordingMuxerBackend());
+        muxer.setScheduler(scheduler);
+        MediaBufferVideoEncoder encoder = new MediaBufferVideoEncoder(muxer, listener, 320, 240, 30);
+        final FakeCodecBackend codec = new FakeCodecBackend();
+        encoder.setCodecFactory(mimeType -> codec);
+        muxer.prepare();
+        muxer.startRecording();
+
+        // 占住唯一的线程，期间的 frameAvailableSoon 只提交一次 drain
+        Blocker blocker = new Blocker();
+        scheduler.newSession("blocker").newQueue("queue").execute(blocker);
+        assertTrue(blocker.started.await(5, TimeUnit.SECONDS));
+        long before = codec.getDequeueOutputCount();
+        for (int i = 0; i < 200; i++) {
+            assertTrue(encoder.frameAvailableSoon());
+        }
+        blocker.release.countDown();
+        // 一轮 drain 在连续 DRAIN_IDLE_RETRIES 次没有输出后结束
+        Thread.sleep(300);
+        long drains = codec.getDequeueOutputCount() - before;
+        assertTrue("dequeueOutputBuffer " + drains, drains > 0 && drains < 20);
+
+        muxer.stopRecording();
+        assertTrue(listener.awaitStopped(5, TimeUnit.SECONDS));
+        assertNull(listener.getError());
+    }
+
+    @Test(timeout = 10000)
+    public void endOfStreamWaitDoesNotPinWorker() throws Exception {
+        final int width = 320;
+        final int height = 240;
+        final long processingTimeUs = 400000;
+        EncoderScheduler scheduler = new EncoderScheduler("eos", 1, 1);
+        RecordingEncoderListener listener = new RecordingEncoderListener();
+        RecordingMuxerBackend backend = new RecordingMuxerBackend();
+        MediaMuxerWrapper muxer = new MediaMuxerWrapper("eos.mp4", backend);
+        muxer.setScheduler(scheduler);
+        MediaVideoNV12Encoder encoder = new MediaVideoNV12Encoder(muxer, listener, width, height, true);
+        final FakeCodecBackend codec = new FakeCodecBackend(1, 2, width * height * 3 / 2, 64 * 1024);
+        codec.setLatency(processingTimeUs, 0);
+        encoder.setCodecFactory(mimeType -> codec);
+        muxer.prepare();
+        muxer.startRecording();
+
+        // 唯一的输入 buffer 在编码器中处理 processingTimeUs
+        assertTrue(encoder.frameAvailableSoon(new ImageFrame(new byte[width * height * 3 / 2], FrameFormat.FORMAT_NV12, width, height, false, null, null)));
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+        while (codec.getInputFrameCount() < 1 && System.nanoTime() < deadline) {
+            Thread.sleep(1);
+        }
+        assertEquals(1, codec.getInputFrameCount());
+        muxer.stopRecording();
+
+        // 发送 EOS 等待输入 buffer 期间，其它会话的任务仍能在唯一的线程上执行
+        final CountDownLatch other = new CountDownLatch(1);
+        long startNs = System.nanoTime();
+        scheduler.newSession("other").newQueue("queue").execute(other::countDown);
+        assertTrue(other.await(5, TimeUnit.SECONDS));
+        long waitedUs = (System.nanoTime() - startNs) / 1000;
+        assertTrue("other session waited " + waitedUs + "us", waitedUs < processingTimeUs / 2);
+        assertFalse(listener.awaitStopped(0, TimeUnit.MILLISECONDS));
+
+        assertTrue(listener.awaitStopped(5, TimeUnit.SECONDS));
+        assertEquals(1, backend.getSampleCount());
+        assertTrue(backend.isStopped());
+        assertNull(listener.getError());
+    }
+}
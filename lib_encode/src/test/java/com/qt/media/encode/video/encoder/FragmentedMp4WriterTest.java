@@ -0,0 +1,501 @@
+package com.qt.media.encode.video.encoder;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * FragmentedMp4Writer 写入构造的 H.264/AAC 样本，解析输出文件检查 box 结构、moof/mdat 中的数据偏移与片段时长
+ */
+public class FragmentedMp4WriterTest {
+    private static final long FRAME_US = 33_333L;
+    private static final int GOP = 15;
+    private static final int AAC_SAMPLE_RATE = 44100;
+    private static final int AAC_FRAME_SIZE = 1024;
+
+    private static final byte[] SPS = {0, 0, 0, 1, 0x67, 0x42, (byte) 0xC0, 0x1E, (byte) 0xDA, 0x02, (byte) 0x80, (byte) 0xBF, (byte) 0xE5};
+    private static final byte[] PPS = {0, 0, 0, 1, 0x68, (byte) 0xCE, 0x3C, (byte) 0x80};
+    /**
+     * AAC-LC、44100Hz、双声道
+     */
+    private static final byte[] ASC = {0x12, 0x10};
+
+    private File mFile;
+
+    @Before
+    public void setUp() throws IOException {
+        mFile = File.createTempFile("fmp4", ".mp4");
+    }
+
+    @After
+    public void tearDown() {
+        mFile.delete();
+    }
+
+    @Test(timeout = 10000)
+    public void videoFragmentsAreCutAtKeyFrames() throws IOException {
+        FragmentedMp4Writer writer = new FragmentedMp4Writer(mFile);
+        RecordingFragmentListener listener = new RecordingFragmentListener();
+        writer.setFragmentListener(listener);
+        int video = writer.addAvcTrack(320, 240, ByteBuffer.wrap(SPS), ByteBuffer.wrap(PPS));
+        writer.start();
+        List<byte[]> samples = new ArrayList<>();
+        for (int i = 0; i < 90; i++) {
+            byte[] sample = videoSample(i);
+            samples.add(sample);
+            writer.writeSample(video, ByteBuffer.wrap(sample), i * FRAME_US, i % GOP == 0);
+        }
+        writer.close();
+        // 关键帧在 0、0.5、1.0、1.5 ... 秒，时长达到 1 秒后的第一个关键帧处切片：0-29、30-59、60-89
+        assertEquals(3, writer.getFragmentCount());
+
+        ByteBuffer file = readFile();
+        List<Box> top = children(file, 0, file.limit());
+        assertEquals(8, top.size());
+        assertEquals("ftyp", top.get(0).type);
+        assertEquals("moov", top.get(1).type);
+        assertEquals(file.limit(), top.get(top.size() - 1).end());
+
+        Box moov = top.get(1);
+        List<Box> moovChildren = children(file, moov);
+        assertEquals("mvhd", moovChildren.get(0).type);
+        assertEquals(1, count(moovChildren, "trak"));
+        Box trak = find(children(file, moov), "trak");
+        Box stsd = findPath(file, trak, "mdia", "minf", "stbl", "stsd");
+        Box avc1 = children(file, stsd.payload() + 8, stsd.end()).get(0);
+        assertEquals("avc1", avc1.type);
+        // avc1 的 sample entry 固定 78 字节后是 avcC
+        Box avcC = children(file, avc1.payload() + 78, avc1.end()).get(0);
+        assertEquals("avcC", avcC.type);
+        assertEquals(0x42, file.get(avcC.payload() + 1) & 0xFF);
+        assertEquals(0xE1, file.get(avcC.payload() + 5) & 0xFF);
+        assertEquals(SPS.length - 4, file.getShort(avcC.payload() + 6));
+
+        Box mvex = find(moovChildren, "mvex");
+        List<Box> mvexChildren = children(file, mvex);
+        assertEquals("mehd", mvexChildren.get(0).type);
+        assertEquals("trex", mvexChildren.get(1).type);
+        assertEquals(1, file.getInt(mvexChildren.get(1).payload() + 4));
+        // close 时回填的总时长（毫秒）：90 帧约 3 秒
+        long durationMs = file.getLong(mvexChildren.get(0).payload() + 4);
+        assertTrue("duration " + durationMs, Math.abs(durationMs - 3000) <= 1);
+
+        long expectedDts = 0;
+        int sampleIndex = 0;
+        for (int f = 0; f < 3; f++) {
+            Box moof = top.get(2 + f * 2);
+            Box mdat = top.get(3 + f * 2);
+            assertEquals("moof", moof.type);
+            assertEquals("mdat", mdat.type);
+
+            List<Box> moofChildren = children(file, moof);
+            assertEquals("mfhd", moofChildren.get(0).type);
+            assertEquals(f + 1, file.getInt(moofChildren.get(0).payload() + 4));
+            assertEquals(1, count(moofChildren, "traf"));
+            Traf traf = parseTraf(file, find(moofChildren, "traf"));
+            assertEquals(1, traf.trackId);
+            assertEquals(expectedDts, traf.baseDts);
+            assertEquals(30, traf.sizes.size());
+            // default-base-is-moof：数据从 moof 起始位置加 data_offset 开始，即紧跟 mdat 头
+            assertEquals(moof.size + 8, traf.dataOffset);
+            assertEquals(mdat.payload(), moof.offset + traf.dataOffset);
+
+            long position = moof.offset + traf.dataOffset;
+            long fragmentTicks = 0;
+            for (int i = 0; i < traf.sizes.size(); i++, sampleIndex++) {
+                byte[] sample = samples.get(sampleIndex);
+                // 4 字节起始码替换为 4 字节长度前缀，大小不变
+                assertEquals(sample.length, (int) traf.sizes.get(i));
+                assertEquals(sample.length - 4, file.getInt((int) position));
+                assertEquals(sample[4], file.get((int) position + 4));
+                assertEquals(sample[sample.length - 1], file.get((int) (position + sample.length - 1)));
+                assertEquals(sampleIndex % GOP == 0, traf.flags.get(i) == 0x02000000);
+                position += sample.length;
+                fragmentTicks += traf.durations.get(i);
+            }
+            assertEquals(mdat.end(), position);
+            // 90000 timescale 下 1 秒 = 90000 tick，时间戳取整误差不超过 1 毫秒
+            assertTrue("fragment " + f + " duration " + fragmentTicks, Math.abs(fragmentTicks - 90000) <= 90);
+            expectedDts += fragmentTicks;
+
+            assertEquals(f + 1, (int) listener.sequences.get(f));
+            assertEquals(moof.offset, (long) listener.positions.get(f));
+            assertEquals(moof.size + mdat.size, (long) listener.sizes.get(f));
+        }
+    }
+
+    @Test(timeout = 10000)
+    public void audioAndVideoShareOneMdatPerFragment() throws IOException {
+        FragmentedMp4Writer writer = new FragmentedMp4Writer(mFile);
+        writer.setWriteBufferSize(0);
+        int video = writer.addAvcTrack(320, 240, ByteBuffer.wrap(concat(SPS, PPS)));
+        int audio = writer.addAacTrack(AAC_SAMPLE_RATE, 2, ByteBuffer.wrap(ASC), 128000);
+        writer.start();
+        // 1.9 秒内只在 1 秒处的关键帧切片，close 写出剩余样本，共两个片段
+        long endUs = 1900_000L;
+        int frame = 0;
+        int audioFrame = 0;
+        long videoBytes = 0;
+        long audioBytes = 0;
+        while (true) {
+            long videoPts = frame * FRAME_US;
+            long audioPts = audioPtsUs(audioFrame);
+            if (videoPts >= endUs && audioPts >= endUs) {
+                break;
+            }
+            if (videoPts <= audioPts) {
+                byte[] sample = videoSample(frame);
+                writer.writeSample(video, ByteBuffer.wrap(sample), videoPts, frame % GOP == 0);
+                videoBytes += sample.length;
+                frame++;
+            } else {
+                byte[] sample = audioSample(audioFrame);
+                writer.writeSample(audio, ByteBuffer.wrap(sample), audioPts, false);
+                audioBytes += sample.length;
+                audioFrame++;
+            }
+        }
+        writer.close();
+        assertEquals(2, writer.getFragmentCount());
+
+        ByteBuffer file = readFile();
+        List<Box> top = children(file, 0, file.limit());
+        assertEquals(6, top.size());
+        Box moov = top.get(1);
+        List<Box> traks = new ArrayList<>();
+        for (Box box : children(file, moov)) {
+            if (box.type.equals("trak")) {
+                traks.add(box);
+            }
+        }
+        assertEquals(2, traks.size());
+        Box stsd = findPath(file, traks.get(1), "mdia", "minf", "stbl", "stsd");
+        Box mp4a = children(file, stsd.payload() + 8, stsd.end()).get(0);
+        assertEquals("mp4a", mp4a.type);
+        assertEquals(2, file.getShort(mp4a.payload() + 16));
+        assertEquals(AAC_SAMPLE_RATE, file.getInt(mp4a.payload() + 24) >>> 16);
+        Box esds = children(file, mp4a.payload() + 28, mp4a.end()).get(0);
+        assertEquals("esds", esds.type);
+        byte[] asc = new byte[ASC.length];
+        // esds 末尾依次是 DecoderSpecificInfo 内容与 3 字节的 SLConfigDescriptor
+        for (int i = 0; i < asc.length; i++) {
+            asc[i] = file.get((int) esds.end() - 3 - asc.length + i);
+        }
+        assertArrayEquals(ASC, asc);
+
+        long totalVideo = 0;
+        long totalAudio = 0;
+        int audioSamples = 0;
+        for (int f = 0; f < 2; f++) {
+            Box moof = top.get(2 + f * 2);
+            Box mdat = top.get(3 + f * 2);
+            List<Box> trafs = new ArrayList<>();
+            for (Box box : children(file, moof)) {
+                if (box.type.equals("traf")) {
+                    trafs.add(box);
+                }
+            }
+            assertEquals(2, trafs.size());
+            Traf videoTraf = parseTraf(file, trafs.get(0));
+            Traf audioTraf = parseTraf(file, trafs.get(1));
+            assertEquals(1, videoTraf.trackId);
+            assertEquals(2, audioTraf.trackId);
+            // 视频数据在前，音频数据紧随其后，两者正好填满 mdat
+            assertEquals(moof.size + 8, videoTraf.dataOffset);
+            assertEquals(videoTraf.dataOffset + sum(videoTraf.sizes), audioTraf.dataOffset);
+            assertEquals(mdat.end(), moof.offset + audioTraf.dataOffset + sum(audioTraf.sizes));
+            assertEquals(0x02000000, (int) videoTraf.flags.get(0));
+
+            long position = moof.offset + audioTraf.dataOffset;
+            for (int i = 0; i < audioTraf.sizes.size(); i++, audioSamples++) {
+                byte[] sample = audioSample(audioSamples);
+                assertEquals(sample.length, (int) audioTraf.sizes.get(i));
+                assertEquals(sample[0], file.get((int) position));
+                // 音频时间戳按采样数计算，每帧正好 1024 个采样
+                assertEquals(AAC_FRAME_SIZE, (long) audioTraf.durations.get(i));
+                assertEquals(0x02000000, (int) audioTraf.flags.get(i));
+                position += sample.length;
+            }
+            assertEquals((long) (audioSamples - audioTraf.sizes.size()) * AAC_FRAME_SIZE, audioTraf.baseDts);
+            totalVideo += sum(videoTraf.sizes);
+            totalAudio += sum(audioTraf.sizes);
+            if (f == 0) {
+                // 第一个片段在 1 秒处的关键帧切片
+                assertEquals(30, videoTraf.sizes.size());
+                assertTrue(Math.abs(sum(videoTraf.durations) - 90000) <= 90);
+            }
+        }
+        assertEquals(videoBytes, totalVideo);
+        assertEquals(audioBytes, totalAudio);
+        assertEquals(audioFrame, audioSamples);
+    }
+
+    @Test(timeout = 10000)
+    public void audioOnlyFragmentsAreCutByDuration() throws IOException {
+        FragmentedMp4Writer writer = new FragmentedMp4Writer(mFile);
+        RecordingFragmentListener listener = new RecordingFragmentListener();
+        writer.setFragmentListener(listener);
+        writer.setFragmentDurationUs(500_000L);
+        int audio = writer.addAacTrack(AAC_SAMPLE_RATE, 2, null, 0);
+        writer.start();
+        int frames = 100;
+        for (int i = 0; i < frames; i++) {
+            writer.writeSample(audio, ByteBuffer.wrap(audioSample(i)), audioPtsUs(i), false);
+        }
+        writer.close();
+
+        ByteBuffer file = readFile();
+        List<Box> top = children(file, 0, file.limit());
+        int fragments = (top.size() - 2) / 2;
+        assertEquals(writer.getFragmentCount(), fragments);
+        assertEquals(fragments, listener.sequences.size());
+        // 没有传入 AudioSpecificConfig 时按 AAC-LC 生成，与 ASC 相同
+        Box stsd = findPath(file, find(children(file, top.get(1)), "trak"), "mdia", "minf", "stbl", "stsd");
+        Box mp4a = children(file, stsd.payload() + 8, stsd.end()).get(0);
+        Box esds = children(file, mp4a.payload() + 28, mp4a.end()).get(0);
+        assertEquals(ASC[0], file.get((int) esds.end() - 5));
+        assertEquals(ASC[1], file.get((int) esds.end() - 4));
+
+        int samples = 0;
+        for (int f = 0; f < fragments; f++) {
+            Box moof = top.get(2 + f * 2);
+            Traf traf = parseTraf(file, find(children(file, moof), "traf"));
+            assertEquals((long) samples * AAC_FRAME_SIZE, traf.baseDts);
+            long durationUs = sum(traf.durations) * 1000_000L / AAC_SAMPLE_RATE;
+            if (f < fragments - 1) {
+                // 只有音频时在时长达到片段时长（允许 10 毫秒误差）后切片，不超过一帧
+                assertTrue("fragment " + f + " duration " + durationUs,
+                        durationUs >= 490_000L && durationUs < 500_000L + audioPtsUs(1));
+            }
+            samples += traf.sizes.size();
+        }
+        assertEquals(frames, samples);
+        assertTrue(fragments >= 4);
+    }
+
+    @Test(timeout = 10000)
+    public void reorderedFramesUseSignedCompositionOffsets() throws IOException {
+        FragmentedMp4Writer writer = new FragmentedMp4Writer(mFile);
+        int video = writer.addAvcTrack(320, 240, ByteBuffer.wrap(SPS), ByteBuffer.wrap(PPS));
+        writer.start();
+        // 解码顺序 I P B B，显示顺序 I B B P
+        int[] order = {0, 3, 1, 2};
+        for (int i = 0; i < order.length; i++) {
+            writer.writeSample(video, ByteBuffer.wrap(videoSample(i)), order[i] * FRAME_US, i == 0);
+        }
+        writer.close();
+
+        ByteBuffer file = readFile();
+        List<Box> top = children(file, 0, file.limit());
+        assertEquals(4, top.size());
+        Box traf = find(children(file, top.get(2)), "traf");
+        Box trun = find(children(file, traf), "trun");
+        int versionFlags = file.getInt(trun.payload());
+        assertEquals(1, versionFlags >>> 24);
+        assertTrue((versionFlags & 0x000800) != 0);
+        Traf parsed = parseTraf(file, traf);
+        for (int i = 0; i < order.length; i++) {
+            // 解码时间为排序后的时间戳，composition offset = pts - dts
+            long pts = (order[i] * FRAME_US * 90000 + 500_000) / 1000_000L;
+            long dts = (i * FRAME_US * 90000 + 500_000) / 1000_000L;
+            assertEquals(pts - dts, (long) parsed.ctsOffsets.get(i));
+        }
+    }
+
+    @Test
+    public void splitNalUnitsHandlesBothStartCodeLengths() {
+        byte[] stream = {0, 0, 0, 1, 0x67, 1, 2, 0, 0, 1, 0x68, 3, 0, 0, 0, 0, 1, 0x65, 4, 5, 0};
+        List<byte[]> nals = FragmentedMp4Writer.splitNalUnits(ByteBuffer.wrap(stream));
+        assertEquals(3, nals.size());
+        assertArrayEquals(new byte[]{0x67, 1, 2}, nals.get(0));
+        assertArrayEquals(new byte[]{0x68, 3}, nals.get(1));
+        assertArrayEquals(new byte[]{0x65, 4, 5}, nals.get(2));
+    }
+
+    /**
+     * 带 4 字节起始码的单个 slice，长度随帧变化，内容不含 0 避免出现起始码
+     */
+    private static byte[] videoSample(int frame) {
+        boolean key = frame % GOP == 0;
+        byte[] sample = new byte[4 + 1 + (key ? 400 : 60) + frame % 7];
+        sample[3] = 1;
+        sample[4] = (byte) (key ? 0x65 : 0x41);
+        for (int i = 5; i < sample.length; i++) {
+            sample[i] = (byte) (1 + (frame + i) % 250);
+        }
+        return sample;
+    }
+
+    private static byte[] audioSample(int frame) {
+        byte[] sample = new byte[200 + frame % 13];
+        for (int i = 0; i < sample.length; i++) {
+            sample[i] = (byte) (frame + i);
+        }
+        return sample;
+    }
+
+    private static long audioPtsUs(int frame) {
+        return ((long) frame * AAC_FRAME_SIZE * 1000_000L + AAC_SAMPLE_RATE / 2) / AAC_SAMPLE_RATE;
+    }
+
+    private static byte[] concat(byte[] a, byte[] b) {
+        byte[] result = new byte[a.length + b.length];
+        System.arraycopy(a, 0, result, 0, a.length);
+        System.arraycopy(b, 0, result, a.length, b.length);
+        return result;
+    }
+
+    private static long sum(List<? extends Number> values) {
+        long sum = 0;
+        for (Number value : values) {
+            sum += value.longValue();
+        }
+        return sum;
+    }
+
+    private ByteBuffer readFile() throws IOException {
+        return ByteBuffer.wrap(Files.readAllBytes(mFile.toPath()));
+    }
+
+    private static List<Box> children(ByteBuffer file, Box parent) {
+        return children(file, parent.payload(), parent.end());
+    }
+
+    /**
+     * 解析 [start, end) 内连续的 box，大小必须正好覆盖整个范围
+     */
+    private static List<Box> children(ByteBuffer file, int start, int end) {
+        List<Box> boxes = new ArrayList<>();
+        int position = start;
+        while (position < end) {
+            int size = file.getInt(position);
+            assertTrue("box size " + size + " at " + position, size >= 8 && position + size <= end);
+            byte[] type = new byte[4];
+            for (int i = 0; i < 4; i++) {
+                type[i] = file.get(position + 4 + i);
+            }
+            boxes.add(new Box(new String(type, StandardCharsets.US_ASCII), position, size));
+            position += size;
+        }
+        assertEquals(end, position);
+        return boxes;
+    }
+
+    private static Box find(List<Box> boxes, String type) {
+        for (Box box : boxes) {
+            if (box.type.equals(type)) {
+                return box;
+            }
+        }
+        throw new AssertionError("missing " + type);
+    }
+
+    private static Box findPath(ByteBuffer file, Box parent, String... path) {
+        Box box = parent;
+        for (String type : path) {
+            box = find(children(file, box), type);
+        }
+        assertNotNull(box);
+        return box;
+    }
+
+    private static int count(List<Box> boxes, String type) {
+        int count = 0;
+        for (Box box : boxes) {
+            if (box.type.equals(type)) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    private static Traf parseTraf(ByteBuffer file, Box trafBox) {
+        List<Box> boxes = children(file, trafBox);
+        Box tfhd = find(boxes, "tfhd");
+        Box tfdt = find(boxes, "tfdt");
+        Box trun = find(boxes, "trun");
+        Traf traf = new Traf();
+        assertEquals(0x020000, file.getInt(tfhd.payload()) & 0xFFFFFF);
+        traf.trackId = file.getInt(tfhd.payload() + 4);
+        assertEquals(1, file.getInt(tfdt.payload()) >>> 24);
+        traf.baseDts = file.getLong(tfdt.payload() + 4);
+        int flags = file.getInt(trun.payload()) & 0xFFFFFF;
+        // data_offset、duration、size、flags 必须存在
+        assertEquals(0x000701, flags & 0x000701);
+        boolean hasCts = (flags & 0x000800) != 0;
+        int sampleCount = file.getInt(trun.payload() + 4);
+        traf.dataOffset = file.getInt(trun.payload() + 8);
+        int position = trun.payload() + 12;
+        for (int i = 0; i < sampleCount; i++) {
+            traf.durations.add(file.getInt(position) & 0xFFFFFFFFL);
+            traf.sizes.add(file.getInt(position + 4));
+            traf.flags.add(file.getInt(position + 8));
+            position += 12;
+            if (hasCts) {
+                traf.ctsOffsets.add(file.getInt(position));
+                position += 4;
+            } else {
+                traf.ctsOffsets.add(0);
+            }
+        }
+        assertEquals(trun.end(), position);
+        return traf;
+    }
+
+    private static final class Box {
+        final String type;
+        final int offset;
+        final int size;
+
+        Box(String type, int offset, int size) {
+            this.type = type;
+            this.offset = offset;
+            this.size = size;
+        }
+
+        int payload() {
+            return offset + 8;
+        }
+
+        int end() {
+            return offset + size;
+        }
+    }
+
+    private static final class Traf {
+        int trackId;
+        long baseDts;
+        int dataOffset;
+        final List<Long> durations = new ArrayList<>();
+        final List<Integer> sizes = new ArrayList<>();
+        final List<Integer> flags = new ArrayList<>();
+        final List<Integer> ctsOffsets = new ArrayList<>();
+    }
+
+    private static final class RecordingFragmentListener implements FragmentedMp4Writer.FragmentListener {
+        final List<Integer> sequences = Collections.synchronizedList(new ArrayList<Integer>());
+        final List<Long> positions = Collections.synchronizedList(new ArrayList<Long>());
+        final List<Long> sizes = Collections.synchronizedList(new ArrayList<Long>());
+
+        @Override
+        public void onFragmentWritten(int sequence, long position, long size) {
+            sequences.add(sequence);
+            positions.add(position);
+            sizes.add(size);
+        }
+    }
+}
@@ -0,0 +1,97 @@
+package com.qt.media.encode.video.encoder;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * MediaBufferVideoEncoder 通过 FakeCodecBackend 的 Surface 输入编码，
+ * 测试中由 queueSurfaceFrame 代替渲染器的 eglSwapBuffers，再按渲染器的顺序回调 onInputFrameRender
+ */
+public class MediaBufferVideoEncoderTest {
+    private static final int FRAME_COUNT = 60;
+    private static final long FRAME_INTERVAL_US = 33333;
+
+    private final RecordingMuxerBackend mBackend = new RecordingMuxerBackend();
+    private final RecordingEncoderListener mListener = new RecordingEncoderListener();
+    private MediaMuxerWrapper mMuxer;
+    private FakeCodecBackend mCodec;
+
+    @Before
+    public void setUp() {
+        mMuxer = new MediaMuxerWrapper("buffer_video.mp4", mBackend);
+    }
+
+    private MediaBufferVideoEncoder prepareEncoder(MediaEncoder.Engine engine) throws Exception {
+        MediaBufferVideoEncoder encoder = new MediaBufferVideoEncoder(mMuxer, mListener, 320, 240, 30);
+        encoder.setCodecFactory(mimeType -> {
+            mCodec = new FakeCodecBackend();
+            mCodec.setLatency(500, 1000);
+            return mCodec;
+        });
+        encoder.setEngine(engine);
+        mMuxer.prepare();
+        assertTrue(mListener.isPrepared());
+        assertNotNull(encoder.getSurface());
+        mMuxer.startRecording();
+        return encoder;
+    }
+
+    private void encodeFrames(MediaBufferVideoEncoder encoder) {
+        for (int i = 0; i < FRAME_COUNT; i++) {
+            mCodec.queueSurfaceFrame(i * FRAME_INTERVAL_US);
+            encoder.onInputFrameRender(null);
+            assertTrue(encoder.frameAvailableSoon());
+        }
+    }
+
+    private void assertAllFramesWritten() {
+        assertEquals(FRAME_COUNT, mCodec.getInputFrameCount());
+        assertEquals(FRAME_COUNT, mCodec.getOutputFrameCount());
+        assertEquals(FRAME_COUNT, mBackend.getSampleCount());
+        for (int i = 0; i < FRAME_COUNT; i++) {
+            assertEquals(i * FRAME_INTERVAL_US, mBackend.getPresentationTimeUs(i));
+        }
+        assertTrue(mBackend.isKeyFrame(0));
+        assertTrue(mBackend.isStopped());
+        assertTrue(mBackend.isReleased());
+        assertEquals(FRAME_COUNT, mListener.getRenderedFrameCount());
+        assertNull(mListener.getError());
+    }
+
+    @Test(timeout = 10000)
+    public void drainLoopWritesEverySurfaceFrame() throws Exception {
+        MediaBufferVideoEncoder encoder = prepareEncoder(MediaEncoder.Engine.DRAIN_LOOP);
+        encodeFrames(encoder);
+        mMuxer.stopRecording();
+        assertTrue(mListener.awaitStopped(5, TimeUnit.SECONDS));
+        assertAllFramesWritten();
+        assertTrue(mCodec.getMaxQueueDepth() <= FakeCodecBackend.DEFAULT_INPUT_BUFFER_COUNT + 1);
+    }
+
+    @Test(timeout = 10000)
+    public void asyncCallbackWritesEverySurfaceFrame() throws Exception {
+        MediaBufferVideoEncoder encoder = prepareEncoder(MediaEncoder.Engine.ASYNC_CALLBACK);
+        encodeFrames(encoder);
+        mMuxer.stopRecording();
+        assertTrue(mListener.awaitStopped(5, TimeUnit.SECONDS));
+        assertAllFramesWritten();
+    }
+
+    @Test(timeout = 10000)
+    public void stopWithoutFramesReleasesEncoder() throws Exception {
+        MediaBufferVideoEncoder encoder = prepareEncoder(MediaEncoder.Engine.DRAIN_LOOP);
+        mMuxer.stopRecording();
+        assertTrue(mListener.awaitStopped(5, TimeUnit.SECONDS));
+        assertEquals(0, mBackend.getSampleCount());
+        assertNull(encoder.getSurface());
+        assertFalse(encoder.frameAvailableSoon());
+    }
+}
@@ -0,0 +1,219 @@
+package com.qt.media.encode.video.encoder;
+
+import com.qt.media.encode.entity.FrameFormat;
+import com.qt.media.encode.entity.ImageFrame;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * MediaVideoNV12Encoder 通过 FakeCodecBackend 编码：帧队列为空时导出线程挂起不空转，
+ * 队列满时生产者阻塞并在导出线程取走帧后被唤醒，停止时发送 EOS 并释放编码器与剩余的帧
+ */
+public class MediaVideoNV12EncoderTest {
+    private static final int WIDTH = 320;
+    private static final int HEIGHT = 240;
+    private static final String EXPORT_THREAD = "MediaVideoNV12Encoder-export";
+
+    private final RecordingMuxerBackend mBackend = new RecordingMuxerBackend();
+    private final RecordingEncoderListener mListener = new RecordingEncoderListener();
+    private MediaMuxerWrapper mMuxer;
+    private MediaVideoNV12Encoder mEncoder;
+    private FakeCodecBackend mCodec;
+
+    @Before
+    public void setUp() {
+        mMuxer = new MediaMuxerWrapper("nv12_video.mp4", mBackend);
+        mEncoder = new MediaVideoNV12Encoder(mMuxer, mListener, WIDTH, HEIGHT, true);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        mMuxer.stopRecording();
+        mListener.awaitStopped(5, TimeUnit.SECONDS);
+    }
+
+    /**
+     * @param inputBufferCount 编码器输入 buffer 个数
+     * @param processingTimeUs 编码器处理一帧的时间，决定导出线程送帧的速度
+     */
+    private void start(final int inputBufferCount, final long processingTimeUs) throws Exception {
+        mEncoder.setCodecFactory(mimeType -> {
+            mCodec = new FakeCodecBackend(inputBufferCount, 2, WIDTH * HEIGHT * 3 / 2, 64 * 1024);
+            mCodec.setLatency(processingTimeUs, 0);
+            return mCodec;
+        });
+        mMuxer.prepare();
+        assertTrue(mListener.isPrepared());
+        mMuxer.startRecording();
+    }
+
+    private static ImageFrame newFrame(int index) {
+        byte[] data = new byte[WIDTH * HEIGHT * 3 / 2];
+        data[0] = (byte) index;
+        return new ImageFrame(data, FrameFormat.FORMAT_NV12, WIDTH, HEIGHT, false, null, null);
+    }
+
+    private static Thread findThread(String name) {
+        for (Thread thread : Thread.getAllStackTraces().keySet()) {
+            if (name.equals(thread.getName())) {
+                return thread;
+            }
+        }
+        return null;
+    }
+
+    private static boolean isWaiting(Thread thread) {
+        Thread.State state = thread.getState();
+        return state == Thread.State.WAITING || state == Thread.State.TIMED_WAITING;
+    }
+
+    /**
+     * 等待线程进入 WAITING/TIMED_WAITING，超时返回 false
+     */
+    private static boolean awaitWaiting(Thread thread, long timeoutMs) throws InterruptedException {
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeoutMs);
+        while (!isWaiting(thread)) {
+            if (System.nanoTime() > deadline) {
+                return false;
+            }
+            Thread.sleep(1);
+        }
+        return true;
+    }
+
+    private void awaitExportFrameCount(int count) throws InterruptedException {
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+        while (mEncoder.getExportFrameCount() < count && System.nanoTime() < deadline) {
+            Thread.sleep(5);
+        }
+        assertEquals(count, mEncoder.getExportFrameCount());
+    }
+
+    @Test(timeout = 10000)
+    public void idleExportThreadWaitsForFrames() throws Exception {
+        start(4, 0);
+        Thread export = findThread(EXPORT_THREAD);
+        assertNotNull(export);
+        // 队列为空时导出线程挂起，没有向编码器送帧
+        assertTrue(export.getState().toString(), awaitWaiting(export, 2000));
+        assertEquals(0, mEncoder.getExportFrameCount());
+        assertEquals(0, mCodec.getInputFrameCount());
+
+        // 送入一帧后导出线程被唤醒，送完再次挂起
+        assertTrue(mEncoder.frameAvailableSoon(newFrame(0)));
+        awaitExportFrameCount(1);
+        assertTrue(export.getState().toString(), awaitWaiting(export, 2000));
+        assertEquals(1, mCodec.getInputFrameCount());
+    }
+
+    @Test(timeout = 10000)
+    public void blockedProducerWakesWhenFramesAreTaken() throws Exception {
+        final int frameCount = 8;
+        mEncoder.setFrameQueueConfig(2, BoundedFrameQueue.DropPolicy.BLOCK);
+        // 编码器只有一个输入 buffer，每帧处理 100ms，队列很快被填满
+        start(1, 100000);
+
+        final AtomicInteger offered = new AtomicInteger();
+        final AtomicBoolean rejected = new AtomicBoolean();
+        Thread producer = new Thread(() -> {
+            for (int i = 0; i < frameCount; i++) {
+                if (!mEncoder.frameAvailableSoon(newFrame(i))) {
+                    rejected.set(true);
+                }
+                offered.incrementAndGet();
+            }
+        }, "producer");
+        producer.start();
+        // 队列满时生产者挂起，还有帧没有送入
+        assertTrue(producer.getState().toString(), awaitWaiting(producer, 2000));
+        assertTrue("offered " + offered.get(), offered.get() < frameCount);
+
+        // 导出线程取走帧后生产者被唤醒，所有帧都被接受
+        producer.join(5000);
+        assertFalse(producer.isAlive());
+        assertEquals(frameCount, offered.get());
+        assertFalse(rejected.get());
+        assertEquals(0, mEncoder.getDroppedFrameCount());
+
+        awaitExportFrameCount(frameCount);
+        mMuxer.stopRecording();
+        assertTrue(mListener.awaitStopped(5, TimeUnit.SECONDS));
+        assertEquals(frameCount, mCodec.getInputFrameCount());
+        assertEquals(frameCount, mBackend.getSampleCount());
+        assertNull(mListener.getError());
+    }
+
+    @Test(timeout = 10000)
+    public void stopSendsEndOfStreamAndReleasesFrames() throws Exception {
+        final int frameCount = 8;
+        start(4, 0);
+        List<ImageFrame> frames = new ArrayList<>();
+        for (int i = 0; i < frameCount; i++) {
+            ImageFrame frame = newFrame(i);
+            frames.add(frame);
+            assertTrue(mEncoder.frameAvailableSoon(frame));
+        }
+        awaitExportFrameCount(frameCount);
+        Thread export = findThread(EXPORT_THREAD);
+        assertNotNull(export);
+
+        mMuxer.stopRecording();
+        assertTrue(mListener.awaitStopped(5, TimeUnit.SECONDS));
+        export.join(1000);
+        assertFalse(export.isAlive());
+
+        assertEquals(frameCount, mCodec.getInputFrameCount());
+        assertEquals(frameCount, mBackend.getSampleCount());
+        // FIXED_RATE 时间戳从 0 开始严格递增
+        long last = -1;
+        for (int i = 0; i < frameCount; i++) {
+            long ptsUs = mBackend.getPresentationTimeUs(i);
+            assertTrue(ptsUs > last);
+            last = ptsUs;
+        }
+        assertEquals(0, mBackend.getPresentationTimeUs(0));
+        assertTrue(mBackend.isStopped());
+        assertTrue(mBackend.isReleased());
+        for (ImageFrame frame : frames) {
+            assertNull(frame.getBuffer());
+        }
+        assertFalse(mEncoder.frameAvailableSoon(newFrame(frameCount)));
+        assertNull(mListener.getError());
+    }
+
+    @Test(timeout = 10000)
+    public void framesQueuedAtStopAreReleased() throws Exception {
+        start(1, 50000);
+        List<ImageFrame> frames = new ArrayList<>();
+        for (int i = 0; i < 4; i++) {
+            ImageFrame frame = newFrame(i);
+            frames.add(frame);
+            assertTrue(mEncoder.frameAvailableSoon(frame));
+        }
+        mMuxer.stopRecording();
+        assertTrue(mListener.awaitStopped(5, TimeUnit.SECONDS));
+        Thread export = findThread(EXPORT_THREAD);
+        if (export != null) {
+            export.join(1000);
+        }
+        // 已编码的帧在编码后释放，还在队列中的帧在导出线程退出时释放
+        for (ImageFrame frame : frames) {
+            assertNull(frame.getBuffer());
+        }
+        assertTrue(mBackend.isReleased());
+    }
+}
@@ -0,0 +1,76 @@
+package com.qt.media.encode.video.encoder;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * MediaVideoTextureEncoder 通过 FakeCodecBackend 的 Surface 输入编码，
+ * 没有 GL 环境，测试中由 queueSurfaceFrame 代替 TextureRenderHandler 的 eglSwapBuffers
+ */
+public class MediaVideoTextureEncoderTest {
+    private static final int FRAME_COUNT = 45;
+    private static final long FRAME_INTERVAL_US = 40000;
+
+    private final RecordingMuxerBackend mBackend = new RecordingMuxerBackend();
+    private final RecordingEncoderListener mListener = new RecordingEncoderListener();
+    private MediaMuxerWrapper mMuxer;
+    private FakeCodecBackend mCodec;
+    private MediaVideoTextureEncoder mEncoder;
+
+    @Before
+    public void setUp() throws Exception {
+        mMuxer = new MediaMuxerWrapper("texture_video.mp4", mBackend);
+        mEncoder = new MediaVideoTextureEncoder(mMuxer, mListener, 640, 360);
+        mEncoder.setCodecFactory(mimeType -> {
+            // 只有两个输入 buffer，送帧会在 queueSurfaceFrame 中等待 drain 取出输出
+            mCodec = new FakeCodecBackend(2, 2, 1024, 64 * 1024);
+            mCodec.setLatency(2000, 0);
+            return mCodec;
+        });
+        mMuxer.prepare();
+        assertTrue(mListener.isPrepared());
+        mMuxer.startRecording();
+    }
+
+    @Test(timeout = 10000)
+    public void surfaceFramesReachMuxerInOrder() throws Exception {
+        for (int i = 0; i < FRAME_COUNT; i++) {
+            mCodec.queueSurfaceFrame(i * FRAME_INTERVAL_US);
+            mEncoder.markInputFrame();
+            assertTrue(mEncoder.frameAvailableSoon());
+        }
+        mMuxer.stopRecording();
+        assertTrue(mListener.awaitStopped(5, TimeUnit.SECONDS));
+
+        assertEquals(FRAME_COUNT, mCodec.getOutputFrameCount());
+        assertEquals(FRAME_COUNT, mBackend.getSampleCount());
+        assertEquals(1, mBackend.getTrackCount());
+        for (int i = 0; i < FRAME_COUNT; i++) {
+            assertEquals(0, mBackend.getTrackIndex(i));
+            assertEquals(i * FRAME_INTERVAL_US, mBackend.getPresentationTimeUs(i));
+            assertTrue(mBackend.getSize(i) > 0);
+        }
+        assertTrue(mBackend.isKeyFrame(0));
+        assertTrue(mCodec.getMaxQueueDepth() <= 3);
+        assertTrue(mBackend.isReleased());
+        assertNull(mListener.getError());
+    }
+
+    @Test(timeout = 10000)
+    public void framesAfterStopAreRejected() throws Exception {
+        mCodec.queueSurfaceFrame(0);
+        assertTrue(mEncoder.frameAvailableSoon());
+        mMuxer.stopRecording();
+        assertFalse(mEncoder.frameAvailableSoon());
+        assertTrue(mListener.awaitStopped(5, TimeUnit.SECONDS));
+        assertEquals(1, mBackend.getSampleCount());
+        assertFalse(mEncoder.frameAvailableSoon());
+    }
+}
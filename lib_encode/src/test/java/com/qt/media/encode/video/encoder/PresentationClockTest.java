@@ -0,0 +1,188 @@
+package com.qt.media.encode.video.encoder;
+
+import org.junit.Test;
+
+import java.math.BigInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * PresentationClock 按 tick 换算时间戳：一小时的 29.97fps 视频与 44100Hz 音频时间戳严格递增，
+ * 与精确值的偏差不超过四舍五入的 1 微秒，不随时长累积
+ */
+public class PresentationClockTest {
+    private static final long ONE_HOUR_US = 3600L * 1000_000L;
+
+    /**
+     * ticks * num / den 秒换算为微秒，四舍五入，用 BigInteger 计算作为参考值
+     */
+    private static long exactUs(long ticks, long num, long den) {
+        BigInteger value = BigInteger.valueOf(ticks).multiply(BigInteger.valueOf(num))
+                .multiply(BigInteger.valueOf(1000_000L));
+        BigInteger[] qr = value.divideAndRemainder(BigInteger.valueOf(den));
+        long rounded = qr[0].longValue();
+        if (qr[1].shiftLeft(1).compareTo(BigInteger.valueOf(den)) >= 0) {
+            rounded++;
+        }
+        return rounded;
+    }
+
+    @Test
+    public void ntscVideoOneHourIsMonotonicAndDriftFree() {
+        PresentationClock.Track track = new PresentationClock().newTrack(1001, 30000);
+        long frames = ONE_HOUR_US * 30000 / (1001 * 1000_000L) + 1;
+        long last = -1;
+        for (long i = 0; i < frames; i++) {
+            long ptsUs = track.nextFrame();
+            assertEquals(exactUs(i, 1001, 30000), ptsUs);
+            if (last >= 0) {
+                long deltaUs = ptsUs - last;
+                // 1001/30000 秒 = 33366.67 微秒，相邻帧间隔只能是 33366 或 33367
+                assertTrue("delta " + deltaUs + " at frame " + i, deltaUs == 33366 || deltaUs == 33367);
+            }
+            last = ptsUs;
+        }
+        assertEquals(frames, track.getTicks());
+        // 一小时后的第 107892 帧：107892 * 1001 / 30000 秒 = 3599.9964 秒
+        assertEquals(107892, frames - 1);
+        assertEquals(3599_996_400L, last);
+    }
+
+    @Test
+    public void floatFrameRateUsesMilliFrameTimebase() {
+        PresentationClock clock = new PresentationClock();
+        PresentationClock.Track fromFloat = clock.newFrameRateTrack(29.97f);
+        PresentationClock.Track rational = clock.newTrack(1000, 29970);
+        for (int i = 0; i < 10_000; i++) {
+            assertEquals(rational.nextFrame(), fromFloat.nextFrame());
+        }
+        // 29.97 与 NTSC 的 30000/1001（29.97002997）不同，一小时后相差 3.6 毫秒，需要精确 NTSC 时用 newTrack(1001, 30000)
+        long diffUs = fromFloat.ptsOf(107892) - clock.newTrack(1001, 30000).ptsOf(107892);
+        assertEquals(exactUs(107892, 1000, 29970) - exactUs(107892, 1001, 30000), diffUs);
+        assertEquals(3600, diffUs);
+    }
+
+    @Test
+    public void audioOneHourIsMonotonicAndDriftFree() {
+        final int samplesPerFrame = 1024;
+        PresentationClock.Track track = new PresentationClock().newTrack(1, 44100);
+        long samples = 0;
+        long last = -1;
+        while (samples < 44100L * 3600) {
+            long ptsUs = track.advance(samplesPerFrame);
+            assertEquals(exactUs(samples, 1, 44100), ptsUs);
+            if (last >= 0) {
+                long deltaUs = ptsUs - last;
+                // 1024 / 44100 秒 = 23219.95 微秒
+                assertTrue("delta " + deltaUs + " at sample " + samples, deltaUs == 23219 || deltaUs == 23220);
+            }
+            last = ptsUs;
+            samples += samplesPerFrame;
+        }
+        assertEquals(samples, track.getTicks());
+        assertEquals(exactUs(samples - samplesPerFrame, 1, 44100), last);
+        // 整一小时的采样数正好对应 3600 秒
+        assertEquals(ONE_HOUR_US, track.ptsOf(44100L * 3600));
+    }
+
+    @Test
+    public void audioWithVariableReadSizesStaysExact() {
+        // AudioRecord 每次读取的字节数不固定，按实际采样数前进
+        PresentationClock.Track track = new PresentationClock().newTrack(1, 44100);
+        int[] reads = {1024, 882, 2048, 441, 4096, 1, 1023};
+        long samples = 0;
+        long last = -1;
+        for (int i = 0; samples < 44100L * 3600; i++) {
+            int read = reads[i % reads.length];
+            long ptsUs = track.advance(read);
+            assertEquals(exactUs(samples, 1, 44100), ptsUs);
+            assertTrue(ptsUs > last);
+            last = ptsUs;
+            samples += read;
+        }
+        assertEquals(exactUs(samples, 1, 44100), track.ptsOf(samples));
+        assertTrue(Math.abs(track.ptsOf(samples) - samples * 1000_000L / 44100) <= 1);
+    }
+
+    @Test
+    public void ptsOfDoesNotOverflowForLongRecordings() {
+        PresentationClock.Track audio = new PresentationClock().newTrack(1, 48000);
+        // 一年的 48kHz 采样，ticks * 1000000 已超过 long 的范围，ptsOf 拆成整数倍与余数计算
+        long ticks = 48000L * 3600 * 24 * 365;
+        assertEquals(3600L * 24 * 365 * 1000_000L, audio.ptsOf(ticks));
+        PresentationClock.Track video = new PresentationClock().newTrack(1001, 30000);
+        long frames = 30000L * 3600 * 24 * 365;
+        assertEquals(exactUs(frames, 1001, 30000), video.ptsOf(frames));
+    }
+
+    @Test
+    public void repeatedTimestampsStayStrictlyIncreasing() {
+        PresentationClock clock = new PresentationClock(PresentationClock.Mode.VARIABLE_RATE);
+        PresentationClock.Track track = clock.newTrack(1, 90000);
+        long first = track.fromTimestamp(900_000);
+        long second = track.fromTimestamp(900_000);
+        long back = track.fromTimestamp(899_000);
+        assertEquals(0, first);
+        assertEquals(1, second);
+        assertEquals(2, back);
+        assertEquals(1000_000L, track.fromTimestamp(990_000));
+    }
+
+    @Test
+    public void tracksShareCaptureBase() {
+        PresentationClock clock = new PresentationClock(PresentationClock.Mode.CAPTURE_TIME);
+        PresentationClock.Track video = clock.newTrack(1001, 30000);
+        PresentationClock.Track audio = clock.newTrack(1, 44100);
+        long baseNs = 5_000_000_000L;
+        assertEquals(0, audio.fromCaptureTime(baseNs));
+        assertEquals(33_367, video.fromCaptureTime(baseNs + 33_367_000L));
+        assertEquals(ONE_HOUR_US, audio.fromCaptureTime(baseNs + ONE_HOUR_US * 1000));
+    }
+
+    @Test
+    public void variableInputConvertsToFixedRateOverOneHour() {
+        PresentationClock clock = new PresentationClock();
+        PresentationClock.Track track = clock.newTrack(PresentationClock.Mode.FIXED_RATE, 1001, 30000);
+        long baseNs = 1_000_000_000L;
+        // 输入约 25fps，带 ±3ms 抖动，输出按 29.97fps 重复补帧
+        long output = 0;
+        long inputIntervalNs = 40_000_000L;
+        for (long i = 0; i * inputIntervalNs <= ONE_HOUR_US * 1000; i++) {
+            long jitterNs = ((i * 7919) % 7 - 3) * 1000_000L;
+            long captureNs = baseNs + i * inputIntervalNs + (i == 0 ? 0 : jitterNs);
+            int slots = track.slotsFor(captureNs);
+            for (int s = 0; s < slots; s++) {
+                long ptsUs = track.nextFrame();
+                assertEquals(exactUs(output, 1001, 30000), ptsUs);
+                output++;
+            }
+        }
+        // 一小时内输出的帧数与固定帧率一致（最后一帧位置按 tick 四舍五入）
+        long expected = Math.round(ONE_HOUR_US * 30000.0 / (1001 * 1000_000.0)) + 1;
+        assertTrue("output " + output + " expected " + expected, Math.abs(output - expected) <= 1);
+    }
+
+    @Test
+    public void longInputGapRepeatsAtMostOneSecond() {
+        PresentationClock clock = new PresentationClock();
+        PresentationClock.Track track = clock.newTrack(PresentationClock.Mode.FIXED_RATE, 1001, 30000);
+        long baseNs = 1_000_000_000L;
+        assertEquals(1, track.slotsFor(baseNs));
+        assertEquals(0, track.nextFrame());
+        // 暂停一分钟后的第一帧：补齐的帧数不超过一秒（30 帧），之前的位置跳过
+        long resumeNs = baseNs + 60_000_000_000L;
+        long slot = Math.round(60.0 * 30000 / 1001);
+        int slots = track.slotsFor(resumeNs);
+        assertEquals(30, slots);
+        long first = track.nextFrame();
+        assertEquals(exactUs(slot - 29, 1001, 30000), first);
+        for (int i = 1; i < slots; i++) {
+            track.nextFrame();
+        }
+        assertEquals(slot + 1, track.getTicks());
+        // 之后恢复正常的一帧一次
+        assertEquals(1, track.slotsFor(resumeNs + 33_366_667L));
+        assertEquals(exactUs(slot + 1, 1001, 30000), track.nextFrame());
+    }
+}
@@ -0,0 +1,55 @@
+package com.qt.media.encode.video.encoder;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import androidx.annotation.Nullable;
+
+/**
+ * 记录编码器回调的监听器，单元测试中等待 onStopped
+ */
+final class RecordingEncoderListener implements MediaEncoder.MediaEncoderListener {
+
+    private final CountDownLatch mPrepared = new CountDownLatch(1);
+    private final CountDownLatch mStopped = new CountDownLatch(1);
+    private final AtomicInteger mRenderedFrames = new AtomicInteger();
+    private volatile Exception mError;
+
+    @Override
+    public void onPrepared(MediaEncoder encoder) {
+        mPrepared.countDown();
+    }
+
+    @Override
+    public void onStopped(MediaEncoder encoder) {
+        mStopped.countDown();
+    }
+
+    @Override
+    public void onFrameRender(MediaEncoder encoder, @Nullable Object frame) {
+        mRenderedFrames.incrementAndGet();
+    }
+
+    @Override
+    public void onError(MediaEncoder encoder, Exception exception) {
+        mError = exception;
+    }
+
+    boolean isPrepared() {
+        return mPrepared.getCount() == 0;
+    }
+
+    boolean awaitStopped(long timeout, TimeUnit unit) throws InterruptedException {
+        return mStopped.await(timeout, unit);
+    }
+
+    int getRenderedFrameCount() {
+        return mRenderedFrames.get();
+    }
+
+    @Nullable
+    Exception getError() {
+        return mError;
+    }
+}
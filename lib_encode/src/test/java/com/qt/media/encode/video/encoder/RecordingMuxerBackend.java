@@ -0,0 +1,99 @@
+package com.qt.media.encode.video.encoder;
+
+import android.media.MediaCodec;
+import android.media.MediaFormat;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * 记录写入样本的封装器后端，单元测试中代替 MediaMuxerBackend
+ */
+final class RecordingMuxerBackend implements MuxerBackend {
+
+    private final List<Integer> mTrackIndices = new ArrayList<>();
+    private final List<Long> mPresentationTimesUs = new ArrayList<>();
+    private final List<Integer> mSizes = new ArrayList<>();
+    private final List<Integer> mFlags = new ArrayList<>();
+    private final List<Byte> mFirstBytes = new ArrayList<>();
+    private int mTrackCount;
+    private boolean mStarted;
+    private boolean mStopped;
+    private boolean mReleased;
+
+    @Override
+    public synchronized int addTrack(MediaFormat format) {
+        return mTrackCount++;
+    }
+
+    @Override
+    public synchronized void start() {
+        mStarted = true;
+    }
+
+    @Override
+    public synchronized void writeSampleData(int trackIndex, ByteBuffer byteBuf, MediaCodec.BufferInfo bufferInfo) {
+        if (!mStarted || mStopped) {
+            throw new IllegalStateException("writeSampleData before start or after stop");
+        }
+        mTrackIndices.add(trackIndex);
+        mPresentationTimesUs.add(bufferInfo.presentationTimeUs);
+        mSizes.add(bufferInfo.size);
+        mFlags.add(bufferInfo.flags);
+        mFirstBytes.add(bufferInfo.size > 0 ? byteBuf.get(bufferInfo.offset) : 0);
+    }
+
+    @Override
+    public synchronized void stop() {
+        mStopped = true;
+    }
+
+    @Override
+    public synchronized void release() {
+        mReleased = true;
+    }
+
+    synchronized int getTrackCount() {
+        return mTrackCount;
+    }
+
+    synchronized int getSampleCount() {
+        return mPresentationTimesUs.size();
+    }
+
+    synchronized int getTrackIndex(int sample) {
+        return mTrackIndices.get(sample);
+    }
+
+    synchronized long getPresentationTimeUs(int sample) {
+        return mPresentationTimesUs.get(sample);
+    }
+
+    synchronized int getSize(int sample) {
+        return mSizes.get(sample);
+    }
+
+    /**
+     * 样本数据的第一个字节，样本为空时为 0
+     */
+    synchronized byte getFirstByte(int sample) {
+        return mFirstBytes.get(sample);
+    }
+
+    synchronized boolean isKeyFrame(int sample) {
+        return (mFlags.get(sample) & MediaCodec.BUFFER_FLAG_KEY_FRAME) != 0;
+    }
+
+    synchronized boolean isStarted() {
+        return mStarted;
+    }
+
+    synchronized boolean isStopped() {
+        return mStopped;
+    }
+
+    synchronized boolean isReleased() {
+        return mReleased;
+    }
+}
@@ -0,0 +1,223 @@
+package com.qt.media.encode.video.encoder;
+
+import android.media.MediaCodec;
+import android.media.MediaFormat;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * SampleInterleaver 按时间戳交织多个轨道：队列超过一半容量或等待超时后不再等待其它轨道，start 之前到达的样本留在队列中，
+ * finishTrack 之后不再等待该轨道，stop 写出所有排队的样本，队列满时生产者挂起直到写线程取走样本
+ * 每个样本数据的第一个字节是轨道内的序号，用来校验样本内容与顺序
+ */
+public class SampleInterleaverTest {
+    private static final long VIDEO_INTERVAL_US = 33333;
+    private static final long AUDIO_INTERVAL_US = 23220;
+
+    private final RecordingMuxerBackend mBackend = new RecordingMuxerBackend();
+
+    /**
+     * 样本放在 buffer 中间（offset 不为 0），校验只拷贝了 [offset, offset + size)
+     */
+    private static boolean offer(SampleInterleaver interleaver, int track, int index, long ptsUs) {
+        ByteBuffer buffer = ByteBuffer.allocate(64);
+        buffer.put(8, (byte) index);
+        MediaCodec.BufferInfo info = new MediaCodec.BufferInfo();
+        info.offset = 8;
+        info.size = 16 + index % 7;
+        info.presentationTimeUs = ptsUs;
+        info.flags = index == 0 ? MediaCodec.BUFFER_FLAG_KEY_FRAME : 0;
+        return interleaver.offer(track, buffer, info);
+    }
+
+    private static Thread producer(final SampleInterleaver interleaver, final int track, final int count, final long intervalUs) {
+        Thread thread = new Thread(() -> {
+            for (int i = 0; i < count; i++) {
+                assertTrue(offer(interleaver, track, i, i * intervalUs));
+            }
+            interleaver.finishTrack(track);
+        }, "producer-" + track);
+        thread.start();
+        return thread;
+    }
+
+    private void assertTrackSamples(int track, int count, long intervalUs) {
+        int next = 0;
+        for (int i = 0; i < mBackend.getSampleCount(); i++) {
+            if (mBackend.getTrackIndex(i) != track) {
+                continue;
+            }
+            assertEquals(next * intervalUs, mBackend.getPresentationTimeUs(i));
+            assertEquals((byte) next, mBackend.getFirstByte(i));
+            assertEquals(16 + next % 7, mBackend.getSize(i));
+            assertEquals(next == 0, mBackend.isKeyFrame(i));
+            next++;
+        }
+        assertEquals(count, next);
+    }
+
+    private void assertPtsOrdered() {
+        for (int i = 1; i < mBackend.getSampleCount(); i++) {
+            assertTrue("sample " + i, mBackend.getPresentationTimeUs(i) >= mBackend.getPresentationTimeUs(i - 1));
+        }
+    }
+
+    @Test(timeout = 10000)
+    public void samplesAreWrittenInPtsOrderAcrossTracks() throws Exception {
+        // 队列足够大，不会因为超过一半容量而提前写出，两个生产者的快慢不影响顺序
+        SampleInterleaver interleaver = new SampleInterleaver(mBackend, 1024);
+        int video = interleaver.addTrack(new MediaFormat());
+        int audio = interleaver.addTrack(new MediaFormat());
+        interleaver.start();
+        Thread videoProducer = producer(interleaver, video, 300, VIDEO_INTERVAL_US);
+        Thread audioProducer = producer(interleaver, audio, 430, AUDIO_INTERVAL_US);
+        videoProducer.join();
+        audioProducer.join();
+        interleaver.stop();
+
+        assertEquals(730, mBackend.getSampleCount());
+        assertEquals(730, interleaver.getWrittenSampleCount());
+        assertPtsOrdered();
+        assertTrackSamples(video, 300, VIDEO_INTERVAL_US);
+        assertTrackSamples(audio, 430, AUDIO_INTERVAL_US);
+        assertTrue(mBackend.isStopped());
+        assertTrue(mBackend.isReleased());
+    }
+
+    @Test(timeout = 10000)
+    public void waitingTrackIsSkippedWhenQueueIsHalfFullOrTooLate() throws Exception {
+        SampleInterleaver interleaver = new SampleInterleaver(mBackend, 8);
+        int video = interleaver.addTrack(new MediaFormat());
+        interleaver.addTrack(new MediaFormat());
+        interleaver.start();
+        for (int i = 0; i < 5; i++) {
+            assertTrue(offer(interleaver, video, i, i * VIDEO_INTERVAL_US));
+        }
+        // 音频轨没有样本：视频队列达到一半容量前的样本立即写出，剩下的等待交织
+        Thread.sleep(100);
+        assertEquals(2, mBackend.getSampleCount());
+        assertEquals(3, interleaver.getQueueDepth(video));
+
+        // 等待超过 MAX_INTERLEAVE_DELAY_NS 后不再等待音频轨
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(2);
+        while (mBackend.getSampleCount() < 5 && System.nanoTime() < deadline) {
+            Thread.sleep(5);
+        }
+        assertEquals(5, mBackend.getSampleCount());
+        interleaver.stop();
+        assertTrackSamples(video, 5, VIDEO_INTERVAL_US);
+    }
+
+    @Test(timeout = 10000)
+    public void samplesBeforeStartAreBuffered() throws Exception {
+        SampleInterleaver interleaver = new SampleInterleaver(mBackend);
+        int video = interleaver.addTrack(new MediaFormat());
+        int audio = interleaver.addTrack(new MediaFormat());
+        // 视频轨先就绪，音频轨稍后才有样本，写线程启动前 backend 没有启动
+        for (int i = 0; i < 10; i++) {
+            assertTrue(offer(interleaver, video, i, i * VIDEO_INTERVAL_US));
+        }
+        for (int i = 0; i < 12; i++) {
+            assertTrue(offer(interleaver, audio, i, i * AUDIO_INTERVAL_US));
+        }
+        assertEquals(10, interleaver.getQueueDepth(video));
+        assertEquals(12, interleaver.getQueueDepth(audio));
+        assertFalse(mBackend.isStarted());
+        assertEquals(0, mBackend.getSampleCount());
+
+        interleaver.start();
+        interleaver.stop();
+        assertTrue(mBackend.isStarted());
+        assertEquals(22, mBackend.getSampleCount());
+        assertPtsOrdered();
+        assertTrackSamples(video, 10, VIDEO_INTERVAL_US);
+        assertTrackSamples(audio, 12, AUDIO_INTERVAL_US);
+        assertEquals(0, interleaver.getQueueDepth(video));
+        // 停止后的样本被丢弃
+        assertFalse(offer(interleaver, video, 10, 10 * VIDEO_INTERVAL_US));
+    }
+
+    @Test(timeout = 10000)
+    public void finishedTrackIsNotWaitedFor() throws Exception {
+        SampleInterleaver interleaver = new SampleInterleaver(mBackend);
+        int video = interleaver.addTrack(new MediaFormat());
+        int audio = interleaver.addTrack(new MediaFormat());
+        interleaver.start();
+        for (int i = 0; i < 5; i++) {
+            assertTrue(offer(interleaver, video, i, i * VIDEO_INTERVAL_US));
+        }
+        // 音频轨没有样本也没有结束，视频样本要等待交织
+        Thread.sleep(100);
+        assertEquals(0, mBackend.getSampleCount());
+
+        // 音频轨结束后不再等待，视频样本立即写出
+        interleaver.finishTrack(audio);
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(200);
+        while (mBackend.getSampleCount() < 5 && System.nanoTime() < deadline) {
+            Thread.sleep(1);
+        }
+        assertEquals(5, mBackend.getSampleCount());
+        assertFalse(offer(interleaver, audio, 0, 0));
+        assertFalse(offer(interleaver, 5, 0, 0));
+
+        for (int i = 5; i < 8; i++) {
+            assertTrue(offer(interleaver, video, i, i * VIDEO_INTERVAL_US));
+        }
+        interleaver.stop();
+        assertTrackSamples(video, 8, VIDEO_INTERVAL_US);
+        assertTrue(mBackend.isStopped());
+    }
+
+    @Test(timeout = 10000)
+    public void fullQueueBlocksProducerUntilWriterDrains() throws Exception {
+        // 容量向上取到 2 的幂
+        final SampleInterleaver interleaver = new SampleInterleaver(mBackend, 3);
+        final int video = interleaver.addTrack(new MediaFormat());
+        int audio = interleaver.addTrack(new MediaFormat());
+        for (int i = 0; i < 4; i++) {
+            assertTrue(offer(interleaver, video, i, i * VIDEO_INTERVAL_US));
+        }
+        assertEquals(4, interleaver.getQueueDepth(video));
+
+        final CountDownLatch offered = new CountDownLatch(1);
+        final AtomicBoolean accepted = new AtomicBoolean();
+        Thread producer = new Thread(() -> {
+            accepted.set(offer(interleaver, video, 4, 4 * VIDEO_INTERVAL_US));
+            offered.countDown();
+        }, "producer");
+        producer.start();
+        // 写线程没有启动，队列满时生产者挂起等待
+        assertFalse(offered.await(200, TimeUnit.MILLISECONDS));
+        Thread.State state = producer.getState();
+        assertTrue(state.toString(), state == Thread.State.WAITING || state == Thread.State.TIMED_WAITING);
+
+        interleaver.finishTrack(audio);
+        interleaver.start();
+        assertTrue(offered.await(5, TimeUnit.SECONDS));
+        assertTrue(accepted.get());
+        interleaver.stop();
+        assertTrackSamples(video, 5, VIDEO_INTERVAL_US);
+        assertEquals(4, interleaver.getMaxQueueDepth());
+    }
+
+    @Test(timeout = 10000)
+    public void stopWithoutStartReleasesBackend() {
+        SampleInterleaver interleaver = new SampleInterleaver(mBackend);
+        int video = interleaver.addTrack(new MediaFormat());
+        assertTrue(offer(interleaver, video, 0, 0));
+        interleaver.stop();
+        assertFalse(mBackend.isStarted());
+        assertFalse(mBackend.isStopped());
+        assertTrue(mBackend.isReleased());
+        assertEquals(0, mBackend.getSampleCount());
+    }
+}
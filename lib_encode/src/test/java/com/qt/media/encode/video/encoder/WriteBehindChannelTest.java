@@ -0,0 +1,404 @@
+package com.qt.media.encode.video.encoder;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * WriteBehindChannel 写入临时文件：writeAt 在之前的追加数据之后执行、缓冲用完时调用方等待并累计 stall 时间、
+ * I/O 出错后在之后的调用中抛出 IOException、close 写完所有数据并落盘
+ * 通过 GatedChannel 暂停或让底层写入失败，模拟存储卡刷盘变慢与写入出错
+ */
+public class WriteBehindChannelTest {
+    /**
+     * bufferSize 对应两个 4KB 的块
+     */
+    private static final int BLOCK_SIZE = 4 * 1024;
+    private static final int SMALL_BUFFER = 2 * BLOCK_SIZE;
+
+    private File mFile;
+    private RandomAccessFile mRaf;
+    private GatedChannel mChannel;
+
+    @Before
+    public void setUp() throws IOException {
+        mFile = File.createTempFile("write_behind", ".bin");
+        mRaf = new RandomAccessFile(mFile, "rw");
+        mChannel = new GatedChannel(mRaf.getChannel());
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        mChannel.resume();
+        mRaf.close();
+        mFile.delete();
+    }
+
+    /**
+     * 第 i 个字节为 (seed + i) 的低 8 位
+     */
+    private static byte[] pattern(int size, int seed) {
+        byte[] data = new byte[size];
+        for (int i = 0; i < size; i++) {
+            data[i] = (byte) (seed + i);
+        }
+        return data;
+    }
+
+    private byte[] readFile() throws IOException {
+        return Files.readAllBytes(mFile.toPath());
+    }
+
+    private static byte[] range(byte[] data, int from, int length) {
+        byte[] result = new byte[length];
+        System.arraycopy(data, from, result, 0, length);
+        return result;
+    }
+
+    @Test(timeout = 10000)
+    public void writeAtRunsAfterPreviousAppends() throws IOException {
+        WriteBehindChannel output = new WriteBehindChannel(mChannel, 1024 * 1024);
+        byte[] head = pattern(1000, 0);
+        byte[] body = pattern(600 * 1024, 7);
+        output.write(ByteBuffer.wrap(head));
+        // 回填的位置还在未提交的块中，先执行会被追加数据覆盖
+        output.writeAt(ByteBuffer.wrap(new byte[]{-1, -1, -1, -1}), 500);
+        assertEquals(1000, output.position());
+        // 跨越多个块的追加写入，两个 buffer 一次提交
+        ByteBuffer first = ByteBuffer.wrap(body, 0, 300 * 1024);
+        ByteBuffer second = ByteBuffer.wrap(body, 300 * 1024, 300 * 1024);
+        output.write(first, second);
+        assertEquals(0, first.position());
+        output.writeAt(ByteBuffer.wrap(new byte[]{1, 2}), 1000 + body.length - 2);
+        output.close();
+
+        byte[] file = readFile();
+        assertEquals(1000 + body.length, file.length);
+        byte[] expectedHead = head.clone();
+        Arrays.fill(expectedHead, 500, 504, (byte) -1);
+        assertArrayEquals(expectedHead, range(file, 0, 1000));
+        byte[] expectedBody = body.clone();
+        expectedBody[body.length - 2] = 1;
+        expectedBody[body.length - 1] = 2;
+        assertArrayEquals(expectedBody, range(file, 1000, body.length));
+    }
+
+    @Test(timeout = 10000)
+    public void exhaustedBufferBlocksWriterAndCountsStall() throws Exception {
+        final WriteBehindChannel output = new WriteBehindChannel(mChannel, SMALL_BUFFER);
+        mChannel.pause();
+        // 两个块写满并提交，I/O 线程卡在第一个块的写入上
+        output.write(ByteBuffer.wrap(pattern(SMALL_BUFFER, 0)));
+        assertTrue(mChannel.awaitBlockedWrite(5, TimeUnit.SECONDS));
+        assertEquals(SMALL_BUFFER, output.getBufferedBytes());
+        assertEquals(0, output.getStallTimeUs());
+
+        final CountDownLatch written = new CountDownLatch(1);
+        final AtomicReference<Exception> error = new AtomicReference<>();
+        Thread writer = new Thread(() -> {
+            try {
+                output.write(ByteBuffer.wrap(pattern(BLOCK_SIZE, SMALL_BUFFER)));
+                written.countDown();
+            } catch (IOException e) {
+                error.set(e);
+            }
+        }, "writer");
+        writer.start();
+        // 没有空闲的块，调用方等待 I/O 线程归还
+        assertFalse(written.await(200, TimeUnit.MILLISECONDS));
+        Thread.State state = writer.getState();
+        assertTrue(state.toString(), state == Thread.State.WAITING || state == Thread.State.TIMED_WAITING);
+
+        mChannel.resume();
+        assertTrue(written.await(5, TimeUnit.SECONDS));
+        writer.join();
+        assertNull(error.get());
+        assertTrue(output.getStallTimeUs() >= 150000);
+        output.close();
+        assertEquals(SMALL_BUFFER, output.getMaxBufferedBytes());
+        assertEquals(0, output.getBufferedBytes());
+        assertArrayEquals(pattern(SMALL_BUFFER + BLOCK_SIZE, 0), readFile());
+    }
+
+    @Test(timeout = 10000)
+    public void writeErrorIsThrownOnLaterCalls() throws Exception {
+        final WriteBehindChannel output = new WriteBehindChannel(mChannel, SMALL_BUFFER);
+        mChannel.failAfter(BLOCK_SIZE);
+        final List<String> callbacks = Collections.synchronizedList(new ArrayList<String>());
+        IOException thrown = null;
+        try {
+            // 第二个块写入失败，等待第三个块时可能已经看到错误
+            output.write(ByteBuffer.wrap(pattern(3 * BLOCK_SIZE, 0)));
+            long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+            while (System.nanoTime() < deadline) {
+                output.flush(() -> callbacks.add("flush"));
+                Thread.sleep(5);
+            }
+        } catch (IOException e) {
+            thrown = e;
+        }
+        assertNotNull(thrown);
+        assertEquals(GatedChannel.FAILURE, thrown.getMessage());
+        // 出错后之后的调用都抛出同一个错误，回调不再执行
+        try {
+            output.write(ByteBuffer.wrap(new byte[1]));
+            fail("expected IOException");
+        } catch (IOException e) {
+            assertEquals(GatedChannel.FAILURE, e.getMessage());
+        }
+        try {
+            output.close();
+            fail("expected IOException");
+        } catch (IOException e) {
+            assertEquals(GatedChannel.FAILURE, e.getMessage());
+        }
+        assertTrue(callbacks.isEmpty());
+        assertEquals(BLOCK_SIZE, readFile().length);
+    }
+
+    @Test(timeout = 10000)
+    public void closeDrainsSyncsAndRunsCallbacksInOrder() throws Exception {
+        WriteBehindChannel output = new WriteBehindChannel(mChannel, SMALL_BUFFER);
+        final List<String> events = Collections.synchronizedList(new ArrayList<String>());
+        byte[] data = pattern(50 * 1000, 3);
+        for (int i = 0; i < 50; i++) {
+            output.write(ByteBuffer.wrap(data, i * 1000, 1000));
+            if (i == 10) {
+                output.flush(() -> events.add("flush:" + mChannel.written() + ":" + Thread.currentThread().getName()));
+            } else if (i == 20) {
+                output.sync(() -> events.add("sync:" + mChannel.written()));
+            }
+        }
+        assertEquals(50 * 1000, output.position());
+        output.close();
+        // 再次 close 不做任何事
+        output.close();
+
+        assertArrayEquals(data, readFile());
+        assertEquals("[flush:11000:WriteBehindChannel, sync:21000]", events.toString());
+        // sync 与 close 各落盘一次
+        assertEquals(2, output.getSyncCount());
+        assertEquals(2, mChannel.forceCount());
+        try {
+            output.write(ByteBuffer.wrap(new byte[1]));
+            fail("expected IOException");
+        } catch (IOException expected) {
+        }
+    }
+
+    @Test(timeout = 10000)
+    public void zeroBufferWritesOnCallerThread() throws IOException {
+        WriteBehindChannel output = new WriteBehindChannel(mChannel, 0);
+        output.write(ByteBuffer.wrap(pattern(100, 0)));
+        assertEquals(100, mChannel.written());
+        output.writeAt(ByteBuffer.wrap(new byte[]{9}), 10);
+        final List<String> threads = new ArrayList<>();
+        output.flush(() -> threads.add(Thread.currentThread().getName()));
+        assertEquals(Collections.singletonList(Thread.currentThread().getName()), threads);
+        output.close();
+        byte[] expected = pattern(100, 0);
+        expected[10] = 9;
+        assertArrayEquals(expected, readFile());
+        assertEquals(1, mChannel.forceCount());
+    }
+
+    /**
+     * 转发到真实 FileChannel，可以暂停写入（pause 后写入阻塞到 resume）或在写入一定字节后失败
+     */
+    private static final class GatedChannel extends FileChannel {
+        static final String FAILURE = "injected write failure";
+
+        private final FileChannel mTarget;
+        private boolean mOpen = true;
+        private boolean mBlocked;
+        private long mFailAfter = Long.MAX_VALUE;
+        private long mWritten;
+        private int mForceCount;
+
+        GatedChannel(FileChannel target) {
+            mTarget = target;
+        }
+
+        synchronized void pause() {
+            mOpen = false;
+        }
+
+        synchronized void resume() {
+            mOpen = true;
+            notifyAll();
+        }
+
+        synchronized void failAfter(long bytes) {
+            mFailAfter = bytes;
+        }
+
+        synchronized long written() {
+            return mWritten;
+        }
+
+        synchronized int forceCount() {
+            return mForceCount;
+        }
+
+        synchronized boolean awaitBlockedWrite(long timeout, TimeUnit unit) throws InterruptedException {
+            long deadline = System.nanoTime() + unit.toNanos(timeout);
+            while (!mBlocked) {
+                long remain = deadline - System.nanoTime();
+                if (remain <= 0) {
+                    return false;
+                }
+                TimeUnit.NANOSECONDS.timedWait(this, remain);
+            }
+            return true;
+        }
+
+        /**
+         * 等待打开并检查注入的错误，返回本次最多可以写入的字节数
+         */
+        private synchronized int beforeWrite(int size) throws IOException {
+            while (!mOpen) {
+                mBlocked = true;
+                notifyAll();
+                try {
+                    wait();
+                } catch (InterruptedException e) {
+                    throw new IOException(e);
+                }
+            }
+            mBlocked = false;
+            if (mWritten >= mFailAfter) {
+                throw new IOException(FAILURE);
+            }
+            return (int) Math.min(size, mFailAfter - mWritten);
+        }
+
+        private synchronized void afterWrite(int n) {
+            mWritten += n;
+        }
+
+        @Override
+        public int write(ByteBuffer src) throws IOException {
+            int n = beforeWrite(src.remaining());
+            ByteBuffer part = src.duplicate();
+            part.limit(part.position() + n);
+            int written = mTarget.write(part);
+            src.position(src.position() + written);
+            afterWrite(written);
+            return written;
+        }
+
+        @Override
+        public int write(ByteBuffer src, long position) throws IOException {
+            beforeWrite(0);
+            return mTarget.write(src, position);
+        }
+
+        @Override
+        public long write(ByteBuffer[] srcs, int offset, int length) throws IOException {
+            long total = 0;
+            for (int i = offset; i < offset + length; i++) {
+                total += write(srcs[i]);
+            }
+            return total;
+        }
+
+        @Override
+        public synchronized void force(boolean metaData) throws IOException {
+            mForceCount++;
+            mTarget.force(metaData);
+        }
+
+        @Override
+        public int read(ByteBuffer dst) throws IOException {
+            return mTarget.read(dst);
+        }
+
+        @Override
+        public long read(ByteBuffer[] dsts, int offset, int length) throws IOException {
+            return mTarget.read(dsts, offset, length);
+        }
+
+        @Override
+        public int read(ByteBuffer dst, long position) throws IOException {
+            return mTarget.read(dst, position);
+        }
+
+        @Override
+        public long position() throws IOException {
+            return mTarget.position();
+        }
+
+        @Override
+        public FileChannel position(long newPosition) throws IOException {
+            mTarget.position(newPosition);
+            return this;
+        }
+
+        @Override
+        public long size() throws IOException {
+            return mTarget.size();
+        }
+
+        @Override
+        public FileChannel truncate(long size) throws IOException {
+            mTarget.truncate(size);
+            return this;
+        }
+
+        @Override
+        public long transferTo(long position, long count, WritableByteChannel target) throws IOException {
+            return mTarget.transferTo(position, count, target);
+        }
+
+        @Override
+        public long transferFrom(ReadableByteChannel src, long position, long count) throws IOException {
+            return mTarget.transferFrom(src, position, count);
+        }
+
+        @Override
+        public MappedByteBuffer map(MapMode mode, long position, long size) throws IOException {
+            return mTarget.map(mode, position, size);
+        }
+
+        @Override
+        public FileLock lock(long position, long size, boolean shared) throws IOException {
+            return mTarget.lock(position, size, shared);
+        }
+
+        @Override
+        public FileLock tryLock(long position, long size, boolean shared) throws IOException {
+            return mTarget.tryLock(position, size, shared);
+        }
+
+        @Override
+        protected void implCloseChannel() throws IOException {
+            mTarget.close();
+        }
+    }
+}
@@ -0,0 +1,93 @@
+// compressNV21Chain 与 compressNV21Fused 的主机端性能对比，同时检查两者输出的差异
+// 构建运行：
+//   cmake -S libyuv/benchmark -B build/yuv_benchmark -DCMAKE_BUILD_TYPE=Release
+//   cmake --build build/yuv_benchmark && build/yuv_benchmark/compress_benchmark [每个用例的帧数]
+
+#include <algorithm>
+#include <chrono>
+#include <cmath>
+#include <cstdio>
+#include <cstdlib>
+#include <cstring>
+#include <vector>
+#include "YuvPipeline.h"
+
+struct BenchCase {
+    const char *name;
+    int width;
+    int height;
+    int dst_width;
+    int dst_height;
+    int degree;
+    bool mirror;
+};
+
+static const BenchCase CASES[] = {
+        {"1080p rotate90",                 1920, 1080, 1920, 1080, 90,  false},
+        {"1080p rotate270 mirror",         1920, 1080, 1920, 1080, 270, true},
+        {"1080p rotate180 mirror",         1920, 1080, 1920, 1080, 180, true},
+        {"1080p mirror",                   1920, 1080, 1920, 1080, 0,   true},
+        {"1080p->720p",                    1920, 1080, 1280, 720,  0,   false},
+        {"1080p->720p rotate90",           1920, 1080, 1280, 720,  90,  false},
+        {"1080p->720p rotate270 mirror",   1920, 1080, 1280, 720,  270, true},
+        {"720p->1080p rotate90 mirror",    1280, 720,  1920, 1080, 90,  true},
+        {"4k->1080p rotate90",             3840, 2160, 1920, 1080, 90,  false},
+};
+
+typedef int (*CompressFunc)(YuvContext *, const uint8 *, int, int, uint8 *, int, int, int, int, bool);
+
+static double benchmark(CompressFunc func, YuvContext *context, const BenchCase &c,
+                        const std::vector<uint8> &src, std::vector<uint8> &dst, int frames) {
+    // 预热，同时让 context 分配好缓冲
+    func(context, src.data(), c.width, c.height, dst.data(), c.dst_width, c.dst_height,
+         libyuv::kFilterBilinear, c.degree, c.mirror);
+    std::chrono::steady_clock::time_point start = std::chrono::steady_clock::now();
+    for (int i = 0; i < frames; i++) {
+        func(context, src.data(), c.width, c.height, dst.data(), c.dst_width, c.dst_height,
+             libyuv::kFilterBilinear, c.degree, c.mirror);
+    }
+    std::chrono::duration<double, std::milli> elapsed = std::chrono::steady_clock::now() - start;
+    return elapsed.count() / frames;
+}
+
+int main(int argc, char **argv) {
+    int frames = argc > 1 ? atoi(argv[1]) : 100;
+    YuvContext chain_context = {{NULL, NULL}, 0};
+    YuvContext fused_context = {{NULL, NULL}, 0};
+    int failed = 0;
+    printf("%-32s %10s %10s %8s %8s %8s\n", "case", "chain ms", "fused ms", "speedup", "maxdiff", "psnr");
+    for (size_t i = 0; i < sizeof(CASES) / sizeof(CASES[0]); i++) {
+        const BenchCase &c = CASES[i];
+        // 平滑的渐变加噪声，接近真实图像，缩放的舍入差异才有参考意义
+        std::vector<uint8> src(i420Size(c.width, c.height));
+        srand(1);
+        for (size_t p = 0; p < src.size(); p++) {
+            src[p] = (uint8) ((p % c.width) * 255 / c.width / 2 + (p / c.width) % 64 + rand() % 32);
+        }
+        std::vector<uint8> chain_dst(i420Size(c.dst_width, c.dst_height));
+        std::vector<uint8> fused_dst(chain_dst.size());
+        double chain_ms = benchmark(compressNV21Chain, &chain_context, c, src, chain_dst, frames);
+        double fused_ms = benchmark(compressNV21Fused, &fused_context, c, src, fused_dst, frames);
+
+        int max_diff = 0;
+        double squared = 0;
+        for (size_t p = 0; p < chain_dst.size(); p++) {
+            int diff = abs(chain_dst[p] - fused_dst[p]);
+            max_diff = std::max(max_diff, diff);
+            squared += diff * diff;
+        }
+        double mse = squared / chain_dst.size();
+        double psnr = mse == 0 ? INFINITY : 10 * log10(255.0 * 255.0 / mse);
+        // 同时缩放和镜像时镜像在缩放之后，只允许舍入误差，其它情况必须完全一致
+        bool scale = c.width != c.dst_width || c.height != c.dst_height;
+        bool ok = scale && c.mirror ? max_diff <= 2 : max_diff == 0;
+        if (!ok) {
+            failed++;
+        }
+        printf("%-32s %10.3f %10.3f %7.2fx %8d %8.1f%s\n", c.name, chain_ms, fused_ms, chain_ms / fused_ms,
+               max_diff, psnr, ok ? "" : "  MISMATCH");
+    }
+    releaseScratch(&chain_context);
+    releaseScratch(&fused_context);
+    return failed == 0 ? 0 : 1;
+}
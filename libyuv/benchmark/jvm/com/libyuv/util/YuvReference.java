@@ -0,0 +1,297 @@
+package com.libyuv.util;
+
+/**
+ * 校验 {@link YuvUtil} 用的纯 Java 参考实现，按定义逐像素计算，不考虑速度
+ * <p>
+ * 帧都是紧凑排列（没有行填充）的 byte[]，宽高为偶数。
+ * 重排类的转换（拆分/交错色度、裁剪、镜像、旋转、字节序交换）与 libyuv 的结果必须完全一致；
+ * 色彩转换使用 BT.601 有限范围的浮点公式，libyuv 使用定点数和 SIMD 的近似舍入，比较时要允许误差。
+ */
+final class YuvReference {
+
+    private YuvReference() {
+    }
+
+    static int i420Size(int width, int height) {
+        return width * height + (width >> 1) * (height >> 1) * 2;
+    }
+
+    /**
+     * I420 三个平面的 {起始位置, 宽, 高}
+     */
+    static int[][] i420Planes(int width, int height) {
+        int ySize = width * height;
+        int uvWidth = width >> 1;
+        int uvHeight = height >> 1;
+        return new int[][]{
+                {0, width, height},
+                {ySize, uvWidth, uvHeight},
+                {ySize + uvWidth * uvHeight, uvWidth, uvHeight}
+        };
+    }
+
+    /**
+     * NV21/NV12 转 I420：Y 直接拷贝，交错的色度拆成 U、V 两个平面
+     */
+    static byte[] semiPlanarToI420(byte[] src, int width, int height, boolean nv21) {
+        int ySize = width * height;
+        int uvSize = (width >> 1) * (height >> 1);
+        byte[] dst = new byte[ySize + uvSize * 2];
+        System.arraycopy(src, 0, dst, 0, ySize);
+        for (int i = 0; i < uvSize; i++) {
+            byte first = src[ySize + i * 2];
+            byte second = src[ySize + i * 2 + 1];
+            dst[ySize + i] = nv21 ? second : first;
+            dst[ySize + uvSize + i] = nv21 ? first : second;
+        }
+        return dst;
+    }
+
+    /**
+     * I420 转 NV21/NV12
+     */
+    static byte[] i420ToSemiPlanar(byte[] src, int width, int height, boolean nv21) {
+        int ySize = width * height;
+        int uvSize = (width >> 1) * (height >> 1);
+        byte[] dst = new byte[ySize + uvSize * 2];
+        System.arraycopy(src, 0, dst, 0, ySize);
+        for (int i = 0; i < uvSize; i++) {
+            byte u = src[ySize + i];
+            byte v = src[ySize + uvSize + i];
+            dst[ySize + i * 2] = nv21 ? v : u;
+            dst[ySize + i * 2 + 1] = nv21 ? u : v;
+        }
+        return dst;
+    }
+
+    /**
+     * I420 转 YV12：交换 U、V 平面
+     */
+    static byte[] i420ToYV12(byte[] src, int width, int height) {
+        int ySize = width * height;
+        int uvSize = (width >> 1) * (height >> 1);
+        byte[] dst = src.clone();
+        System.arraycopy(src, ySize, dst, ySize + uvSize, uvSize);
+        System.arraycopy(src, ySize + uvSize, dst, ySize, uvSize);
+        return dst;
+    }
+
+    /**
+     * I420 裁剪，left、top 为偶数
+     */
+    static byte[] cropI420(byte[] src, int width, int height, int dstWidth, int dstHeight, int left, int top) {
+        byte[] dst = new byte[i420Size(dstWidth, dstHeight)];
+        int[][] srcPlanes = i420Planes(width, height);
+        int[][] dstPlanes = i420Planes(dstWidth, dstHeight);
+        for (int p = 0; p < 3; p++) {
+            int shift = p == 0 ? 0 : 1;
+            int[] s = srcPlanes[p];
+            int[] d = dstPlanes[p];
+            for (int y = 0; y < d[2]; y++) {
+                System.arraycopy(src, s[0] + ((top >> shift) + y) * s[1] + (left >> shift),
+                        dst, d[0] + y * d[1], d[1]);
+            }
+        }
+        return dst;
+    }
+
+    /**
+     * I420 水平镜像
+     */
+    static byte[] mirrorI420(byte[] src, int width, int height) {
+        byte[] dst = new byte[i420Size(width, height)];
+        for (int[] plane : i420Planes(width, height)) {
+            int offset = plane[0];
+            int w = plane[1];
+            int h = plane[2];
+            for (int y = 0; y < h; y++) {
+                for (int x = 0; x < w; x++) {
+                    dst[offset + y * w + x] = src[offset + y * w + w - 1 - x];
+                }
+            }
+        }
+        return dst;
+    }
+
+    /**
+     * I420 顺时针旋转，90和270时输出的宽高与输入相反
+     */
+    static byte[] rotateI420(byte[] src, int width, int height, int degree) {
+        byte[] dst = new byte[i420Size(width, height)];
+        for (int[] plane : i420Planes(width, height)) {
+            int offset = plane[0];
+            int w = plane[1];
+            int h = plane[2];
+            boolean swap = degree == 90 || degree == 270;
+            int dw = swap ? h : w;
+            int dh = swap ? w : h;
+            for (int y = 0; y < dh; y++) {
+                for (int x = 0; x < dw; x++) {
+                    int sx;
+                    int sy;
+                    if (degree == 90) {
+                        sx = y;
+                        sy = h - 1 - x;
+                    } else if (degree == 180) {
+                        sx = w - 1 - x;
+                        sy = h - 1 - y;
+                    } else if (degree == 270) {
+                        sx = w - 1 - y;
+                        sy = x;
+                    } else {
+                        sx = x;
+                        sy = y;
+                    }
+                    dst[offset + y * dw + x] = src[offset + sy * w + sx];
+                }
+            }
+        }
+        return dst;
+    }
+
+    /**
+     * I420 宽高各缩小一半，每个输出像素为对应 2x2 像素的平均（四舍五入），即 libyuv 的 kFilterBox
+     */
+    static byte[] scaleDown2BoxI420(byte[] src, int width, int height) {
+        int dstWidth = width >> 1;
+        int dstHeight = height >> 1;
+        byte[] dst = new byte[i420Size(dstWidth, dstHeight)];
+        int[][] srcPlanes = i420Planes(width, height);
+        int[][] dstPlanes = i420Planes(dstWidth, dstHeight);
+        for (int p = 0; p < 3; p++) {
+            int[] s = srcPlanes[p];
+            int[] d = dstPlanes[p];
+            for (int y = 0; y < d[2]; y++) {
+                for (int x = 0; x < d[1]; x++) {
+                    int top = s[0] + y * 2 * s[1] + x * 2;
+                    int bottom = top + s[1];
+                    int sum = (src[top] & 0xff) + (src[top + 1] & 0xff)
+                            + (src[bottom] & 0xff) + (src[bottom + 1] & 0xff);
+                    dst[d[0] + y * d[1] + x] = (byte) ((sum + 2) >> 2);
+                }
+            }
+        }
+        return dst;
+    }
+
+    /**
+     * I420 双线性缩放，像素中心对齐
+     */
+    static byte[] scaleBilinearI420(byte[] src, int width, int height, int dstWidth, int dstHeight) {
+        byte[] dst = new byte[i420Size(dstWidth, dstHeight)];
+        int[][] srcPlanes = i420Planes(width, height);
+        int[][] dstPlanes = i420Planes(dstWidth, dstHeight);
+        for (int p = 0; p < 3; p++) {
+            int[] s = srcPlanes[p];
+            int[] d = dstPlanes[p];
+            for (int y = 0; y < d[2]; y++) {
+                double sy = clamp((y + 0.5) * s[2] / d[2] - 0.5, 0, s[2] - 1);
+                int y0 = (int) sy;
+                int y1 = Math.min(y0 + 1, s[2] - 1);
+                double fy = sy - y0;
+                for (int x = 0; x < d[1]; x++) {
+                    double sx = clamp((x + 0.5) * s[1] / d[1] - 0.5, 0, s[1] - 1);
+                    int x0 = (int) sx;
+                    int x1 = Math.min(x0 + 1, s[1] - 1);
+                    double fx = sx - x0;
+                    double top = lerp(src[s[0] + y0 * s[1] + x0] & 0xff, src[s[0] + y0 * s[1] + x1] & 0xff, fx);
+                    double bottom = lerp(src[s[0] + y1 * s[1] + x0] & 0xff, src[s[0] + y1 * s[1] + x1] & 0xff, fx);
+                    dst[d[0] + y * d[1] + x] = (byte) Math.round(lerp(top, bottom, fy));
+                }
+            }
+        }
+        return dst;
+    }
+
+    /**
+     * I420 转 ARGB（libyuv 命名，内存中为 B,G,R,A），BT.601 有限范围，色度取所在 2x2 块的值
+     */
+    static byte[] i420ToARGB(byte[] src, int width, int height) {
+        int ySize = width * height;
+        int uvWidth = width >> 1;
+        int uvSize = uvWidth * (height >> 1);
+        byte[] dst = new byte[ySize * 4];
+        for (int y = 0; y < height; y++) {
+            for (int x = 0; x < width; x++) {
+                int uvIndex = (y >> 1) * uvWidth + (x >> 1);
+                double c = 1.164 * ((src[y * width + x] & 0xff) - 16);
+                int d = (src[ySize + uvIndex] & 0xff) - 128;
+                int e = (src[ySize + uvSize + uvIndex] & 0xff) - 128;
+                int i = (y * width + x) * 4;
+                dst[i] = clampByte(c + 2.018 * d);
+                dst[i + 1] = clampByte(c - 0.391 * d - 0.813 * e);
+                dst[i + 2] = clampByte(c + 1.596 * e);
+                dst[i + 3] = (byte) 0xff;
+            }
+        }
+        return dst;
+    }
+
+    /**
+     * ARGB（内存中 B,G,R,A）或 ABGR（内存中 R,G,B,A）转 I420，BT.601 有限范围，色度取 2x2 块的平均颜色
+     */
+    static byte[] rgbToI420(byte[] src, int width, int height, boolean abgr) {
+        int r = abgr ? 0 : 2;
+        int g = 1;
+        int b = abgr ? 2 : 0;
+        int ySize = width * height;
+        int uvWidth = width >> 1;
+        int uvSize = uvWidth * (height >> 1);
+        byte[] dst = new byte[ySize + uvSize * 2];
+        for (int i = 0; i < ySize; i++) {
+            dst[i] = clampByte(16 + 0.257 * (src[i * 4 + r] & 0xff)
+                    + 0.504 * (src[i * 4 + g] & 0xff) + 0.098 * (src[i * 4 + b] & 0xff));
+        }
+        for (int y = 0; y < height >> 1; y++) {
+            for (int x = 0; x < uvWidth; x++) {
+                double sr = 0;
+                double sg = 0;
+                double sb = 0;
+                for (int k = 0; k < 4; k++) {
+                    int i = ((y * 2 + (k >> 1)) * width + x * 2 + (k & 1)) * 4;
+                    sr += src[i + r] & 0xff;
+                    sg += src[i + g] & 0xff;
+                    sb += src[i + b] & 0xff;
+                }
+                sr /= 4;
+                sg /= 4;
+                sb /= 4;
+                dst[ySize + y * uvWidth + x] = clampByte(128 - 0.148 * sr - 0.291 * sg + 0.439 * sb);
+                dst[ySize + uvSize + y * uvWidth + x] = clampByte(128 + 0.439 * sr - 0.368 * sg - 0.071 * sb);
+            }
+        }
+        return dst;
+    }
+
+    /**
+     * BGRA（内存中 A,R,G,B）或 RGBA（内存中 A,B,G,R）转 ARGB（内存中 B,G,R,A），只交换字节顺序
+     */
+    static byte[] toARGB(byte[] src, int width, int height, boolean rgba) {
+        byte[] dst = new byte[width * height * 4];
+        for (int i = 0; i < dst.length; i += 4) {
+            if (rgba) {
+                dst[i] = src[i + 1];
+                dst[i + 1] = src[i + 2];
+                dst[i + 2] = src[i + 3];
+            } else {
+                dst[i] = src[i + 3];
+                dst[i + 1] = src[i + 2];
+                dst[i + 2] = src[i + 1];
+            }
+            dst[i + 3] = src[i];
+        }
+        return dst;
+    }
+
+    private static double lerp(double a, double b, double f) {
+        return a + (b - a) * f;
+    }
+
+    private static double clamp(double value, double min, double max) {
+        return Math.max(min, Math.min(max, value));
+    }
+
+    private static byte clampByte(double value) {
+        return (byte) Math.max(0, Math.min(255, Math.round(value)));
+    }
+}
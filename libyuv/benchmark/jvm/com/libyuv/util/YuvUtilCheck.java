@@ -0,0 +1,855 @@
+package com.libyuv.util;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Random;
+
+/**
+ * 在桌面 JVM 上加载 libyuvutil，逐个检查 {@link YuvUtil} 的 native 方法与 {@link YuvReference} 的结果，然后测试吞吐量
+ * <p>
+ * 重排类的转换必须完全一致；色彩转换与缩放按 libyuv 定点数/SIMD 的舍入允许少量误差，见各处的 tolerance。
+ * ByteBuffer 版本使用带行填充的 direct buffer，同时检查没有写到每行有效字节之外。
+ * 有不一致时退出码为1，可以直接作为 CI 的检查项。
+ * <p>
+ * 构建运行（需要 JDK）：
+ * <pre>
+ *   cmake -S libyuv/benchmark -B build/yuv_benchmark -DCMAKE_BUILD_TYPE=Release
+ *   cmake --build build/yuv_benchmark
+ *   cd build/yuv_benchmark && ctest --output-on-failure               # 只校验
+ *   cmake --build build/yuv_benchmark --target yuvutil_benchmark      # 校验并测试吞吐量
+ *   java -Djava.library.path=build/yuv_benchmark/yuvutil -jar build/yuv_benchmark/yuvutil_check.jar [每个用例的帧数]
+ * </pre>
+ * 帧数为0时只做校验，不测吞吐量
+ */
+public final class YuvUtilCheck {
+
+    // libyuv 的 YUV 转 RGB 把 U 对 B 的系数 2.018 截为 2.0，再加上定点舍入
+    private static final int TOLERANCE_YUV_TO_RGB = 3;
+    // ARGB 转 I420 的 SIMD 版本使用 7 位系数，色度先两两 pavgb 再平均
+    private static final int TOLERANCE_RGB_TO_YUV = 2;
+    // 1/2 box 缩放的 SIMD 行函数先把 2x2 的和右移一位再与 0 求平均，与 (和 + 2) / 4 差 1
+    private static final int TOLERANCE_SCALE_BOX = 1;
+    // libyuv 的双线性插值垂直、水平两次都截断而不是四舍五入，结果整体偏低约 1
+    private static final int TOLERANCE_SCALE_BILINEAR = 4;
+    // 同时缩放和镜像时 compressYUVFused 在缩放之后镜像，见 YuvContext#compressYUVFused
+    private static final int TOLERANCE_FUSED_SCALE_MIRROR = 2;
+
+    // 行填充的内容，用于检查越界写
+    private static final byte PAD = (byte) 0x5A;
+
+    private static final int[][] SIZES = {{64, 48}, {644, 364}, {1280, 720}};
+
+    private static int sChecks;
+    private static int sFailures;
+
+    private YuvUtilCheck() {
+    }
+
+    public static void main(String[] args) {
+        int frames = args.length > 0 ? Integer.parseInt(args[0]) : 50;
+        for (int[] size : SIZES) {
+            checkByteArray(size[0], size[1]);
+            checkDirectBuffer(size[0], size[1]);
+            checkWriteYUVToPlanes(size[0], size[1]);
+            checkCompress(size[0], size[1]);
+        }
+        checkDirectBufferErrors();
+        checkStripes();
+        System.out.printf("correctness: %d checks, %s%n", sChecks, sFailures == 0 ? "ok" : sFailures + " FAILED");
+
+        if (frames > 0) {
+            benchmark(1920, 1080, frames);
+        }
+        System.exit(sFailures == 0 ? 0 : 1);
+    }
+
+    // ---------------- byte[] ----------------
+
+    private static void checkByteArray(int width, int height) {
+        String size = " " + width + "x" + height;
+        byte[] i420 = randomBytes(YuvReference.i420Size(width, height), width * 31 + height);
+        byte[] nv21 = YuvReference.i420ToSemiPlanar(i420, width, height, true);
+        byte[] nv12 = YuvReference.i420ToSemiPlanar(i420, width, height, false);
+
+        byte[] dst = new byte[i420.length];
+        YuvUtil.yuvI420ToNV21(i420, dst, width, height);
+        compare("yuvI420ToNV21" + size, nv21, dst, 0);
+        YuvUtil.yuvI420ToNV12(i420, dst, width, height);
+        compare("yuvI420ToNV12" + size, nv12, dst, 0);
+
+        byte[] argb = new byte[width * height * 4];
+        byte[] expectedArgb = YuvReference.i420ToARGB(i420, width, height);
+        YuvUtil.NV21ToARGB(nv21, argb, width, height);
+        compare("NV21ToARGB" + size, expectedArgb, argb, TOLERANCE_YUV_TO_RGB);
+        YuvUtil.NV12ToARGB(nv12, argb, width, height);
+        compare("NV12ToARGB" + size, expectedArgb, argb, TOLERANCE_YUV_TO_RGB);
+
+        byte[] rgb = randomBytes(width * height * 4, width + height);
+        YuvUtil.BGRAToARGB(rgb, argb, width, height);
+        compare("BGRAToARGB" + size, YuvReference.toARGB(rgb, width, height, false), argb, 0);
+        YuvUtil.RGBAToARGB(rgb, argb, width, height);
+        compare("RGBAToARGB" + size, YuvReference.toARGB(rgb, width, height, true), argb, 0);
+
+        int cropWidth = (width / 2) & ~1;
+        int cropHeight = (height / 2) & ~1;
+        int left = (width / 4) & ~1;
+        int top = (height / 4) & ~1;
+        byte[] crop = new byte[YuvReference.i420Size(cropWidth, cropHeight)];
+        YuvUtil.cropYUV(i420, width, height, crop, cropWidth, cropHeight, left, top);
+        compare("cropYUV" + size,
+                YuvReference.cropI420(i420, width, height, cropWidth, cropHeight, left, top), crop, 0);
+    }
+
+    // ---------------- direct ByteBuffer + stride ----------------
+
+    private static void checkDirectBuffer(int width, int height) {
+        String size = " " + width + "x" + height;
+        byte[] i420 = randomBytes(YuvReference.i420Size(width, height), width * 17 + height);
+        byte[] nv21 = YuvReference.i420ToSemiPlanar(i420, width, height, true);
+        byte[] nv12 = YuvReference.i420ToSemiPlanar(i420, width, height, false);
+        byte[] expectedArgb = YuvReference.i420ToARGB(i420, width, height);
+
+        DirectI420 src = DirectI420.of(i420, width, height, 24);
+        DirectI420 dst = new DirectI420(width, height, 40);
+        DirectSemiPlanar semi = new DirectSemiPlanar(width, height, 36);
+        DirectPlane argb = new DirectPlane(width * 4, height, width * 4 + 20);
+
+        DirectSemiPlanar srcNV21 = DirectSemiPlanar.of(nv21, width, height, 12);
+        expectOk("NV21ToI420" + size, YuvUtil.NV21ToI420(srcNV21.y.buffer, srcNV21.y.stride,
+                srcNV21.uv.buffer, srcNV21.uv.stride, dst.y.buffer, dst.y.stride,
+                dst.u.buffer, dst.u.stride, dst.v.buffer, dst.v.stride, width, height));
+        compareDirect("NV21ToI420" + size, i420, dst, 0);
+
+        DirectSemiPlanar srcNV12 = DirectSemiPlanar.of(nv12, width, height, 12);
+        dst.reset();
+        expectOk("NV12ToI420" + size, YuvUtil.NV12ToI420(srcNV12.y.buffer, srcNV12.y.stride,
+                srcNV12.uv.buffer, srcNV12.uv.stride, dst.y.buffer, dst.y.stride,
+                dst.u.buffer, dst.u.stride, dst.v.buffer, dst.v.stride, width, height));
+        compareDirect("NV12ToI420" + size, i420, dst, 0);
+
+        expectOk("yuvI420ToNV21" + size, YuvUtil.yuvI420ToNV21(src.y.buffer, src.y.stride,
+                src.u.buffer, src.u.stride, src.v.buffer, src.v.stride,
+                semi.y.buffer, semi.y.stride, semi.uv.buffer, semi.uv.stride, width, height));
+        compareDirect("yuvI420ToNV21" + size, nv21, semi, 0);
+
+        semi.reset();
+        expectOk("yuvI420ToNV12" + size, YuvUtil.yuvI420ToNV12(src.y.buffer, src.y.stride,
+                src.u.buffer, src.u.stride, src.v.buffer, src.v.stride,
+                semi.y.buffer, semi.y.stride, semi.uv.buffer, semi.uv.stride, width, height));
+        compareDirect("yuvI420ToNV12" + size, nv12, semi, 0);
+
+        expectOk("NV21ToARGB(ByteBuffer)" + size, YuvUtil.NV21ToARGB(srcNV21.y.buffer, srcNV21.y.stride,
+                srcNV21.uv.buffer, srcNV21.uv.stride, argb.buffer, argb.stride, width, height));
+        compareDirect("NV21ToARGB(ByteBuffer)" + size, expectedArgb, argb, TOLERANCE_YUV_TO_RGB);
+
+        argb.reset();
+        expectOk("NV12ToARGB(ByteBuffer)" + size, YuvUtil.NV12ToARGB(srcNV12.y.buffer, srcNV12.y.stride,
+                srcNV12.uv.buffer, srcNV12.uv.stride, argb.buffer, argb.stride, width, height));
+        compareDirect("NV12ToARGB(ByteBuffer)" + size, expectedArgb, argb, TOLERANCE_YUV_TO_RGB);
+
+        argb.reset();
+        expectOk("I420ToARGB" + size, YuvUtil.I420ToARGB(src.y.buffer, src.y.stride,
+                src.u.buffer, src.u.stride, src.v.buffer, src.v.stride, argb.buffer, argb.stride, width, height));
+        compareDirect("I420ToARGB" + size, expectedArgb, argb, TOLERANCE_YUV_TO_RGB);
+
+        byte[] rgb = randomBytes(width * height * 4, width * 7 + height);
+        DirectPlane srcRgb = DirectPlane.of(rgb, width * 4, height, width * 4 + 8);
+        dst.reset();
+        expectOk("ARGBToI420" + size, YuvUtil.ARGBToI420(srcRgb.buffer, srcRgb.stride,
+                dst.y.buffer, dst.y.stride, dst.u.buffer, dst.u.stride, dst.v.buffer, dst.v.stride, width, height));
+        compareDirect("ARGBToI420" + size, YuvReference.rgbToI420(rgb, width, height, false), dst, TOLERANCE_RGB_TO_YUV);
+
+        dst.reset();
+        expectOk("ABGRToI420" + size, YuvUtil.ABGRToI420(srcRgb.buffer, srcRgb.stride,
+                dst.y.buffer, dst.y.stride, dst.u.buffer, dst.u.stride, dst.v.buffer, dst.v.stride, width, height));
+        compareDirect("ABGRToI420" + size, YuvReference.rgbToI420(rgb, width, height, true), dst, TOLERANCE_RGB_TO_YUV);
+
+        semi.reset();
+        expectOk("ARGBToNV12" + size, YuvUtil.ARGBToNV12(srcRgb.buffer, srcRgb.stride,
+                semi.y.buffer, semi.y.stride, semi.uv.buffer, semi.uv.stride, width, height));
+        compareDirect("ARGBToNV12" + size, YuvReference.i420ToSemiPlanar(
+                YuvReference.rgbToI420(rgb, width, height, false), width, height, false), semi, TOLERANCE_RGB_TO_YUV);
+
+        argb.reset();
+        expectOk("BGRAToARGB(ByteBuffer)" + size, YuvUtil.BGRAToARGB(srcRgb.buffer, srcRgb.stride,
+                argb.buffer, argb.stride, width, height));
+        compareDirect("BGRAToARGB(ByteBuffer)" + size, YuvReference.toARGB(rgb, width, height, false), argb, 0);
+
+        argb.reset();
+        expectOk("RGBAToARGB(ByteBuffer)" + size, YuvUtil.RGBAToARGB(srcRgb.buffer, srcRgb.stride,
+                argb.buffer, argb.stride, width, height));
+        compareDirect("RGBAToARGB(ByteBuffer)" + size, YuvReference.toARGB(rgb, width, height, true), argb, 0);
+
+        for (int degree = 0; degree < 360; degree += 90) {
+            boolean swap = degree == 90 || degree == 270;
+            DirectI420 rotated = new DirectI420(swap ? height : width, swap ? width : height, 10);
+            expectOk("rotateI420 " + degree + size, YuvUtil.rotateI420(src.y.buffer, src.y.stride,
+                    src.u.buffer, src.u.stride, src.v.buffer, src.v.stride,
+                    rotated.y.buffer, rotated.y.stride, rotated.u.buffer, rotated.u.stride,
+                    rotated.v.buffer, rotated.v.stride, width, height, degree));
+            compareDirect("rotateI420 " + degree + size, YuvReference.rotateI420(i420, width, height, degree), rotated, 0);
+        }
+
+        int cropWidth = (width / 2) & ~1;
+        int cropHeight = (height / 2) & ~1;
+        int left = (width / 3) & ~1;
+        int top = (height / 3) & ~1;
+        DirectI420 crop = new DirectI420(cropWidth, cropHeight, 6);
+        expectOk("cropYUV(ByteBuffer)" + size, YuvUtil.cropYUV(src.y.buffer, src.y.stride,
+                src.u.buffer, src.u.stride, src.v.buffer, src.v.stride, width, height,
+                crop.y.buffer, crop.y.stride, crop.u.buffer, crop.u.stride, crop.v.buffer, crop.v.stride,
+                cropWidth, cropHeight, left, top));
+        compareDirect("cropYUV(ByteBuffer)" + size,
+                YuvReference.cropI420(i420, width, height, cropWidth, cropHeight, left, top), crop, 0);
+
+        // 缩放使用平滑的图像，随机噪声上不同插值的差异没有意义
+        byte[] smooth = smoothI420(width, height);
+        DirectI420 smoothSrc = DirectI420.of(smooth, width, height, 14);
+        DirectI420 half = new DirectI420(width / 2, height / 2, 18);
+        expectOk("scaleI420 box 1/2" + size, YuvUtil.scaleI420(smoothSrc.y.buffer, smoothSrc.y.stride,
+                smoothSrc.u.buffer, smoothSrc.u.stride, smoothSrc.v.buffer, smoothSrc.v.stride, width, height,
+                half.y.buffer, half.y.stride, half.u.buffer, half.u.stride, half.v.buffer, half.v.stride,
+                width / 2, height / 2, 3));
+        compareDirect("scaleI420 box 1/2" + size, YuvReference.scaleDown2BoxI420(smooth, width, height),
+                half, TOLERANCE_SCALE_BOX);
+
+        int scaledWidth = (width * 2 / 3) & ~1;
+        int scaledHeight = (height * 2 / 3) & ~1;
+        DirectI420 scaled = new DirectI420(scaledWidth, scaledHeight, 18);
+        expectOk("scaleI420 bilinear 2/3" + size, YuvUtil.scaleI420(smoothSrc.y.buffer, smoothSrc.y.stride,
+                smoothSrc.u.buffer, smoothSrc.u.stride, smoothSrc.v.buffer, smoothSrc.v.stride, width, height,
+                scaled.y.buffer, scaled.y.stride, scaled.u.buffer, scaled.u.stride, scaled.v.buffer, scaled.v.stride,
+                scaledWidth, scaledHeight, 2));
+        compareDirect("scaleI420 bilinear 2/3" + size,
+                YuvReference.scaleBilinearI420(smooth, width, height, scaledWidth, scaledHeight),
+                scaled, TOLERANCE_SCALE_BILINEAR);
+    }
+
+    // 参数不合法时返回 -1，且不能写出任何数据
+    private static void checkDirectBufferErrors() {
+        int width = 64;
+        int height = 32;
+        DirectI420 src = DirectI420.of(randomBytes(YuvReference.i420Size(width, height), 5), width, height, 0);
+        DirectPlane argb = new DirectPlane(width * 4, height, width * 4);
+        ByteBuffer heap = ByteBuffer.allocate(width * height * 4);
+        expectError("I420ToARGB heap buffer", YuvUtil.I420ToARGB(src.y.buffer, src.y.stride,
+                src.u.buffer, src.u.stride, src.v.buffer, src.v.stride, heap, width * 4, width, height));
+        expectError("I420ToARGB small stride", YuvUtil.I420ToARGB(src.y.buffer, src.y.stride,
+                src.u.buffer, src.u.stride, src.v.buffer, src.v.stride, argb.buffer, width * 4 - 4, width, height));
+        ByteBuffer small = ByteBuffer.allocateDirect(width * height * 4 - 1);
+        expectError("I420ToARGB small capacity", YuvUtil.I420ToARGB(src.y.buffer, src.y.stride,
+                src.u.buffer, src.u.stride, src.v.buffer, src.v.stride, small, width * 4, width, height));
+        expectError("I420ToARGB null", YuvUtil.I420ToARGB(null, src.y.stride,
+                src.u.buffer, src.u.stride, src.v.buffer, src.v.stride, argb.buffer, argb.stride, width, height));
+        expectError("rotateI420 45", YuvUtil.rotateI420(src.y.buffer, src.y.stride,
+                src.u.buffer, src.u.stride, src.v.buffer, src.v.stride,
+                src.y.buffer, src.y.stride, src.u.buffer, src.u.stride, src.v.buffer, src.v.stride,
+                width, height, 45));
+        DirectI420 crop = new DirectI420(width / 2, height / 2, 0);
+        expectError("cropYUV odd left", YuvUtil.cropYUV(src.y.buffer, src.y.stride,
+                src.u.buffer, src.u.stride, src.v.buffer, src.v.stride, width, height,
+                crop.y.buffer, crop.y.stride, crop.u.buffer, crop.u.stride, crop.v.buffer, crop.v.stride,
+                width / 2, height / 2, 1, 0));
+        expectError("cropYUV out of range", YuvUtil.cropYUV(src.y.buffer, src.y.stride,
+                src.u.buffer, src.u.stride, src.v.buffer, src.v.stride, width, height,
+                crop.y.buffer, crop.y.stride, crop.u.buffer, crop.u.stride, crop.v.buffer, crop.v.stride,
+                width / 2, height / 2, width / 2 + 2, 0));
+        check("invalid arguments leave output untouched", argb.blank() && crop.blank());
+    }
+
+    // ---------------- writeYUVToPlanes ----------------
+
+    private static void checkWriteYUVToPlanes(int width, int height) {
+        String size = " " + width + "x" + height;
+        byte[] i420 = randomBytes(YuvReference.i420Size(width, height), width * 13 + height);
+        String[] formatNames = {"I420", "NV12", "NV21", "YV12"};
+        byte[][] sources = {
+                i420,
+                YuvReference.i420ToSemiPlanar(i420, width, height, false),
+                YuvReference.i420ToSemiPlanar(i420, width, height, true),
+                YuvReference.i420ToYV12(i420, width, height)
+        };
+        int uvWidth = width >> 1;
+        int uvHeight = height >> 1;
+        for (int format = YuvUtil.FORMAT_I420; format <= YuvUtil.FORMAT_YV12; format++) {
+            // 平面格式
+            DirectI420 planar = new DirectI420(width, height, 20);
+            String name = "writeYUVToPlanes " + formatNames[format] + " -> I420" + size;
+            expectOk(name, YuvUtil.writeYUVToPlanes(sources[format], format, width, height,
+                    planar.y.buffer, planar.y.stride, planar.u.buffer, planar.u.stride,
+                    planar.v.buffer, planar.v.stride, 1));
+            compareDirect(name, i420, planar, 0);
+
+            // 半平面格式：U、V 是同一个 buffer 中相邻的两个 slice，先后顺序决定 NV12 还是 NV21
+            for (int order = 0; order < 2; order++) {
+                boolean nv21 = order == 1;
+                DirectPlane y = new DirectPlane(width, height, width + 20);
+                DirectPlane uv = new DirectPlane(uvWidth * 2, uvHeight, uvWidth * 2 + 20);
+                name = "writeYUVToPlanes " + formatNames[format] + (nv21 ? " -> NV21" : " -> NV12") + size;
+                expectOk(name, YuvUtil.writeYUVToPlanes(sources[format], format, width, height,
+                        y.buffer, y.stride, slice(uv.buffer, nv21 ? 1 : 0), uv.stride,
+                        slice(uv.buffer, nv21 ? 0 : 1), uv.stride, 2));
+                byte[] actual = new byte[i420.length];
+                y.read(actual, 0);
+                uv.read(actual, width * height);
+                compare(name, YuvReference.i420ToSemiPlanar(i420, width, height, nv21), actual, 0);
+                check(name + " padding", y.untouched() && uv.untouched());
+            }
+
+            // U、V 在不同的 buffer 中、pixelStride 为 2 和 3，按像素写入
+            for (int pixelStride = 2; pixelStride <= 3; pixelStride++) {
+                DirectPlane y = new DirectPlane(width, height, width + 4);
+                int rowBytes = (uvWidth - 1) * pixelStride + 1;
+                DirectPlane u = new DirectPlane(rowBytes, uvHeight, rowBytes + 6);
+                DirectPlane v = new DirectPlane(rowBytes, uvHeight, rowBytes + 10);
+                name = "writeYUVToPlanes " + formatNames[format] + " -> pixelStride " + pixelStride + size;
+                expectOk(name, YuvUtil.writeYUVToPlanes(sources[format], format, width, height,
+                        y.buffer, y.stride, u.buffer, u.stride, v.buffer, v.stride, pixelStride));
+                byte[] actual = new byte[i420.length];
+                y.read(actual, 0);
+                int uvSize = uvWidth * uvHeight;
+                for (int row = 0; row < uvHeight; row++) {
+                    for (int col = 0; col < uvWidth; col++) {
+                        actual[width * height + row * uvWidth + col] = u.buffer.get(row * u.stride + col * pixelStride);
+                        actual[width * height + uvSize + row * uvWidth + col] = v.buffer.get(row * v.stride + col * pixelStride);
+                    }
+                }
+                compare(name, i420, actual, 0);
+                check(name + " padding", y.untouched() && u.untouched() && v.untouched());
+            }
+        }
+
+        // 平面不足一帧时不写入，返回 -1
+        DirectI420 planar = new DirectI420(width, height, 0);
+        expectError("writeYUVToPlanes small stride", YuvUtil.writeYUVToPlanes(i420, YuvUtil.FORMAT_I420, width, height,
+                planar.y.buffer, width - 1, planar.u.buffer, planar.u.stride, planar.v.buffer, planar.v.stride, 1));
+        expectError("writeYUVToPlanes small capacity", YuvUtil.writeYUVToPlanes(i420, YuvUtil.FORMAT_I420, width, height,
+                planar.y.buffer, planar.y.stride, slice(planar.u.buffer, 1), planar.u.stride, planar.v.buffer, planar.v.stride, 1));
+        expectError("writeYUVToPlanes semi-planar capacity", YuvUtil.writeYUVToPlanes(i420, YuvUtil.FORMAT_I420, width, height,
+                planar.y.buffer, planar.y.stride, planar.u.buffer, planar.u.stride, planar.v.buffer, planar.v.stride, 2));
+        expectError("writeYUVToPlanes heap buffer", YuvUtil.writeYUVToPlanes(i420, YuvUtil.FORMAT_I420, width, height,
+                ByteBuffer.allocate(width * height), width, planar.u.buffer, planar.u.stride, planar.v.buffer, planar.v.stride, 1));
+        expectError("writeYUVToPlanes pixelStride 0", YuvUtil.writeYUVToPlanes(i420, YuvUtil.FORMAT_I420, width, height,
+                planar.y.buffer, planar.y.stride, planar.u.buffer, planar.u.stride, planar.v.buffer, planar.v.stride, 0));
+        check("writeYUVToPlanes invalid planes leave output untouched", planar.blank());
+
+        // planesSize：NV12 输入 buffer 的 Y 平面有 16 行 slice-height 填充，U/V 平面从填充之后开始
+        int sliceHeight = height + 16;
+        int uvOffset = width * sliceHeight;
+        int uvBytes = (uvHeight - 1) * width + (uvWidth - 1) * 2 + 1;
+        ByteBuffer input = ByteBuffer.allocateDirect(uvOffset + uvBytes + 1 + 64);
+        ByteBuffer planeY = range(input, 0, (height - 1) * width + width);
+        ByteBuffer planeU = range(input, uvOffset, uvBytes);
+        ByteBuffer planeV = range(input, uvOffset + 1, uvBytes);
+        check("planesSize" + size + " returned " + YuvUtil.planesSize(planeY, planeU, planeV),
+                YuvUtil.planesSize(planeY, planeU, planeV) == uvOffset + uvBytes + 1);
+        expectError("planesSize heap buffer", YuvUtil.planesSize(planeY, planeU, ByteBuffer.allocate(uvBytes)));
+    }
+
+    private static ByteBuffer range(ByteBuffer buffer, int offset, int length) {
+        ByteBuffer duplicate = buffer.duplicate();
+        duplicate.position(offset);
+        duplicate.limit(offset + length);
+        return duplicate.slice();
+    }
+
+    // ---------------- compressYUV / YuvContext ----------------
+
+    private static void checkCompress(int width, int height) {
+        byte[] i420 = smoothI420(width, height);
+        byte[] nv21 = YuvReference.i420ToSemiPlanar(i420, width, height, true);
+        YuvContext context = new YuvContext(width, height, width, height);
+        try {
+            for (int scale = 0; scale < 2; scale++) {
+                int dstWidth = scale == 0 ? width : width / 2;
+                int dstHeight = scale == 0 ? height : height / 2;
+                for (int degree = 0; degree < 360; degree += 90) {
+                    for (int mirror = 0; mirror < 2; mirror++) {
+                        boolean isMirror = mirror == 1;
+                        // 与 compressYUV 相同的顺序：转换、镜像、缩放、旋转
+                        byte[] expected = isMirror ? YuvReference.mirrorI420(i420, width, height) : i420;
+                        if (scale == 1) {
+                            expected = YuvReference.scaleDown2BoxI420(expected, width, height);
+                        }
+                        expected = YuvReference.rotateI420(expected, dstWidth, dstHeight, degree);
+                        String name = " " + width + "x" + height + " -> " + dstWidth + "x" + dstHeight
+                                + " rotate" + degree + (isMirror ? " mirror" : "");
+                        int tolerance = scale == 1 ? TOLERANCE_SCALE_BOX : 0;
+
+                        byte[] dst = new byte[expected.length];
+                        YuvUtil.compressYUV(nv21, width, height, dst, dstWidth, dstHeight, 3, degree, isMirror);
+                        compare("compressYUV" + name, expected, dst, tolerance);
+
+                        Arrays.fill(dst, (byte) 0);
+                        expectOk("YuvContext.compressYUV" + name, context.compressYUV(nv21, width, height,
+                                dst, dstWidth, dstHeight, 3, degree, isMirror));
+                        compare("YuvContext.compressYUV" + name, expected, dst, tolerance);
+
+                        Arrays.fill(dst, (byte) 0);
+                        expectOk("YuvContext.compressYUVFused" + name, context.compressYUVFused(nv21, width, height,
+                                dst, dstWidth, dstHeight, 3, degree, isMirror));
+                        compare("YuvContext.compressYUVFused" + name, expected, dst,
+                                scale == 1 && isMirror ? TOLERANCE_FUSED_SCALE_MIRROR : tolerance);
+                    }
+                }
+            }
+        } finally {
+            context.release();
+        }
+    }
+
+    // ---------------- setStripeThreads ----------------
+
+    // 分带的结果必须与单线程完全一致，高度不能被行带数整除的情况也要覆盖
+    private static void checkStripes() {
+        int width = 1920;
+        int height = 1082;
+        byte[] nv21 = randomBytes(YuvReference.i420Size(width, height), 99);
+        byte[] single = new byte[width * height * 4];
+        byte[] striped = new byte[single.length];
+        DirectSemiPlanar src = DirectSemiPlanar.of(nv21, width, height, 0);
+        DirectI420 singleI420 = new DirectI420(width, height, 0);
+        DirectI420 stripedI420 = new DirectI420(width, height, 0);
+
+        YuvUtil.setStripeThreads(1);
+        YuvUtil.NV21ToARGB(nv21, single, width, height);
+        YuvUtil.NV21ToI420(src.y.buffer, src.y.stride, src.uv.buffer, src.uv.stride,
+                singleI420.y.buffer, singleI420.y.stride, singleI420.u.buffer, singleI420.u.stride,
+                singleI420.v.buffer, singleI420.v.stride, width, height);
+        for (int threads = 2; threads <= 8; threads *= 2) {
+            YuvUtil.setStripeThreads(threads);
+            Arrays.fill(striped, (byte) 0);
+            YuvUtil.NV21ToARGB(nv21, striped, width, height);
+            compare("NV21ToARGB threads=" + threads, single, striped, 0);
+            stripedI420.reset();
+            YuvUtil.NV21ToI420(src.y.buffer, src.y.stride, src.uv.buffer, src.uv.stride,
+                    stripedI420.y.buffer, stripedI420.y.stride, stripedI420.u.buffer, stripedI420.u.stride,
+                    stripedI420.v.buffer, stripedI420.v.stride, width, height);
+            compare("NV21ToI420 threads=" + threads, singleI420.toArray(), stripedI420.toArray(), 0);
+        }
+        YuvUtil.setStripeThreads(1);
+    }
+
+    // ---------------- 吞吐量 ----------------
+
+    private static void benchmark(final int width, final int height, int frames) {
+        final int dstWidth = width * 2 / 3;
+        final int dstHeight = height * 2 / 3;
+        final byte[] i420 = smoothI420(width, height);
+        final byte[] nv21 = YuvReference.i420ToSemiPlanar(i420, width, height, true);
+        final byte[] dst = new byte[width * height * 4];
+        final byte[] rgba = randomBytes(width * height * 4, 3);
+        final YuvContext context = new YuvContext(width, height, width, height);
+        final DirectI420 src = DirectI420.of(i420, width, height, 0);
+        final DirectSemiPlanar srcNV21 = DirectSemiPlanar.of(nv21, width, height, 0);
+        final DirectI420 dstI420 = new DirectI420(width, height, 0);
+        final DirectI420 scaled = new DirectI420(dstWidth, dstHeight, 0);
+        final DirectI420 rotated = new DirectI420(height, width, 0);
+        final DirectPlane argb = DirectPlane.of(rgba, width * 4, height, width * 4);
+        final DirectPlane dstArgb = new DirectPlane(width * 4, height, width * 4);
+        final DirectSemiPlanar dstNV12 = new DirectSemiPlanar(width, height, 0);
+
+        System.out.printf("%dx%d, %d cores%n%-44s %9s %9s %9s%n", width, height,
+                Runtime.getRuntime().availableProcessors(), "method", "ms/frame", "fps", "MPix/s");
+        int pixels = width * height;
+        bench("compressYUV rotate270 mirror", pixels, frames, new Runnable() {
+            @Override
+            public void run() {
+                YuvUtil.compressYUV(nv21, width, height, dst, width, height, 0, 270, true);
+            }
+        });
+        bench("YuvContext.compressYUV rotate270 mirror", pixels, frames, new Runnable() {
+            @Override
+            public void run() {
+                context.compressYUV(nv21, width, height, dst, width, height, 0, 270, true);
+            }
+        });
+        bench("YuvContext.compressYUVFused rotate270 mirror", pixels, frames, new Runnable() {
+            @Override
+            public void run() {
+                context.compressYUVFused(nv21, width, height, dst, width, height, 0, 270, true);
+            }
+        });
+        bench("compressYUV scale 2/3 bilinear rotate90", pixels, frames, new Runnable() {
+            @Override
+            public void run() {
+                YuvUtil.compressYUV(nv21, width, height, dst, dstWidth, dstHeight, 2, 90, false);
+            }
+        });
+        bench("cropYUV 1/2", pixels / 4, frames, new Runnable() {
+            @Override
+            public void run() {
+                YuvUtil.cropYUV(i420, width, height, dst, width / 2, height / 2, width / 4 & ~1, height / 4 & ~1);
+            }
+        });
+        bench("yuvI420ToNV21", pixels, frames, new Runnable() {
+            @Override
+            public void run() {
+                YuvUtil.yuvI420ToNV21(i420, dst, width, height);
+            }
+        });
+        bench("yuvI420ToNV12", pixels, frames, new Runnable() {
+            @Override
+            public void run() {
+                YuvUtil.yuvI420ToNV12(i420, dst, width, height);
+            }
+        });
+        bench("NV21ToARGB", pixels, frames, new Runnable() {
+            @Override
+            public void run() {
+                YuvUtil.NV21ToARGB(nv21, dst, width, height);
+            }
+        });
+        bench("NV12ToARGB", pixels, frames, new Runnable() {
+            @Override
+            public void run() {
+                YuvUtil.NV12ToARGB(nv21, dst, width, height);
+            }
+        });
+        bench("BGRAToARGB", pixels, frames, new Runnable() {
+            @Override
+            public void run() {
+                YuvUtil.BGRAToARGB(rgba, dst, width, height);
+            }
+        });
+        bench("RGBAToARGB", pixels, frames, new Runnable() {
+            @Override
+            public void run() {
+                YuvUtil.RGBAToARGB(rgba, dst, width, height);
+            }
+        });
+        bench("writeYUVToPlanes NV21 -> I420", pixels, frames, new Runnable() {
+            @Override
+            public void run() {
+                YuvUtil.writeYUVToPlanes(nv21, YuvUtil.FORMAT_NV21, width, height,
+                        dstI420.y.buffer, dstI420.y.stride, dstI420.u.buffer, dstI420.u.stride,
+                        dstI420.v.buffer, dstI420.v.stride, 1);
+            }
+        });
+        bench("NV21ToI420(ByteBuffer)", pixels, frames, new Runnable() {
+            @Override
+            public void run() {
+                YuvUtil.NV21ToI420(srcNV21.y.buffer, srcNV21.y.stride, srcNV21.uv.buffer, srcNV21.uv.stride,
+                        dstI420.y.buffer, dstI420.y.stride, dstI420.u.buffer, dstI420.u.stride,
+                        dstI420.v.buffer, dstI420.v.stride, width, height);
+            }
+        });
+        bench("I420ToARGB(ByteBuffer)", pixels, frames, new Runnable() {
+            @Override
+            public void run() {
+                YuvUtil.I420ToARGB(src.y.buffer, src.y.stride, src.u.buffer, src.u.stride,
+                        src.v.buffer, src.v.stride, dstArgb.buffer, dstArgb.stride, width, height);
+            }
+        });
+        bench("ARGBToI420(ByteBuffer)", pixels, frames, new Runnable() {
+            @Override
+            public void run() {
+                YuvUtil.ARGBToI420(argb.buffer, argb.stride, dstI420.y.buffer, dstI420.y.stride,
+                        dstI420.u.buffer, dstI420.u.stride, dstI420.v.buffer, dstI420.v.stride, width, height);
+            }
+        });
+        bench("ABGRToI420(ByteBuffer)", pixels, frames, new Runnable() {
+            @Override
+            public void run() {
+                YuvUtil.ABGRToI420(argb.buffer, argb.stride, dstI420.y.buffer, dstI420.y.stride,
+                        dstI420.u.buffer, dstI420.u.stride, dstI420.v.buffer, dstI420.v.stride, width, height);
+            }
+        });
+        bench("ARGBToNV12(ByteBuffer)", pixels, frames, new Runnable() {
+            @Override
+            public void run() {
+                YuvUtil.ARGBToNV12(argb.buffer, argb.stride, dstNV12.y.buffer, dstNV12.y.stride,
+                        dstNV12.uv.buffer, dstNV12.uv.stride, width, height);
+            }
+        });
+        bench("scaleI420 2/3 bilinear(ByteBuffer)", pixels, frames, new Runnable() {
+            @Override
+            public void run() {
+                YuvUtil.scaleI420(src.y.buffer, src.y.stride, src.u.buffer, src.u.stride, src.v.buffer, src.v.stride,
+                        width, height, scaled.y.buffer, scaled.y.stride, scaled.u.buffer, scaled.u.stride,
+                        scaled.v.buffer, scaled.v.stride, dstWidth, dstHeight, 2);
+            }
+        });
+        bench("rotateI420 90(ByteBuffer)", pixels, frames, new Runnable() {
+            @Override
+            public void run() {
+                YuvUtil.rotateI420(src.y.buffer, src.y.stride, src.u.buffer, src.u.stride, src.v.buffer, src.v.stride,
+                        rotated.y.buffer, rotated.y.stride, rotated.u.buffer, rotated.u.stride,
+                        rotated.v.buffer, rotated.v.stride, width, height, 90);
+            }
+        });
+        YuvUtil.setStripeThreads(4);
+        bench("NV21ToARGB 4 threads", pixels, frames, new Runnable() {
+            @Override
+            public void run() {
+                YuvUtil.NV21ToARGB(nv21, dst, width, height);
+            }
+        });
+        YuvUtil.setStripeThreads(1);
+        bench("Java reference NV21ToARGB", pixels, Math.max(1, frames / 10), new Runnable() {
+            @Override
+            public void run() {
+                YuvReference.i420ToARGB(YuvReference.semiPlanarToI420(nv21, width, height, true), width, height);
+            }
+        });
+        context.release();
+    }
+
+    private static void bench(String name, int pixels, int frames, Runnable task) {
+        // 预热，让 JIT 编译调用路径、native 分配好缓冲
+        for (int i = 0; i < 3; i++) {
+            task.run();
+        }
+        long start = System.nanoTime();
+        for (int i = 0; i < frames; i++) {
+            task.run();
+        }
+        double ms = (System.nanoTime() - start) / 1e6 / frames;
+        System.out.printf("%-44s %9.3f %9.1f %9.1f%n", name, ms, 1000 / ms, pixels / ms / 1000);
+    }
+
+    // ---------------- 比较 ----------------
+
+    private static void check(String name, boolean ok) {
+        sChecks++;
+        if (!ok) {
+            sFailures++;
+            System.out.println("MISMATCH " + name);
+        }
+    }
+
+    private static void expectOk(String name, int ret) {
+        check(name + " returned " + ret, ret == 0);
+    }
+
+    private static void expectError(String name, int ret) {
+        check(name + " returned " + ret, ret == -1);
+    }
+
+    private static void compare(String name, byte[] expected, byte[] actual, int tolerance) {
+        int maxDiff = 0;
+        int first = -1;
+        for (int i = 0; i < expected.length; i++) {
+            int diff = Math.abs((expected[i] & 0xff) - (actual[i] & 0xff));
+            if (diff > tolerance && first < 0) {
+                first = i;
+            }
+            maxDiff = Math.max(maxDiff, diff);
+        }
+        sChecks++;
+        if (first >= 0) {
+            sFailures++;
+            System.out.printf("MISMATCH %s: maxdiff %d > %d, first at %d expected %d actual %d%n", name, maxDiff,
+                    tolerance, first, expected[first] & 0xff, actual[first] & 0xff);
+        }
+    }
+
+    private static void compareDirect(String name, byte[] expected, DirectI420 actual, int tolerance) {
+        compare(name, expected, actual.toArray(), tolerance);
+        check(name + " padding", actual.untouched());
+    }
+
+    private static void compareDirect(String name, byte[] expected, DirectSemiPlanar actual, int tolerance) {
+        compare(name, expected, actual.toArray(), tolerance);
+        check(name + " padding", actual.untouched());
+    }
+
+    private static void compareDirect(String name, byte[] expected, DirectPlane actual, int tolerance) {
+        byte[] data = new byte[actual.rowBytes * actual.rows];
+        actual.read(data, 0);
+        compare(name, expected, data, tolerance);
+        check(name + " padding", actual.untouched());
+    }
+
+    // ---------------- 测试数据 ----------------
+
+    private static byte[] randomBytes(int length, long seed) {
+        byte[] data = new byte[length];
+        new Random(seed).nextBytes(data);
+        return data;
+    }
+
+    // 平滑的渐变加少量噪声，接近真实图像
+    private static byte[] smoothI420(int width, int height) {
+        byte[] data = new byte[YuvReference.i420Size(width, height)];
+        Random random = new Random(width * 131L + height);
+        for (int[] plane : YuvReference.i420Planes(width, height)) {
+            for (int y = 0; y < plane[2]; y++) {
+                for (int x = 0; x < plane[1]; x++) {
+                    data[plane[0] + y * plane[1] + x] = (byte) (16 + x * 160 / plane[1] + y * 64 / plane[2]
+                            + random.nextInt(8));
+                }
+            }
+        }
+        return data;
+    }
+
+    private static ByteBuffer slice(ByteBuffer buffer, int offset) {
+        ByteBuffer duplicate = buffer.duplicate();
+        duplicate.position(offset);
+        return duplicate.slice();
+    }
+
+    /**
+     * direct buffer 中的一个平面，rows 行、每行 rowBytes 有效字节、行间隔 stride，其余字节填充为 {@link #PAD}
+     */
+    private static final class DirectPlane {
+        final ByteBuffer buffer;
+        final int rowBytes;
+        final int rows;
+        final int stride;
+
+        DirectPlane(int rowBytes, int rows, int stride) {
+            this.rowBytes = rowBytes;
+            this.rows = rows;
+            this.stride = stride;
+            buffer = ByteBuffer.allocateDirect(stride * rows);
+            reset();
+        }
+
+        static DirectPlane of(byte[] src, int rowBytes, int rows, int stride) {
+            DirectPlane plane = new DirectPlane(rowBytes, rows, stride);
+            plane.write(src, 0);
+            return plane;
+        }
+
+        void reset() {
+            for (int i = 0; i < buffer.capacity(); i++) {
+                buffer.put(i, PAD);
+            }
+        }
+
+        void write(byte[] src, int offset) {
+            for (int row = 0; row < rows; row++) {
+                ByteBuffer line = buffer.duplicate();
+                line.position(row * stride);
+                line.put(src, offset + row * rowBytes, rowBytes);
+            }
+        }
+
+        void read(byte[] dst, int offset) {
+            for (int row = 0; row < rows; row++) {
+                ByteBuffer line = buffer.duplicate();
+                line.position(row * stride);
+                line.get(dst, offset + row * rowBytes, rowBytes);
+            }
+        }
+
+        /**
+         * 整个 buffer 都没有被改写
+         */
+        boolean blank() {
+            for (int i = 0; i < buffer.capacity(); i++) {
+                if (buffer.get(i) != PAD) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        /**
+         * 每行有效字节之外的填充没有被改写
+         */
+        boolean untouched() {
+            for (int row = 0; row < rows; row++) {
+                for (int i = row * stride + rowBytes; i < (row + 1) * stride; i++) {
+                    if (buffer.get(i) != PAD) {
+                        return false;
+                    }
+                }
+            }
+            return true;
+        }
+    }
+
+    /**
+     * Y、U、V 三个 direct buffer，每行多出 pad 字节
+     */
+    private static final class DirectI420 {
+        final int width;
+        final int height;
+        final DirectPlane y;
+        final DirectPlane u;
+        final DirectPlane v;
+
+        DirectI420(int width, int height, int pad) {
+            this.width = width;
+            this.height = height;
+            y = new DirectPlane(width, height, width + pad);
+            u = new DirectPlane(width >> 1, height >> 1, (width >> 1) + pad / 2);
+            v = new DirectPlane(width >> 1, height >> 1, (width >> 1) + pad / 2 + 2);
+        }
+
+        static DirectI420 of(byte[] i420, int width, int height, int pad) {
+            DirectI420 planes = new DirectI420(width, height, pad);
+            int ySize = width * height;
+            planes.y.write(i420, 0);
+            planes.u.write(i420, ySize);
+            planes.v.write(i420, ySize + ySize / 4);
+            return planes;
+        }
+
+        void reset() {
+            y.reset();
+            u.reset();
+            v.reset();
+        }
+
+        byte[] toArray() {
+            int ySize = width * height;
+            byte[] data = new byte[YuvReference.i420Size(width, height)];
+            y.read(data, 0);
+            u.read(data, ySize);
+            v.read(data, ySize + ySize / 4);
+            return data;
+        }
+
+        boolean untouched() {
+            return y.untouched() && u.untouched() && v.untouched();
+        }
+
+        boolean blank() {
+            return y.blank() && u.blank() && v.blank();
+        }
+    }
+
+    /**
+     * NV21/NV12 的 Y 平面和交错的色度平面
+     */
+    private static final class DirectSemiPlanar {
+        final int width;
+        final int height;
+        final DirectPlane y;
+        final DirectPlane uv;
+
+        DirectSemiPlanar(int width, int height, int pad) {
+            this.width = width;
+            this.height = height;
+            y = new DirectPlane(width, height, width + pad);
+            uv = new DirectPlane(width, height >> 1, width + pad + 2);
+        }
+
+        static DirectSemiPlanar of(byte[] data, int width, int height, int pad) {
+            DirectSemiPlanar planes = new DirectSemiPlanar(width, height, pad);
+            planes.y.write(data, 0);
+            planes.uv.write(data, width * height);
+            return planes;
+        }
+
+        void reset() {
+            y.reset();
+            uv.reset();
+        }
+
+        byte[] toArray() {
+            byte[] data = new byte[YuvReference.i420Size(width, height)];
+            y.read(data, 0);
+            uv.read(data, width * height);
+            return data;
+        }
+
+        boolean untouched() {
+            return y.untouched() && uv.untouched();
+        }
+    }
+}
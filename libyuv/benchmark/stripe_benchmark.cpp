@@ -0,0 +1,154 @@
+// 分带多线程转换的正确性检查与性能对比：每个线程数下的输出必须与直接调用 libyuv 的单线程结果完全一致
+// 构建运行：
+//   cmake -S libyuv/benchmark -B build/yuv_benchmark -DCMAKE_BUILD_TYPE=Release
+//   cmake --build build/yuv_benchmark && build/yuv_benchmark/stripe_benchmark [每个用例的帧数]
+
+#include <chrono>
+#include <cstdio>
+#include <cstdlib>
+#include <cstring>
+#include <thread>
+#include <vector>
+#include "YuvPipeline.h"
+#include "YuvStripe.h"
+
+enum Conversion {
+    NV21_TO_ARGB,
+    NV12_TO_ARGB,
+    I420_TO_ARGB,
+    NV21_TO_I420,
+    NV12_TO_I420,
+    CONVERSION_COUNT
+};
+
+static const char *CONVERSION_NAMES[] = {"NV21ToARGB", "NV12ToARGB", "I420ToARGB", "NV21ToI420", "NV12ToI420"};
+
+struct Frame {
+    int width;
+    int height;
+    std::vector<uint8> src;
+    std::vector<uint8> dst;
+
+    Frame(int w, int h) : width(w), height(h), src(i420Size(w, h)), dst((size_t) w * h * 4) {
+        srand(w * 31 + h);
+        for (size_t i = 0; i < src.size(); i++) {
+            src[i] = (uint8) rand();
+        }
+    }
+};
+
+static int convert(Conversion conversion, bool striped, Frame &f) {
+    int w = f.width;
+    int h = f.height;
+    const uint8 *y = f.src.data();
+    const uint8 *uv = y + w * h;
+    const uint8 *v = uv + (w >> 1) * (h >> 1);
+    uint8 *dst = f.dst.data();
+    uint8 *dst_u = dst + w * h;
+    uint8 *dst_v = dst_u + (w >> 1) * (h >> 1);
+    switch (conversion) {
+        case NV21_TO_ARGB:
+            return striped ? stripedNV21ToARGB(y, w, uv, w, dst, w * 4, w, h)
+                           : libyuv::NV21ToARGB(y, w, uv, w, dst, w * 4, w, h);
+        case NV12_TO_ARGB:
+            return striped ? stripedNV12ToARGB(y, w, uv, w, dst, w * 4, w, h)
+                           : libyuv::NV12ToARGB(y, w, uv, w, dst, w * 4, w, h);
+        case I420_TO_ARGB:
+            return striped ? stripedI420ToARGB(y, w, uv, w >> 1, v, w >> 1, dst, w * 4, w, h)
+                           : libyuv::I420ToARGB(y, w, uv, w >> 1, v, w >> 1, dst, w * 4, w, h);
+        case NV21_TO_I420:
+            return striped ? stripedNV21ToI420(y, w, uv, w, dst, w, dst_u, w >> 1, dst_v, w >> 1, w, h)
+                           : libyuv::NV21ToI420(y, w, uv, w, dst, w, dst_u, w >> 1, dst_v, w >> 1, w, h);
+        case NV12_TO_I420:
+            return striped ? stripedNV12ToI420(y, w, uv, w, dst, w, dst_u, w >> 1, dst_v, w >> 1, w, h)
+                           : libyuv::NV12ToI420(y, w, uv, w, dst, w, dst_u, w >> 1, dst_v, w >> 1, w, h);
+        default:
+            return -1;
+    }
+}
+
+static double timeConversion(Conversion conversion, bool striped, Frame &f, int frames) {
+    convert(conversion, striped, f);
+    std::chrono::steady_clock::time_point start = std::chrono::steady_clock::now();
+    for (int i = 0; i < frames; i++) {
+        convert(conversion, striped, f);
+    }
+    std::chrono::duration<double, std::milli> elapsed = std::chrono::steady_clock::now() - start;
+    return elapsed.count() / frames;
+}
+
+// 与单线程结果比较，同时检查分带没有写出 dst 的有效范围
+static bool check(Conversion conversion, Frame &f) {
+    memset(f.dst.data(), 0xA5, f.dst.size());
+    convert(conversion, false, f);
+    std::vector<uint8> expected = f.dst;
+    memset(f.dst.data(), 0xA5, f.dst.size());
+    if (convert(conversion, true, f) != 0) {
+        return false;
+    }
+    return f.dst == expected;
+}
+
+int main(int argc, char **argv) {
+    int frames = argc > 1 ? atoi(argv[1]) : 30;
+    int failed = 0;
+    // 高度不能被行带数整除、最后一个行带较短的尺寸也要覆盖
+    int sizes[][2] = {{3840, 2160}, {1920, 1080}, {1920, 1082}, {1280, 720}, {640, 480}};
+    int thread_counts[] = {2, 3, 4, 8};
+    for (size_t t = 0; t < sizeof(thread_counts) / sizeof(thread_counts[0]); t++) {
+        setStripeThreads(thread_counts[t]);
+        for (size_t s = 0; s < sizeof(sizes) / sizeof(sizes[0]); s++) {
+            Frame f(sizes[s][0], sizes[s][1]);
+            for (int c = 0; c < CONVERSION_COUNT; c++) {
+                if (!check((Conversion) c, f)) {
+                    printf("MISMATCH %s %dx%d threads=%d\n", CONVERSION_NAMES[c], f.width, f.height,
+                           thread_counts[t]);
+                    failed++;
+                }
+            }
+        }
+    }
+
+    // 两个线程同时转换，线程池被占用的一方在自己的线程中处理整帧
+    setStripeThreads(4);
+    bool concurrent_ok = true;
+    std::thread other([&concurrent_ok]() {
+        Frame f(3840, 2160);
+        for (int i = 0; i < 20; i++) {
+            concurrent_ok = check(NV21_TO_I420, f) && concurrent_ok;
+        }
+    });
+    Frame g(3840, 2160);
+    for (int i = 0; i < 20; i++) {
+        if (!check(NV21_TO_ARGB, g)) {
+            concurrent_ok = false;
+        }
+    }
+    other.join();
+    if (!concurrent_ok) {
+        printf("MISMATCH concurrent\n");
+        failed++;
+    }
+    printf("correctness: %s\n", failed == 0 ? "ok" : "FAILED");
+
+    unsigned cores = std::thread::hardware_concurrency();
+    printf("4K, %u cores, ms/frame\n%-12s %10s", cores, "conversion", "single");
+    int bench_threads[] = {2, 4};
+    for (size_t t = 0; t < sizeof(bench_threads) / sizeof(bench_threads[0]); t++) {
+        printf(" %7d thr", bench_threads[t]);
+    }
+    printf("\n");
+    Frame f(3840, 2160);
+    for (int c = 0; c < CONVERSION_COUNT; c++) {
+        double single = timeConversion((Conversion) c, false, f, frames);
+        printf("%-12s %10.3f", CONVERSION_NAMES[c], single);
+        for (size_t t = 0; t < sizeof(bench_threads) / sizeof(bench_threads[0]); t++) {
+            setStripeThreads(bench_threads[t]);
+            double striped = timeConversion((Conversion) c, true, f, frames);
+            printf(" %6.3f %4.2fx", striped, single / striped);
+        }
+        printf("\n");
+    }
+    setStripeThreads(1);
+    return failed == 0 ? 0 : 1;
+}
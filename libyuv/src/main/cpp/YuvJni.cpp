@@ -1,145 +1,123 @@
 #include <jni.h>
 #include <string>
+#include <cstring>
+#include <algorithm>
 #include "libyuv.h"
+#include "YuvPipeline.h"
+#include "YuvStripe.h"
+
+// GetPrimitiveArrayCritical 的作用域封装，持有期间不能调用其它 JNI 方法，数组长度等需要提前取得
+// 源数据以 JNI_ABORT 释放，不回写
+class CriticalArray {
+public:
+    CriticalArray(JNIEnv *env, jbyteArray array, jint releaseMode)
+            : env_(env), array_(array), release_mode_(releaseMode),
+              data_((uint8 *) env->GetPrimitiveArrayCritical(array, NULL)) {
+    }
 
-//分别用来存储1420，1420缩放，I420旋转和镜像的数据
-static jbyte *Src_i420_data;
-static jbyte *Src_i420_data_scale;
-static jbyte *Src_i420_data_rotate;
-
-JNIEXPORT void JNI_OnUnload(JavaVM *jvm, void *reserved) {
-    //进行释放
-    free(Src_i420_data);
-    free(Src_i420_data_scale);
-    free(Src_i420_data_rotate);
-}
+    ~CriticalArray() {
+        if (data_ != NULL) {
+            env_->ReleasePrimitiveArrayCritical(array_, data_, release_mode_);
+        }
+    }
 
-void scaleI420(jbyte *src_i420_data, jint width, jint height, jbyte *dst_i420_data, jint dst_width,
-               jint dst_height, jint mode) {
+    uint8 *data() const {
+        return data_;
+    }
 
-    jint src_i420_y_size = width * height;
-    jint src_i420_u_size = (width >> 1) * (height >> 1);
-    jbyte *src_i420_y_data = src_i420_data;
-    jbyte *src_i420_u_data = src_i420_data + src_i420_y_size;
-    jbyte *src_i420_v_data = src_i420_data + src_i420_y_size + src_i420_u_size;
+private:
+    JNIEnv *env_;
+    jbyteArray array_;
+    jint release_mode_;
+    uint8 *data_;
+};
 
-    jint dst_i420_y_size = dst_width * dst_height;
-    jint dst_i420_u_size = (dst_width >> 1) * (dst_height >> 1);
-    jbyte *dst_i420_y_data = dst_i420_data;
-    jbyte *dst_i420_u_data = dst_i420_data + dst_i420_y_size;
-    jbyte *dst_i420_v_data = dst_i420_data + dst_i420_y_size + dst_i420_u_size;
-
-    libyuv::I420Scale((const uint8 *) src_i420_y_data, width,
-                      (const uint8 *) src_i420_u_data, width >> 1,
-                      (const uint8 *) src_i420_v_data, width >> 1,
-                      width, height,
-                      (uint8 *) dst_i420_y_data, dst_width,
-                      (uint8 *) dst_i420_u_data, dst_width >> 1,
-                      (uint8 *) dst_i420_v_data, dst_width >> 1,
-                      dst_width, dst_height,
-                      (libyuv::FilterMode) mode);
+extern "C"
+JNIEXPORT jlong JNICALL
+Java_com_libyuv_util_YuvUtil_createContext(JNIEnv *env, jclass type, jint width, jint height,
+                                           jint dst_width, jint dst_height) {
+    YuvContext *context = (YuvContext *) calloc(1, sizeof(YuvContext));
+    if (context == NULL) {
+        return 0;
+    }
+    if (width > 0 && height > 0 && dst_width > 0 && dst_height > 0
+        && !ensureScratch(context, std::max(i420Size(width, height), i420Size(dst_width, dst_height)))) {
+        free(context);
+        return 0;
+    }
+    return (jlong) (intptr_t) context;
 }
 
-void rotateI420(jbyte *src_i420_data, jint width, jint height, jbyte *dst_i420_data, jint degree) {
-    jint src_i420_y_size = width * height;
-    jint src_i420_u_size = (width >> 1) * (height >> 1);
-
-    jbyte *src_i420_y_data = src_i420_data;
-    jbyte *src_i420_u_data = src_i420_data + src_i420_y_size;
-    jbyte *src_i420_v_data = src_i420_data + src_i420_y_size + src_i420_u_size;
-
-    jbyte *dst_i420_y_data = dst_i420_data;
-    jbyte *dst_i420_u_data = dst_i420_data + src_i420_y_size;
-    jbyte *dst_i420_v_data = dst_i420_data + src_i420_y_size + src_i420_u_size;
-
-    //要注意这里的width和height在旋转之后是相反的
-    if (degree == libyuv::kRotate90 || degree == libyuv::kRotate270) {
-        libyuv::I420Rotate((const uint8 *) src_i420_y_data, width,
-                           (const uint8 *) src_i420_u_data, width >> 1,
-                           (const uint8 *) src_i420_v_data, width >> 1,
-                           (uint8 *) dst_i420_y_data, height,
-                           (uint8 *) dst_i420_u_data, height >> 1,
-                           (uint8 *) dst_i420_v_data, height >> 1,
-                           width, height,
-                           (libyuv::RotationMode) degree);
+extern "C"
+JNIEXPORT void JNICALL
+Java_com_libyuv_util_YuvUtil_destroyContext(JNIEnv *env, jclass type, jlong handle) {
+    YuvContext *context = (YuvContext *) (intptr_t) handle;
+    if (context != NULL) {
+        releaseScratch(context);
+        free(context);
     }
 }
 
-void mirrorI420(jbyte *src_i420_data, jint width, jint height, jbyte *dst_i420_data) {
-    jint src_i420_y_size = width * height;
-    jint src_i420_u_size = (width >> 1) * (height >> 1);
-
-    jbyte *src_i420_y_data = src_i420_data;
-    jbyte *src_i420_u_data = src_i420_data + src_i420_y_size;
-    jbyte *src_i420_v_data = src_i420_data + src_i420_y_size + src_i420_u_size;
-
-    jbyte *dst_i420_y_data = dst_i420_data;
-    jbyte *dst_i420_u_data = dst_i420_data + src_i420_y_size;
-    jbyte *dst_i420_v_data = dst_i420_data + src_i420_y_size + src_i420_u_size;
-
-    libyuv::I420Mirror((const uint8 *) src_i420_y_data, width,
-                       (const uint8 *) src_i420_u_data, width >> 1,
-                       (const uint8 *) src_i420_v_data, width >> 1,
-                       (uint8 *) dst_i420_y_data, width,
-                       (uint8 *) dst_i420_u_data, width >> 1,
-                       (uint8 *) dst_i420_v_data, width >> 1,
-                       width, height);
+extern "C"
+JNIEXPORT jint JNICALL
+Java_com_libyuv_util_YuvUtil_compressYUVWithContext(JNIEnv *env, jclass type, jlong handle,
+                                                    jbyteArray nv21Src, jint width,
+                                                    jint height, jbyteArray i420Dst,
+                                                    jint dst_width, jint dst_height,
+                                                    jint mode, jint degree,
+                                                    jboolean isMirror) {
+    YuvContext *context = (YuvContext *) (intptr_t) handle;
+    if (context == NULL) {
+        return -1;
+    }
+    if ((size_t) env->GetArrayLength(nv21Src) < i420Size(width, height)
+        || (size_t) env->GetArrayLength(i420Dst) < i420Size(dst_width, dst_height)) {
+        return -2;
+    }
+    CriticalArray src(env, nv21Src, JNI_ABORT);
+    CriticalArray dst(env, i420Dst, 0);
+    if (src.data() == NULL || dst.data() == NULL) {
+        return -3;
+    }
+    return compressNV21Chain(context, src.data(), width, height, dst.data(),
+                             dst_width, dst_height, mode, degree, isMirror);
 }
 
+extern "C"
+JNIEXPORT jint JNICALL
+Java_com_libyuv_util_YuvUtil_compressYUVFusedWithContext(JNIEnv *env, jclass type, jlong handle,
+                                                         jbyteArray nv21Src, jint width,
+                                                         jint height, jbyteArray i420Dst,
+                                                         jint dst_width, jint dst_height,
+                                                         jint mode, jint degree,
+                                                         jboolean isMirror) {
+    YuvContext *context = (YuvContext *) (intptr_t) handle;
+    if (context == NULL) {
+        return -1;
+    }
+    if ((size_t) env->GetArrayLength(nv21Src) < i420Size(width, height)
+        || (size_t) env->GetArrayLength(i420Dst) < i420Size(dst_width, dst_height)) {
+        return -2;
+    }
+    CriticalArray src(env, nv21Src, JNI_ABORT);
+    CriticalArray dst(env, i420Dst, 0);
+    if (src.data() == NULL || dst.data() == NULL) {
+        return -3;
+    }
+    return compressNV21Fused(context, src.data(), width, height, dst.data(),
+                             dst_width, dst_height, mode, degree, isMirror);
+}
 
-void nv21ToI420(jbyte *src_nv21_data, jint width, jint height, jbyte *src_i420_data) {
-    jint src_y_size = width * height;
-    jint src_u_size = (width >> 1) * (height >> 1);
-
-    jbyte *src_nv21_y_data = src_nv21_data;
-    jbyte *src_nv21_vu_data = src_nv21_data + src_y_size;
-
-    jbyte *src_i420_y_data = src_i420_data;
-    jbyte *src_i420_u_data = src_i420_data + src_y_size;
-    jbyte *src_i420_v_data = src_i420_data + src_y_size + src_u_size;
-
-
-    libyuv::NV21ToI420((const uint8 *) src_nv21_y_data, width,
-                       (const uint8 *) src_nv21_vu_data, width,
-                       (uint8 *) src_i420_y_data, width,
-                       (uint8 *) src_i420_u_data, width >> 1,
-                       (uint8 *) src_i420_v_data, width >> 1,
-                       width, height);
+// libyuv 1419 的 I420ToNV21 把 src_stride_y 当作 dst_stride_y 传给 I420ToNV12，两者不同时 Y 写错位置甚至越界，
+// 这里交换 U、V 直接调用 I420ToNV12
+static int i420ToNV21(const uint8 *src_y, int src_stride_y, const uint8 *src_u, int src_stride_u,
+                      const uint8 *src_v, int src_stride_v,
+                      uint8 *dst_y, int dst_stride_y, uint8 *dst_vu, int dst_stride_vu,
+                      int width, int height) {
+    return libyuv::I420ToNV12(src_y, src_stride_y, src_v, src_stride_v, src_u, src_stride_u,
+                              dst_y, dst_stride_y, dst_vu, dst_stride_vu, width, height);
 }
 
-extern "C"
-JNIEXPORT void JNICALL
-Java_com_libyuv_util_YuvUtil_init(JNIEnv *env, jclass type, jint width, jint height, jint dst_width,
-                                  jint dst_height) {
-    Src_i420_data = (jbyte *) malloc(sizeof(jbyte) * width * height * 3 / 2);
-    Src_i420_data_scale = (jbyte *) malloc(sizeof(jbyte) * dst_width * dst_height * 3 / 2);
-    Src_i420_data_rotate = (jbyte *) malloc(sizeof(jbyte) * dst_width * dst_height * 3 / 2);
-}
-
-//extern "C"
-//JNIEXPORT void JNICALL
-//Java_com_libyuv_util_YuvUtil_compressYUV(JNIEnv *env, jclass type,
-//                                         jbyteArray src_, jint width,
-//                                         jint height, jbyteArray dst_,
-//                                         jint dst_width, jint dst_height,
-//                                         jint mode, jint degree,
-//                                         jboolean isMirror) {
-//    jbyte *Src_data = env->GetByteArrayElements(src_, NULL);
-//    jbyte *Dst_data = env->GetByteArrayElements(dst_, NULL);
-//    //nv21转化为i420
-//    nv21ToI420(Src_data, width, height, Src_i420_data);
-//    //进行缩放的操作
-//    scaleI420(Src_i420_data, width, height, Src_i420_data_scale, dst_width, dst_height, mode);
-//    if (isMirror) {
-//        //进行旋转的操作
-//        rotateI420(Src_i420_data_scale, dst_width, dst_height, Src_i420_data_rotate, degree);
-//        //因为旋转的角度都是90和270，那后面的数据width和height是相反的
-//        mirrorI420(Src_i420_data_rotate, dst_height, dst_width, Dst_data);
-//    } else {
-//        rotateI420(Src_i420_data_scale, dst_width, dst_height, Dst_data, degree);
-//    }
-//    env->ReleaseByteArrayElements(dst_, Dst_data, 0);
-//}
 extern "C"
 JNIEXPORT void JNICALL
 Java_com_libyuv_util_YuvUtil_compressYUV(JNIEnv *env, jclass type,
@@ -148,57 +126,14 @@ Java_com_libyuv_util_YuvUtil_compressYUV(JNIEnv *env, jclass type,
                                          jint dst_width, jint dst_height,
                                          jint mode, jint degree,
                                          jboolean isMirror) {
-
-    jbyte *src_nv21_data = env->GetByteArrayElements(nv21Src, NULL);
-    jbyte *dst_i420_data = env->GetByteArrayElements(i420Dst, NULL);
-    jbyte *tmp_dst_i420_data = NULL;
-
-    // nv21转化为i420
-    jbyte *i420_data = (jbyte *) malloc(sizeof(jbyte) * width * height * 3 / 2);
-    nv21ToI420(src_nv21_data, width, height, i420_data);
-    tmp_dst_i420_data = i420_data;
-
-    // 镜像
-    jbyte *i420_mirror_data = NULL;
-    if(isMirror){
-        i420_mirror_data = (jbyte *)malloc(sizeof(jbyte) * width * height * 3 / 2);
-        mirrorI420(tmp_dst_i420_data, width, height, i420_mirror_data);
-        tmp_dst_i420_data = i420_mirror_data;
-    }
-
-    // 缩放
-    jbyte *i420_scale_data = NULL;
-    if(width != dst_width || height != dst_height){
-        i420_scale_data = (jbyte *)malloc(sizeof(jbyte) * width * height * 3 / 2);
-        scaleI420(tmp_dst_i420_data, width, height, i420_scale_data, dst_width, dst_height, mode);
-        tmp_dst_i420_data = i420_scale_data;
-        width = dst_width;
-        height = dst_height;
-    }
-
-    // 旋转
-    jbyte *i420_rotate_data = NULL;
-    if (degree == libyuv::kRotate90 || degree == libyuv::kRotate180 || degree == libyuv::kRotate270){
-        i420_rotate_data = (jbyte *)malloc(sizeof(jbyte) * width * height * 3 / 2);
-        rotateI420(tmp_dst_i420_data, width, height, i420_rotate_data, degree);
-        tmp_dst_i420_data = i420_rotate_data;
-    }
-
-    // 同步数据
-    // memcpy(dst_i420_data, tmp_dst_i420_data, sizeof(jbyte) * width * height * 3 / 2);
-    jint len = env->GetArrayLength(i420Dst);
-    memcpy(dst_i420_data, tmp_dst_i420_data, len);
-    tmp_dst_i420_data = NULL;
-    env->ReleaseByteArrayElements(i420Dst, dst_i420_data, 0);
-
-    // 释放
-    if(i420_data != NULL) free(i420_data);
-    if(i420_mirror_data != NULL) free(i420_mirror_data);
-    if(i420_scale_data != NULL) free(i420_scale_data);
-    if(i420_rotate_data != NULL) free(i420_rotate_data);
+    // 没有 context 时每次调用临时分配中间缓冲
+    YuvContext context = {{NULL, NULL}, 0};
+    Java_com_libyuv_util_YuvUtil_compressYUVWithContext(env, type, (jlong) (intptr_t) &context,
+                                                        nv21Src, width, height, i420Dst,
+                                                        dst_width, dst_height, mode, degree, isMirror);
+    releaseScratch(&context);
 }
 
-
 extern "C"
 JNIEXPORT void JNICALL
 Java_com_libyuv_util_YuvUtil_cropYUV(JNIEnv *env, jclass type, jbyteArray src_, jint width,
@@ -215,8 +150,13 @@ Java_com_libyuv_util_YuvUtil_cropYUV(JNIEnv *env, jclass type, jbyteArray src_,
     }
 
     jint src_length = env->GetArrayLength(src_);
-    jbyte *src_i420_data = env->GetByteArrayElements(src_, NULL);
-    jbyte *dst_i420_data = env->GetByteArrayElements(dst_, NULL);
+    CriticalArray src(env, src_, JNI_ABORT);
+    CriticalArray dst(env, dst_, 0);
+    if (src.data() == NULL || dst.data() == NULL) {
+        return;
+    }
+    jbyte *src_i420_data = (jbyte *) src.data();
+    jbyte *dst_i420_data = (jbyte *) dst.data();
 
 
     jint dst_i420_y_size = dst_width * dst_height;
@@ -234,8 +174,6 @@ Java_com_libyuv_util_YuvUtil_cropYUV(JNIEnv *env, jclass type, jbyteArray src_,
                           width, height,
                           dst_width, dst_height,
                           libyuv::kRotate0, libyuv::FOURCC_I420);
-
-    env->ReleaseByteArrayElements(dst_, dst_i420_data, 0);
 }
 
 extern "C"
@@ -244,8 +182,13 @@ Java_com_libyuv_util_YuvUtil_yuvI420ToNV21(JNIEnv *env, jclass type, jbyteArray
                                            jbyteArray nv21Src,
                                            jint width, jint height) {
 
-    jbyte *src_i420_data = env->GetByteArrayElements(i420Src, NULL);
-    jbyte *src_nv21_data = env->GetByteArrayElements(nv21Src, NULL);
+    CriticalArray src(env, i420Src, JNI_ABORT);
+    CriticalArray dst(env, nv21Src, 0);
+    if (src.data() == NULL || dst.data() == NULL) {
+        return;
+    }
+    jbyte *src_i420_data = (jbyte *) src.data();
+    jbyte *src_nv21_data = (jbyte *) dst.data();
 
     jint src_y_size = width * height;
     jint src_u_size = (width >> 1) * (height >> 1);
@@ -275,8 +218,13 @@ Java_com_libyuv_util_YuvUtil_yuvI420ToNV12(JNIEnv *env, jclass type, jbyteArray
                                            jint width, jint height) {
 
 
-    jbyte *src_i420_data = env->GetByteArrayElements(i420src, NULL);
-    jbyte *src_nv12_data = env->GetByteArrayElements(nv12Dst, NULL);
+    CriticalArray src(env, i420src, JNI_ABORT);
+    CriticalArray dst(env, nv12Dst, 0);
+    if (src.data() == NULL || dst.data() == NULL) {
+        return;
+    }
+    jbyte *src_i420_data = (jbyte *) src.data();
+    jbyte *src_nv12_data = (jbyte *) dst.data();
 
     jint src_y_size = width * height;
     jint src_u_size = src_y_size >> 2;
@@ -307,11 +255,16 @@ Java_com_libyuv_util_YuvUtil_NV21ToARGB(JNIEnv *env, jclass type, jbyteArray nv2
                                            jbyteArray argbDst,
                                            jint width, jint height) {
 
-    jbyte *src_nv21_data = env->GetByteArrayElements(nv21src, NULL);
-    jbyte *src_argb_data = env->GetByteArrayElements(argbDst, NULL);
+    CriticalArray src(env, nv21src, JNI_ABORT);
+    CriticalArray dst(env, argbDst, 0);
+    if (src.data() == NULL || dst.data() == NULL) {
+        return;
+    }
+    jbyte *src_nv21_data = (jbyte *) src.data();
+    jbyte *src_argb_data = (jbyte *) dst.data();
     jbyte *src_y = src_nv21_data;
     jbyte *src_vu = src_nv21_data + width * height;
-    libyuv::NV21ToARGB(
+    stripedNV21ToARGB(
             (uint8_t *) src_y, width,
             (uint8_t *) src_vu, width,
             (uint8_t *) src_argb_data,
@@ -326,11 +279,16 @@ Java_com_libyuv_util_YuvUtil_NV12ToARGB(JNIEnv *env, jclass type, jbyteArray nv1
                                         jbyteArray argbDst,
                                         jint width, jint height) {
 
-    jbyte *src_nv12_data = env->GetByteArrayElements(nv12src, NULL);
-    jbyte *src_argb_data = env->GetByteArrayElements(argbDst, NULL);
+    CriticalArray src(env, nv12src, JNI_ABORT);
+    CriticalArray dst(env, argbDst, 0);
+    if (src.data() == NULL || dst.data() == NULL) {
+        return;
+    }
+    jbyte *src_nv12_data = (jbyte *) src.data();
+    jbyte *src_argb_data = (jbyte *) dst.data();
     jbyte *src_y = src_nv12_data;
     jbyte *src_uv = src_nv12_data + width * height;
-    libyuv::NV12ToARGB(
+    stripedNV12ToARGB(
             (uint8_t *) src_y, width,
             (uint8_t *) src_uv, width,
             (uint8_t *) src_argb_data,
@@ -345,8 +303,13 @@ JNIEXPORT void JNICALL
 Java_com_libyuv_util_YuvUtil_BGRAToARGB(JNIEnv *env, jclass type, jbyteArray bgraSrc,
                                         jbyteArray argbDst,
                                         jint width, jint height) {
-    jbyte *src_bgra_data = env->GetByteArrayElements(bgraSrc, NULL);
-    jbyte *src_argb_data = env->GetByteArrayElements(argbDst, NULL);
+    CriticalArray src(env, bgraSrc, JNI_ABORT);
+    CriticalArray dst(env, argbDst, 0);
+    if (src.data() == NULL || dst.data() == NULL) {
+        return;
+    }
+    jbyte *src_bgra_data = (jbyte *) src.data();
+    jbyte *src_argb_data = (jbyte *) dst.data();
     libyuv::BGRAToARGB(
             (uint8_t *) src_bgra_data, width*4,
             (uint8_t *) src_argb_data,
@@ -361,12 +324,458 @@ JNIEXPORT void JNICALL
 Java_com_libyuv_util_YuvUtil_RGBAToARGB(JNIEnv *env, jclass type, jbyteArray rgbaSrc,
                                         jbyteArray argbDst,
                                         jint width, jint height) {
-    jbyte *src_rgba_data = env->GetByteArrayElements(rgbaSrc, NULL);
-    jbyte *src_argb_data = env->GetByteArrayElements(argbDst, NULL);
+    CriticalArray src(env, rgbaSrc, JNI_ABORT);
+    CriticalArray dst(env, argbDst, 0);
+    if (src.data() == NULL || dst.data() == NULL) {
+        return;
+    }
+    jbyte *src_rgba_data = (jbyte *) src.data();
+    jbyte *src_argb_data = (jbyte *) dst.data();
     libyuv::RGBAToARGB(
             (uint8_t *) src_rgba_data, width*4,
             (uint8_t *) src_argb_data,
             width*4,
             width, height
     );
-}
\ No newline at end of file
+}
+
+// 与 YuvUtil.FORMAT_* 对应的源数据格式
+enum SrcYuvFormat {
+    SRC_FORMAT_I420 = 0,
+    SRC_FORMAT_NV12 = 1,
+    SRC_FORMAT_NV21 = 2,
+    SRC_FORMAT_YV12 = 3
+};
+
+// 按任意 pixelStride 拷贝色度数据，用于 pixelStride 非 1/2 或需要交换 UV 的情况
+static void copyChroma(const uint8 *src_u, const uint8 *src_v, int src_stride, int src_pixel_stride,
+                       uint8 *dst_u, uint8 *dst_v, int dst_stride_u, int dst_stride_v,
+                       int dst_pixel_stride, int uv_width, int uv_height) {
+    for (int row = 0; row < uv_height; row++) {
+        const uint8 *su = src_u + row * src_stride;
+        const uint8 *sv = src_v + row * src_stride;
+        uint8 *du = dst_u + row * dst_stride_u;
+        uint8 *dv = dst_v + row * dst_stride_v;
+        for (int col = 0; col < uv_width; col++) {
+            du[col * dst_pixel_stride] = su[col * src_pixel_stride];
+            dv[col * dst_pixel_stride] = sv[col * src_pixel_stride];
+        }
+    }
+}
+
+static uint8 *directPlane(JNIEnv *env, jobject buffer, jint stride, jint row_bytes, jint rows);
+
+// I420/NV12/NV21/YV12 --> 编码器输入 Image 的 Y/U/V 平面（任意 rowStride / pixelStride），一次转换直接写入，无中间内存
+extern "C"
+JNIEXPORT jint JNICALL
+Java_com_libyuv_util_YuvUtil_writeYUVToPlanes(JNIEnv *env, jclass type, jbyteArray src_,
+                                              jint srcFormat, jint width, jint height,
+                                              jobject dstY_, jint dstStrideY,
+                                              jobject dstU_, jint dstStrideU,
+                                              jobject dstV_, jint dstStrideV,
+                                              jint dstPixelStrideUV) {
+    if (width <= 0 || height <= 0 || dstPixelStrideUV < 1) {
+        return -1;
+    }
+    jint uv_width = (width + 1) >> 1;
+    jint uv_height = (height + 1) >> 1;
+    // 每个平面写入前检查容量，编码器 Image 的色度平面最后一行只到最后一个像素为止，一行的有效字节数按 pixelStride 计算
+    jint uv_row_bytes = (uv_width - 1) * dstPixelStrideUV + 1;
+    uint8 *dst_y = directPlane(env, dstY_, dstStrideY, width, height);
+    uint8 *dst_u = directPlane(env, dstU_, dstStrideU, uv_row_bytes, uv_height);
+    uint8 *dst_v = directPlane(env, dstV_, dstStrideV, uv_row_bytes, uv_height);
+    if (dst_y == NULL || dst_u == NULL || dst_v == NULL) {
+        return -1;
+    }
+    jint y_size = width * height;
+    jint uv_size = uv_width * uv_height;
+    if (env->GetArrayLength(src_) < y_size + uv_size * 2) {
+        return -2;
+    }
+    uint8 *src = (uint8 *) env->GetPrimitiveArrayCritical(src_, NULL);
+    if (src == NULL) {
+        return -3;
+    }
+
+    bool src_planar = srcFormat == SRC_FORMAT_I420 || srcFormat == SRC_FORMAT_YV12;
+    const uint8 *src_y = src;
+    const uint8 *src_u;
+    const uint8 *src_v;
+    jint src_stride_uv;
+    jint src_pixel_stride;
+    if (src_planar) {
+        src_u = src + y_size + (srcFormat == SRC_FORMAT_YV12 ? uv_size : 0);
+        src_v = src + y_size + (srcFormat == SRC_FORMAT_YV12 ? 0 : uv_size);
+        src_stride_uv = uv_width;
+        src_pixel_stride = 1;
+    } else {
+        src_u = src + y_size + (srcFormat == SRC_FORMAT_NV21 ? 1 : 0);
+        src_v = src + y_size + (srcFormat == SRC_FORMAT_NV21 ? 0 : 1);
+        src_stride_uv = uv_width * 2;
+        src_pixel_stride = 2;
+    }
+
+    int ret = 0;
+    if (dstPixelStrideUV == 1) {
+        // 平面格式（I420/YV12，由 U/V 平面地址决定）
+        if (src_planar) {
+            ret = libyuv::I420Copy(src_y, width, src_u, src_stride_uv, src_v, src_stride_uv,
+                                   dst_y, dstStrideY, dst_u, dstStrideU, dst_v, dstStrideV,
+                                   width, height);
+        } else if (srcFormat == SRC_FORMAT_NV21) {
+            ret = stripedNV21ToI420(src_y, width, src_v, src_stride_uv,
+                                    dst_y, dstStrideY, dst_u, dstStrideU, dst_v, dstStrideV,
+                                    width, height);
+        } else {
+            ret = stripedNV12ToI420(src_y, width, src_u, src_stride_uv,
+                                    dst_y, dstStrideY, dst_u, dstStrideU, dst_v, dstStrideV,
+                                    width, height);
+        }
+    } else if (dstPixelStrideUV == 2 && (dst_v == dst_u + 1 || dst_u == dst_v + 1)) {
+        // 半平面格式，U 在前为 NV12，V 在前为 NV21
+        bool dst_nv21 = dst_u == dst_v + 1;
+        uint8 *dst_uv = dst_nv21 ? dst_v : dst_u;
+        jint dst_stride_uv = dst_nv21 ? dstStrideV : dstStrideU;
+        if (src_planar) {
+            if (dst_nv21) {
+                ret = i420ToNV21(src_y, width, src_u, src_stride_uv, src_v, src_stride_uv,
+                                 dst_y, dstStrideY, dst_uv, dst_stride_uv, width, height);
+            } else {
+                ret = libyuv::I420ToNV12(src_y, width, src_u, src_stride_uv, src_v, src_stride_uv,
+                                         dst_y, dstStrideY, dst_uv, dst_stride_uv, width, height);
+            }
+        } else {
+            libyuv::CopyPlane(src_y, width, dst_y, dstStrideY, width, height);
+            if (dst_nv21 == (srcFormat == SRC_FORMAT_NV21)) {
+                libyuv::CopyPlane(src + y_size, src_stride_uv, dst_uv, dst_stride_uv,
+                                  uv_width * 2, uv_height);
+            } else {
+                copyChroma(src_u, src_v, src_stride_uv, src_pixel_stride, dst_u, dst_v,
+                           dstStrideU, dstStrideV, 2, uv_width, uv_height);
+            }
+        }
+    } else {
+        // 其它 pixelStride，逐像素写入色度
+        libyuv::CopyPlane(src_y, width, dst_y, dstStrideY, width, height);
+        copyChroma(src_u, src_v, src_stride_uv, src_pixel_stride, dst_u, dst_v,
+                   dstStrideU, dstStrideV, dstPixelStrideUV, uv_width, uv_height);
+    }
+    env->ReleasePrimitiveArrayCritical(src_, src, JNI_ABORT);
+    return ret;
+}
+
+// 编码器输入 Image 的三个平面位于同一块输入 buffer 中，返回从最前面的平面起始到最后一个平面末尾的字节数
+extern "C"
+JNIEXPORT jint JNICALL
+Java_com_libyuv_util_YuvUtil_planesSize(JNIEnv *env, jclass type, jobject y, jobject u, jobject v) {
+    jobject planes[] = {y, u, v};
+    uint8 *start = NULL;
+    uint8 *end = NULL;
+    for (jobject plane : planes) {
+        uint8 *address = plane != NULL ? (uint8 *) env->GetDirectBufferAddress(plane) : NULL;
+        jlong capacity = plane != NULL ? env->GetDirectBufferCapacity(plane) : -1;
+        if (address == NULL || capacity < 0) {
+            return -1;
+        }
+        if (start == NULL || address < start) {
+            start = address;
+        }
+        if (end == NULL || address + capacity > end) {
+            end = address + capacity;
+        }
+    }
+    jlong size = end - start;
+    return size > 0x7FFFFFFF ? -1 : (jint) size;
+}
+
+// ---------------- direct ByteBuffer + stride ----------------
+// 平面从 direct buffer 的起始地址开始（不考虑 position），需要偏移时在 Java 层使用 slice()
+// 失败返回 -1：不是 direct buffer、stride 小于一行的字节数或容量不足
+
+// 一个平面 rows 行、每行 row_bytes 字节、行间隔 stride 时的地址，不满足时返回 NULL
+static uint8 *directPlane(JNIEnv *env, jobject buffer, jint stride, jint row_bytes, jint rows) {
+    if (buffer == NULL || row_bytes <= 0 || rows <= 0 || stride < row_bytes) {
+        return NULL;
+    }
+    uint8 *address = (uint8 *) env->GetDirectBufferAddress(buffer);
+    if (address == NULL) {
+        return NULL;
+    }
+    jlong capacity = env->GetDirectBufferCapacity(buffer);
+    if (capacity < (jlong) stride * (rows - 1) + row_bytes) {
+        return NULL;
+    }
+    return address;
+}
+
+// I420 三个平面
+struct I420Planes {
+    uint8 *y;
+    uint8 *u;
+    uint8 *v;
+};
+
+static bool directI420(JNIEnv *env, jint width, jint height,
+                       jobject y, jint stride_y, jobject u, jint stride_u, jobject v, jint stride_v,
+                       I420Planes *planes) {
+    jint uv_width = (width + 1) >> 1;
+    jint uv_height = (height + 1) >> 1;
+    planes->y = directPlane(env, y, stride_y, width, height);
+    planes->u = directPlane(env, u, stride_u, uv_width, uv_height);
+    planes->v = directPlane(env, v, stride_v, uv_width, uv_height);
+    return planes->y != NULL && planes->u != NULL && planes->v != NULL;
+}
+
+// nv21 --> i420
+extern "C"
+JNIEXPORT jint JNICALL
+Java_com_libyuv_util_YuvUtil_NV21ToI420(JNIEnv *env, jclass type,
+                                       jobject srcY, jint srcStrideY, jobject srcVU, jint srcStrideVU,
+                                       jobject dstY, jint dstStrideY, jobject dstU, jint dstStrideU,
+                                       jobject dstV, jint dstStrideV, jint width, jint height) {
+    uint8 *src_y = directPlane(env, srcY, srcStrideY, width, height);
+    uint8 *src_vu = directPlane(env, srcVU, srcStrideVU, ((width + 1) >> 1) * 2, (height + 1) >> 1);
+    I420Planes dst;
+    if (src_y == NULL || src_vu == NULL
+        || !directI420(env, width, height, dstY, dstStrideY, dstU, dstStrideU, dstV, dstStrideV, &dst)) {
+        return -1;
+    }
+    return stripedNV21ToI420(src_y, srcStrideY, src_vu, srcStrideVU,
+                             dst.y, dstStrideY, dst.u, dstStrideU, dst.v, dstStrideV,
+                             width, height);
+}
+
+// nv12 --> i420
+extern "C"
+JNIEXPORT jint JNICALL
+Java_com_libyuv_util_YuvUtil_NV12ToI420(JNIEnv *env, jclass type,
+                                       jobject srcY, jint srcStrideY, jobject srcUV, jint srcStrideUV,
+                                       jobject dstY, jint dstStrideY, jobject dstU, jint dstStrideU,
+                                       jobject dstV, jint dstStrideV, jint width, jint height) {
+    uint8 *src_y = directPlane(env, srcY, srcStrideY, width, height);
+    uint8 *src_uv = directPlane(env, srcUV, srcStrideUV, ((width + 1) >> 1) * 2, (height + 1) >> 1);
+    I420Planes dst;
+    if (src_y == NULL || src_uv == NULL
+        || !directI420(env, width, height, dstY, dstStrideY, dstU, dstStrideU, dstV, dstStrideV, &dst)) {
+        return -1;
+    }
+    return stripedNV12ToI420(src_y, srcStrideY, src_uv, srcStrideUV,
+                             dst.y, dstStrideY, dst.u, dstStrideU, dst.v, dstStrideV,
+                             width, height);
+}
+
+// i420 --> nv21 / nv12
+static jint i420ToSemiPlanar(JNIEnv *env, bool nv21,
+                             jobject srcY, jint srcStrideY, jobject srcU, jint srcStrideU,
+                             jobject srcV, jint srcStrideV,
+                             jobject dstY, jint dstStrideY, jobject dstUV, jint dstStrideUV,
+                             jint width, jint height) {
+    I420Planes src;
+    uint8 *dst_y = directPlane(env, dstY, dstStrideY, width, height);
+    uint8 *dst_uv = directPlane(env, dstUV, dstStrideUV, ((width + 1) >> 1) * 2, (height + 1) >> 1);
+    if (dst_y == NULL || dst_uv == NULL
+        || !directI420(env, width, height, srcY, srcStrideY, srcU, srcStrideU, srcV, srcStrideV, &src)) {
+        return -1;
+    }
+    if (nv21) {
+        return i420ToNV21(src.y, srcStrideY, src.u, srcStrideU, src.v, srcStrideV,
+                          dst_y, dstStrideY, dst_uv, dstStrideUV, width, height);
+    }
+    return libyuv::I420ToNV12(src.y, srcStrideY, src.u, srcStrideU, src.v, srcStrideV,
+                              dst_y, dstStrideY, dst_uv, dstStrideUV, width, height);
+}
+
+extern "C"
+JNIEXPORT jint JNICALL
+Java_com_libyuv_util_YuvUtil_nativeI420ToNV21(JNIEnv *env, jclass type,
+                                             jobject srcY, jint srcStrideY, jobject srcU, jint srcStrideU,
+                                             jobject srcV, jint srcStrideV,
+                                             jobject dstY, jint dstStrideY, jobject dstVU, jint dstStrideVU,
+                                             jint width, jint height) {
+    return i420ToSemiPlanar(env, true, srcY, srcStrideY, srcU, srcStrideU, srcV, srcStrideV,
+                            dstY, dstStrideY, dstVU, dstStrideVU, width, height);
+}
+
+extern "C"
+JNIEXPORT jint JNICALL
+Java_com_libyuv_util_YuvUtil_nativeI420ToNV12(JNIEnv *env, jclass type,
+                                             jobject srcY, jint srcStrideY, jobject srcU, jint srcStrideU,
+                                             jobject srcV, jint srcStrideV,
+                                             jobject dstY, jint dstStrideY, jobject dstUV, jint dstStrideUV,
+                                             jint width, jint height) {
+    return i420ToSemiPlanar(env, false, srcY, srcStrideY, srcU, srcStrideU, srcV, srcStrideV,
+                            dstY, dstStrideY, dstUV, dstStrideUV, width, height);
+}
+
+// nv21 / nv12 --> argb
+extern "C"
+JNIEXPORT jint JNICALL
+Java_com_libyuv_util_YuvUtil_nativeSemiPlanarToARGB(JNIEnv *env, jclass type, jboolean nv21,
+                                                   jobject srcY, jint srcStrideY,
+                                                   jobject srcUV, jint srcStrideUV,
+                                                   jobject dstARGB, jint dstStrideARGB,
+                                                   jint width, jint height) {
+    uint8 *src_y = directPlane(env, srcY, srcStrideY, width, height);
+    uint8 *src_uv = directPlane(env, srcUV, srcStrideUV, ((width + 1) >> 1) * 2, (height + 1) >> 1);
+    uint8 *dst_argb = directPlane(env, dstARGB, dstStrideARGB, width * 4, height);
+    if (src_y == NULL || src_uv == NULL || dst_argb == NULL) {
+        return -1;
+    }
+    if (nv21) {
+        return stripedNV21ToARGB(src_y, srcStrideY, src_uv, srcStrideUV,
+                                 dst_argb, dstStrideARGB, width, height);
+    }
+    return stripedNV12ToARGB(src_y, srcStrideY, src_uv, srcStrideUV,
+                             dst_argb, dstStrideARGB, width, height);
+}
+
+// i420 --> argb
+extern "C"
+JNIEXPORT jint JNICALL
+Java_com_libyuv_util_YuvUtil_I420ToARGB(JNIEnv *env, jclass type,
+                                       jobject srcY, jint srcStrideY, jobject srcU, jint srcStrideU,
+                                       jobject srcV, jint srcStrideV,
+                                       jobject dstARGB, jint dstStrideARGB, jint width, jint height) {
+    I420Planes src;
+    uint8 *dst_argb = directPlane(env, dstARGB, dstStrideARGB, width * 4, height);
+    if (dst_argb == NULL
+        || !directI420(env, width, height, srcY, srcStrideY, srcU, srcStrideU, srcV, srcStrideV, &src)) {
+        return -1;
+    }
+    return stripedI420ToARGB(src.y, srcStrideY, src.u, srcStrideU, src.v, srcStrideV,
+                             dst_argb, dstStrideARGB, width, height);
+}
+
+// argb / abgr --> i420
+extern "C"
+JNIEXPORT jint JNICALL
+Java_com_libyuv_util_YuvUtil_nativeRGBToI420(JNIEnv *env, jclass type, jboolean abgr,
+                                            jobject src, jint srcStride,
+                                            jobject dstY, jint dstStrideY, jobject dstU, jint dstStrideU,
+                                            jobject dstV, jint dstStrideV, jint width, jint height) {
+    uint8 *src_argb = directPlane(env, src, srcStride, width * 4, height);
+    I420Planes dst;
+    if (src_argb == NULL
+        || !directI420(env, width, height, dstY, dstStrideY, dstU, dstStrideU, dstV, dstStrideV, &dst)) {
+        return -1;
+    }
+    if (abgr) {
+        return libyuv::ABGRToI420(src_argb, srcStride, dst.y, dstStrideY, dst.u, dstStrideU,
+                                  dst.v, dstStrideV, width, height);
+    }
+    return libyuv::ARGBToI420(src_argb, srcStride, dst.y, dstStrideY, dst.u, dstStrideU,
+                              dst.v, dstStrideV, width, height);
+}
+
+// argb --> nv12
+extern "C"
+JNIEXPORT jint JNICALL
+Java_com_libyuv_util_YuvUtil_ARGBToNV12(JNIEnv *env, jclass type, jobject srcARGB, jint srcStrideARGB,
+                                       jobject dstY, jint dstStrideY, jobject dstUV, jint dstStrideUV,
+                                       jint width, jint height) {
+    uint8 *src_argb = directPlane(env, srcARGB, srcStrideARGB, width * 4, height);
+    uint8 *dst_y = directPlane(env, dstY, dstStrideY, width, height);
+    uint8 *dst_uv = directPlane(env, dstUV, dstStrideUV, ((width + 1) >> 1) * 2, (height + 1) >> 1);
+    if (src_argb == NULL || dst_y == NULL || dst_uv == NULL) {
+        return -1;
+    }
+    return libyuv::ARGBToNV12(src_argb, srcStrideARGB, dst_y, dstStrideY, dst_uv, dstStrideUV,
+                              width, height);
+}
+
+// bgra / rgba --> argb
+extern "C"
+JNIEXPORT jint JNICALL
+Java_com_libyuv_util_YuvUtil_nativeToARGB(JNIEnv *env, jclass type, jboolean rgba,
+                                         jobject src, jint srcStride,
+                                         jobject dstARGB, jint dstStrideARGB, jint width, jint height) {
+    uint8 *src_data = directPlane(env, src, srcStride, width * 4, height);
+    uint8 *dst_argb = directPlane(env, dstARGB, dstStrideARGB, width * 4, height);
+    if (src_data == NULL || dst_argb == NULL) {
+        return -1;
+    }
+    if (rgba) {
+        return libyuv::RGBAToARGB(src_data, srcStride, dst_argb, dstStrideARGB, width, height);
+    }
+    return libyuv::BGRAToARGB(src_data, srcStride, dst_argb, dstStrideARGB, width, height);
+}
+
+// i420 缩放
+extern "C"
+JNIEXPORT jint JNICALL
+Java_com_libyuv_util_YuvUtil_scaleI420(JNIEnv *env, jclass type,
+                                      jobject srcY, jint srcStrideY, jobject srcU, jint srcStrideU,
+                                      jobject srcV, jint srcStrideV, jint width, jint height,
+                                      jobject dstY, jint dstStrideY, jobject dstU, jint dstStrideU,
+                                      jobject dstV, jint dstStrideV, jint dst_width, jint dst_height,
+                                      jint mode) {
+    I420Planes src;
+    I420Planes dst;
+    if (!directI420(env, width, height, srcY, srcStrideY, srcU, srcStrideU, srcV, srcStrideV, &src)
+        || !directI420(env, dst_width, dst_height, dstY, dstStrideY, dstU, dstStrideU, dstV, dstStrideV, &dst)) {
+        return -1;
+    }
+    return libyuv::I420Scale(src.y, srcStrideY, src.u, srcStrideU, src.v, srcStrideV, width, height,
+                             dst.y, dstStrideY, dst.u, dstStrideU, dst.v, dstStrideV,
+                             dst_width, dst_height, (libyuv::FilterMode) mode);
+}
+
+// i420 旋转，90和270时输出的宽高与输入相反
+extern "C"
+JNIEXPORT jint JNICALL
+Java_com_libyuv_util_YuvUtil_rotateI420(JNIEnv *env, jclass type,
+                                       jobject srcY, jint srcStrideY, jobject srcU, jint srcStrideU,
+                                       jobject srcV, jint srcStrideV,
+                                       jobject dstY, jint dstStrideY, jobject dstU, jint dstStrideU,
+                                       jobject dstV, jint dstStrideV,
+                                       jint width, jint height, jint degree) {
+    if (degree != libyuv::kRotate0 && degree != libyuv::kRotate90
+        && degree != libyuv::kRotate180 && degree != libyuv::kRotate270) {
+        return -1;
+    }
+    bool swap = degree == libyuv::kRotate90 || degree == libyuv::kRotate270;
+    I420Planes src;
+    I420Planes dst;
+    if (!directI420(env, width, height, srcY, srcStrideY, srcU, srcStrideU, srcV, srcStrideV, &src)
+        || !directI420(env, swap ? height : width, swap ? width : height,
+                       dstY, dstStrideY, dstU, dstStrideU, dstV, dstStrideV, &dst)) {
+        return -1;
+    }
+    return libyuv::I420Rotate(src.y, srcStrideY, src.u, srcStrideU, src.v, srcStrideV,
+                              dst.y, dstStrideY, dst.u, dstStrideU, dst.v, dstStrideV,
+                              width, height, (libyuv::RotationMode) degree);
+}
+
+// i420 裁剪，直接按偏移拷贝，left和top必须为偶数
+extern "C"
+JNIEXPORT jint JNICALL
+Java_com_libyuv_util_YuvUtil_nativeCropI420(JNIEnv *env, jclass type,
+                                           jobject srcY, jint srcStrideY, jobject srcU, jint srcStrideU,
+                                           jobject srcV, jint srcStrideV, jint width, jint height,
+                                           jobject dstY, jint dstStrideY, jobject dstU, jint dstStrideU,
+                                           jobject dstV, jint dstStrideV, jint dst_width, jint dst_height,
+                                           jint left, jint top) {
+    if (left < 0 || top < 0 || left % 2 != 0 || top % 2 != 0
+        || left + dst_width > width || top + dst_height > height) {
+        return -1;
+    }
+    I420Planes src;
+    I420Planes dst;
+    if (!directI420(env, width, height, srcY, srcStrideY, srcU, srcStrideU, srcV, srcStrideV, &src)
+        || !directI420(env, dst_width, dst_height, dstY, dstStrideY, dstU, dstStrideU, dstV, dstStrideV, &dst)) {
+        return -1;
+    }
+    jint uv_left = left >> 1;
+    jint uv_top = top >> 1;
+    return libyuv::I420Copy(src.y + top * srcStrideY + left, srcStrideY,
+                            src.u + uv_top * srcStrideU + uv_left, srcStrideU,
+                            src.v + uv_top * srcStrideV + uv_left, srcStrideV,
+                            dst.y, dstStrideY, dst.u, dstStrideU, dst.v, dstStrideV,
+                            dst_width, dst_height);
+}
+
+extern "C"
+JNIEXPORT void JNICALL
+Java_com_libyuv_util_YuvUtil_setStripeThreads(JNIEnv *env, jclass type, jint threads) {
+    setStripeThreads(threads);
+}
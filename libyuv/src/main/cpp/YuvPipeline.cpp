@@ -0,0 +1,300 @@
+#include <cstdlib>
+#include <algorithm>
+#include "YuvPipeline.h"
+#include "libyuv/row.h"
+
+// 只有镜像时每个行带的行数，1080p 的一个行带约 90KB
+static const int MIRROR_BAND_ROWS = 32;
+
+void releaseScratch(YuvContext *context) {
+    free(context->scratch[0]);
+    free(context->scratch[1]);
+    context->scratch[0] = NULL;
+    context->scratch[1] = NULL;
+    context->capacity = 0;
+}
+
+bool ensureScratch(YuvContext *context, size_t size) {
+    if (size <= context->capacity) {
+        return true;
+    }
+    releaseScratch(context);
+    context->scratch[0] = (uint8 *) malloc(size);
+    context->scratch[1] = (uint8 *) malloc(size);
+    if (context->scratch[0] == NULL || context->scratch[1] == NULL) {
+        releaseScratch(context);
+        return false;
+    }
+    context->capacity = size;
+    return true;
+}
+
+size_t i420Size(int width, int height) {
+    return (size_t) width * height + (size_t) (width >> 1) * (height >> 1) * 2;
+}
+
+static void scaleI420(uint8 *src_i420_data, int width, int height, uint8 *dst_i420_data, int dst_width,
+                      int dst_height, int mode) {
+
+    int src_i420_y_size = width * height;
+    int src_i420_u_size = (width >> 1) * (height >> 1);
+    uint8 *src_i420_y_data = src_i420_data;
+    uint8 *src_i420_u_data = src_i420_data + src_i420_y_size;
+    uint8 *src_i420_v_data = src_i420_data + src_i420_y_size + src_i420_u_size;
+
+    int dst_i420_y_size = dst_width * dst_height;
+    int dst_i420_u_size = (dst_width >> 1) * (dst_height >> 1);
+    uint8 *dst_i420_y_data = dst_i420_data;
+    uint8 *dst_i420_u_data = dst_i420_data + dst_i420_y_size;
+    uint8 *dst_i420_v_data = dst_i420_data + dst_i420_y_size + dst_i420_u_size;
+
+    libyuv::I420Scale((const uint8 *) src_i420_y_data, width,
+                      (const uint8 *) src_i420_u_data, width >> 1,
+                      (const uint8 *) src_i420_v_data, width >> 1,
+                      width, height,
+                      (uint8 *) dst_i420_y_data, dst_width,
+                      (uint8 *) dst_i420_u_data, dst_width >> 1,
+                      (uint8 *) dst_i420_v_data, dst_width >> 1,
+                      dst_width, dst_height,
+                      (libyuv::FilterMode) mode);
+}
+
+static void rotateI420(uint8 *src_i420_data, int width, int height, uint8 *dst_i420_data, int degree) {
+    int src_i420_y_size = width * height;
+    int src_i420_u_size = (width >> 1) * (height >> 1);
+
+    uint8 *src_i420_y_data = src_i420_data;
+    uint8 *src_i420_u_data = src_i420_data + src_i420_y_size;
+    uint8 *src_i420_v_data = src_i420_data + src_i420_y_size + src_i420_u_size;
+
+    uint8 *dst_i420_y_data = dst_i420_data;
+    uint8 *dst_i420_u_data = dst_i420_data + src_i420_y_size;
+    uint8 *dst_i420_v_data = dst_i420_data + src_i420_y_size + src_i420_u_size;
+
+    //要注意这里的width和height在90和270旋转之后是相反的
+    int dst_stride = degree == libyuv::kRotate90 || degree == libyuv::kRotate270 ? height : width;
+    libyuv::I420Rotate((const uint8 *) src_i420_y_data, width,
+                       (const uint8 *) src_i420_u_data, width >> 1,
+                       (const uint8 *) src_i420_v_data, width >> 1,
+                       (uint8 *) dst_i420_y_data, dst_stride,
+                       (uint8 *) dst_i420_u_data, dst_stride >> 1,
+                       (uint8 *) dst_i420_v_data, dst_stride >> 1,
+                       width, height,
+                       (libyuv::RotationMode) degree);
+}
+
+static void mirrorI420(uint8 *src_i420_data, int width, int height, uint8 *dst_i420_data) {
+    int src_i420_y_size = width * height;
+    int src_i420_u_size = (width >> 1) * (height >> 1);
+
+    uint8 *src_i420_y_data = src_i420_data;
+    uint8 *src_i420_u_data = src_i420_data + src_i420_y_size;
+    uint8 *src_i420_v_data = src_i420_data + src_i420_y_size + src_i420_u_size;
+
+    uint8 *dst_i420_y_data = dst_i420_data;
+    uint8 *dst_i420_u_data = dst_i420_data + src_i420_y_size;
+    uint8 *dst_i420_v_data = dst_i420_data + src_i420_y_size + src_i420_u_size;
+
+    libyuv::I420Mirror((const uint8 *) src_i420_y_data, width,
+                       (const uint8 *) src_i420_u_data, width >> 1,
+                       (const uint8 *) src_i420_v_data, width >> 1,
+                       (uint8 *) dst_i420_y_data, width,
+                       (uint8 *) dst_i420_u_data, width >> 1,
+                       (uint8 *) dst_i420_v_data, width >> 1,
+                       width, height);
+}
+
+static void nv21ToI420(const uint8 *src_nv21_data, int width, int height, uint8 *src_i420_data) {
+    int src_y_size = width * height;
+    int src_u_size = (width >> 1) * (height >> 1);
+
+    const uint8 *src_nv21_y_data = src_nv21_data;
+    const uint8 *src_nv21_vu_data = src_nv21_data + src_y_size;
+
+    uint8 *src_i420_y_data = src_i420_data;
+    uint8 *src_i420_u_data = src_i420_data + src_y_size;
+    uint8 *src_i420_v_data = src_i420_data + src_y_size + src_u_size;
+
+
+    libyuv::NV21ToI420((const uint8 *) src_nv21_y_data, width,
+                       (const uint8 *) src_nv21_vu_data, width,
+                       (uint8 *) src_i420_y_data, width,
+                       (uint8 *) src_i420_u_data, width >> 1,
+                       (uint8 *) src_i420_v_data, width >> 1,
+                       width, height);
+}
+
+// nv21 --> 镜像 --> 缩放 --> 旋转，中间结果在 context 的两块缓冲之间交替，最后一步直接写入 dst
+int compressNV21Chain(YuvContext *context, const uint8 *src_nv21_data, int width, int height,
+                      uint8 *dst_i420_data, int dst_width, int dst_height,
+                      int mode, int degree, bool isMirror) {
+    bool scale = width != dst_width || height != dst_height;
+    bool rotate = degree == libyuv::kRotate90 || degree == libyuv::kRotate180 || degree == libyuv::kRotate270;
+    if (!ensureScratch(context, std::max(i420Size(width, height), i420Size(dst_width, dst_height)))) {
+        return -1;
+    }
+    int remaining = 1 + (isMirror ? 1 : 0) + (scale ? 1 : 0) + (rotate ? 1 : 0);
+    int next = 0;
+    uint8 *tmp_dst_i420_data;
+
+    // nv21转化为i420
+    uint8 *out = --remaining == 0 ? dst_i420_data : context->scratch[next++ & 1];
+    nv21ToI420(src_nv21_data, width, height, out);
+    tmp_dst_i420_data = out;
+
+    // 镜像
+    if (isMirror) {
+        out = --remaining == 0 ? dst_i420_data : context->scratch[next++ & 1];
+        mirrorI420(tmp_dst_i420_data, width, height, out);
+        tmp_dst_i420_data = out;
+    }
+
+    // 缩放
+    if (scale) {
+        out = --remaining == 0 ? dst_i420_data : context->scratch[next++ & 1];
+        scaleI420(tmp_dst_i420_data, width, height, out, dst_width, dst_height, mode);
+        tmp_dst_i420_data = out;
+        width = dst_width;
+        height = dst_height;
+    }
+
+    // 旋转
+    if (rotate) {
+        rotateI420(tmp_dst_i420_data, width, height, dst_i420_data, degree);
+    }
+    return 0;
+}
+
+// 紧凑排列的 I420 帧的三个平面
+struct I420Frame {
+    uint8 *y;
+    uint8 *u;
+    uint8 *v;
+    int stride_y;
+    int stride_uv;
+};
+
+static I420Frame i420Frame(uint8 *data, int width, int height) {
+    I420Frame frame;
+    frame.y = data;
+    frame.u = data + width * height;
+    frame.v = frame.u + (width >> 1) * (height >> 1);
+    frame.stride_y = width;
+    frame.stride_uv = width >> 1;
+    return frame;
+}
+
+// NV21 的 VU 交错平面拆分为 U、V 两个平面，按 CPU 选择 libyuv 的 SIMD 行函数，与 NV21ToI420 内部的选择方式相同
+static void splitVU(const uint8 *src_vu, int src_stride, uint8 *dst_u, int dst_stride_u,
+                    uint8 *dst_v, int dst_stride_v, int uv_width, int uv_height) {
+    void (*SplitUVRow)(const uint8 *src_uv, uint8 *dst_u, uint8 *dst_v, int pix) = libyuv::SplitUVRow_C;
+#if defined(HAS_SPLITUVROW_SSE2)
+    if (libyuv::TestCpuFlag(libyuv::kCpuHasSSE2)) {
+        SplitUVRow = IS_ALIGNED(uv_width, 16) ? libyuv::SplitUVRow_SSE2 : libyuv::SplitUVRow_Any_SSE2;
+    }
+#endif
+#if defined(HAS_SPLITUVROW_AVX2)
+    if (libyuv::TestCpuFlag(libyuv::kCpuHasAVX2)) {
+        SplitUVRow = IS_ALIGNED(uv_width, 32) ? libyuv::SplitUVRow_AVX2 : libyuv::SplitUVRow_Any_AVX2;
+    }
+#endif
+#if defined(HAS_SPLITUVROW_NEON)
+    if (libyuv::TestCpuFlag(libyuv::kCpuHasNEON)) {
+        SplitUVRow = IS_ALIGNED(uv_width, 16) ? libyuv::SplitUVRow_NEON : libyuv::SplitUVRow_Any_NEON;
+    }
+#endif
+    for (int row = 0; row < uv_height; row++) {
+        // VU 顺序，第一个字节为 V
+        SplitUVRow(src_vu + row * src_stride, dst_v + row * dst_stride_v, dst_u + row * dst_stride_u, uv_width);
+    }
+}
+
+int compressNV21Fused(YuvContext *context, const uint8 *src_nv21_data, int width, int height,
+                      uint8 *dst_i420_data, int dst_width, int dst_height,
+                      int mode, int degree, bool isMirror) {
+    if (degree != libyuv::kRotate90 && degree != libyuv::kRotate180 && degree != libyuv::kRotate270) {
+        degree = libyuv::kRotate0;
+    }
+    bool scale = width != dst_width || height != dst_height;
+    bool swap = degree == libyuv::kRotate90 || degree == libyuv::kRotate270;
+    const uint8 *src_y = src_nv21_data;
+    const uint8 *src_vu = src_nv21_data + width * height;
+    I420Frame dst = i420Frame(dst_i420_data, swap ? dst_height : dst_width, swap ? dst_width : dst_height);
+
+    // 先水平镜像再旋转 90/270，等于源上下翻转后反方向旋转；镜像加 180 只是上下翻转
+    // 上下翻转由负的高度完成，不需要单独的一遍；只有不旋转时才需要真正的水平镜像
+    int rotation = degree;
+    bool flip = false;
+    bool mirror = false;
+    if (isMirror) {
+        if (degree == libyuv::kRotate90) {
+            rotation = libyuv::kRotate270;
+            flip = true;
+        } else if (degree == libyuv::kRotate270) {
+            rotation = libyuv::kRotate90;
+            flip = true;
+        } else if (degree == libyuv::kRotate180) {
+            rotation = libyuv::kRotate0;
+            flip = true;
+        } else {
+            mirror = true;
+        }
+    }
+
+    if (!scale && !mirror) {
+        // 转换、翻转、旋转一次完成，NV21 的色度为 VU 顺序，交换 U、V 的输出平面
+        return libyuv::NV12ToI420Rotate(src_y, width, src_vu, width,
+                                        dst.y, dst.stride_y, dst.v, dst.stride_uv, dst.u, dst.stride_uv,
+                                        width, flip ? -height : height, (libyuv::RotationMode) rotation);
+    }
+
+    if (!scale) {
+        // 只有水平镜像：按行带转换到小块缓冲再镜像写入 dst，行带留在 L2 中，不产生整帧的中间数据
+        if (!ensureScratch(context, i420Size(width, MIRROR_BAND_ROWS))) {
+            return -1;
+        }
+        I420Frame band = i420Frame(context->scratch[0], width, MIRROR_BAND_ROWS);
+        for (int row = 0; row < height; row += MIRROR_BAND_ROWS) {
+            int rows = std::min(MIRROR_BAND_ROWS, height - row);
+            libyuv::NV21ToI420(src_y + row * width, width, src_vu + (row >> 1) * width, width,
+                               band.y, band.stride_y, band.u, band.stride_uv, band.v, band.stride_uv,
+                               width, rows);
+            libyuv::I420Mirror(band.y, band.stride_y, band.u, band.stride_uv, band.v, band.stride_uv,
+                               dst.y + row * dst.stride_y, dst.stride_y,
+                               dst.u + (row >> 1) * dst.stride_uv, dst.stride_uv,
+                               dst.v + (row >> 1) * dst.stride_uv, dst.stride_uv,
+                               width, rows);
+        }
+        return 0;
+    }
+
+    if (!ensureScratch(context, std::max(i420Size(width, height), i420Size(dst_width, dst_height)))) {
+        return -1;
+    }
+    // 先缩放再旋转，与逐步处理的采样位置相同（先旋转再缩放时 libyuv 横竖方向的采样网格不对称，结果会偏移）
+    // Y 直接从 NV21 缩放，不再整帧转换；色度拆分后缩放，只有 1/4 大小
+    int uv_width = width >> 1;
+    int uv_height = height >> 1;
+    uint8 *split_u = context->scratch[0];
+    uint8 *split_v = split_u + uv_width * uv_height;
+    splitVU(src_vu, width, split_u, uv_width, split_v, uv_width, uv_width, uv_height);
+    bool direct = rotation == libyuv::kRotate0 && !flip && !mirror;
+    I420Frame scaled = direct ? dst : i420Frame(context->scratch[1], dst_width, dst_height);
+    libyuv::FilterMode filter = (libyuv::FilterMode) mode;
+    libyuv::ScalePlane(src_y, width, width, height, scaled.y, scaled.stride_y, dst_width, dst_height, filter);
+    libyuv::ScalePlane(split_u, uv_width, uv_width, uv_height, scaled.u, scaled.stride_uv,
+                       dst_width >> 1, dst_height >> 1, filter);
+    libyuv::ScalePlane(split_v, uv_width, uv_width, uv_height, scaled.v, scaled.stride_uv,
+                       dst_width >> 1, dst_height >> 1, filter);
+    if (direct) {
+        return 0;
+    }
+    if (mirror) {
+        return libyuv::I420Mirror(scaled.y, scaled.stride_y, scaled.u, scaled.stride_uv, scaled.v, scaled.stride_uv,
+                                  dst.y, dst.stride_y, dst.u, dst.stride_uv, dst.v, dst.stride_uv,
+                                  dst_width, dst_height);
+    }
+    return libyuv::I420Rotate(scaled.y, scaled.stride_y, scaled.u, scaled.stride_uv, scaled.v, scaled.stride_uv,
+                              dst.y, dst.stride_y, dst.u, dst.stride_uv, dst.v, dst.stride_uv,
+                              dst_width, flip ? -dst_height : dst_height, (libyuv::RotationMode) rotation);
+}
@@ -0,0 +1,36 @@
+#ifndef YUV_PIPELINE_H
+#define YUV_PIPELINE_H
+
+#include <cstddef>
+#include "libyuv.h"
+
+// 可复用的转换上下文，持有两块交替使用的中间缓冲，只在帧变大时重新分配
+// 不是线程安全的，同一时间只能在一个线程中使用
+struct YuvContext {
+    uint8 *scratch[2];
+    size_t capacity;
+};
+
+void releaseScratch(YuvContext *context);
+
+// 保证每块中间缓冲至少 size 字节
+bool ensureScratch(YuvContext *context, size_t size);
+
+// 紧凑排列的 I420 帧的字节数
+size_t i420Size(int width, int height);
+
+// nv21 --> i420，可选镜像、缩放、旋转（0，90，180，270），输出 I420 紧凑排列，旋转 90/270 时宽高相反
+// mode 为 libyuv::FilterMode，返回 0 成功
+
+// 逐步处理：转换 --> 镜像 --> 缩放 --> 旋转，每一步一个整帧的中间结果
+int compressNV21Chain(YuvContext *context, const uint8 *src_nv21_data, int width, int height,
+                      uint8 *dst_i420_data, int dst_width, int dst_height,
+                      int mode, int degree, bool isMirror);
+
+// 合并处理：按参数选择最少的遍数，转换、翻转、旋转合并为一遍，缩放直接读 NV21 的 Y 平面
+// 除了同时缩放和镜像（镜像在缩放之后，有 1~2 的舍入误差），结果与逐步处理完全一致
+int compressNV21Fused(YuvContext *context, const uint8 *src_nv21_data, int width, int height,
+                      uint8 *dst_i420_data, int dst_width, int dst_height,
+                      int mode, int degree, bool isMirror);
+
+#endif //YUV_PIPELINE_H
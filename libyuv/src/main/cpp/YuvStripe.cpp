@@ -0,0 +1,178 @@
+#include "YuvStripe.h"
+
+StripePool::StripePool(int threads)
+        : generation_(0), quit_(false), busy_(0), count_(0), next_(0), task_(NULL), arg_(NULL) {
+    for (int i = 1; i < threads; i++) {
+        workers_.push_back(std::thread(&StripePool::workerLoop, this));
+    }
+}
+
+StripePool::~StripePool() {
+    {
+        std::lock_guard<std::mutex> lock(mutex_);
+        quit_ = true;
+    }
+    start_cv_.notify_all();
+    for (size_t i = 0; i < workers_.size(); i++) {
+        workers_[i].join();
+    }
+}
+
+void StripePool::run(int count, void (*task)(void *arg, int index), void *arg) {
+    {
+        std::lock_guard<std::mutex> lock(mutex_);
+        task_ = task;
+        arg_ = arg;
+        count_ = count;
+        next_.store(0);
+        busy_ = (int) workers_.size();
+        generation_++;
+    }
+    start_cv_.notify_all();
+    drain();
+    std::unique_lock<std::mutex> lock(mutex_);
+    while (busy_ > 0) {
+        done_cv_.wait(lock);
+    }
+}
+
+void StripePool::drain() {
+    for (int index = next_.fetch_add(1); index < count_; index = next_.fetch_add(1)) {
+        task_(arg_, index);
+    }
+}
+
+void StripePool::workerLoop() {
+    long seen = 0;
+    for (;;) {
+        {
+            std::unique_lock<std::mutex> lock(mutex_);
+            while (!quit_ && generation_ == seen) {
+                start_cv_.wait(lock);
+            }
+            if (quit_) {
+                return;
+            }
+            seen = generation_;
+        }
+        drain();
+        std::lock_guard<std::mutex> lock(mutex_);
+        if (--busy_ == 0) {
+            done_cv_.notify_one();
+        }
+    }
+}
+
+static std::mutex sPoolMutex;
+static StripePool *sPool = NULL;
+
+void setStripeThreads(int threads) {
+    std::lock_guard<std::mutex> lock(sPoolMutex);
+    if (sPool != NULL && sPool->threads() == threads) {
+        return;
+    }
+    delete sPool;
+    sPool = threads > 1 ? new StripePool(threads) : NULL;
+}
+
+StripePool *acquireStripePool(int width, int height, std::unique_lock<std::mutex> &lock, int *stripes) {
+    if ((long) width * height < STRIPE_MIN_PIXELS) {
+        return NULL;
+    }
+    // 线程池正被其它线程使用时不等待，直接在调用线程处理
+    std::unique_lock<std::mutex> pool_lock(sPoolMutex, std::try_to_lock);
+    if (!pool_lock.owns_lock() || sPool == NULL) {
+        return NULL;
+    }
+    int count = std::min(sPool->threads(), height / STRIPE_MIN_ROWS);
+    if (count <= 1) {
+        return NULL;
+    }
+    *stripes = count;
+    lock.swap(pool_lock);
+    return sPool;
+}
+
+StripeRange stripeRange(int height, int stripes, int index) {
+    // 行带的行数取偶数，色度行与 Y 行对齐
+    int rows_per_stripe = ((height + stripes - 1) / stripes + 1) & ~1;
+    StripeRange range;
+    range.row = std::min(height, index * rows_per_stripe);
+    range.rows = std::min(height - range.row, rows_per_stripe);
+    return range;
+}
+
+int stripedNV21ToARGB(const uint8 *src_y, int src_stride_y, const uint8 *src_vu, int src_stride_vu,
+                      uint8 *dst_argb, int dst_stride_argb, int width, int height) {
+    std::atomic<int> result(0);
+    forEachStripe(width, height, [&](int row, int rows) {
+        if (libyuv::NV21ToARGB(src_y + row * src_stride_y, src_stride_y,
+                               src_vu + (row >> 1) * src_stride_vu, src_stride_vu,
+                               dst_argb + row * dst_stride_argb, dst_stride_argb, width, rows) != 0) {
+            result.store(-1);
+        }
+    });
+    return result.load();
+}
+
+int stripedNV12ToARGB(const uint8 *src_y, int src_stride_y, const uint8 *src_uv, int src_stride_uv,
+                      uint8 *dst_argb, int dst_stride_argb, int width, int height) {
+    std::atomic<int> result(0);
+    forEachStripe(width, height, [&](int row, int rows) {
+        if (libyuv::NV12ToARGB(src_y + row * src_stride_y, src_stride_y,
+                               src_uv + (row >> 1) * src_stride_uv, src_stride_uv,
+                               dst_argb + row * dst_stride_argb, dst_stride_argb, width, rows) != 0) {
+            result.store(-1);
+        }
+    });
+    return result.load();
+}
+
+int stripedI420ToARGB(const uint8 *src_y, int src_stride_y, const uint8 *src_u, int src_stride_u,
+                      const uint8 *src_v, int src_stride_v,
+                      uint8 *dst_argb, int dst_stride_argb, int width, int height) {
+    std::atomic<int> result(0);
+    forEachStripe(width, height, [&](int row, int rows) {
+        if (libyuv::I420ToARGB(src_y + row * src_stride_y, src_stride_y,
+                               src_u + (row >> 1) * src_stride_u, src_stride_u,
+                               src_v + (row >> 1) * src_stride_v, src_stride_v,
+                               dst_argb + row * dst_stride_argb, dst_stride_argb, width, rows) != 0) {
+            result.store(-1);
+        }
+    });
+    return result.load();
+}
+
+int stripedNV21ToI420(const uint8 *src_y, int src_stride_y, const uint8 *src_vu, int src_stride_vu,
+                      uint8 *dst_y, int dst_stride_y, uint8 *dst_u, int dst_stride_u,
+                      uint8 *dst_v, int dst_stride_v, int width, int height) {
+    std::atomic<int> result(0);
+    forEachStripe(width, height, [&](int row, int rows) {
+        int uv_row = row >> 1;
+        if (libyuv::NV21ToI420(src_y + row * src_stride_y, src_stride_y,
+                               src_vu + uv_row * src_stride_vu, src_stride_vu,
+                               dst_y + row * dst_stride_y, dst_stride_y,
+                               dst_u + uv_row * dst_stride_u, dst_stride_u,
+                               dst_v + uv_row * dst_stride_v, dst_stride_v, width, rows) != 0) {
+            result.store(-1);
+        }
+    });
+    return result.load();
+}
+
+int stripedNV12ToI420(const uint8 *src_y, int src_stride_y, const uint8 *src_uv, int src_stride_uv,
+                      uint8 *dst_y, int dst_stride_y, uint8 *dst_u, int dst_stride_u,
+                      uint8 *dst_v, int dst_stride_v, int width, int height) {
+    std::atomic<int> result(0);
+    forEachStripe(width, height, [&](int row, int rows) {
+        int uv_row = row >> 1;
+        if (libyuv::NV12ToI420(src_y + row * src_stride_y, src_stride_y,
+                               src_uv + uv_row * src_stride_uv, src_stride_uv,
+                               dst_y + row * dst_stride_y, dst_stride_y,
+                               dst_u + uv_row * dst_stride_u, dst_stride_u,
+                               dst_v + uv_row * dst_stride_v, dst_stride_v, width, rows) != 0) {
+            result.store(-1);
+        }
+    });
+    return result.load();
+}
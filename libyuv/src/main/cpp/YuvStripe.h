@@ -0,0 +1,112 @@
+#ifndef YUV_STRIPE_H
+#define YUV_STRIPE_H
+
+#include <algorithm>
+#include <atomic>
+#include <condition_variable>
+#include <mutex>
+#include <thread>
+#include <vector>
+#include "libyuv.h"
+
+// 分带处理的最小图像，小于它时线程切换的开销大于收益，在调用线程处理整帧
+#define STRIPE_MIN_PIXELS (1280 * 720)
+// 每个行带的最小行数
+#define STRIPE_MIN_ROWS 64
+
+// 固定线程数的线程池，调用线程也参与执行，同一时间只执行一批任务
+class StripePool {
+public:
+    // threads 为包括调用线程在内的线程数，创建 threads - 1 个工作线程
+    explicit StripePool(int threads);
+
+    ~StripePool();
+
+    int threads() const {
+        return (int) workers_.size() + 1;
+    }
+
+    // 执行 task(arg, 0) ~ task(arg, count - 1)，全部完成后返回
+    void run(int count, void (*task)(void *arg, int index), void *arg);
+
+private:
+    void workerLoop();
+
+    void drain();
+
+    std::vector<std::thread> workers_;
+    std::mutex mutex_;
+    std::condition_variable start_cv_;
+    std::condition_variable done_cv_;
+    long generation_;
+    bool quit_;
+    // 本轮还没有完成的工作线程数
+    int busy_;
+    int count_;
+    std::atomic<int> next_;
+    void (*task_)(void *arg, int index);
+    void *arg_;
+};
+
+// 设置分带使用的线程数，不大于 1 时关闭分带，默认关闭
+void setStripeThreads(int threads);
+
+// 行带：[row, row + rows)，row 为偶数，4:2:0 的色度行从 row / 2 开始
+struct StripeRange {
+    int row;
+    int rows;
+};
+
+// 取得分带的线程池并计算行带数，返回 NULL 时在调用线程处理整帧；成功时持有 lock 直到处理结束
+StripePool *acquireStripePool(int width, int height, std::unique_lock<std::mutex> &lock, int *stripes);
+
+StripeRange stripeRange(int height, int stripes, int index);
+
+// 按行带并行执行 fn(row, rows)，行间没有依赖的转换（每行只读写自己的 Y 行和 row / 2 的色度行）才能分带
+// 没有开启分带、图像较小或线程池正被其它线程使用时，在调用线程执行 fn(0, height)
+template<typename F>
+void forEachStripe(int width, int height, F fn) {
+    std::unique_lock<std::mutex> lock;
+    int stripes = 1;
+    StripePool *pool = acquireStripePool(width, height, lock, &stripes);
+    if (pool == NULL) {
+        fn(0, height);
+        return;
+    }
+    struct Task {
+        F *fn;
+        int height;
+        int stripes;
+
+        static void run(void *arg, int index) {
+            Task *task = (Task *) arg;
+            StripeRange range = stripeRange(task->height, task->stripes, index);
+            if (range.rows > 0) {
+                (*task->fn)(range.row, range.rows);
+            }
+        }
+    } task = {&fn, height, stripes};
+    pool->run(stripes, Task::run, &task);
+}
+
+// 以下转换在开启分带时按行带并行，结果与单线程完全一致
+
+int stripedNV21ToARGB(const uint8 *src_y, int src_stride_y, const uint8 *src_vu, int src_stride_vu,
+                      uint8 *dst_argb, int dst_stride_argb, int width, int height);
+
+int stripedNV12ToARGB(const uint8 *src_y, int src_stride_y, const uint8 *src_uv, int src_stride_uv,
+                      uint8 *dst_argb, int dst_stride_argb, int width, int height);
+
+int stripedI420ToARGB(const uint8 *src_y, int src_stride_y, const uint8 *src_u, int src_stride_u,
+                      const uint8 *src_v, int src_stride_v,
+                      uint8 *dst_argb, int dst_stride_argb, int width, int height);
+
+int stripedNV21ToI420(const uint8 *src_y, int src_stride_y, const uint8 *src_vu, int src_stride_vu,
+                      uint8 *dst_y, int dst_stride_y, uint8 *dst_u, int dst_stride_u,
+                      uint8 *dst_v, int dst_stride_v, int width, int height);
+
+int stripedNV12ToI420(const uint8 *src_y, int src_stride_y, const uint8 *src_uv, int src_stride_uv,
+                      uint8 *dst_y, int dst_stride_y, uint8 *dst_u, int dst_stride_u,
+                      uint8 *dst_v, int dst_stride_v, int width, int height);
+
+#endif //YUV_STRIPE_H
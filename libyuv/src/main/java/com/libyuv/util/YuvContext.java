@@ -0,0 +1,57 @@
+package com.libyuv.util;
+
+/**
+ * YUV 转换上下文，持有 native 的中间缓冲，连续处理多帧时复用，避免每帧分配和释放整帧大小的内存
+ * 缓冲按创建时的尺寸分配，之后帧变大时才重新分配
+ * 不是线程安全的，同一时间只能在一个线程中使用；不再使用时调用 {@link #release()}
+ */
+public class YuvContext {
+
+    private long mHandle;
+
+    /**
+     * @param width      原始的宽
+     * @param height     原始的高
+     * @param dst_width  输出的宽
+     * @param dst_height 输出的高
+     */
+    public YuvContext(int width, int height, int dst_width, int dst_height) {
+        mHandle = YuvUtil.createContext(width, height, dst_width, dst_height);
+        if (mHandle == 0) {
+            throw new OutOfMemoryError("create YuvContext failed: " + width + "x" + height + " -> " + dst_width + "x" + dst_height);
+        }
+    }
+
+    /**
+     * NV21 转 I420，可选镜像、缩放和旋转，参数同 {@link YuvUtil#compressYUV}
+     *
+     * @return 0 成功，小于0 失败
+     */
+    public int compressYUV(byte[] src, int width, int height, byte[] dst, int dst_width, int dst_height, int mode, int degree, boolean isMirror) {
+        if (mHandle == 0) {
+            throw new IllegalStateException("YuvContext released");
+        }
+        return YuvUtil.compressYUVWithContext(mHandle, src, width, height, dst, dst_width, dst_height, mode, degree, isMirror);
+    }
+
+    /**
+     * 与 {@link #compressYUV} 相同的处理，按参数合并为最少的遍数：转换、镜像、旋转一次完成，
+     * 缩小时 Y 直接从 NV21 缩放，只有镜像时按行带处理，中间数据留在缓存中。
+     * 除了同时缩放和镜像（镜像在缩放之后，像素值有 1~2 的舍入差异），结果与 {@link #compressYUV} 完全一致
+     *
+     * @return 0 成功，小于0 失败
+     */
+    public int compressYUVFused(byte[] src, int width, int height, byte[] dst, int dst_width, int dst_height, int mode, int degree, boolean isMirror) {
+        if (mHandle == 0) {
+            throw new IllegalStateException("YuvContext released");
+        }
+        return YuvUtil.compressYUVFusedWithContext(mHandle, src, width, height, dst, dst_width, dst_height, mode, degree, isMirror);
+    }
+
+    public void release() {
+        if (mHandle != 0) {
+            YuvUtil.destroyContext(mHandle);
+            mHandle = 0;
+        }
+    }
+}
@@ -1,5 +1,7 @@
 package com.libyuv.util;
 
+import java.nio.ByteBuffer;
+
 /**
  * 作者：请叫我百米冲刺 on 2017/8/28 上午11:05
  * 邮箱：mail@hezhilin.cc
@@ -11,6 +13,24 @@ public class YuvUtil {
         System.loadLibrary("yuvutil");
     }
 
+    /**
+     * writeYUVToPlanes 支持的源数据格式
+     */
+    public static final int FORMAT_I420 = 0;
+    public static final int FORMAT_NV12 = 1;
+    public static final int FORMAT_NV21 = 2;
+    public static final int FORMAT_YV12 = 3;
+
+    /**
+     * 设置大图转换的线程数，不大于1时关闭，默认关闭
+     * 开启后不小于720p的 NV21/NV12/I420 转 ARGB、NV21/NV12 转 I420（包括 writeYUVToPlanes）按水平行带分给线程池并行处理，
+     * 调用线程也参与处理，结果与单线程完全一致。线程池同一时间只服务一次转换，其它线程同时调用时在自己的线程中处理整帧。
+     * 4K 导出时建议设为大核数，如 4
+     *
+     * @param threads 包括调用线程在内的线程数
+     */
+    public static native void setStripeThreads(int threads);
+
     /**
      * YUV数据的基本的处理
      *
@@ -26,6 +46,24 @@ public class YuvUtil {
      **/
     public static native void compressYUV(byte[] src, int width, int height, byte[] dst, int dst_width, int dst_height, int mode, int degree, boolean isMirror);
 
+    /**
+     * 创建转换上下文，由 {@link YuvContext} 持有
+     *
+     * @return native 句柄，0 表示内存不足
+     */
+    static native long createContext(int width, int height, int dst_width, int dst_height);
+
+    static native void destroyContext(long context);
+
+    /**
+     * 使用 context 的中间缓冲处理，参数同 {@link #compressYUV}
+     *
+     * @return 0 成功，小于0 失败
+     */
+    static native int compressYUVWithContext(long context, byte[] src, int width, int height, byte[] dst, int dst_width, int dst_height, int mode, int degree, boolean isMirror);
+
+    static native int compressYUVFusedWithContext(long context, byte[] src, int width, int height, byte[] dst, int dst_width, int dst_height, int mode, int degree, boolean isMirror);
+
     /**
      * yuv数据的裁剪操作
      *
@@ -97,4 +135,221 @@ public class YuvUtil {
      * @param height  输出的高
      */
     public static native void RGBAToARGB(byte[] rgbaSrc,byte[] argbDst,int width,int height);
+
+    /**
+     * 将I420/NV12/NV21/YV12数据转换后直接写入Y/U/V三个平面（如MediaCodec输入Image的平面），一次完成，无中间内存
+     * 目标格式由平面参数决定：pixelStrideUV为1时为平面格式，为2且U/V地址相邻时为NV12/NV21，其它按pixelStride逐像素写入
+     *
+     * @param src             原始数据
+     * @param srcFormat       原始数据格式 FORMAT_I420、FORMAT_NV12、FORMAT_NV21、FORMAT_YV12
+     * @param width           宽
+     * @param height          高
+     * @param dstY            Y平面，必须是direct buffer
+     * @param dstStrideY      Y平面的rowStride
+     * @param dstU            U平面，必须是direct buffer
+     * @param dstStrideU      U平面的rowStride
+     * @param dstV            V平面，必须是direct buffer
+     * @param dstStrideV      V平面的rowStride
+     * @param dstPixelStrideUV U/V平面的pixelStride
+     * @return 0 成功，小于0 失败（平面不是direct buffer、stride小于一行的字节数或容量不足一帧时返回 -1，不写入任何数据）
+     */
+    public static native int writeYUVToPlanes(byte[] src, int srcFormat, int width, int height,
+                                              ByteBuffer dstY, int dstStrideY,
+                                              ByteBuffer dstU, int dstStrideU,
+                                              ByteBuffer dstV, int dstStrideV,
+                                              int dstPixelStrideUV);
+
+    /**
+     * 计算编码器输入 Image 的 Y/U/V 平面在输入 buffer 中占用的字节数（从最前面的平面起始到最后一个平面的末尾），
+     * 包含 slice-height 等平面之间的填充，用作 queueInputBuffer 的 size
+     * Image 的平面是输入 buffer 按实际范围 slice 得到的 direct buffer，Y 平面从输入 buffer 的起始位置开始
+     *
+     * @return 字节数，平面不是direct buffer时返回 -1
+     */
+    public static native int planesSize(ByteBuffer planeY, ByteBuffer planeU, ByteBuffer planeV);
+
+    // ---------------- direct ByteBuffer + stride ----------------
+    // 以下方法的 ByteBuffer 必须是 direct buffer（如 Camera2 Image、编码器输入 Image 的平面，或 ByteBuffer.allocateDirect），
+    // 每个平面单独给出 rowStride，可以直接处理带行填充的图像，不需要先拷贝成紧凑的 byte[]。
+    // 平面从 buffer 的起始地址开始，不考虑 position，需要偏移时传入 slice()。
+    // U/V 交错的平面（NV12 的 UV、NV21 的 VU）pixelStride 为 2，其它平面为 1。
+    // 返回 0 成功，小于0 失败（不是 direct buffer、stride 小于一行的字节数或容量不足时返回 -1）
+
+    /**
+     * 将NV21转化为I420
+     *
+     * @param srcY  原始Y平面
+     * @param srcVU 原始VU交错平面
+     * @param dstY  输出Y平面
+     * @param dstU  输出U平面
+     * @param dstV  输出V平面
+     */
+    public static native int NV21ToI420(ByteBuffer srcY, int srcStrideY, ByteBuffer srcVU, int srcStrideVU,
+                                        ByteBuffer dstY, int dstStrideY, ByteBuffer dstU, int dstStrideU,
+                                        ByteBuffer dstV, int dstStrideV, int width, int height);
+
+    /**
+     * 将NV12转化为I420
+     *
+     * @param srcY  原始Y平面
+     * @param srcUV 原始UV交错平面
+     * @param dstY  输出Y平面
+     * @param dstU  输出U平面
+     * @param dstV  输出V平面
+     */
+    public static native int NV12ToI420(ByteBuffer srcY, int srcStrideY, ByteBuffer srcUV, int srcStrideUV,
+                                        ByteBuffer dstY, int dstStrideY, ByteBuffer dstU, int dstStrideU,
+                                        ByteBuffer dstV, int dstStrideV, int width, int height);
+
+    /**
+     * 将I420转化为NV21
+     */
+    public static int yuvI420ToNV21(ByteBuffer srcY, int srcStrideY, ByteBuffer srcU, int srcStrideU,
+                                    ByteBuffer srcV, int srcStrideV,
+                                    ByteBuffer dstY, int dstStrideY, ByteBuffer dstVU, int dstStrideVU,
+                                    int width, int height) {
+        return nativeI420ToNV21(srcY, srcStrideY, srcU, srcStrideU, srcV, srcStrideV,
+                dstY, dstStrideY, dstVU, dstStrideVU, width, height);
+    }
+
+    /**
+     * 将I420转化为NV12
+     */
+    public static int yuvI420ToNV12(ByteBuffer srcY, int srcStrideY, ByteBuffer srcU, int srcStrideU,
+                                    ByteBuffer srcV, int srcStrideV,
+                                    ByteBuffer dstY, int dstStrideY, ByteBuffer dstUV, int dstStrideUV,
+                                    int width, int height) {
+        return nativeI420ToNV12(srcY, srcStrideY, srcU, srcStrideU, srcV, srcStrideV,
+                dstY, dstStrideY, dstUV, dstStrideUV, width, height);
+    }
+
+    /**
+     * 将NV21转化为ARGB
+     */
+    public static int NV21ToARGB(ByteBuffer srcY, int srcStrideY, ByteBuffer srcVU, int srcStrideVU,
+                                 ByteBuffer argbDst, int dstStrideARGB, int width, int height) {
+        return nativeSemiPlanarToARGB(true, srcY, srcStrideY, srcVU, srcStrideVU, argbDst, dstStrideARGB, width, height);
+    }
+
+    /**
+     * 将NV12转化为ARGB
+     */
+    public static int NV12ToARGB(ByteBuffer srcY, int srcStrideY, ByteBuffer srcUV, int srcStrideUV,
+                                 ByteBuffer argbDst, int dstStrideARGB, int width, int height) {
+        return nativeSemiPlanarToARGB(false, srcY, srcStrideY, srcUV, srcStrideUV, argbDst, dstStrideARGB, width, height);
+    }
+
+    /**
+     * 将I420转化为ARGB
+     */
+    public static native int I420ToARGB(ByteBuffer srcY, int srcStrideY, ByteBuffer srcU, int srcStrideU,
+                                        ByteBuffer srcV, int srcStrideV,
+                                        ByteBuffer argbDst, int dstStrideARGB, int width, int height);
+
+    /**
+     * 将ARGB（libyuv 命名，内存中为 B,G,R,A）转化为I420
+     */
+    public static int ARGBToI420(ByteBuffer argbSrc, int srcStrideARGB,
+                                 ByteBuffer dstY, int dstStrideY, ByteBuffer dstU, int dstStrideU,
+                                 ByteBuffer dstV, int dstStrideV, int width, int height) {
+        return nativeRGBToI420(false, argbSrc, srcStrideARGB, dstY, dstStrideY, dstU, dstStrideU, dstV, dstStrideV, width, height);
+    }
+
+    /**
+     * 将ABGR（libyuv 命名，内存中为 R,G,B,A，即 glReadPixels 的 GL_RGBA）转化为I420
+     */
+    public static int ABGRToI420(ByteBuffer abgrSrc, int srcStrideABGR,
+                                 ByteBuffer dstY, int dstStrideY, ByteBuffer dstU, int dstStrideU,
+                                 ByteBuffer dstV, int dstStrideV, int width, int height) {
+        return nativeRGBToI420(true, abgrSrc, srcStrideABGR, dstY, dstStrideY, dstU, dstStrideU, dstV, dstStrideV, width, height);
+    }
+
+    /**
+     * 将ARGB（libyuv 命名，内存中为 B,G,R,A）转化为NV12
+     */
+    public static native int ARGBToNV12(ByteBuffer argbSrc, int srcStrideARGB,
+                                        ByteBuffer dstY, int dstStrideY, ByteBuffer dstUV, int dstStrideUV,
+                                        int width, int height);
+
+    /**
+     * 将BGRA转化为ARGB
+     */
+    public static int BGRAToARGB(ByteBuffer bgraSrc, int srcStride, ByteBuffer argbDst, int dstStrideARGB, int width, int height) {
+        return nativeToARGB(false, bgraSrc, srcStride, argbDst, dstStrideARGB, width, height);
+    }
+
+    /**
+     * 将RGBA转化为ARGB
+     */
+    public static int RGBAToARGB(ByteBuffer rgbaSrc, int srcStride, ByteBuffer argbDst, int dstStrideARGB, int width, int height) {
+        return nativeToARGB(true, rgbaSrc, srcStride, argbDst, dstStrideARGB, width, height);
+    }
+
+    /**
+     * I420缩放
+     *
+     * @param mode 压缩模式，同 {@link #compressYUV}
+     */
+    public static native int scaleI420(ByteBuffer srcY, int srcStrideY, ByteBuffer srcU, int srcStrideU,
+                                       ByteBuffer srcV, int srcStrideV, int width, int height,
+                                       ByteBuffer dstY, int dstStrideY, ByteBuffer dstU, int dstStrideU,
+                                       ByteBuffer dstV, int dstStrideV, int dst_width, int dst_height,
+                                       int mode);
+
+    /**
+     * I420旋转，90和270时输出的宽高与输入相反
+     *
+     * @param width  原始的宽
+     * @param height 原始的高
+     * @param degree 旋转的角度，0，90，180和270
+     */
+    public static native int rotateI420(ByteBuffer srcY, int srcStrideY, ByteBuffer srcU, int srcStrideU,
+                                        ByteBuffer srcV, int srcStrideV,
+                                        ByteBuffer dstY, int dstStrideY, ByteBuffer dstU, int dstStrideU,
+                                        ByteBuffer dstV, int dstStrideV,
+                                        int width, int height, int degree);
+
+    /**
+     * I420的裁剪操作
+     *
+     * @param left 裁剪的x的开始位置，必须为偶数
+     * @param top  裁剪的y的开始位置，必须为偶数
+     */
+    public static int cropYUV(ByteBuffer srcY, int srcStrideY, ByteBuffer srcU, int srcStrideU,
+                              ByteBuffer srcV, int srcStrideV, int width, int height,
+                              ByteBuffer dstY, int dstStrideY, ByteBuffer dstU, int dstStrideU,
+                              ByteBuffer dstV, int dstStrideV, int dst_width, int dst_height,
+                              int left, int top) {
+        return nativeCropI420(srcY, srcStrideY, srcU, srcStrideU, srcV, srcStrideV, width, height,
+                dstY, dstStrideY, dstU, dstStrideU, dstV, dstStrideV, dst_width, dst_height, left, top);
+    }
+
+    // 与 byte[] 版本同名的方法，native 使用不同的名字，避免 JNI 按短名字绑定到同一个函数
+
+    private static native int nativeI420ToNV21(ByteBuffer srcY, int srcStrideY, ByteBuffer srcU, int srcStrideU,
+                                               ByteBuffer srcV, int srcStrideV,
+                                               ByteBuffer dstY, int dstStrideY, ByteBuffer dstVU, int dstStrideVU,
+                                               int width, int height);
+
+    private static native int nativeI420ToNV12(ByteBuffer srcY, int srcStrideY, ByteBuffer srcU, int srcStrideU,
+                                               ByteBuffer srcV, int srcStrideV,
+                                               ByteBuffer dstY, int dstStrideY, ByteBuffer dstUV, int dstStrideUV,
+                                               int width, int height);
+
+    private static native int nativeSemiPlanarToARGB(boolean nv21, ByteBuffer srcY, int srcStrideY,
+                                                     ByteBuffer srcUV, int srcStrideUV,
+                                                     ByteBuffer argbDst, int dstStrideARGB, int width, int height);
+
+    private static native int nativeRGBToI420(boolean abgr, ByteBuffer src, int srcStride,
+                                              ByteBuffer dstY, int dstStrideY, ByteBuffer dstU, int dstStrideU,
+                                              ByteBuffer dstV, int dstStrideV, int width, int height);
+
+    private static native int nativeToARGB(boolean rgba, ByteBuffer src, int srcStride,
+                                           ByteBuffer argbDst, int dstStrideARGB, int width, int height);
+
+    private static native int nativeCropI420(ByteBuffer srcY, int srcStrideY, ByteBuffer srcU, int srcStrideU,
+                                             ByteBuffer srcV, int srcStrideV, int width, int height,
+                                             ByteBuffer dstY, int dstStrideY, ByteBuffer dstU, int dstStrideU,
+                                             ByteBuffer dstV, int dstStrideV, int dst_width, int dst_height,
+                                             int left, int top);
 }